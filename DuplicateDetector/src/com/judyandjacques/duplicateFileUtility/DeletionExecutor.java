@@ -0,0 +1,416 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.duplicateFileUtility;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.judyandjacques.hash.CacheFile;
+import com.judyandjacques.hash.HashCreator;
+import com.judyandjacques.hash.HashException;
+
+/**
+ * Deletes files concurrently. Each file system gets its own pool of threads
+ * so a slow file system doesn't hold up the others and no file system gets
+ * more than the parallelism deletes at once.
+ * 
+ * A failed delete doesn't stop the others, the failures are collected in the
+ * Result. Deleted files are removed from the HashCreator's cache in batches as
+ * they complete. If there is a cache file the cache is also saved to it with
+ * {@link CacheFile#writeShared} at most once every save interval as batches
+ * complete, and once at the end, so the file is close to accurate if the
+ * process dies part way through. Each save writes the whole cache, so the
+ * interval trades how much can be lost against how often the cache is
+ * written.
+ */
+public class DeletionExecutor {
+
+	public static final int DEFAULT_PARALLELISM = 4;
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final long DEFAULT_SAVE_SECONDS = 60;
+
+	// Cache to remove deleted files from, can be null
+	private final HashCreator hashCreator;
+
+	// Deletes at once on each file system
+	private int parallelism = DEFAULT_PARALLELISM;
+
+	// Deleted files are removed from the cache this many at a time
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	// Deleted files that have not been removed from the cache yet
+	private final List<File> batch = new ArrayList<>();
+
+	// Cache file the batches are saved to, can be null
+	private File cacheFile = null;
+	private boolean compact = false;
+
+	// The cache is saved at most this often while deleting
+	private long saveSeconds = DEFAULT_SAVE_SECONDS;
+
+	// Guards the save time and whether batches were removed since the save
+	private final Object saveLock = new Object();
+	private long lastSaveMillis = 0;
+	private boolean unsaved = false;
+
+	/**
+	 * The outcome of a call to delete
+	 */
+	public static class Result {
+		private final List<File> deleted = Collections
+				.synchronizedList(new ArrayList<File>());
+		private final Map<File, String> failures = Collections
+				.synchronizedMap(new LinkedHashMap<File, String>());
+		private final AtomicLong bytesDeleted = new AtomicLong();
+		private volatile String saveFailure = null;
+		private volatile int saves = 0;
+
+		/**
+		 * @return the files that were deleted
+		 */
+		public List<File> getDeleted() {
+			return deleted;
+		}
+
+		/**
+		 * @return the files that could not be deleted and the reason why
+		 */
+		public Map<File, String> getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return the total length of the deleted files
+		 */
+		public long getBytesDeleted() {
+			return bytesDeleted.get();
+		}
+
+		/**
+		 * @return why a batch could not be saved to the cache file or null if
+		 *         they all were
+		 */
+		public String getSaveFailure() {
+			return saveFailure;
+		}
+
+		/**
+		 * @return the number of times the cache was saved to the cache file
+		 */
+		public int getSaves() {
+			return saves;
+		}
+	}
+
+	/**
+	 * @param hashCreator
+	 *            whose cache the deleted files are removed from or null to
+	 *            leave the cache alone
+	 */
+	public DeletionExecutor(HashCreator hashCreator) {
+		this.hashCreator = hashCreator;
+	}
+
+	/**
+	 * Delete the files. Returns when every delete has finished or failed.
+	 * 
+	 * If the thread is interrupted the deletes that have not started are
+	 * recorded as failures, the interrupt status is set again and the result
+	 * is returned. The deletes that finished are still removed from the cache.
+	 * 
+	 * @param toDelete
+	 *            files to delete
+	 * @return the deleted files and the failures
+	 */
+	public Result delete(List<File> toDelete) {
+		if (toDelete == null) {
+			throw new IllegalArgumentException("toDelete cannot be null");
+		}
+		final Result result = new Result();
+		synchronized (saveLock) {
+			lastSaveMillis = System.currentTimeMillis();
+			unsaved = false;
+		}
+
+		Map<FileStore, ExecutorService> executors = new HashMap<>();
+
+		// Looking up the file store for every file is slow, the files in a
+		// directory are all on the same file system
+		Map<Path, FileStore> directoryStores = new HashMap<>();
+		boolean interrupted = false;
+		try {
+			for (final File file : toDelete) {
+				ExecutorService executor;
+				try {
+					executor = getExecutor(executors, directoryStores, file);
+				} catch (IOException e) {
+					result.failures.put(file, e.toString());
+					continue;
+				}
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						deleteFile(file, result);
+					}
+				});
+			}
+			for (ExecutorService executor : executors.values()) {
+				executor.shutdown();
+			}
+			for (ExecutorService executor : executors.values()) {
+				while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+					// Keep waiting
+				}
+			}
+		} catch (InterruptedException e) {
+			interrupted = true;
+			for (ExecutorService executor : executors.values()) {
+				executor.shutdownNow();
+			}
+			// The running deletes can't be stopped, wait for them so they are
+			// in the result
+			for (ExecutorService executor : executors.values()) {
+				awaitUninterruptibly(executor);
+			}
+		} finally {
+			for (ExecutorService executor : executors.values()) {
+				executor.shutdown();
+			}
+			flush(result);
+		}
+
+		if (interrupted) {
+			Set<File> done = new HashSet<>(result.deleted);
+			done.addAll(result.failures.keySet());
+			for (File file : toDelete) {
+				if (!done.contains(file)) {
+					result.failures.put(file, "Interrupted");
+				}
+			}
+			Thread.currentThread().interrupt();
+		}
+		return result;
+	}
+
+	// Wait for the executor to finish even if interrupted
+	private static void awaitUninterruptibly(ExecutorService executor) {
+		boolean interrupted = false;
+		while (!executor.isTerminated()) {
+			try {
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Get the executor for the file's file system, creating it if needed
+	private ExecutorService getExecutor(
+			Map<FileStore, ExecutorService> executors,
+			Map<Path, FileStore> directoryStores, File file)
+			throws IOException {
+		Path directory = file.getAbsoluteFile().toPath().getParent();
+		FileStore store = directoryStores.get(directory);
+		if (store == null) {
+			store = Files.getFileStore(directory);
+			directoryStores.put(directory, store);
+		}
+		ExecutorService executor = executors.get(store);
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(parallelism);
+			executors.put(store, executor);
+		}
+		return executor;
+	}
+
+	// Delete one file and record the result
+	private void deleteFile(File file, Result result) {
+		long length = file.length();
+		try {
+			Files.delete(file.toPath());
+		} catch (IOException | SecurityException e) {
+			result.failures.put(file, e.toString());
+			return;
+		}
+		result.deleted.add(file);
+		result.bytesDeleted.addAndGet(length);
+		deleted(file, result);
+	}
+
+	// Add the file to the batch and remove the batch from the cache when it
+	// is full
+	private void deleted(File file, Result result) {
+		List<File> full = null;
+		synchronized (batch) {
+			batch.add(file);
+			if (batch.size() >= batchSize) {
+				full = new ArrayList<>(batch);
+				batch.clear();
+			}
+		}
+		if (full != null) {
+			removeFromCache(full, result);
+		}
+	}
+
+	// Remove whatever is left in the batch from the cache and save anything
+	// not saved yet
+	private void flush(Result result) {
+		List<File> rest;
+		synchronized (batch) {
+			rest = new ArrayList<>(batch);
+			batch.clear();
+		}
+		if (!rest.isEmpty()) {
+			removeFromCache(rest, result);
+		}
+		save(result, true);
+	}
+
+	// Remove the batch from the cache and save the cache to the cache file if
+	// the save interval has passed
+	private void removeFromCache(List<File> files, Result result) {
+		if (hashCreator == null) {
+			return;
+		}
+		hashCreator.removeFromCache(files);
+		synchronized (saveLock) {
+			unsaved = true;
+		}
+		save(result, false);
+	}
+
+	// Save the cache if batches were removed since the last save and the
+	// interval has passed or all is true. Saves don't overlap, a thread that
+	// completes a batch during a save waits for it.
+	private void save(Result result, boolean all) {
+		if ((hashCreator == null) || (cacheFile == null)) {
+			return;
+		}
+		synchronized (saveLock) {
+			long now = System.currentTimeMillis();
+			if (!unsaved
+					|| (!all && (now - lastSaveMillis < saveSeconds * 1000))) {
+				return;
+			}
+			unsaved = false;
+			try {
+				CacheFile.writeShared(cacheFile, hashCreator, compact);
+				result.saves++;
+			} catch (HashException | IOException e) {
+				result.saveFailure = e.toString();
+			}
+			lastSaveMillis = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @return the deletes at once on each file system
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism
+	 *            deletes at once on each file system
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException(
+					"parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return the cache file the batches are saved to or null
+	 */
+	public File getCacheFile() {
+		return cacheFile;
+	}
+
+	/**
+	 * @param cacheFile
+	 *            cache file to save the batches to or null to only remove the
+	 *            deleted files from the cache in memory
+	 * @param compact
+	 *            true to write the compact format
+	 */
+	public void setCacheFile(File cacheFile, boolean compact) {
+		this.cacheFile = cacheFile;
+		this.compact = compact;
+	}
+
+	/**
+	 * @return the most seconds between saves of the cache file while deleting
+	 */
+	public long getSaveSeconds() {
+		return saveSeconds;
+	}
+
+	/**
+	 * @param saveSeconds
+	 *            most seconds between saves of the cache file while deleting,
+	 *            0 to save every batch
+	 */
+	public void setSaveSeconds(long saveSeconds) {
+		if (saveSeconds < 0) {
+			throw new IllegalArgumentException(
+					"saveSeconds cannot be negative");
+		}
+		this.saveSeconds = saveSeconds;
+	}
+
+	/**
+	 * @return the number of deleted files removed from the cache at a time
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            number of deleted files removed from the cache at a time
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		}
+		this.batchSize = batchSize;
+	}
+}
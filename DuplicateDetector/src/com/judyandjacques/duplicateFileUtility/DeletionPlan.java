@@ -0,0 +1,281 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.duplicateFileUtility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A delete plan saved to a file so the deletes can be checked and carried out
+ * later by a separate run. Each entry has the file's length and last modified
+ * time when it was planned and the copy that is kept, with its length and last
+ * modified time. A file is only deleted if it hasn't changed and its kept copy
+ * still exists and either hasn't changed or still has the same bytes.
+ * 
+ * The file starts with "DeletionPlan" and a version, then each entry is a
+ * true boolean followed by the path, length, last modified, kept path, kept
+ * length and kept last modified. A false boolean ends the entries.
+ */
+public class DeletionPlan {
+
+	private static final String MAGIC = "DeletionPlan";
+	private static final int VERSION = 2;
+
+	/**
+	 * A file to delete
+	 */
+	public static class Entry {
+		private final File file;
+		private final long length;
+		private final long lastModified;
+		private final File keptCopy;
+		private final long keptLength;
+		private final long keptLastModified;
+
+		/**
+		 * @param file
+		 *            to delete
+		 * @param length
+		 *            of the file when it was planned
+		 * @param lastModified
+		 *            of the file when it was planned
+		 * @param keptCopy
+		 *            duplicate of the file that is kept
+		 * @param keptLength
+		 *            of the kept copy when it was planned
+		 * @param keptLastModified
+		 *            of the kept copy when it was planned
+		 */
+		public Entry(File file, long length, long lastModified, File keptCopy,
+				long keptLength, long keptLastModified) {
+			if (file == null) {
+				throw new IllegalArgumentException("file cannot be null");
+			}
+			if (keptCopy == null) {
+				throw new IllegalArgumentException("keptCopy cannot be null");
+			}
+			this.file = file;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.keptCopy = keptCopy;
+			this.keptLength = keptLength;
+			this.keptLastModified = keptLastModified;
+		}
+
+		/**
+		 * @return the file to delete
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return the length of the file when it was planned
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * @return the last modified time of the file when it was planned
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return the duplicate of the file that is kept
+		 */
+		public File getKeptCopy() {
+			return keptCopy;
+		}
+
+		/**
+		 * @return the length of the kept copy when it was planned
+		 */
+		public long getKeptLength() {
+			return keptLength;
+		}
+
+		/**
+		 * @return the last modified time of the kept copy when it was planned
+		 */
+		public long getKeptLastModified() {
+			return keptLastModified;
+		}
+	}
+
+	private DeletionPlan() {
+		// Static methods only
+	}
+
+	/**
+	 * Write the files planned by the planner.
+	 * 
+	 * @param planFile
+	 *            file to write
+	 * @param toRemove
+	 *            files returned by the planner
+	 * @param planner
+	 *            that planned the files
+	 * @return number of entries written, files that no longer exist are left
+	 *         out
+	 */
+	public static int write(File planFile, List<File> toRemove,
+			DeletionPlanner planner) throws IOException {
+		if (planFile == null) {
+			throw new IllegalArgumentException("planFile cannot be null");
+		}
+		if (toRemove == null) {
+			throw new IllegalArgumentException("toRemove cannot be null");
+		}
+		if (planner == null) {
+			throw new IllegalArgumentException("planner cannot be null");
+		}
+		int count = 0;
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(planFile)))) {
+			out.writeUTF(MAGIC);
+			out.writeInt(VERSION);
+			for (File file : toRemove) {
+				File keptCopy = planner.getKeptCopy(file);
+				long lastModified = file.lastModified();
+				if ((keptCopy == null) || (lastModified == 0)) {
+					continue;
+				}
+				long keptLastModified = keptCopy.lastModified();
+				if (keptLastModified == 0) {
+					continue;
+				}
+				out.writeBoolean(true);
+				out.writeUTF(file.getAbsolutePath());
+				out.writeLong(file.length());
+				out.writeLong(lastModified);
+				out.writeUTF(keptCopy.getAbsolutePath());
+				out.writeLong(keptCopy.length());
+				out.writeLong(keptLastModified);
+				count++;
+			}
+			out.writeBoolean(false);
+		}
+		return count;
+	}
+
+	/**
+	 * Read a plan written by write.
+	 * 
+	 * @param planFile
+	 *            file to read
+	 * @return the entries in the order they were written
+	 * @throws IOException
+	 *             if the file can't be read or isn't a plan
+	 */
+	public static List<Entry> read(File planFile) throws IOException {
+		if (planFile == null) {
+			throw new IllegalArgumentException("planFile cannot be null");
+		}
+		List<Entry> entries = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(planFile)))) {
+			if (!MAGIC.equals(in.readUTF())) {
+				throw new IOException("Not a delete plan - " + planFile);
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unknown delete plan version " + version
+						+ " - " + planFile);
+			}
+			while (in.readBoolean()) {
+				File file = new File(in.readUTF());
+				long length = in.readLong();
+				long lastModified = in.readLong();
+				File keptCopy = new File(in.readUTF());
+				long keptLength = in.readLong();
+				long keptLastModified = in.readLong();
+				entries.add(new Entry(file, length, lastModified, keptCopy,
+						keptLength, keptLastModified));
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Check the entries are still safe to delete.
+	 * 
+	 * @param entries
+	 *            read from a plan
+	 * @param verbose
+	 *            print why each file that is left is left
+	 * @param out
+	 *            where to print
+	 * @return the files that haven't changed and whose kept copy exists and
+	 *         hasn't changed or still has the same bytes
+	 */
+	public static List<File> check(List<Entry> entries, boolean verbose,
+			PrintStream out) {
+		List<File> toRemove = new ArrayList<>();
+		for (Entry entry : entries) {
+			File file = entry.getFile();
+			if ((file.length() != entry.getLength())
+					|| (file.lastModified() != entry.getLastModified())) {
+				if (verbose) {
+					out.println("Note: Not deleting changed or missing file - "
+							+ file);
+				}
+			} else if (!entry.getKeptCopy().isFile()) {
+				if (verbose) {
+					out.println("Note: Not deleting file whose kept copy is gone - "
+							+ file);
+				}
+			} else if (!keptCopyMatches(entry)) {
+				if (verbose) {
+					out.println("Note: Not deleting file whose kept copy changed - "
+							+ file);
+				}
+			} else {
+				toRemove.add(file);
+			}
+		}
+		return toRemove;
+	}
+
+	// True if the kept copy is as it was planned or, if it changed, still has
+	// the file's bytes
+	private static boolean keptCopyMatches(Entry entry) {
+		File keptCopy = entry.getKeptCopy();
+		if ((keptCopy.length() == entry.getKeptLength())
+				&& (keptCopy.lastModified() == entry.getKeptLastModified())) {
+			return true;
+		}
+		try {
+			return DuplicateVerifier.sameContents(entry.getFile(), keptCopy);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
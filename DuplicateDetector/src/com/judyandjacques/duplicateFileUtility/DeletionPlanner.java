@@ -0,0 +1,231 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.duplicateFileUtility;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.judyandjacques.hash.ContentHash;
+
+/**
+ * Works out which duplicated test files can be deleted. A file can be deleted
+ * if the deepest delete or master directory it is in is a delete directory, so
+ * a master inside a delete directory is never deleted from and the path
+ * /data/ab is not in the directory /data/a.
+ * 
+ * The owning directory is found by looking up the file's parents in an index
+ * of the directories, so the cost doesn't grow with the number of delete
+ * directories. Each parent is only looked up once.
+ * 
+ * The copy kept for each deleted file is remembered so a plan written with
+ * {@link DeletionPlan} can check it still exists before deleting.
+ */
+public class DeletionPlanner {
+
+	// Owner of a file that can't be deleted
+	private static final int KEEP = -1;
+
+	// Delete directories to their position on the command line and master
+	// directories to KEEP
+	private final Map<Path, Integer> roots = new HashMap<>();
+
+	// Owner of each directory looked up
+	private final Map<Path, Integer> owners = new HashMap<>();
+
+	// The copy kept for each file planned for deletion
+	private final Map<File, File> keptCopies = new HashMap<>();
+
+	/**
+	 * @param deletables
+	 *            directories where files can be deleted, in the order given
+	 * @param masters
+	 *            master directories, files in them are never deleted unless
+	 *            they are in a delete directory inside the master
+	 */
+	public DeletionPlanner(Collection<String> deletables,
+			Collection<Path> masters) {
+		if (deletables == null) {
+			throw new IllegalArgumentException("deletables cannot be null");
+		}
+		if (masters == null) {
+			throw new IllegalArgumentException("masters cannot be null");
+		}
+		int rank = 0;
+		for (String deletable : deletables) {
+			roots.put(normalize(new File(deletable).toPath()), rank++);
+		}
+		// A directory that is both is a master
+		for (Path master : masters) {
+			roots.put(normalize(master), KEEP);
+		}
+	}
+
+	private static Path normalize(Path path) {
+		return path.toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Work out which of the duplicated test files can be deleted. A file is
+	 * only deleted if it is in one of the delete directories and the last copy
+	 * is never deleted.
+	 * 
+	 * @param testHashes
+	 *            content hashes of the test files
+	 * @param masterHashes
+	 *            content hashes of the master files
+	 * @param mustBeInMasters
+	 *            only delete duplicates that are in the masters too
+	 * @param verbose
+	 *            print a note for each last copy that is kept
+	 * @param out
+	 *            where to print the notes
+	 * @return sorted list of the files to delete
+	 */
+	public List<File> plan(Map<ContentHash, Set<File>> testHashes,
+			Map<ContentHash, Set<File>> masterHashes, boolean mustBeInMasters,
+			boolean verbose, PrintStream out) {
+		List<File> toRemove = new ArrayList<>();
+		for (Map.Entry<ContentHash, Set<File>> entry : testHashes.entrySet()) {
+			ContentHash testHash = entry.getKey();
+			Set<File> testFiles = entry.getValue();
+			int testCount = testFiles.size();
+
+			// Only files with a strong hash are deleted
+			if (testHash.getStrength() == ContentHash.Strength.FINGERPRINT) {
+				continue;
+			}
+
+			Set<File> masterFiles = masterHashes.get(testHash);
+			boolean inMasters = (masterFiles != null)
+					&& (!masterFiles.isEmpty());
+
+			// Must be duplicated and if mustBeInMasters is set then it must
+			// be in the masters
+			boolean duplicate = ((testCount + (inMasters ? 1 : 0)) > 1)
+					&& ((!mustBeInMasters) || inMasters);
+			if (!duplicate) {
+				continue;
+			}
+
+			// The copy in the delete directory given last is the one kept
+			// when every copy could be deleted
+			Set<File> toDelete = new HashSet<>();
+			File lastAdded = null;
+			int lastRank = KEEP;
+			for (File file : testFiles) {
+				int rank = owner(file);
+				if (rank != KEEP) {
+					toDelete.add(file);
+					if (rank >= lastRank) {
+						lastAdded = file;
+						lastRank = rank;
+					}
+				}
+			}
+			if (toDelete.isEmpty()) {
+				continue;
+			}
+
+			if ((!inMasters) && (toDelete.size() == testCount)) {
+				// Not in a master directory and all copies are in toDelete.
+				// Keep the last added copy
+				toDelete.remove(lastAdded);
+				if (verbose) {
+					out.println("Note: Not deleting last copy - " + lastAdded);
+				}
+			}
+
+			File kept = null;
+			if (inMasters) {
+				kept = masterFiles.iterator().next();
+			} else {
+				for (File file : testFiles) {
+					if (!toDelete.contains(file)) {
+						kept = file;
+						break;
+					}
+				}
+			}
+			for (File file : toDelete) {
+				keptCopies.put(file, kept);
+			}
+			toRemove.addAll(toDelete);
+		}
+		Collections.sort(toRemove);
+		return toRemove;
+	}
+
+	/**
+	 * @param file
+	 *            any file
+	 * @return true if the deepest delete or master directory the file is in is
+	 *         a delete directory
+	 */
+	public boolean isDeletable(File file) {
+		return owner(file) != KEEP;
+	}
+
+	/**
+	 * @param file
+	 *            a file returned by plan
+	 * @return the copy of the file that is kept or null if it wasn't planned
+	 */
+	public File getKeptCopy(File file) {
+		return keptCopies.get(file);
+	}
+
+	// The position of the delete directory that owns the file or KEEP
+	private int owner(File file) {
+		Path path = normalize(file.toPath());
+		Integer owner = roots.get(path);
+		if (owner != null) {
+			return owner;
+		}
+
+		// Walk up until a directory with a known owner or a root
+		List<Path> chain = new ArrayList<>();
+		int found = KEEP;
+		for (Path directory = path.getParent(); directory != null; directory = directory
+				.getParent()) {
+			owner = owners.get(directory);
+			if (owner == null) {
+				owner = roots.get(directory);
+				if (owner == null) {
+					chain.add(directory);
+					continue;
+				}
+			}
+			found = owner;
+			break;
+		}
+		for (Path directory : chain) {
+			owners.put(directory, found);
+		}
+		return found;
+	}
+}
@@ -19,23 +19,36 @@
 package com.judyandjacques.duplicateFileUtility;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.PrintStream;
 import java.nio.file.Path;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import com.judyandjacques.hash.CacheFile;
+import com.judyandjacques.hash.CacheMerger;
+import com.judyandjacques.hash.Checkpoint;
 import com.judyandjacques.hash.ContentHash;
+import com.judyandjacques.hash.ExternalGrouper;
 import com.judyandjacques.hash.HashCreator;
+import com.judyandjacques.hash.HashException;
+import com.judyandjacques.hash.IngestGate;
+import com.judyandjacques.hash.IoThrottle;
+import com.judyandjacques.hash.MasterIndex;
+import com.judyandjacques.hash.MasterRevalidator;
+import com.judyandjacques.hash.ReverseIndex;
+import com.judyandjacques.hash.ShardedCache;
+import com.judyandjacques.hash.TieredCache;
 
 /**
  * Pass a list of directories or files and this will list which are duplicates.
@@ -43,11 +56,391 @@ import com.judyandjacques.hash.HashCreator;
  */
 public class DuplicateFinder {
 
-	// Return true if the file is contained in the directory
-	private static boolean fileInDirectory(String directory, File file) {
-		String filePath = file.getAbsolutePath();
+	/**
+	 * Load the cache files that exist into the hashCreator. The caches are
+	 * read concurrently and merged by the {@link CacheMerger} rules.
+	 * 
+	 * @param hashCreator
+	 *            to load the caches into
+	 * @param caches
+	 *            cache files to load, missing files are skipped
+	 * @return the merger, holding the counts of what was merged
+	 */
+	static CacheMerger loadCaches(HashCreator hashCreator, List<Path> caches)
+			throws HashException, IOException {
+		List<File> files = new ArrayList<>();
+		for (Path path : caches) {
+			files.add(path.toFile());
+		}
+		CacheMerger merger = new CacheMerger(hashCreator);
+		merger.load(files);
+		return merger;
+	}
+
+	/**
+	 * Load the caches into the hashCreator on another thread. Scans walk the
+	 * directories meanwhile and wait for the caches to look hashes up.
+	 * 
+	 * @param hashCreator
+	 *            to load into
+	 * @param caches
+	 *            cache files to load
+	 * @return the merger once the caches have loaded
+	 */
+	static Future<CacheMerger> loadCachesInBackground(
+			final HashCreator hashCreator, final List<Path> caches) {
+		return hashCreator.loadCacheInBackground(new Callable<CacheMerger>() {
+			@Override
+			public CacheMerger call() throws HashException, IOException {
+				return loadCaches(hashCreator, caches);
+			}
+		});
+	}
+
+	/**
+	 * Wait for loadCachesInBackground to finish.
+	 * 
+	 * @param hashCreator
+	 *            being loaded
+	 * @param cacheLoad
+	 *            returned by loadCachesInBackground
+	 * @return the merger that loaded the caches
+	 * @throws HashException
+	 *             if a cache could not be loaded
+	 */
+	static CacheMerger awaitCaches(HashCreator hashCreator,
+			Future<CacheMerger> cacheLoad) throws HashException {
+		hashCreator.awaitCache();
+		try {
+			return cacheLoad.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new HashException("Could not load the caches", e);
+		}
+	}
+
+	// Print what loading the caches did
+	private static void printMerged(CacheMerger merger) {
+		System.out.println("Merged " + merger.getCachesLoaded() + " caches: "
+				+ merger.getEntriesRead() + " entries read, "
+				+ merger.getEntriesMerged() + " merged, "
+				+ merger.getEntriesIdentical() + " identical, "
+				+ merger.getEntriesRejected() + " rejected");
+	}
+
+	/**
+	 * Write the hashCreator's cache to the file, merging with hashes other
+	 * processes have saved to it since it was loaded.
+	 * 
+	 * @param hashCreator
+	 *            whose cache is written
+	 * @param cacheSaveFile
+	 *            file to write
+	 * @param compact
+	 *            true to write the compact format
+	 * @return number of items written
+	 */
+	static int saveCache(HashCreator hashCreator, File cacheSaveFile,
+			boolean compact) throws HashException, IOException {
+		return saveCache(hashCreator, cacheSaveFile, compact, null);
+	}
 
-		return filePath.startsWith(directory);
+	/**
+	 * Write the hashCreator's cache to the file like saveCache(HashCreator,
+	 * File, boolean) and a reverse index of it.
+	 * 
+	 * @param hashCreator
+	 *            whose cache is written
+	 * @param cacheSaveFile
+	 *            file to write
+	 * @param compact
+	 *            true to write the compact format
+	 * @param index
+	 *            reverse index to write or null for none
+	 * @return number of items written
+	 */
+	static int saveCache(HashCreator hashCreator, File cacheSaveFile,
+			boolean compact, File index) throws HashException, IOException {
+		return CacheFile.writeShared(cacheSaveFile, hashCreator, compact,
+				index);
+	}
+
+	/**
+	 * Print where copies of the files are according to the reverse index. A
+	 * file is only hashed if an indexed file has its length.
+	 * 
+	 * @param hashCreator
+	 *            hashes the files, its algorithm is set to the index's
+	 * @param indexFile
+	 *            reverse index to look in
+	 * @param files
+	 *            to look up
+	 * @param out
+	 *            where to print the copies
+	 * @return number of files that have copies
+	 * @throws HashException
+	 *             if the index is malformed or a file can't be hashed
+	 */
+	static int lookup(HashCreator hashCreator, File indexFile,
+			List<File> files, PrintStream out) throws HashException,
+			IOException {
+		int archived = 0;
+		try (ReverseIndex index = ReverseIndex.open(indexFile)) {
+			if (!index.getHashAlgorithm().equals(
+					hashCreator.getHashAlgorithm())) {
+				hashCreator.setHashAlgorithm(index.getHashAlgorithm());
+			}
+			for (File file : files) {
+				List<File> copies = index.lookup(file, hashCreator);
+				if (copies.isEmpty()) {
+					out.println("Not archived \"" + file + "\"");
+				} else {
+					archived++;
+					for (File copy : copies) {
+						out.println("Archived \"" + file + "\" as \"" + copy
+								+ "\"");
+					}
+				}
+			}
+		}
+		return archived;
+	}
+
+	/**
+	 * Print the test files that are duplicated, along with the master files
+	 * they duplicate.
+	 * 
+	 * @param out
+	 *            where to print the duplicates
+	 * @param testHashes
+	 *            content hashes of the test files
+	 * @param masterHashes
+	 *            content hashes of the master files
+	 * @param mustBeInMasters
+	 *            only print duplicates that are in the masters too
+	 */
+	static void printDuplicates(PrintStream out,
+			Map<ContentHash, Set<File>> testHashes,
+			Map<ContentHash, Set<File>> masterHashes, boolean mustBeInMasters) {
+		for (Map.Entry<ContentHash, Set<File>> entry : testHashes.entrySet()) {
+			ContentHash testHash = entry.getKey();
+			Set<File> testFiles = entry.getValue();
+			int testCount = testFiles.size();
+
+			Set<File> masterFiles = masterHashes.get(testHash);
+			int masterCount = (masterFiles == null ? 0 : masterFiles.size());
+
+			// Must be duplicated and if mustBeInMasters is set then it must
+			// be
+			// in the masters
+			boolean duplicate = ((testCount + masterCount) > 1)
+					&& ((!mustBeInMasters) || (masterCount > 0));
+
+			// Assert testCount > 0
+			if (duplicate) {
+				// The hash is in the test directory
+				// The hash file is duplicated between the master and test
+				// directories
+				out.println((testHash.isFull() ? "Duplicates found("
+						: "Probable duplicates found(")
+						+ (testCount + masterCount) + "):");
+				if (masterFiles != null) {
+					for (File file : masterFiles) {
+						out.println("   (M) " + file);
+					}
+				}
+				for (File file : testFiles) {
+					out.println("   (T) " + file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delete the files, or just add up their lengths when pretending. The
+	 * deleted files are removed from the cache and each batch of them is
+	 * saved to the cache save file if there is one.
+	 * 
+	 * @param hashCreator
+	 *            whose cache the deleted files are removed from
+	 * @param toRemove
+	 *            files to delete
+	 * @param pretend
+	 *            only print what would be deleted
+	 * @param verbose
+	 *            print each file and the totals
+	 * @param deleteThreads
+	 *            deletes to run at once on each file system
+	 * @param cacheSaveFile
+	 *            cache file to save the batches to or null
+	 * @param compact
+	 *            true to write the compact format
+	 * @return the number of files that could not be deleted
+	 */
+	static int deleteFiles(HashCreator hashCreator, List<File> toRemove,
+			boolean pretend, boolean verbose, int deleteThreads,
+			File cacheSaveFile, boolean compact) {
+		int deleteFailures = 0;
+		long bytes = 0;
+		for (File file : toRemove) {
+			if (verbose) {
+				System.out.println("Delete \"" + file + "\"");
+			}
+			if (pretend) {
+				bytes += file.length();
+			}
+		}
+		if (!pretend) {
+			DeletionExecutor executor = new DeletionExecutor(hashCreator);
+			executor.setParallelism(deleteThreads);
+			executor.setCacheFile(cacheSaveFile, compact);
+			DeletionExecutor.Result result = executor.delete(toRemove);
+			if (result.getSaveFailure() != null) {
+				System.out.println("Could not save deletes to the cache - "
+						+ result.getSaveFailure());
+			}
+			bytes = result.getBytesDeleted();
+			for (Map.Entry<File, String> failure : result.getFailures()
+					.entrySet()) {
+				System.out.println("Could not delete file - "
+						+ failure.getKey() + " (" + failure.getValue()
+						+ ")");
+			}
+			deleteFailures = result.getFailures().size();
+			if (verbose) {
+				System.out.println("Deleted " + result.getDeleted().size()
+						+ " files");
+			}
+		} else if (verbose) {
+			System.out.println("Deleted " + toRemove.size() + " files");
+		}
+		if (verbose) {
+			String total = NumberFormat.getNumberInstance().format(bytes);
+			System.out.println("Deleted " + total + " bytes");
+		}
+		return deleteFailures;
+	}
+
+	/**
+	 * Copy the files that the masters don't have into the archive. The copies
+	 * are added to the hashCreator's cache.
+	 * 
+	 * @param hashCreator
+	 *            whose cache has or gets the master hashes
+	 * @param masters
+	 *            master directories
+	 * @param useCacheForMasters
+	 *            true to only use the cache for the masters, false to scan
+	 *            them first
+	 * @param sources
+	 *            files and directories to copy from
+	 * @param destination
+	 *            directory to copy to
+	 * @param pretend
+	 *            true to only show what would be copied
+	 * @param verbose
+	 *            print each file copied or skipped
+	 * @throws HashException
+	 *             if a file can't be hashed or copied
+	 */
+	static void ingest(HashCreator hashCreator, List<Path> masters,
+			boolean useCacheForMasters, List<Path> sources, File destination,
+			boolean pretend, boolean verbose) throws HashException {
+		if (!useCacheForMasters) {
+			hashCreator.create(masters);
+		}
+		IngestGate gate = new IngestGate(hashCreator, masters);
+		gate.setPretend(pretend);
+		IngestGate.Result result = gate.ingest(sources, destination,
+				(verbose ? System.out : null));
+		NumberFormat format = NumberFormat.getNumberInstance();
+		System.out.println((pretend ? "Would copy " : "Copied ")
+				+ result.getCopied() + " files ("
+				+ format.format(result.getBytesCopied())
+				+ " bytes) and skipped " + result.getSkipped()
+				+ " archived files ("
+				+ format.format(result.getBytesSkipped()) + " bytes)");
+	}
+
+	/**
+	 * Find the duplicates by grouping on disk rather than in memory. The
+	 * groups are printed and planned one at a time.
+	 * 
+	 * @param hashCreator
+	 *            to create the hashes with
+	 * @param masters
+	 *            master directories
+	 * @param tests
+	 *            test directories
+	 * @param useCacheForMasters
+	 *            take the master hashes from the cache
+	 * @param planner
+	 *            plans the deletions or null if nothing is deleted
+	 * @param mustBeInMasters
+	 *            only delete duplicates that are in the masters too
+	 * @param verbose
+	 *            print the duplicates and notes
+	 * @param out
+	 *            where to print
+	 * @param directory
+	 *            where to write the grouper's temporary files
+	 * @param memoryBudget
+	 *            bytes the grouper holds in memory
+	 * @return sorted list of the files to delete
+	 */
+	static List<File> groupOnDisk(final HashCreator hashCreator, List<Path> masters,
+			List<Path> tests, boolean useCacheForMasters,
+			final DeletionPlanner planner, final boolean mustBeInMasters,
+			final boolean verbose, final PrintStream out, File directory,
+			long memoryBudget) throws HashException, IOException {
+		final List<File> toRemove = new ArrayList<>();
+		try (ExternalGrouper grouper = new ExternalGrouper(directory,
+				memoryBudget)) {
+			// A test reached through a link or hard link to a master is the
+			// master
+			Set<Object> visited = new HashSet<>();
+			if (useCacheForMasters) {
+				hashCreator.createFromCache(masters, grouper);
+			} else {
+				hashCreator.create(masters, grouper, true, visited);
+			}
+			hashCreator.create(tests, grouper, false, visited);
+			if (verbose) {
+				out.println("Grouping " + grouper.getRecordCount()
+						+ " files from " + grouper.getRunCount() + " runs");
+			}
+
+			grouper.group(new ExternalGrouper.GroupVisitor() {
+				@Override
+				public void visit(ContentHash contentHash,
+						Set<File> masterFiles, Set<File> testFiles)
+						throws IOException {
+					Map<ContentHash, Set<File>> testHashes = new HashMap<>();
+					testHashes.put(contentHash, testFiles);
+					Map<ContentHash, Set<File>> masterHashes = new HashMap<>();
+					masterHashes.put(contentHash, masterFiles);
+
+					// Files sharing a fingerprint get their strong hashes
+					try {
+						hashCreator.confirmFingerprints(Arrays.asList(
+								testHashes, masterHashes));
+					} catch (HashException e) {
+						throw new IOException(e.getMessage(), e);
+					}
+					if (verbose) {
+						printDuplicates(out, testHashes, masterHashes,
+								mustBeInMasters);
+					}
+					if (planner != null) {
+						List<File> planned = planner.plan(testHashes,
+								masterHashes, mustBeInMasters, verbose, out);
+						toRemove.addAll(DuplicateVerifier.confirm(planned,
+								testHashes, masterHashes, verbose, out));
+					}
+				}
+			});
+		}
+		Collections.sort(toRemove);
+		return toRemove;
 	}
 
 	/**
@@ -99,195 +492,327 @@ public class DuplicateFinder {
 			System.out.println("Running in pretend mode");
 		}
 
-		// Add extension filter
-		if (extensions == null) {
-			hashCreator.matchAllExtensions();
-			if (verbose) {
-				System.out.println("No filter on extensions");
-			}
-		} else {
-			hashCreator.setExtensionsToMatch(extensions);
-			if (verbose) {
+		// Chained hashes have their own algorithm name so set it before the
+		// caches are loaded
+		if (cl.getAlgorithm() != null) {
+			hashCreator.setHashAlgorithm(cl.getAlgorithm());
+		}
+		hashCreator.setAppendable(cl.isAppendable());
+		hashCreator.setExtraAlgorithms(cl.getExtraAlgorithms());
+		hashCreator.setMigrating(cl.isMigrate());
+		hashCreator.setSampledAbove(cl.getSampledAbove());
+		hashCreator.setTwoTier(cl.isTwoTier());
+		hashCreator.setThreads(cl.getThreads());
+		if (cl.getCacheMemory() > 0) {
+			hashCreator.setCacheMemoryBudget(cl.getCacheMemory(),
+					cl.getCacheTierDirectory());
+		}
 
+		// Add extension, glob and size filter
+		hashCreator.setFilter(cl.createFilter());
+
+		// Walk each directory once. A root listed as both a master and a test
+		// is a master and a master or test inside another root is only
+		// scanned as itself.
+		hashCreator.setLinkPolicy(cl.getLinkPolicy());
+		masters = HashCreator.collapseRoots(masters);
+		tests = HashCreator.removeSame(HashCreator.collapseRoots(tests),
+				masters);
+		List<Path> separateRoots = new ArrayList<>(masters);
+		separateRoots.addAll(tests);
+		hashCreator.setSeparateRoots(separateRoots);
+		if (verbose) {
+			if (extensions == null) {
+				System.out.println("No filter on extensions");
+			} else {
 				System.out.println("Matching the following extensions: "
 						+ Arrays.toString(extensions));
 			}
 		}
 
-		// Load caches
-		for (Path path : caches) {
-			File file = path.toFile();
-			if (file.exists()) {
-				try (FileInputStream fis = new FileInputStream(file);
-						ObjectInputStream oInStream = new ObjectInputStream(fis)) {
-					hashCreator.loadCache(oInStream);
-				}
+		// Limit how fast files are read
+		IoThrottle throttle = null;
+		if ((cl.getMaxBytesPerSecond() > 0) || (cl.getMaxFilesPerSecond() > 0)) {
+			throttle = new IoThrottle(cl.getMaxBytesPerSecond(),
+					cl.getMaxFilesPerSecond());
+			hashCreator.setThrottle(throttle);
+		}
+
+		// Only looking files up in the reverse index, which needs no cache
+		if (!cl.getLookups().isEmpty()) {
+			int archived = lookup(hashCreator, cl.getIndex(),
+					cl.getLookups(), System.out);
+			if (verbose) {
+				System.out.println(archived + " of " + cl.getLookups().size()
+						+ " files are archived");
 			}
+			return;
 		}
-		if (verbose) {
-			System.out.println("Initial cache size "
-					+ hashCreator.getCacheSize());
+
+		// Load caches while the directories are walked
+		Future<CacheMerger> cacheLoad = loadCachesInBackground(hashCreator,
+				caches);
+
+		// Merging the caches and carrying out a plan only use the caches
+		if (cl.isMergeCaches() || (cl.getExecutePlan() != null)) {
+			CacheMerger merger = awaitCaches(hashCreator, cacheLoad);
+			if (verbose || cl.isMergeCaches()) {
+				printMerged(merger);
+			}
 		}
 
-		// Process master directories
-		Map<ContentHash, Set<File>> masterHashes;
-		if (useCacheForMasters) {
-			masterHashes = hashCreator.createFromCache(masters);
-			if (verbose) {
-				System.out.println("Loaded " + +masterHashes.size()
-						+ " files for master directories from cache");
+		// Only merging the caches into the cache save file
+		if (cl.isMergeCaches()) {
+			int count = saveCache(hashCreator, cacheSaveFile,
+					cl.isCompactCache(), cl.getIndex());
+			System.out.println("Wrote " + count + " file hashes to "
+					+ cacheSaveFile.getName());
+			return;
+		}
+
+		// Only carrying out a plan written by an earlier run
+		if (cl.getExecutePlan() != null) {
+			List<File> toRemove = DeletionPlan.check(
+					DeletionPlan.read(cl.getExecutePlan()), verbose,
+					System.out);
+			int deleteFailures = deleteFiles(hashCreator, toRemove, pretend,
+					verbose, cl.getDeleteThreads(), cacheSaveFile,
+					cl.isCompactCache());
+			if (cacheSaveFile != null) {
+				int count = saveCache(hashCreator, cacheSaveFile,
+						cl.isCompactCache(), cl.getIndex());
+				if (verbose) {
+					System.out.println("Wrote " + count + " file hashes to "
+							+ cacheSaveFile.getName());
+				}
 			}
-		} else {
-			masterHashes = hashCreator.create(masters);
+			if (deleteFailures > 0) {
+				throw new IOException("Could not delete " + deleteFailures
+						+ " files");
+			}
+			return;
+		}
+
+		// Load the shards for the directories being processed
+		ShardedCache shardedCache = null;
+		if (cl.getShardedCache() != null) {
+			shardedCache = new ShardedCache(cl.getShardedCache());
+			shardedCache.setCompact(cl.isCompactCache());
+			List<Path> roots = new ArrayList<>(masters);
+			roots.addAll(tests);
+			int loaded = shardedCache.load(hashCreator, roots);
 			if (verbose) {
-				int count = 0;
-				for (Set<File> files : masterHashes.values()) {
-					count += files.size();
-				}
-				System.out.println("Loaded " + count
-						+ " files from master directories");
+				System.out.println("Loaded " + loaded + " of "
+						+ shardedCache.getShardCount() + " cache shards");
 			}
 		}
 
-		// Process test directories
-		Map<ContentHash, Set<File>> testHashes = hashCreator.create(tests);
-		if (verbose) {
-			int count = 0;
-			for (Set<File> files : testHashes.values()) {
-				count += files.size();
+		// Only trust cached masters that are still there and unchanged
+		if (useCacheForMasters && (cl.getRevalidatePercent() > 0)) {
+			MasterRevalidator revalidator = new MasterRevalidator(hashCreator);
+			revalidator.setSampleRate(cl.getRevalidatePercent() / 100.0);
+			MasterRevalidator.Result result = revalidator.revalidate(masters);
+			if (verbose || (result.getStale() > 0)) {
+				System.out.println("Revalidated " + result.getChecked()
+						+ " of " + result.getCached()
+						+ " cached master files: " + result.getMissing()
+						+ " missing, " + result.getChanged() + " rehashed");
 			}
-			System.out.println("Loaded " + count
-					+ " files from test directories");
 		}
 
-		// Find and display duplicates
-		if (verbose) {
-			for (Map.Entry<ContentHash, Set<File>> entry : testHashes
-					.entrySet()) {
-				ContentHash testHash = entry.getKey();
-				Set<File> testFiles = entry.getValue();
-				int testCount = testFiles.size();
-
-				Set<File> masterFiles = masterHashes.get(testHash);
-				int masterCount = (masterFiles == null ? 0 : masterFiles.size());
-
-				// Must be duplicated and if mustBeInMasters is set then it must
-				// be
-				// in the masters
-				boolean duplicate = ((testCount + masterCount) > 1)
-						&& ((!mustBeInMasters) || (masterCount > 0));
-
-				// Assert testCount > 0
-				if (duplicate) {
-					// The hash is in the test directory
-					// The hash file is duplicated between the master and test
-					// directories
-					System.out.println("Duplicates found("
-							+ (testCount + masterCount) + "):");
-					if (masterFiles != null) {
-						for (File file : masterFiles) {
-							System.out.println("   (M) " + file);
-						}
-					}
-					for (File file : testFiles) {
-						System.out.println("   (T) " + file);
-					}
+		// Save progress so the scan can be resumed
+		Checkpoint checkpoint = null;
+		if (cl.getCheckpoint() != null) {
+			checkpoint = new Checkpoint(cl.getCheckpoint());
+			checkpoint.setEveryFiles(cl.getCheckpointFiles());
+			checkpoint.setEveryMillis(cl.getCheckpointSeconds() * 1000);
+			if (cl.isResume() && checkpoint.exists()) {
+				int count = checkpoint.resume(hashCreator);
+				if (verbose) {
+					System.out.println("Resumed from checkpoint with " + count
+							+ " new file hashes and "
+							+ checkpoint.getFinishedRoots().size()
+							+ " finished directories");
+				}
+			} else {
+				if (cl.isResume()) {
+					System.out.println("Warning - checkpoint does not exist - "
+							+ cl.getCheckpoint());
 				}
+				// Starting over
+				checkpoint.delete();
+			}
+			hashCreator.setCheckpoint(checkpoint);
+		}
+		if (verbose) {
+			if (hashCreator.isCacheLoading()) {
+				System.out.println("Loading caches while scanning");
+			} else {
+				System.out.println("Initial cache size "
+						+ hashCreator.getCacheSize());
 			}
 		}
 
-		// Find and delete deletable duplicates
+		// Resolves which directory owns each duplicate
+		DeletionPlanner planner = null;
 		if (!deletables.isEmpty()) {
-			List<File> toRemove = new ArrayList<>();
-			for (Map.Entry<ContentHash, Set<File>> entry : testHashes
-					.entrySet()) {
-				ContentHash testHash = entry.getKey();
-				Set<File> testFiles = entry.getValue();
-				int testCount = testFiles.size();
-
-				Set<File> masterFiles = masterHashes.get(testHash);
+			planner = new DeletionPlanner(deletables, masters);
+		}
 
-				// If there is a match in the masters then set the master count
-				// to 1
-				int masterCount = 0;
-				if ((masterFiles != null) && (!masterFiles.isEmpty())) {
-					masterCount = 1;
+		List<File> toRemove = new ArrayList<>();
+		if (!cl.getIngests().isEmpty()) {
+			// Only copying new files into the archive
+			ingest(hashCreator, masters, useCacheForMasters, cl.getIngests(),
+					cl.getIngestTo(), pretend, verbose);
+		} else if (cl.getGroupDirectory() != null) {
+			// Too many files to group in memory
+			toRemove = groupOnDisk(hashCreator, masters, tests,
+					useCacheForMasters, planner, mustBeInMasters, verbose,
+					System.out, cl.getGroupDirectory(), cl.getGroupMemory());
+		} else {
+			// When test files only matter if they match a cached master, the
+			// masters are indexed and only the ones that match are loaded after
+			// the tests
+			MasterIndex masterIndex = null;
+
+			// Process master directories. A test reached through a link or
+			// hard link to a master is the master, so the scans share what
+			// they visited.
+			Set<Object> visited = new HashSet<>();
+			Map<ContentHash, Set<File>> masterHashes = null;
+			if (useCacheForMasters && mustBeInMasters) {
+				masterIndex = MasterIndex.fromCache(hashCreator, masters);
+				hashCreator.setMasterIndex(masterIndex);
+				if (verbose) {
+					System.out.println("Indexed " + masterIndex.size()
+							+ " files for master directories from cache");
 				}
-
-				// Assert testCount > 0
-				// Must be duplicated and if mustBeInMasters is set then it must
-				// be
-				// in the masters
-				boolean duplicate = ((testCount + masterCount) > 1)
-						&& ((!mustBeInMasters) || (masterCount > 0));
-
-				if (duplicate) {
-					// The hash is in the test directory
-					// The hash file is duplicated between the master and test
-					// directories
-
-					Set<File> toDelete = new HashSet<>();
-					File lastAdded = null;
-					for (String deletable : deletables) {
-						for (File file : testFiles) {
-							if (fileInDirectory(deletable, file)) {
-								toDelete.add(file);
-								lastAdded = file;
-							}
-						}
+			} else if (useCacheForMasters) {
+				masterHashes = hashCreator.createFromCache(masters);
+				if (verbose) {
+					System.out.println("Loaded " + +masterHashes.size()
+							+ " files for master directories from cache");
+				}
+			} else {
+				masterHashes = hashCreator.create(masters, visited);
+				if (verbose) {
+					int count = 0;
+					for (Set<File> files : masterHashes.values()) {
+						count += files.size();
 					}
+					System.out.println("Loaded " + count
+							+ " files from master directories");
+				}
+			}
 
-					// Assert testCount > 0
-					if ((masterCount == 0) && (toDelete.size() == testCount)) {
-						// Not in a master directory and all copies are in
-						// toDelete. Remove the last added copy
-						toDelete.remove(lastAdded);
-						if (verbose) {
-							System.out
-									.println("Note: Not deleting last copy - "
-											+ lastAdded);
-						}
-					}
-					toRemove.addAll(toDelete);
+			long masterThrottledMillis = 0;
+			if (throttle != null) {
+				masterThrottledMillis = throttle.getThrottledMillis();
+			}
+			if ((throttle != null) && verbose) {
+				System.out.println("Throttled for "
+						+ (masterThrottledMillis / 1000)
+						+ " seconds while hashing master directories");
+			}
+
+			// Process test directories
+			Map<ContentHash, Set<File>> testHashes = hashCreator.create(tests,
+					visited);
+			if (verbose) {
+				int count = 0;
+				for (Set<File> files : testHashes.values()) {
+					count += files.size();
 				}
+				System.out.println("Loaded " + count
+						+ " files from test directories");
 			}
-			long bytes = 0;
-			Collections.sort(toRemove);
-			for (File file : toRemove) {
-				bytes += file.length();
+			if ((throttle != null) && verbose) {
+				System.out.println("Throttled for "
+						+ ((throttle.getThrottledMillis() - masterThrottledMillis) / 1000)
+						+ " seconds while hashing test directories");
+			}
+
+			if (masterIndex != null) {
+				hashCreator.setMasterIndex(null);
+				masterHashes = hashCreator.createFromCache(masters,
+						testHashes.keySet());
 				if (verbose) {
-					System.out.println("Delete \"" + file + "\"");
-				}
-				if (!pretend) {
-					if (!file.delete()) {
-						throw new IOException("Could not delete file - " + file);
-					}
+					System.out.println("Skipped "
+							+ hashCreator.getMasterIndexSkips()
+							+ " test files that can't match a master");
+					System.out.println("Loaded " + masterHashes.size()
+							+ " hashes for master directories from cache");
 				}
 			}
-			if (!pretend) {
-				hashCreator.removeFromCache(toRemove);
+
+			// Files sharing a fingerprint get their strong hashes
+			int confirmed = hashCreator.confirmFingerprints(Arrays.asList(
+					testHashes, masterHashes));
+			if (verbose && hashCreator.isTwoTier()) {
+				System.out.println("Strongly hashed " + confirmed
+						+ " files that shared a fingerprint");
 			}
+
+			// Find and display duplicates
 			if (verbose) {
-				System.out.println("Deleted " + toRemove.size() + " files");
-				String total = NumberFormat.getNumberInstance().format(bytes);
-				System.out.println("Deleted " + total + " bytes");
+				printDuplicates(System.out, testHashes, masterHashes,
+						mustBeInMasters);
+			}
+
+			// Find deletable duplicates
+			if (planner != null) {
+				toRemove = planner.plan(testHashes, masterHashes,
+						mustBeInMasters, verbose, System.out);
+
+				// Sampled matches are only probable
+				toRemove = DuplicateVerifier.confirm(toRemove, testHashes,
+						masterHashes, verbose, System.out);
 			}
 		}
 
+		// The scans have waited for the caches, this reports a failed load
+		CacheMerger merger = awaitCaches(hashCreator, cacheLoad);
+		if (verbose) {
+			printMerged(merger);
+		}
+
+		// Delete deletable duplicates or save the plan for a later run
+		int deleteFailures = 0;
+		if ((planner != null) && (cl.getWritePlan() != null)) {
+			int count = DeletionPlan.write(cl.getWritePlan(), toRemove,
+					planner);
+			if (verbose) {
+				System.out.println("Wrote " + count + " planned deletes to "
+						+ cl.getWritePlan().getName());
+			}
+		} else if (planner != null) {
+			deleteFailures = deleteFiles(hashCreator, toRemove, pretend,
+					verbose, cl.getDeleteThreads(), cacheSaveFile,
+					cl.isCompactCache());
+		}
+
 		if (cacheSaveFile != null) {
-			try (FileOutputStream fileOutputStream = new FileOutputStream(
-					cacheSaveFile);
-					ObjectOutputStream oOutStream = new ObjectOutputStream(
-							fileOutputStream)) {
+			int count = saveCache(hashCreator, cacheSaveFile,
+					cl.isCompactCache(), cl.getIndex());
+			if (verbose) {
+				System.out.println("Wrote " + count + " file hashes to "
+						+ cacheSaveFile.getName());
+			}
+		}
 
-				int count = hashCreator.writeCache(oOutStream);
-				if (verbose) {
-					System.out.println("Wrote " + count + " file hashes to "
-							+ cacheSaveFile.getName());
-				}
+		if (shardedCache != null) {
+			int count = shardedCache.save(hashCreator);
+			if (verbose) {
+				System.out.println("Wrote " + count + " cache shards to "
+						+ shardedCache.getDirectory().getName());
 			}
 		}
 
+		// The hashes are in the saved caches, nothing to resume
+		if (checkpoint != null) {
+			checkpoint.delete();
+		}
+
 		if (verbose) {
 			System.out.println();
 
@@ -297,6 +822,36 @@ public class DuplicateFinder {
 			System.out.println("Files Processed: "
 					+ hashCreator.getFilesProcessed());
 			System.out.println("Cache hits: " + hashCreator.getCacheHits());
+			System.out.println("Directories and links skipped: "
+					+ hashCreator.getAliasesSkipped());
+			if (hashCreator.isAppendable()) {
+				System.out.println("Appends rehashed: "
+						+ hashCreator.getAppendsRehashed());
+			}
+			if (hashCreator.isMigrating()) {
+				System.out.println("Hashes migrated: "
+						+ hashCreator.getHashesMigrated());
+			}
+			TieredCache tieredCache = hashCreator.getTieredCache();
+			if (tieredCache != null) {
+				System.out.println("Cache lookups in memory: "
+						+ tieredCache.getHeapHits() + ", on disk: "
+						+ tieredCache.getDiskHits() + ", missed: "
+						+ tieredCache.getMisses());
+				System.out.println("Cached hashes evicted to disk: "
+						+ tieredCache.getRecordsWritten());
+			}
+		}
+
+		if (hashCreator.getTieredCache() != null) {
+			hashCreator.getTieredCache().close();
+		}
+
+		// Reported after the cache is saved so the deletes that worked are
+		// not lost
+		if (deleteFailures > 0) {
+			throw new IOException("Could not delete " + deleteFailures
+					+ " files");
 		}
 	}
 }
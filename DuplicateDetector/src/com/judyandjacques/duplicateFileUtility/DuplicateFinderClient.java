@@ -0,0 +1,151 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.duplicateFileUtility;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Thin client for {@link DuplicateFinderServer}. The request is sent to the
+ * server and the response is printed.
+ * 
+ * Usage: DuplicateFinderClient [-port number] request [-test directory]...
+ * [-delete directory]... [-bytespersecond number] [-filespersecond number]
+ * 
+ * The requests are scan, duplicates, deleteplan, save, shutdown and
+ * throttle.
+ */
+public class DuplicateFinderClient {
+
+	/**
+	 * Print a usage message and exit.
+	 * 
+	 * This does not return.
+	 */
+	private static void usageException(String message) {
+		System.out.println("Error: " + message);
+		System.out.println();
+		System.out
+				.println("Usage: [-port number] request [-test directory]... [-delete directory]... [-bytespersecond number] [-filespersecond number]");
+		System.out.print("Requests:");
+		for (DuplicateFinderServer.Request request : DuplicateFinderServer.Request
+				.values()) {
+			System.out.print(" " + request.toString().toLowerCase());
+		}
+		System.out.println();
+		System.exit(1);
+	}
+
+	/**
+	 * Send the request to the server and print the response. Exits with 1 if
+	 * the server reported an error.
+	 * 
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = DuplicateFinderCommandLine.DEFAULT_PORT;
+		String request = null;
+		StringBuilder arguments = new StringBuilder();
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("-")) {
+				if (i + 1 == args.length) {
+					usageException("Missing value for " + arg);
+				}
+				String value = args[++i];
+				String name = arg.substring(1).toLowerCase();
+				if ("port".equals(name)) {
+					try {
+						port = Integer.parseInt(value);
+					} catch (NumberFormatException e) {
+						usageException("Port is not a number - " + value);
+					}
+				} else if (DuplicateFinderServer.TEST_ARGUMENT.equals(name)
+						|| DuplicateFinderServer.DELETE_ARGUMENT.equals(name)) {
+					// The server may have a different working directory
+					arguments.append(name).append('\t')
+							.append(new File(value).getAbsolutePath())
+							.append('\n');
+				} else if (DuplicateFinderServer.BYTES_ARGUMENT.equals(name)
+						|| DuplicateFinderServer.FILES_ARGUMENT.equals(name)) {
+					arguments.append(name).append('\t').append(value)
+							.append('\n');
+				} else {
+					usageException("Unknown switch " + arg);
+				}
+			} else if (request == null) {
+				request = arg;
+			} else {
+				usageException("Only one request allowed - " + arg);
+			}
+		}
+		if (request == null) {
+			usageException("No request");
+		}
+
+		if (!send(port, request, arguments.toString(), System.out)) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Send a request to the server and print the response without the line
+	 * that ends it.
+	 * 
+	 * @param port
+	 *            the server listens on
+	 * @param request
+	 *            name of the request
+	 * @param arguments
+	 *            "name&lt;tab&gt;value" lines, each ended by a new line
+	 * @param printTo
+	 *            where to print the response
+	 * @return true if the server answered OK
+	 */
+	static boolean send(int port, String request, String arguments,
+			PrintStream printTo) throws IOException {
+		boolean ok = false;
+		try (Socket socket = new Socket(InetAddress.getByName(null), port);
+				PrintStream out = new PrintStream(socket.getOutputStream(),
+						false, DuplicateFinderServer.CHARSET);
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						socket.getInputStream(), DuplicateFinderServer.CHARSET))) {
+
+			out.print(request + "\n" + arguments + "\n");
+			out.flush();
+
+			for (String line = in.readLine(); line != null; line = in
+					.readLine()) {
+				if (DuplicateFinderServer.OK_RESPONSE.equals(line)) {
+					ok = true;
+				} else {
+					printTo.println(line);
+				}
+			}
+		}
+		return ok;
+	}
+}
@@ -21,9 +21,16 @@ package com.judyandjacques.duplicateFileUtility;
 import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.LinkedList;
 import java.util.List;
 
+import com.judyandjacques.hash.Checkpoint;
+import com.judyandjacques.hash.ExternalGrouper;
+import com.judyandjacques.hash.HashCreator;
+import com.judyandjacques.hash.PathFilter;
+
 /**
  * Utility class to handle the command line for duplicateFinder.
  * 
@@ -32,26 +39,126 @@ import java.util.List;
  */
 public class DuplicateFinderCommandLine {
 
+	// Loopback port used by DuplicateFinderServer and DuplicateFinderClient
+	public static final int DEFAULT_PORT = 7271;
+
 	private File cacheSaveFile = null;
+	private File shardedCache = null;
+	private File checkpoint = null;
 	private List<Path> caches = new LinkedList<>();
 	private List<Path> masters = new LinkedList<>();
 	private List<Path> tests = new LinkedList<>();
 	private List<String> deletables = new LinkedList<>();
 
 	private String[] extensions = null;
+	private List<String> includes = new LinkedList<>();
+	private List<String> excludes = new LinkedList<>();
+	private List<Path> excludedDirectories = new LinkedList<>();
+	private long minSize = 0;
+	private long maxSize = Long.MAX_VALUE;
+	private long sampledAbove = 0;
+	private File groupDirectory = null;
+	private long groupMemory = ExternalGrouper.DEFAULT_MEMORY_BUDGET;
+	private long cacheMemory = 0;
+	private int revalidatePercent = 0;
+	private File writePlan = null;
+	private File executePlan = null;
+	private File index = null;
+	private List<File> lookups = new LinkedList<>();
+	private List<Path> ingests = new LinkedList<>();
+	private File ingestTo = null;
+	private File cacheTierDirectory = null;
 	private boolean useCacheForMasters = false;
 	private boolean mustBeInMasters = false;
 	private boolean verbose = false;
 	private boolean pretend = false;
+	private boolean mergeCaches = false;
+	private boolean compactCache = false;
+	private boolean resume = false;
+	private boolean appendable = false;
+	private String algorithm = null;
+	private String[] extraAlgorithms = new String[0];
+	private boolean migrate = false;
+	private boolean skipLinks = false;
+	private boolean twoTier = false;
+	private int threads = 1;
+	private int checkpointFiles = Checkpoint.DEFAULT_EVERY_FILES;
+	private long checkpointSeconds = Checkpoint.DEFAULT_EVERY_MILLIS / 1000;
+	private int port = DEFAULT_PORT;
+	private int deleteThreads = DeletionExecutor.DEFAULT_PARALLELISM;
+	private long maxBytesPerSecond = 0;
+	private long maxFilesPerSecond = 0;
 
 	private enum CLSwitches {
 		NO_COMMAND(null),
 
 		EXTENSIONS("\"ext1, ext2\" : Only process the given extensions"),
 
+		INCLUDE("glob : Only process files that match one of the include globs"),
+
+		EXCLUDE("glob : Skip files and directories that match, such as .git"),
+
+		EXCLUDEDIR("directory : Don't search this directory"),
+
+		SKIPLINKS(": Don't follow symbolic links inside the directories"),
+
+		MINSIZE("number : Skip files smaller than this many bytes"),
+
+		MAXSIZE("number : Skip files larger than this many bytes"),
+
 		CACHE("file.ser : Use the given file for the cache"),
 
-		WRITECACHE("file.ser : file to write cache"),
+		WRITECACHE("file.ser : file to write cache, merged with hashes other runs saved to it"),
+
+		COMPACTCACHE(
+				": Write the cache in the smaller, faster loading compact format"),
+
+		SHARDEDCACHE(
+				"directory : Load and save the cache as one shard per root directory"),
+
+		CHECKPOINT(
+				"file : Save the progress of the scan to this file so it can be resumed"),
+
+		CHECKPOINTFILES("number : Save the checkpoint after this many new hashes (default "
+				+ Checkpoint.DEFAULT_EVERY_FILES + ")"),
+
+		CHECKPOINTSECONDS("number : Save the checkpoint at least this often (default "
+				+ (Checkpoint.DEFAULT_EVERY_MILLIS / 1000) + ")"),
+
+		RESUME(": Continue the scan from the -checkpoint file"),
+
+		APPENDABLE(
+				": Hash in chained blocks so files that grow only have the new bytes read"),
+
+		ALGORITHM(
+				"name : Hash with this digest (default MD5), cached hashes with it as an extra algorithm are kept"),
+
+		EXTRAALGORITHMS(
+				"\"alg1, alg2\" : Also compute these digests whenever a file is read"),
+
+		MIGRATE(
+				": Read files whose cached hashes are missing an -extraalgorithms digest"),
+
+		SAMPLEDABOVE(
+				"number : Only sample files this many bytes or larger, matches are confirmed before deleting"),
+
+		THREADS(
+				"number : Files to hash at once, largest first with small files in batches (default 1)"),
+
+		TWOTIER(
+				": Fingerprint every file and only use the strong digest on files that share a fingerprint"),
+
+		GROUPONDISK(
+				"directory : Group the files in temporary files here rather than in memory, also bounds the cache by -groupmemory unless -cachememory is given"),
+
+		GROUPMEMORY("number : Megabytes -groupondisk holds in memory (default "
+				+ (ExternalGrouper.DEFAULT_MEMORY_BUDGET / (1024 * 1024)) + ")"),
+
+		CACHEMEMORY(
+				"number : Megabytes of cached hashes kept in memory, the rest are evicted to a temporary file"),
+
+		CACHETIERDIR(
+				"directory : Where -cachememory puts its temporary file (default the temp directory)"),
 
 		MASTER("directory : Defines the master directories"),
 
@@ -59,15 +166,50 @@ public class DuplicateFinderCommandLine {
 
 		DELETE("directory : delete any duplicates in this directory"),
 
+		WRITEPLAN(
+				"file : Save the files -delete would delete to this plan rather than deleting them"),
+
+		EXECUTEPLAN(
+				"file : Delete the unchanged files in a -writeplan plan whose kept copy still exists"),
+
+		DELETETHREADS("number : Deletes to run at once on each file system (default "
+				+ DeletionExecutor.DEFAULT_PARALLELISM + ")"),
+
+		MAXBYTESPERSECOND(
+				"number : Read files no faster than this while hashing"),
+
+		MAXFILESPERSECOND(
+				"number : Open no more files than this each second while hashing"),
+
 		USECACHEFORMASTER(
 				": Just use the cache for the master directories.  Don't look at the file system"),
 
+		REVALIDATEMASTERS(
+				"percent : With -usecacheformaster, check this percent of the cached master files are unchanged, all of them if any are stale"),
+
 		MUSTBEINMASTER(
 				": Only mark as duplicate if it is in a master directory too"),
 
 		PRETEND(
 				": Don't actually delete anything but do show what would have been deleted"),
 
+		PORT("number : Loopback port for DuplicateFinderServer (default "
+				+ DEFAULT_PORT + ")"),
+
+		MERGECACHES(
+				": Merge the -cache files into the -writecache file and stop"),
+
+		INDEX(
+				"file : Reverse index of content hashes to files, written with the -writecache file"),
+
+		LOOKUP(
+				"file : Report the copies of this file in the -index without loading a cache and stop"),
+
+		INGEST(
+				"directory : Copy the files here that the -master directories don't have to -ingestto and stop"),
+
+		INGESTTO("directory : Where -ingest copies new files to"),
+
 		VERBOSE(": Display extra information");
 
 		private String message;
@@ -123,6 +265,42 @@ public class DuplicateFinderCommandLine {
 		return clSwitch;
 	}
 
+	// Turn arg into a number between min and max
+	private static long parseNumber(String arg, String name, long min,
+			long max) {
+		long number = 0;
+		try {
+			number = Long.parseLong(arg);
+		} catch (NumberFormatException e) {
+			usageException(name + " is not a number - " + arg);
+		}
+		if ((number < min) || (number > max)) {
+			usageException(name + " is out of range - " + arg);
+		}
+		return number;
+	}
+
+	// Make sure arg is a valid glob
+	private static String checkGlob(String arg) {
+		try {
+			new PathFilter().addInclude(arg);
+		} catch (IllegalArgumentException e) {
+			usageException("Invalid glob - " + arg + " (" + e.getMessage()
+					+ ")");
+		}
+		return arg;
+	}
+
+	// Make sure arg is a digest that can be used
+	private static String checkAlgorithm(String arg) {
+		try {
+			MessageDigest.getInstance(arg);
+		} catch (NoSuchAlgorithmException e) {
+			usageException("Unknown algorithm - " + arg);
+		}
+		return arg;
+	}
+
 	public DuplicateFinderCommandLine(String[] args) {
 		if ((args == null) || (args.length == 0)) {
 			System.out
@@ -159,6 +337,34 @@ public class DuplicateFinderCommandLine {
 					pretend = true;
 					break;
 				}
+				case MERGECACHES: {
+					mergeCaches = true;
+					break;
+				}
+				case COMPACTCACHE: {
+					compactCache = true;
+					break;
+				}
+				case RESUME: {
+					resume = true;
+					break;
+				}
+				case APPENDABLE: {
+					appendable = true;
+					break;
+				}
+				case TWOTIER: {
+					twoTier = true;
+					break;
+				}
+				case SKIPLINKS: {
+					skipLinks = true;
+					break;
+				}
+				case MIGRATE: {
+					migrate = true;
+					break;
+				}
 				default:
 					lastSwitch = current;
 					break;
@@ -173,6 +379,77 @@ public class DuplicateFinderCommandLine {
 					extensions = arg.split("\\s*,\\s*");
 					break;
 				}
+				case INCLUDE: {
+					includes.add(checkGlob(arg));
+					break;
+				}
+				case EXCLUDE: {
+					excludes.add(checkGlob(arg));
+					break;
+				}
+				case EXCLUDEDIR: {
+					excludedDirectories.add(Paths.get(arg));
+					break;
+				}
+				case MINSIZE: {
+					minSize = parseNumber(arg, "Min size", 0, Long.MAX_VALUE);
+					break;
+				}
+				case MAXSIZE: {
+					maxSize = parseNumber(arg, "Max size", 0, Long.MAX_VALUE);
+					break;
+				}
+				case ALGORITHM: {
+					algorithm = checkAlgorithm(arg);
+					break;
+				}
+				case EXTRAALGORITHMS: {
+					extraAlgorithms = arg.split("\\s*,\\s*");
+					for (String extraAlgorithm : extraAlgorithms) {
+						checkAlgorithm(extraAlgorithm);
+					}
+					break;
+				}
+				case THREADS: {
+					threads = (int) parseNumber(arg, "Threads", 1, 1024);
+					break;
+				}
+				case SAMPLEDABOVE: {
+					sampledAbove = parseNumber(arg, "Sampled above", 1,
+							Long.MAX_VALUE);
+					break;
+				}
+				case GROUPONDISK: {
+					groupDirectory = new File(arg);
+					if (!groupDirectory.isDirectory()) {
+						usageException("Group directory is not a directory - "
+								+ groupDirectory);
+					}
+					break;
+				}
+				case GROUPMEMORY: {
+					groupMemory = parseNumber(arg, "Group memory", 1,
+							Long.MAX_VALUE / (1024 * 1024)) * 1024 * 1024;
+					break;
+				}
+				case REVALIDATEMASTERS: {
+					revalidatePercent = (int) parseNumber(arg,
+							"Revalidate percent", 1, 100);
+					break;
+				}
+				case CACHEMEMORY: {
+					cacheMemory = parseNumber(arg, "Cache memory", 1,
+							Long.MAX_VALUE / (1024 * 1024)) * 1024 * 1024;
+					break;
+				}
+				case CACHETIERDIR: {
+					cacheTierDirectory = new File(arg);
+					if (!cacheTierDirectory.isDirectory()) {
+						usageException("Cache tier directory is not a directory - "
+								+ cacheTierDirectory);
+					}
+					break;
+				}
 				case CACHE: {
 					Path path = Paths.get(arg);
 					File file = path.toFile();
@@ -213,6 +490,97 @@ public class DuplicateFinderCommandLine {
 					deletables.add(file.getAbsolutePath());
 					break;
 				}
+				case PORT: {
+					port = (int) parseNumber(arg, "Port", 1, 65535);
+					break;
+				}
+				case WRITEPLAN: {
+					writePlan = new File(arg);
+					break;
+				}
+				case EXECUTEPLAN: {
+					executePlan = new File(arg);
+					if (!executePlan.isFile()) {
+						usageException("Plan file does not exist - "
+								+ executePlan);
+					}
+					break;
+				}
+				case INDEX: {
+					index = new File(arg);
+					break;
+				}
+				case LOOKUP: {
+					File file = new File(arg);
+					if (!file.isFile()) {
+						usageException("Lookup file does not exist - " + file);
+					}
+					lookups.add(file);
+					break;
+				}
+				case INGEST: {
+					Path path = Paths.get(arg);
+					if (!path.toFile().exists()) {
+						usageException("Ingest does not exist - " + path);
+					}
+					ingests.add(path);
+					break;
+				}
+				case INGESTTO: {
+					ingestTo = new File(arg);
+					if (ingestTo.exists() && !ingestTo.isDirectory()) {
+						usageException("Ingest destination is not a directory - "
+								+ ingestTo);
+					}
+					break;
+				}
+				case DELETETHREADS: {
+					deleteThreads = (int) parseNumber(arg, "Delete threads", 1,
+							Integer.MAX_VALUE);
+					break;
+				}
+				case MAXBYTESPERSECOND: {
+					maxBytesPerSecond = parseNumber(arg, "Max bytes per second",
+							1, Long.MAX_VALUE);
+					break;
+				}
+				case MAXFILESPERSECOND: {
+					maxFilesPerSecond = parseNumber(arg, "Max files per second",
+							1, Long.MAX_VALUE);
+					break;
+				}
+				case SHARDEDCACHE: {
+					if (shardedCache != null) {
+						usageException("Can only use -shardedcache switch once");
+					}
+					shardedCache = new File(arg);
+					if (shardedCache.exists() && !shardedCache.isDirectory()) {
+						usageException("Sharded cache is not a directory - "
+								+ shardedCache);
+					}
+					break;
+				}
+				case CHECKPOINT: {
+					if (checkpoint != null) {
+						usageException("Can only use -checkpoint switch once");
+					}
+					checkpoint = new File(arg);
+					if (checkpoint.isDirectory()) {
+						usageException("Checkpoint is a directory - "
+								+ checkpoint);
+					}
+					break;
+				}
+				case CHECKPOINTFILES: {
+					checkpointFiles = (int) parseNumber(arg, "Checkpoint files",
+							1, Integer.MAX_VALUE);
+					break;
+				}
+				case CHECKPOINTSECONDS: {
+					checkpointSeconds = parseNumber(arg, "Checkpoint seconds",
+							1, Long.MAX_VALUE / 1000);
+					break;
+				}
 				case WRITECACHE: {
 					cacheSaveFile = new File(arg);
 					if (cacheSaveFile.exists() && (!cacheSaveFile.canWrite())) {
@@ -228,17 +596,87 @@ public class DuplicateFinderCommandLine {
 				lastSwitch = CLSwitches.NO_COMMAND;
 			}
 		}
-		if (masters.isEmpty() && tests.isEmpty()) {
+		if (mergeCaches) {
+			if (caches.isEmpty() || (cacheSaveFile == null)) {
+				usageException("When using -mergeCaches a -cache and -writecache must be specified");
+			}
+		} else if (executePlan != null) {
+			if (!(masters.isEmpty() && tests.isEmpty() && deletables.isEmpty())) {
+				usageException("When using -executeplan no -master, -test or -delete can be specified");
+			}
+		} else if (!lookups.isEmpty()) {
+			if ((index == null) || !index.isFile()) {
+				usageException("When using -lookup an existing -index must be specified");
+			}
+			if (!(masters.isEmpty() && tests.isEmpty() && deletables.isEmpty())) {
+				usageException("When using -lookup no -master, -test or -delete can be specified");
+			}
+		} else if (!ingests.isEmpty()) {
+			if (ingestTo == null) {
+				usageException("When using -ingest a -ingestto must be specified");
+			}
+			if (masters.isEmpty()) {
+				usageException("When using -ingest a -master must be specified");
+			}
+			if (!(tests.isEmpty() && deletables.isEmpty())) {
+				usageException("When using -ingest no -test or -delete can be specified");
+			}
+			if (appendable) {
+				usageException("When using -ingest -appendable can't be specified");
+			}
+		} else if (masters.isEmpty() && tests.isEmpty()) {
 			usageException("No master or test directories specified");
 		}
 
+		if ((ingestTo != null) && ingests.isEmpty()) {
+			usageException("When using -ingestto a -ingest must be specified");
+		}
+
+		if ((index != null) && lookups.isEmpty() && (cacheSaveFile == null)) {
+			usageException("When using -index a -writecache or -lookup must be specified");
+		}
+
+		// Only full hashes are indexed
+		if ((index != null) && lookups.isEmpty()
+				&& (twoTier || (sampledAbove > 0))) {
+			usageException("When writing an -index -twotier and -sampledabove can't be specified");
+		}
+
+		// Grouping on disk only saves memory if the cache is bounded too
+		if ((groupDirectory != null) && (cacheMemory == 0)) {
+			cacheMemory = groupMemory;
+			if (cacheTierDirectory == null) {
+				cacheTierDirectory = groupDirectory;
+			}
+		}
+
+		if ((writePlan != null) && deletables.isEmpty()) {
+			usageException("When using -writeplan a -delete must be specified");
+		}
+
+		if (minSize > maxSize) {
+			usageException("Min size is larger than max size");
+		}
+
+		if (resume && (checkpoint == null)) {
+			usageException("When using -resume a -checkpoint must be specified");
+		}
+
+		if (migrate && (extraAlgorithms.length == 0)) {
+			usageException("When using -migrate -extraalgorithms must be specified");
+		}
+
+		if ((revalidatePercent > 0) && !useCacheForMasters) {
+			usageException("When using -revalidatemasters -usecacheformaster must be specified");
+		}
+
 		// if useCacheForMasters then there must be a cache
 		if (useCacheForMasters) {
-			if (caches.isEmpty()) {
+			if (caches.isEmpty() && (shardedCache == null)) {
 				usageException("When using -useCacheForMasters a cache must specified");
 			}
 
-			boolean found = false;
+			boolean found = (shardedCache != null) && shardedCache.exists();
 			for (Path path : caches) {
 				if (path.toFile().exists()) {
 					found = true;
@@ -251,6 +689,27 @@ public class DuplicateFinderCommandLine {
 		}
 	}
 
+	/**
+	 * @return a filter with the extensions, globs, excluded directories and
+	 *         sizes
+	 */
+	public PathFilter createFilter() {
+		PathFilter filter = new PathFilter();
+		filter.setExtensions(extensions);
+		for (String glob : includes) {
+			filter.addInclude(glob);
+		}
+		for (String glob : excludes) {
+			filter.addExclude(glob);
+		}
+		for (Path directory : excludedDirectories) {
+			filter.addExcludedDirectory(directory);
+		}
+		filter.setMinSize(minSize);
+		filter.setMaxSize(maxSize);
+		return filter;
+	}
+
 	/**
 	 * @return the cache save file or null if there is none
 	 */
@@ -258,6 +717,171 @@ public class DuplicateFinderCommandLine {
 		return cacheSaveFile;
 	}
 
+	/**
+	 * @return the directory of the sharded cache or null if there is none
+	 */
+	public File getShardedCache() {
+		return shardedCache;
+	}
+
+	/**
+	 * @return the checkpoint file or null if there is none
+	 */
+	public File getCheckpoint() {
+		return checkpoint;
+	}
+
+	/**
+	 * @return the number of new hashes between checkpoints
+	 */
+	public int getCheckpointFiles() {
+		return checkpointFiles;
+	}
+
+	/**
+	 * @return the most seconds between checkpoints
+	 */
+	public long getCheckpointSeconds() {
+		return checkpointSeconds;
+	}
+
+	/**
+	 * @return directory to group the files in or null to group in memory
+	 */
+	public File getGroupDirectory() {
+		return groupDirectory;
+	}
+
+	/**
+	 * @return bytes the grouper holds in memory
+	 */
+	public long getGroupMemory() {
+		return groupMemory;
+	}
+
+	/**
+	 * @return file to save the delete plan to or null to delete the files
+	 */
+	public File getWritePlan() {
+		return writePlan;
+	}
+
+	/**
+	 * @return plan file to carry out or null to scan
+	 */
+	public File getExecutePlan() {
+		return executePlan;
+	}
+
+	/**
+	 * @return reverse index to write with the cache or to look files up in,
+	 *         null for none
+	 */
+	public File getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return files to look up in the index, empty to scan
+	 */
+	public List<File> getLookups() {
+		return lookups;
+	}
+
+	/**
+	 * @return files and directories to copy into the archive, empty to scan
+	 */
+	public List<Path> getIngests() {
+		return ingests;
+	}
+
+	/**
+	 * @return directory -ingest copies to or null
+	 */
+	public File getIngestTo() {
+		return ingestTo;
+	}
+
+	/**
+	 * @return bytes of cached hashes kept in memory, 0 for no limit. The group
+	 *         memory if grouping on disk and none was given.
+	 */
+	public long getCacheMemory() {
+		return cacheMemory;
+	}
+
+	/**
+	 * @return directory for the evicted cached hashes or null for the default
+	 *         temporary directory
+	 */
+	public File getCacheTierDirectory() {
+		return cacheTierDirectory;
+	}
+
+	/**
+	 * @return files this long or longer are sampled, 0 to always fully hash
+	 */
+	public long getSampledAbove() {
+		return sampledAbove;
+	}
+
+	/**
+	 * @return true if files are grouped by a fingerprint first
+	 */
+	public boolean isTwoTier() {
+		return twoTier;
+	}
+
+	/**
+	 * @return the number of files hashed at once
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @return whether symbolic links are followed
+	 */
+	public HashCreator.LinkPolicy getLinkPolicy() {
+		return (skipLinks ? HashCreator.LinkPolicy.SKIP
+				: HashCreator.LinkPolicy.FOLLOW);
+	}
+
+	/**
+	 * @return the digest to hash with or null for the default
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @return digests also computed whenever a file is read
+	 */
+	public String[] getExtraAlgorithms() {
+		return extraAlgorithms;
+	}
+
+	/**
+	 * @return true if files missing an extra algorithm should be read
+	 */
+	public boolean isMigrate() {
+		return migrate;
+	}
+
+	/**
+	 * @return true if files should be hashed in chained blocks
+	 */
+	public boolean isAppendable() {
+		return appendable;
+	}
+
+	/**
+	 * @return true if the scan should continue from the checkpoint
+	 */
+	public boolean isResume() {
+		return resume;
+	}
+
 	/**
 	 * @return the caches
 	 */
@@ -300,6 +924,14 @@ public class DuplicateFinderCommandLine {
 		return useCacheForMasters;
 	}
 
+	/**
+	 * @return percent of the cached master files to check, 0 to trust the
+	 *         cache
+	 */
+	public int getRevalidatePercent() {
+		return revalidatePercent;
+	}
+
 	/**
 	 * @return true if mustBeInMasters
 	 */
@@ -321,4 +953,46 @@ public class DuplicateFinderCommandLine {
 		return pretend;
 	}
 
+	/**
+	 * @return the deletes to run at once on each file system
+	 */
+	public int getDeleteThreads() {
+		return deleteThreads;
+	}
+
+	/**
+	 * @return the most bytes to read each second or 0 for no limit
+	 */
+	public long getMaxBytesPerSecond() {
+		return maxBytesPerSecond;
+	}
+
+	/**
+	 * @return the most files to open each second or 0 for no limit
+	 */
+	public long getMaxFilesPerSecond() {
+		return maxFilesPerSecond;
+	}
+
+	/**
+	 * @return true if the cache should be written in the compact format
+	 */
+	public boolean isCompactCache() {
+		return compactCache;
+	}
+
+	/**
+	 * @return true if the caches should only be merged
+	 */
+	public boolean isMergeCaches() {
+		return mergeCaches;
+	}
+
+	/**
+	 * @return the port for the server
+	 */
+	public int getPort() {
+		return port;
+	}
+
 }
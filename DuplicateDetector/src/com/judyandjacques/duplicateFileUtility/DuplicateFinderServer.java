@@ -0,0 +1,408 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.duplicateFileUtility;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.judyandjacques.hash.ContentHash;
+import com.judyandjacques.hash.HashCreator;
+import com.judyandjacques.hash.HashException;
+import com.judyandjacques.hash.IoThrottle;
+
+/**
+ * Keeps a HashCreator and its cache in memory and answers requests from
+ * {@link DuplicateFinderClient} over a loopback socket. This saves reloading
+ * the cache every time the duplicates of a test directory are needed.
+ * 
+ * The server is started with the same switches as {@link DuplicateFinder}.
+ * The caches, masters and extensions are used for every request.
+ * 
+ * A request is the name of the request on the first line followed by
+ * "name&lt;tab&gt;value" argument lines and an empty line. The response is
+ * the output of the request followed by a line of "OK" or "ERROR message".
+ */
+public class DuplicateFinderServer {
+
+	/**
+	 * Requests that a client can send
+	 */
+	enum Request {
+		// Hash the test directories into the cache
+		SCAN,
+
+		// List the duplicates of the test directories
+		DUPLICATES,
+
+		// List what would be deleted from the test directories
+		DELETEPLAN,
+
+		// Write the cache to the -writecache file
+		SAVE,
+
+		// Save the cache and stop the server
+		SHUTDOWN,
+
+		// Change the read limits while running
+		THROTTLE
+	}
+
+	// Argument names used in requests
+	static final String TEST_ARGUMENT = "test";
+	static final String DELETE_ARGUMENT = "delete";
+	static final String BYTES_ARGUMENT = "bytespersecond";
+	static final String FILES_ARGUMENT = "filespersecond";
+
+	// Response lines that end a request
+	static final String OK_RESPONSE = "OK";
+	static final String ERROR_RESPONSE = "ERROR";
+
+	static final String CHARSET = "UTF-8";
+
+	private final HashCreator hashCreator;
+	private final IoThrottle throttle;
+	private final List<Path> masters;
+	private final File cacheSaveFile;
+	private final boolean compactCache;
+	private final boolean useCacheForMasters;
+	private final boolean mustBeInMasters;
+	private final boolean verbose;
+
+	// Requests share the cache through the read lock (the HashCreator allows
+	// concurrent creates). Saving takes the write lock so the saved file is a
+	// snapshot that no request is changing.
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private volatile ServerSocket serverSocket = null;
+	private volatile boolean running = true;
+
+	/**
+	 * Start the server and load the caches
+	 * 
+	 * @See {@link DuplicateFinderCommandLine}
+	 * 
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		DuplicateFinderCommandLine cl = new DuplicateFinderCommandLine(args);
+
+		DuplicateFinderServer server = new DuplicateFinderServer(cl);
+		server.serve(cl.getPort());
+	}
+
+	/**
+	 * Create the server's HashCreator and load the caches.
+	 * 
+	 * @param cl
+	 *            command line with the caches, masters and extensions
+	 */
+	public DuplicateFinderServer(DuplicateFinderCommandLine cl)
+			throws HashException, IOException {
+		if (cl == null) {
+			throw new IllegalArgumentException("cl cannot be null");
+		}
+		masters = HashCreator.collapseRoots(cl.getMasters());
+		cacheSaveFile = cl.getCacheSaveFile();
+		compactCache = cl.isCompactCache();
+		useCacheForMasters = cl.isUseCacheForMasters();
+		mustBeInMasters = cl.isMustBeInMasters();
+		verbose = cl.isVerbose();
+
+		hashCreator = new HashCreator();
+		hashCreator.setVerbose(verbose);
+		if (cl.getAlgorithm() != null) {
+			hashCreator.setHashAlgorithm(cl.getAlgorithm());
+		}
+		hashCreator.setAppendable(cl.isAppendable());
+		hashCreator.setExtraAlgorithms(cl.getExtraAlgorithms());
+		hashCreator.setMigrating(cl.isMigrate());
+		hashCreator.setSampledAbove(cl.getSampledAbove());
+		hashCreator.setTwoTier(cl.isTwoTier());
+		hashCreator.setThreads(cl.getThreads());
+		hashCreator.setFilter(cl.createFilter());
+
+		// Test scans don't descend into the masters
+		hashCreator.setLinkPolicy(cl.getLinkPolicy());
+		hashCreator.setSeparateRoots(masters);
+
+		// Always throttled so the limits can be set by a request
+		throttle = new IoThrottle(cl.getMaxBytesPerSecond(),
+				cl.getMaxFilesPerSecond());
+		hashCreator.setThrottle(throttle);
+
+		DuplicateFinder.loadCaches(hashCreator, cl.getCaches());
+		if (verbose) {
+			System.out.println("Initial cache size "
+					+ hashCreator.getCacheSize());
+		}
+	}
+
+	/**
+	 * Accept requests on the loopback port until a SHUTDOWN request is
+	 * received. Each connection is handled on its own thread.
+	 * 
+	 * @param port
+	 *            to listen on
+	 */
+	public void serve(int port) throws IOException {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try (ServerSocket socket = new ServerSocket(port, 50,
+				InetAddress.getByName(null))) {
+			serverSocket = socket;
+			if (verbose) {
+				System.out.println("Listening on port " + port);
+			}
+			while (running) {
+				final Socket connection;
+				try {
+					connection = socket.accept();
+				} catch (SocketException e) {
+					// Closed by SHUTDOWN
+					if (running) {
+						throw e;
+					}
+					break;
+				}
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						handle(connection);
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	// Read one request from the connection and write the response
+	void handle(Socket connection) {
+		try (Socket socket = connection;
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						socket.getInputStream(), CHARSET));
+				PrintStream out = new PrintStream(socket.getOutputStream(),
+						false, CHARSET)) {
+
+			String name = in.readLine();
+			List<Path> tests = new LinkedList<>();
+			List<String> deletables = new LinkedList<>();
+			Map<String, String> limits = new HashMap<>();
+			for (String line = in.readLine(); (line != null)
+					&& (line.length() > 0); line = in.readLine()) {
+				int tab = line.indexOf('\t');
+				String argument = (tab == -1 ? line : line.substring(0, tab));
+				String value = (tab == -1 ? "" : line.substring(tab + 1));
+				if (TEST_ARGUMENT.equals(argument)) {
+					tests.add(Paths.get(value));
+				} else if (DELETE_ARGUMENT.equals(argument)) {
+					deletables.add(new File(value).getAbsolutePath());
+				} else if (BYTES_ARGUMENT.equals(argument)
+						|| FILES_ARGUMENT.equals(argument)) {
+					limits.put(argument, value);
+				}
+			}
+
+			try {
+				if (name == null) {
+					throw new IllegalArgumentException("Empty request");
+				}
+				Request request;
+				try {
+					request = Request.valueOf(name.trim().toUpperCase());
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("Unknown request - "
+							+ name, e);
+				}
+				if (verbose) {
+					System.out.println("Request " + request + " " + tests);
+				}
+				process(request, tests, deletables, limits, out);
+				out.println(OK_RESPONSE);
+			} catch (HashException | IOException | RuntimeException e) {
+				out.println(ERROR_RESPONSE + " " + e.getMessage());
+			}
+			out.flush();
+		} catch (IOException e) {
+			if (verbose) {
+				System.out.println("Could not answer request - " + e);
+			}
+		}
+	}
+
+	// Carry out the request, writing the output to out
+	private void process(Request request, List<Path> tests,
+			List<String> deletables, Map<String, String> limits,
+			PrintStream out) throws HashException, IOException {
+		// A test that is also a master is left to the masters
+		tests = HashCreator.removeSame(HashCreator.collapseRoots(tests),
+				masters);
+		switch (request) {
+		case SCAN: {
+			Map<ContentHash, Set<File>> testHashes;
+			lock.readLock().lock();
+			try {
+				testHashes = hashCreator.create(tests);
+			} finally {
+				lock.readLock().unlock();
+			}
+			out.println("Scanned " + countFiles(testHashes) + " files");
+			break;
+		}
+		case DUPLICATES: {
+			lock.readLock().lock();
+			try {
+				Set<Object> visited = new HashSet<>();
+				Map<ContentHash, Set<File>> masterHashes = createMasterHashes(
+						visited);
+				Map<ContentHash, Set<File>> testHashes = hashCreator.create(
+						tests, visited);
+				hashCreator.confirmFingerprints(Arrays.asList(testHashes,
+						masterHashes));
+				DuplicateFinder.printDuplicates(out, testHashes, masterHashes,
+						mustBeInMasters);
+			} finally {
+				lock.readLock().unlock();
+			}
+			break;
+		}
+		case DELETEPLAN: {
+			if (deletables.isEmpty()) {
+				throw new IllegalArgumentException(
+						"No delete directories in request");
+			}
+			List<File> toRemove;
+			lock.readLock().lock();
+			try {
+				Set<Object> visited = new HashSet<>();
+				Map<ContentHash, Set<File>> masterHashes = createMasterHashes(
+						visited);
+				Map<ContentHash, Set<File>> testHashes = hashCreator.create(
+						tests, visited);
+				hashCreator.confirmFingerprints(Arrays.asList(testHashes,
+						masterHashes));
+				DeletionPlanner planner = new DeletionPlanner(deletables,
+						masters);
+				toRemove = planner.plan(testHashes, masterHashes,
+						mustBeInMasters, true, out);
+				toRemove = DuplicateVerifier.confirm(toRemove, testHashes,
+						masterHashes, true, out);
+			} finally {
+				lock.readLock().unlock();
+			}
+			for (File file : toRemove) {
+				out.println("Delete \"" + file + "\"");
+			}
+			out.println("Would delete " + toRemove.size() + " files");
+			break;
+		}
+		case SAVE: {
+			if (cacheSaveFile == null) {
+				throw new IllegalStateException(
+						"The server was started without -writecache");
+			}
+			out.println("Wrote " + save() + " file hashes to "
+					+ cacheSaveFile.getName());
+			break;
+		}
+		case SHUTDOWN: {
+			if (cacheSaveFile != null) {
+				out.println("Wrote " + save() + " file hashes to "
+						+ cacheSaveFile.getName());
+			}
+			running = false;
+			ServerSocket socket = serverSocket;
+			if (socket != null) {
+				socket.close();
+			}
+			break;
+		}
+		case THROTTLE: {
+			// Parse both before changing either
+			long bytesPerSecond = throttle.getBytesPerSecond();
+			long filesPerSecond = throttle.getFilesPerSecond();
+			if (limits.containsKey(BYTES_ARGUMENT)) {
+				bytesPerSecond = Long.parseLong(limits.get(BYTES_ARGUMENT));
+			}
+			if (limits.containsKey(FILES_ARGUMENT)) {
+				filesPerSecond = Long.parseLong(limits.get(FILES_ARGUMENT));
+			}
+			throttle.setBytesPerSecond(bytesPerSecond);
+			throttle.setFilesPerSecond(filesPerSecond);
+			out.println("Limits " + bytesPerSecond + " bytes/second "
+					+ filesPerSecond + " files/second (0 is no limit)");
+			out.println("Throttled for " + (throttle.getThrottledMillis() / 1000)
+					+ " seconds");
+			break;
+		}
+		default:
+			throw new IllegalArgumentException("Unknown request - " + request);
+		}
+	}
+
+	// Must be called with the lock held. The masters scanned are added to
+	// visited so the request's tests leave them out.
+	private Map<ContentHash, Set<File>> createMasterHashes(Set<Object> visited)
+			throws HashException {
+		if (useCacheForMasters) {
+			return hashCreator.createFromCache(masters);
+		}
+		return hashCreator.create(masters, visited);
+	}
+
+	// Write the cache while no request is changing it
+	private int save() throws HashException, IOException {
+		lock.writeLock().lock();
+		try {
+			return DuplicateFinder.saveCache(hashCreator, cacheSaveFile,
+					compactCache);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Count the files in the hashes
+	private static int countFiles(Map<ContentHash, Set<File>> hashes) {
+		int count = 0;
+		for (Set<File> files : hashes.values()) {
+			count += files.size();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.duplicateFileUtility;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.judyandjacques.hash.ContentHash;
+
+/**
+ * Confirms planned deletions whose duplicates were only found with SAMPLED
+ * hashes. Each such file is compared byte for byte with a copy that is being
+ * kept, either a master or a test file that isn't being deleted. Files that
+ * can't be confirmed are taken out of the plan.
+ */
+public class DuplicateVerifier {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private DuplicateVerifier() {
+		// Static methods only
+	}
+
+	/**
+	 * Confirm the deletions that only have probable duplicates.
+	 * 
+	 * @param toRemove
+	 *            the planned deletions
+	 * @param testHashes
+	 *            content hashes of the test files
+	 * @param masterHashes
+	 *            content hashes of the master files
+	 * @param verbose
+	 *            print a note for each file that is kept
+	 * @param out
+	 *            where to print the notes
+	 * @return sorted list of the deletions that are confirmed
+	 */
+	static List<File> confirm(List<File> toRemove,
+			Map<ContentHash, Set<File>> testHashes,
+			Map<ContentHash, Set<File>> masterHashes, boolean verbose,
+			PrintStream out) {
+		Set<File> removing = new HashSet<>(toRemove);
+		Set<File> rejected = new HashSet<>();
+		for (Map.Entry<ContentHash, Set<File>> entry : testHashes.entrySet()) {
+			ContentHash testHash = entry.getKey();
+			if (testHash.isFull()) {
+				continue;
+			}
+
+			// The copies that are kept
+			List<File> kept = new ArrayList<>();
+			Set<File> masterFiles = masterHashes.get(testHash);
+			if (masterFiles != null) {
+				kept.addAll(masterFiles);
+			}
+			for (File file : entry.getValue()) {
+				if (!removing.contains(file)) {
+					kept.add(file);
+				}
+			}
+
+			for (File file : entry.getValue()) {
+				if (removing.contains(file) && !matchesOne(file, kept)) {
+					rejected.add(file);
+					if (verbose) {
+						out.println("Note: Not deleting unconfirmed probable duplicate - "
+								+ file);
+					}
+				}
+			}
+		}
+
+		List<File> confirmed = new ArrayList<>();
+		for (File file : toRemove) {
+			if (!rejected.contains(file)) {
+				confirmed.add(file);
+			}
+		}
+		Collections.sort(confirmed);
+		return confirmed;
+	}
+
+	// True if the file has the same contents as one of the others
+	private static boolean matchesOne(File file, List<File> others) {
+		for (File other : others) {
+			try {
+				if (sameContents(file, other)) {
+					return true;
+				}
+			} catch (IOException e) {
+				// Can't confirm with this one, try the next
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param one
+	 *            file to compare
+	 * @param two
+	 *            file to compare
+	 * @return true if both files have the same bytes
+	 */
+	static boolean sameContents(File one, File two) throws IOException {
+		if (one.getAbsoluteFile().equals(two.getAbsoluteFile())) {
+			// Never confirm a file with itself
+			return false;
+		}
+		if (one.length() != two.length()) {
+			return false;
+		}
+		byte[] bufferOne = new byte[BUFFER_SIZE];
+		byte[] bufferTwo = new byte[BUFFER_SIZE];
+		try (InputStream inOne = Files.newInputStream(one.toPath());
+				InputStream inTwo = Files.newInputStream(two.toPath())) {
+			while (true) {
+				int read = readFully(inOne, bufferOne);
+				if (readFully(inTwo, bufferTwo) != read) {
+					return false;
+				}
+				if (read == 0) {
+					return true;
+				}
+				if (!Arrays.equals(bufferOne, bufferTwo)) {
+					return false;
+				}
+			}
+		}
+	}
+
+	// Fill the buffer unless the stream ends, return the bytes read
+	private static int readFully(InputStream in, byte[] buffer)
+			throws IOException {
+		int total = 0;
+		while (total < buffer.length) {
+			int read = in.read(buffer, total, buffer.length - total);
+			if (read == -1) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.Serializable;
+
+/**
+ * What a chained digest needs to continue hashing a file that has grown. The
+ * chain covers the complete blocks at the start of the file.
+ * 
+ * The class is immutable.
+ */
+class AppendState implements Serializable {
+	private static final long serialVersionUID = 4605816373584014733L;
+
+	private final long chainedLength;
+	private final byte[] state;
+	private final byte[] previousState;
+
+	/**
+	 * @param chainedLength
+	 *            bytes covered by the chain, a multiple of the block size
+	 * @param state
+	 *            the chain after the last complete block, not copied
+	 * @param previousState
+	 *            the chain before the last complete block, used to check the
+	 *            block hasn't changed, not copied
+	 */
+	AppendState(long chainedLength, byte[] state, byte[] previousState) {
+		if ((state == null) || (previousState == null)) {
+			throw new IllegalArgumentException("states cannot be null");
+		}
+		if (chainedLength < 0) {
+			throw new IllegalArgumentException(
+					"chainedLength cannot be negative");
+		}
+		this.chainedLength = chainedLength;
+		this.state = state;
+		this.previousState = previousState;
+	}
+
+	/**
+	 * @return the bytes covered by the chain
+	 */
+	long getChainedLength() {
+		return chainedLength;
+	}
+
+	/**
+	 * @return the chain after the last complete block, must not be modified
+	 */
+	byte[] getState() {
+		return state;
+	}
+
+	/**
+	 * @return the chain before the last complete block, must not be modified
+	 */
+	byte[] getPreviousState() {
+		return previousState;
+	}
+}
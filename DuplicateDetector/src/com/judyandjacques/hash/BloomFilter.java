@@ -0,0 +1,122 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+/**
+ * A Bloom filter over content hashes. mightContain never returns false for a
+ * hash that was added, it returns true for a hash that wasn't added about as
+ * often as the false positive rate it was sized for.
+ * 
+ * The digests are already well mixed so the bit positions are taken from the
+ * digest bytes by double hashing rather than hashing them again.
+ */
+public class BloomFilter {
+
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+	private final long[] bits;
+	private final long bitCount;
+	private final int hashCount;
+
+	/**
+	 * @param expected
+	 *            number of hashes that will be added
+	 * @param falsePositiveRate
+	 *            wanted rate of false positives, between 0 and 1
+	 */
+	public BloomFilter(long expected, double falsePositiveRate) {
+		if (expected < 0) {
+			throw new IllegalArgumentException("expected cannot be negative");
+		}
+		if ((falsePositiveRate <= 0) || (falsePositiveRate >= 1)) {
+			throw new IllegalArgumentException(
+					"falsePositiveRate must be between 0 and 1");
+		}
+		long n = Math.max(1, expected);
+		double ln2 = Math.log(2);
+		long m = (long) Math.ceil(-n * Math.log(falsePositiveRate)
+				/ (ln2 * ln2));
+		bitCount = Math.max(64, m);
+		bits = new long[(int) ((bitCount + 63) / 64)];
+		hashCount = Math.max(1, (int) Math.round((double) bitCount / n * ln2));
+	}
+
+	/**
+	 * @param contentHash
+	 *            to add
+	 */
+	public void add(ContentHash contentHash) {
+		long[] seeds = seeds(contentHash);
+		long combined = seeds[0];
+		for (int i = 0; i < hashCount; i++) {
+			long bit = (combined & Long.MAX_VALUE) % bitCount;
+			bits[(int) (bit >>> 6)] |= (1L << bit);
+			combined += seeds[1];
+		}
+	}
+
+	/**
+	 * @param contentHash
+	 *            to check
+	 * @return false if the hash was never added
+	 */
+	public boolean mightContain(ContentHash contentHash) {
+		long[] seeds = seeds(contentHash);
+		long combined = seeds[0];
+		for (int i = 0; i < hashCount; i++) {
+			long bit = (combined & Long.MAX_VALUE) % bitCount;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+			combined += seeds[1];
+		}
+		return true;
+	}
+
+	// Two 64 bit values from the digest, the strength keeps a sampled hash
+	// from looking like a full one
+	private static long[] seeds(ContentHash contentHash) {
+		byte[] digest = contentHash.getDigest();
+		long[] seeds = new long[] { contentHash.hashCode(),
+				0x9E3779B97F4A7C15L };
+		for (int i = 0; i < digest.length; i++) {
+			int seed = (i / 8) % 2;
+			seeds[seed] = Long.rotateLeft(seeds[seed], 8) ^ (digest[i] & 0xFF);
+		}
+		seeds[0] ^= contentHash.getStrength().ordinal() * 0xC2B2AE3D27D4EB4FL;
+
+		// Odd so the steps cover every bit position
+		seeds[1] |= 1;
+		return seeds;
+	}
+
+	/**
+	 * @return the number of bits in the filter
+	 */
+	public long getBitCount() {
+		return bitCount;
+	}
+
+	/**
+	 * @return the number of bits set for each hash
+	 */
+	public int getHashCount() {
+		return hashCount;
+	}
+}
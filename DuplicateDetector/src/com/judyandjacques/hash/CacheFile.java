@@ -0,0 +1,501 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Reads and writes cache files in either the ObjectOutputStream format of
+ * HashCreator.writeCache or the {@link CompactCacheCodec} format. The format
+ * is detected when reading.
+ */
+public class CacheFile {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Suffix of the file locked while a shared cache is merged and written
+	 */
+	public static final String LOCK_SUFFIX = ".lock";
+
+	// File locks are held by the whole JVM, so threads take turns here first
+	private static final Object SHARED_LOCK = new Object();
+
+	private CacheFile() {
+		// Static methods only
+	}
+
+	/**
+	 * Read a cache file in either format.
+	 * 
+	 * @param file
+	 *            to read
+	 * @param fileHashes
+	 *            the cached hashes are added to this
+	 * @return the hash algorithm the cache was written with
+	 * @throws HashException
+	 *             if the file is malformed
+	 */
+	public static String read(File file, Collection<FileHash> fileHashes)
+			throws HashException, IOException {
+		return read(file, collect(fileHashes));
+	}
+
+	/**
+	 * Read a cache file in either format, passing each hash to the visitor as
+	 * it is read.
+	 * 
+	 * @param file
+	 *            to read
+	 * @param visitor
+	 *            is passed the hash algorithm and then the cached hashes,
+	 *            reading stops if it returns false
+	 * @return the hash algorithm the cache was written with
+	 * @throws HashException
+	 *             if the file is malformed
+	 */
+	public static String read(File file, CacheVisitor visitor)
+			throws HashException, IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(
+				file), BUFFER_SIZE)) {
+			if (CompactCacheCodec.isCompact(in)) {
+				return CompactCacheCodec.read(in, visitor);
+			}
+			try (ObjectInputStream oInStream = new ObjectInputStream(in)) {
+				return HashCreator.readCache(oInStream, visitor);
+			}
+		}
+	}
+
+	/**
+	 * @param fileHashes
+	 *            to add to
+	 * @return a visitor that adds every hash it is passed to fileHashes
+	 */
+	static CacheVisitor collect(final Collection<FileHash> fileHashes) {
+		return new CacheVisitor() {
+			@Override
+			public void start(String hashAlgorithm) {
+				// Returned by the read
+			}
+
+			@Override
+			public boolean visit(FileHash fileHash) {
+				fileHashes.add(fileHash);
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Write a cache file. The file is written to a temporary file that is then
+	 * moved over the file, so a reader never sees a half written cache.
+	 * 
+	 * @param file
+	 *            to write
+	 * @param hashAlgorithm
+	 *            the hashes were created with
+	 * @param fileHashes
+	 *            to write
+	 * @param compact
+	 *            true for the compact format
+	 * @return number of hashes written
+	 */
+	public static int write(File file, String hashAlgorithm,
+			Collection<FileHash> fileHashes, boolean compact)
+			throws IOException {
+		// A unique name so concurrent writers never share a temporary file
+		File temp = File.createTempFile(file.getName() + ".", ".tmp", file
+				.getAbsoluteFile().getParentFile());
+		try {
+			int count;
+			try (OutputStream out = new BufferedOutputStream(
+					new FileOutputStream(temp), BUFFER_SIZE)) {
+				if (compact) {
+					count = CompactCacheCodec.write(out, hashAlgorithm,
+							fileHashes);
+				} else {
+					try (ObjectOutputStream oOutStream = new ObjectOutputStream(
+							out)) {
+						count = HashCreator.writeCache(oOutStream,
+								hashAlgorithm, fileHashes);
+					}
+				}
+			}
+			replace(temp, file);
+			return count;
+		} finally {
+			// Only still there if the write or the move failed
+			if (temp.exists()) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Write the hashCreator's cache to a file that other processes may also be
+	 * writing. While holding a lock on file + {@link #LOCK_SUFFIX} the file is
+	 * read again and merged with the cache, so hashes saved by another process
+	 * since this one loaded the file are kept:
+	 * <ul>
+	 * <li>paths in both use the entry for the newest version of the file,
+	 * this process's if they are as new</li>
+	 * <li>paths this process removed since it last wrote the file are removed
+	 * if the file is gone</li>
+	 * <li>other paths use the file's entry or the cache's</li>
+	 * </ul>
+	 * Readers do not need the lock because the file is replaced atomically.
+	 * If the file was written with a hash algorithm that cannot be promoted to
+	 * the hashCreator's its entries are dropped.
+	 * 
+	 * @param file
+	 *            to merge into
+	 * @param hashCreator
+	 *            whose cache is written
+	 * @param compact
+	 *            true for the compact format
+	 * @return number of hashes written
+	 * @throws HashException
+	 *             if the file is malformed
+	 */
+	public static int writeShared(File file, HashCreator hashCreator,
+			boolean compact) throws HashException, IOException {
+		return writeShared(file, hashCreator, compact, null);
+	}
+
+	/**
+	 * Like writeShared and then, still holding the lock, write a
+	 * {@link ReverseIndex} of the merged hashes so the index matches the
+	 * cache.
+	 * 
+	 * The merge is sorted by path within the cache's memory budget, or
+	 * {@link ExternalGrouper#DEFAULT_MEMORY_BUDGET} if it has none, spilling
+	 * to runs next to the file. The merged hashes are written as they come so
+	 * they are never all held in memory.
+	 * 
+	 * @param file
+	 *            to merge into
+	 * @param hashCreator
+	 *            whose cache is written
+	 * @param compact
+	 *            true for the compact format
+	 * @param index
+	 *            reverse index to write or null for none
+	 * @return number of hashes written
+	 * @throws HashException
+	 *             if the file is malformed
+	 */
+	public static int writeShared(File file, HashCreator hashCreator,
+			boolean compact, File index) throws HashException, IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("file cannot be null");
+		}
+		if (hashCreator == null) {
+			throw new IllegalArgumentException("hashCreator cannot be null");
+		}
+		File lockFile = new File(file.getPath() + LOCK_SUFFIX);
+		synchronized (SHARED_LOCK) {
+			try (RandomAccessFile lockAccess = new RandomAccessFile(lockFile,
+					"rw");
+					FileChannel channel = lockAccess.getChannel()) {
+				FileLock lock = channel.lock();
+				Set<String> removedPaths = hashCreator.takeRemovedPaths();
+				boolean written = false;
+				try {
+					int count = merge(file, hashCreator, compact, index,
+							removedPaths);
+					written = true;
+					return count;
+				} finally {
+					if (!written) {
+						hashCreator.restoreRemovedPaths(removedPaths);
+					}
+					lock.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merge the hashes in file with the hashCreator's cache and write them.
+	 * Both are sorted by path and then walked together, so each path is
+	 * decided when it comes up in either.
+	 * 
+	 * @param file
+	 *            to merge into, may not exist
+	 * @param hashCreator
+	 *            whose cache is merged
+	 * @param compact
+	 *            true for the compact format
+	 * @param index
+	 *            reverse index to write or null for none
+	 * @param removedPaths
+	 *            paths removed from the cache since it was last written
+	 * @return number of hashes written
+	 */
+	private static int merge(File file, final HashCreator hashCreator,
+			boolean compact, File index, Set<String> removedPaths)
+			throws HashException, IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		TieredCache tieredCache = hashCreator.getTieredCache();
+		long budget = (tieredCache == null ? ExternalGrouper
+				.DEFAULT_MEMORY_BUDGET : tieredCache.getMemoryBudget());
+		long sortBudget = Math.max(1, budget / (index == null ? 2 : 3));
+		try (FileHashSorter saved = new FileHashSorter(directory, sortBudget,
+				FileHashSorter.BY_PATH);
+				FileHashSorter ours = new FileHashSorter(directory,
+						sortBudget, FileHashSorter.BY_PATH);
+				ReverseIndex.Builder indexBuilder = (index == null ? null
+						: new ReverseIndex.Builder(index,
+								hashCreator.getHashAlgorithm(), sortBudget))) {
+			if (file.exists()) {
+				sortSaved(file, hashCreator, saved);
+			}
+			for (FileHash fileHash : hashCreator.getCachedHashes()) {
+				ours.add(fileHash);
+			}
+
+			File temp = File.createTempFile(file.getName() + ".", ".tmp",
+					directory);
+			try {
+				long count;
+				try (Writer writer = new Writer(temp,
+						hashCreator.getHashAlgorithm(), compact);
+						ExternalSorter.Cursor<FileHash> savedHashes = saved
+								.sorted();
+						ExternalSorter.Cursor<FileHash> ourHashes = ours
+								.sorted()) {
+					FileHash savedHash = savedHashes.next();
+					FileHash ourHash = ourHashes.next();
+					while ((savedHash != null) || (ourHash != null)) {
+						int order;
+						if (savedHash == null) {
+							order = 1;
+						} else if (ourHash == null) {
+							order = -1;
+						} else {
+							order = savedHash.getAbsolutePath().compareTo(
+									ourHash.getAbsolutePath());
+						}
+
+						FileHash kept;
+						if (order < 0) {
+							// Removed here, kept only if another process
+							// hashed it again
+							String path = savedHash.getAbsolutePath();
+							kept = ((!removedPaths.contains(path) || new File(
+									path).exists()) ? savedHash : null);
+							savedHash = savedHashes.next();
+						} else if (order > 0) {
+							kept = ourHash;
+							ourHash = ourHashes.next();
+						} else {
+							// The newer version of the file, ours if they are
+							// as new. An equal hash can have other hashes ours
+							// lacks.
+							if (savedHash.equals(ourHash)) {
+								kept = ourHash.withOtherHashesOf(savedHash);
+							} else if (savedHash.getLastModifiedMillis() >
+									ourHash.getLastModifiedMillis()) {
+								kept = savedHash;
+							} else {
+								kept = ourHash;
+							}
+							savedHash = savedHashes.next();
+							ourHash = ourHashes.next();
+						}
+
+						if (kept != null) {
+							writer.add(kept);
+							if (indexBuilder != null) {
+								indexBuilder.add(kept);
+							}
+						}
+					}
+					count = writer.finish();
+				}
+				replace(temp, file);
+				if (indexBuilder != null) {
+					indexBuilder.write();
+				}
+				return (int) count;
+			} finally {
+				// Only still there if the write or the move failed
+				if (temp.exists()) {
+					temp.delete();
+				}
+			}
+		}
+	}
+
+	// Read the file's hashes, promoted to the hashCreator's algorithm, into
+	// the sorter
+	private static void sortSaved(File file, final HashCreator hashCreator,
+			final FileHashSorter saved) throws HashException, IOException {
+		read(file, new CacheVisitor() {
+			private String savedHashAlgorithm;
+
+			@Override
+			public void start(String hashAlgorithm) {
+				savedHashAlgorithm = hashAlgorithm;
+			}
+
+			@Override
+			public boolean visit(FileHash fileHash) throws HashException {
+				FileHash promoted = hashCreator.promote(savedHashAlgorithm,
+						fileHash);
+				if (promoted != null) {
+					try {
+						saved.add(promoted);
+					} catch (IOException e) {
+						throw new HashException("Could not sort the cache", e);
+					}
+				}
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Writes hashes to a cache file as they come. The number of hashes is
+	 * only known at the end, so a placeholder is written in the header and
+	 * then written over.
+	 */
+	private static final class Writer implements Closeable {
+		// Objects written between resets, so the stream doesn't remember
+		// every hash
+		private static final int RESET_INTERVAL = 4096;
+
+		private final FileOutputStream fileOut;
+		private final OutputStream out;
+		private final CompactCacheCodec.Writer compactWriter;
+		private final ObjectOutputStream objectOut;
+		private final long countOffset;
+		private long count = 0;
+
+		Writer(File temp, String hashAlgorithm, boolean compact)
+				throws IOException {
+			fileOut = new FileOutputStream(temp);
+			try {
+				out = new BufferedOutputStream(fileOut, BUFFER_SIZE);
+				if (compact) {
+					compactWriter = new CompactCacheCodec.Writer(out,
+							hashAlgorithm, -1);
+					objectOut = null;
+					out.flush();
+					countOffset = fileOut.getChannel().position()
+							- CompactCacheCodec.COUNT_BYTES;
+				} else {
+					// The same header as HashCreator.writeCache. Flushing
+					// ends the block the count is in.
+					compactWriter = null;
+					objectOut = new ObjectOutputStream(out);
+					objectOut.writeUTF(hashAlgorithm);
+					objectOut.writeInt(0);
+					objectOut.flush();
+					countOffset = fileOut.getChannel().position() - 4;
+				}
+			} catch (IOException e) {
+				fileOut.close();
+				throw e;
+			}
+		}
+
+		void add(FileHash fileHash) throws IOException {
+			if (compactWriter != null) {
+				compactWriter.add(fileHash);
+			} else {
+				objectOut.writeObject(fileHash);
+				if ((count + 1) % RESET_INTERVAL == 0) {
+					objectOut.reset();
+				}
+			}
+			count++;
+		}
+
+		// Write the end and fill in the count
+		long finish() throws IOException {
+			ByteBuffer countBytes;
+			if (compactWriter != null) {
+				compactWriter.finish();
+				countBytes = ByteBuffer.wrap(CompactCacheCodec
+						.countBytes(count));
+			} else {
+				if (count > Integer.MAX_VALUE) {
+					throw new IOException("Too many hashes - " + count);
+				}
+				objectOut.flush();
+				countBytes = ByteBuffer.allocate(4).putInt(0, (int) count);
+			}
+			FileChannel channel = fileOut.getChannel();
+			long position = countOffset;
+			while (countBytes.hasRemaining()) {
+				position += channel.write(countBytes, position);
+			}
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (objectOut != null) {
+				objectOut.close();
+			} else {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Move temp over file, atomically if the file system allows it.
+	 * 
+	 * @param temp
+	 *            the new contents
+	 * @param file
+	 *            to replace
+	 */
+	static void replace(File temp, File file) throws IOException {
+		try {
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+/**
+ * Merges the hashes of a cache file into a HashCreator's cache as they are
+ * read. Hashes written with a different hash algorithm are promoted if they
+ * also have a full hash with the hash algorithm and left out if not.
+ */
+class CacheLoader implements CacheVisitor {
+
+	private final HashCreator hashCreator;
+	private String hashAlgorithm = null;
+
+	private int read = 0;
+	private int promoted = 0;
+	private int merged = 0;
+	private int identical = 0;
+
+	/**
+	 * @param hashCreator
+	 *            to merge the hashes into
+	 */
+	CacheLoader(HashCreator hashCreator) {
+		if (hashCreator == null) {
+			throw new IllegalArgumentException("hashCreator cannot be null");
+		}
+		this.hashCreator = hashCreator;
+	}
+
+	@Override
+	public void start(String savedHashAlgorithm) {
+		this.hashAlgorithm = savedHashAlgorithm;
+	}
+
+	@Override
+	public boolean visit(FileHash fileHash) {
+		read++;
+		FileHash promotedHash = hashCreator.promote(hashAlgorithm, fileHash);
+		if (promotedHash == null) {
+			return true;
+		}
+		promoted++;
+
+		// An equal hash can still bring other hashes the cache lacks
+		FileHash cached = hashCreator.getCachedHash(promotedHash
+				.getAbsolutePath());
+		if (hashCreator.mergeIntoCache(promotedHash)) {
+			merged++;
+		} else if (promotedHash.equals(cached)) {
+			identical++;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if there were hashes but none could be promoted
+	 */
+	boolean isRejected() {
+		return (read > 0) && (promoted == 0);
+	}
+
+	/**
+	 * Print how many hashes were promoted if the cache was written with
+	 * another hash algorithm and the hashCreator is verbose.
+	 */
+	void reportPromoted() {
+		if (hashCreator.isVerbose()
+				&& !hashCreator.getHashAlgorithm().equals(hashAlgorithm)) {
+			System.out.println("Promoted " + promoted + " of " + read
+					+ " hashes from " + hashAlgorithm + " to "
+					+ hashCreator.getHashAlgorithm());
+		}
+	}
+
+	/**
+	 * @return the hash algorithm the cache was written with
+	 */
+	String getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	/**
+	 * @return the number of hashes read
+	 */
+	int getRead() {
+		return read;
+	}
+
+	/**
+	 * @return the number of hashes with the hash algorithm or promoted to it
+	 */
+	int getPromoted() {
+		return promoted;
+	}
+
+	/**
+	 * @return the number of hashes added, that replaced an older hash or
+	 *         that added other hashes to an equal one
+	 */
+	int getMerged() {
+		return merged;
+	}
+
+	/**
+	 * @return the number of hashes that were already in the cache with all
+	 *         of their other hashes
+	 */
+	int getIdentical() {
+		return identical;
+	}
+}
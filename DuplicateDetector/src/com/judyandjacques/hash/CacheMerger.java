@@ -0,0 +1,317 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads several cache files at once and merges them into a HashCreator's
+ * cache. The files can be in either {@link CacheFile} format. The caches are
+ * read concurrently but merged in the order given so the result is always
+ * the same. The hashes are merged as they are read, so a reader only gets a
+ * few thousand hashes ahead of the merge and no cache is held in memory as a
+ * whole. The merge rules are:
+ * 
+ * - Hashes written with a different hash algorithm are promoted if they also
+ * have a full hash with the hash algorithm and rejected if not. A cache with
+ * none that can be promoted is rejected.
+ * 
+ * - When there is more than one hash for a file the hash with the newest
+ * lastModified wins. If they are as new the one merged first wins.
+ * 
+ * - Identical hashes are only kept once.
+ */
+public class CacheMerger {
+
+	// Loads caches into this
+	private final HashCreator hashCreator;
+
+	// Caches to read at once
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	private int cachesLoaded = 0;
+	private int cachesRejected = 0;
+	private int entriesRead = 0;
+	private int entriesRejected = 0;
+	private int entriesMerged = 0;
+	private int entriesIdentical = 0;
+
+	// Hashes handed from a reader to the merge at a time and the number of
+	// hand offs a reader can get ahead by
+	private static final int CHUNK_SIZE = 1024;
+	private static final int CHUNKS_AHEAD = 4;
+
+	/**
+	 * A cache file being read. The hashes are queued in chunks as they are
+	 * read and an empty chunk ends the queue.
+	 */
+	private static class ReadCache implements CacheVisitor {
+		private final File file;
+		private final BlockingQueue<List<FileHash>> chunks = new ArrayBlockingQueue<>(
+				CHUNKS_AHEAD);
+		private volatile String hashAlgorithm;
+		private List<FileHash> chunk = new ArrayList<>();
+
+		ReadCache(File file) {
+			this.file = file;
+		}
+
+		// Read the file, always ending the queue
+		void read() throws HashException, IOException {
+			try {
+				CacheFile.read(file, this);
+			} finally {
+				try {
+					if (!chunk.isEmpty()) {
+						chunks.put(chunk);
+					}
+					chunks.put(new ArrayList<FileHash>());
+				} catch (InterruptedException e) {
+					// The merge has stopped
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		@Override
+		public void start(String savedHashAlgorithm) {
+			this.hashAlgorithm = savedHashAlgorithm;
+		}
+
+		@Override
+		public boolean visit(FileHash fileHash) throws HashException {
+			chunk.add(fileHash);
+			if (chunk.size() >= CHUNK_SIZE) {
+				try {
+					chunks.put(chunk);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new HashException("Interrupted while reading cache",
+							e);
+				}
+				chunk = new ArrayList<>();
+			}
+			return true;
+		}
+
+		// The next chunk, empty at the end
+		List<FileHash> take() throws HashException {
+			try {
+				return chunks.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new HashException("Interrupted while loading caches", e);
+			}
+		}
+	}
+
+	/**
+	 * @param hashCreator
+	 *            to merge the caches into. The caches must have been written
+	 *            with its hash algorithm or have it as an extra algorithm.
+	 */
+	public CacheMerger(HashCreator hashCreator) {
+		if (hashCreator == null) {
+			throw new IllegalArgumentException("hashCreator cannot be null");
+		}
+		this.hashCreator = hashCreator;
+	}
+
+	/**
+	 * Read the cache files concurrently and merge them. Files that do not
+	 * exist are skipped.
+	 * 
+	 * @param caches
+	 *            cache files written by HashCreator.writeCache
+	 * @return number of caches merged
+	 * @throws HashException
+	 *             if a cache is malformed
+	 */
+	public int load(List<File> caches) throws HashException, IOException {
+		if (caches == null) {
+			throw new IllegalArgumentException("caches cannot be null");
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(threads, caches.size())));
+		try {
+			// Started in the order given so a cache is always being read when
+			// the merge reaches it
+			List<ReadCache> reads = new ArrayList<>();
+			List<Future<Void>> futures = new ArrayList<>();
+			for (File file : caches) {
+				if (!file.exists()) {
+					continue;
+				}
+				final ReadCache readCache = new ReadCache(file);
+				reads.add(readCache);
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						readCache.read();
+						return null;
+					}
+				}));
+			}
+
+			// Merge in the order given, not the order they finish
+			int merged = 0;
+			for (int i = 0; i < reads.size(); i++) {
+				boolean loaded = merge(reads.get(i));
+				get(futures.get(i));
+				if (loaded) {
+					merged++;
+				}
+			}
+			return merged;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	// Wait for the future and unwrap its exception
+	private static void get(Future<Void> future) throws HashException,
+			IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HashException("Interrupted while loading caches", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof HashException) {
+				throw (HashException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new HashException("Could not load cache", e);
+		}
+	}
+
+	// Merge a cache as it is read. Return false if it was rejected. None of
+	// its hashes were merged then since none could be promoted.
+	private boolean merge(ReadCache readCache) throws HashException {
+		CacheLoader loader = new CacheLoader(hashCreator);
+		boolean started = false;
+		while (true) {
+			List<FileHash> chunk = readCache.take();
+			if (chunk.isEmpty()) {
+				break;
+			}
+			if (!started) {
+				// Set before the first chunk was queued
+				loader.start(readCache.hashAlgorithm);
+				started = true;
+			}
+			for (FileHash fileHash : chunk) {
+				loader.visit(fileHash);
+			}
+		}
+		entriesRead += loader.getRead();
+		entriesMerged += loader.getMerged();
+		entriesIdentical += loader.getIdentical();
+		if (loader.isRejected()) {
+			if (hashCreator.isVerbose()) {
+				System.out.println("Rejected cache " + readCache.file
+						+ " written with " + readCache.hashAlgorithm);
+			}
+			cachesRejected++;
+			entriesRejected += loader.getRead();
+			return false;
+		}
+
+		// Hashes that could not be promoted to the hash algorithm
+		entriesRejected += loader.getRead() - loader.getPromoted();
+		loader.reportPromoted();
+		cachesLoaded++;
+		return true;
+	}
+
+	/**
+	 * @return the number of caches read at once
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads
+	 *            the number of caches read at once
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * @return the number of caches merged
+	 */
+	public int getCachesLoaded() {
+		return cachesLoaded;
+	}
+
+	/**
+	 * @return the number of caches rejected because of their hash algorithm
+	 */
+	public int getCachesRejected() {
+		return cachesRejected;
+	}
+
+	/**
+	 * @return the number of cache entries read
+	 */
+	public int getEntriesRead() {
+		return entriesRead;
+	}
+
+	/**
+	 * @return the number of cache entries rejected because of their hash
+	 *         algorithm
+	 */
+	public int getEntriesRejected() {
+		return entriesRejected;
+	}
+
+	/**
+	 * @return the number of cache entries added or that replaced an older
+	 *         entry
+	 */
+	public int getEntriesMerged() {
+		return entriesMerged;
+	}
+
+	/**
+	 * @return the number of cache entries that were already in the cache
+	 */
+	public int getEntriesIdentical() {
+		return entriesIdentical;
+	}
+}
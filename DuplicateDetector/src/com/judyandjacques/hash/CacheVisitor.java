@@ -0,0 +1,36 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+/**
+ * Receives the hashes of a cache file as they are read, so the cache is never
+ * held in memory as a whole.
+ */
+public interface CacheVisitor extends FileHashVisitor {
+
+	/**
+	 * Called once before any hash is visited.
+	 * 
+	 * @param hashAlgorithm
+	 *            the cache was written with
+	 * @throws HashException
+	 *             to stop reading with an error
+	 */
+	void start(String hashAlgorithm) throws HashException;
+}
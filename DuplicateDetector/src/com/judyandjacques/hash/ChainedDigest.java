@@ -0,0 +1,205 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Hashes files as a chain of blocks so a file that has only grown can be
+ * rehashed by reading the appended bytes. Each complete block is hashed
+ * together with the chain so far and the result is the new chain. The content
+ * hash is the hash of the chain, the partial block at the end and the length.
+ * 
+ * The hashes are not the same as the plain digest of the file so chained
+ * hashing has its own algorithm name, the digest name plus "+CHAIN". It works
+ * with any digest because the chain is saved as bytes rather than by cloning
+ * the MessageDigest.
+ * 
+ * Appends are detected by the length growing. The last complete block is
+ * read again and checked against the saved chain before the old hash is
+ * trusted, changes earlier in the file are not detected.
+ */
+final class ChainedDigest {
+
+	static final String SUFFIX = "+CHAIN";
+
+	// Bytes in each block of the chain
+	static final int BLOCK_SIZE = 1024 * 1024;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private ChainedDigest() {
+		// Static methods only
+	}
+
+	/**
+	 * @param algorithm
+	 *            hash algorithm name
+	 * @return true if the algorithm is a chained digest
+	 */
+	static boolean isChained(String algorithm) {
+		return algorithm.endsWith(SUFFIX);
+	}
+
+	/**
+	 * @param algorithm
+	 *            hash algorithm name, chained or not
+	 * @return the message digest used by the algorithm
+	 */
+	static MessageDigest getDigest(String algorithm)
+			throws NoSuchAlgorithmException {
+		if (isChained(algorithm)) {
+			algorithm = algorithm.substring(0, algorithm.length()
+					- SUFFIX.length());
+		}
+		return MessageDigest.getInstance(algorithm);
+	}
+
+	/**
+	 * Hash the whole file.
+	 * 
+	 * @param file
+	 *            to hash
+	 * @param messageDigest
+	 *            to hash with
+	 * @param throttle
+	 *            to limit the reads or null for no limit
+	 * @return the hash and append state of the file
+	 */
+	static FileHash hash(File file, MessageDigest messageDigest,
+			IoThrottle throttle) throws IOException {
+		return hash(file, messageDigest, throttle, new AppendState(0, EMPTY,
+				EMPTY));
+	}
+
+	/**
+	 * Hash the bytes appended to the file since the previous hash.
+	 * 
+	 * @param file
+	 *            to hash
+	 * @param messageDigest
+	 *            to hash with
+	 * @param throttle
+	 *            to limit the reads or null for no limit
+	 * @param previous
+	 *            the old hash of the file
+	 * @return the hash and append state of the file or null if the file has
+	 *         not only grown and must be hashed again
+	 */
+	static FileHash resume(File file, MessageDigest messageDigest,
+			IoThrottle throttle, FileHash previous) throws IOException {
+		AppendState state = previous.getAppendState();
+		if ((state == null) || (state.getChainedLength() == 0)
+				|| (file.length() <= previous.getLength())) {
+			return null;
+		}
+
+		// Check the last complete block still gives the saved chain
+		long blockStart = state.getChainedLength() - BLOCK_SIZE;
+		if (throttle != null) {
+			throttle.acquireFile();
+		}
+		messageDigest.reset();
+		messageDigest.update(state.getPreviousState());
+		try (SeekableByteChannel channel = Files.newByteChannel(file
+				.toPath());
+				InputStream inputStream = Channels.newInputStream(channel
+						.position(blockStart))) {
+			byte[] buffer = new byte[8192];
+			long remaining = BLOCK_SIZE;
+			while (remaining > 0) {
+				int read = inputStream.read(buffer, 0,
+						(int) Math.min(buffer.length, remaining));
+				if (read == -1) {
+					return null;
+				}
+				if (throttle != null) {
+					throttle.acquireBytes(read);
+				}
+				messageDigest.update(buffer, 0, read);
+				remaining -= read;
+			}
+		}
+		if (!Arrays.equals(messageDigest.digest(), state.getState())) {
+			return null;
+		}
+		return hash(file, messageDigest, throttle, state);
+	}
+
+	// Continue the chain from the state to the end of the file
+	private static FileHash hash(File file, MessageDigest messageDigest,
+			IoThrottle throttle, AppendState from) throws IOException {
+		if (!file.exists()) {
+			throw new FileNotFoundException("File does not exist - " + file);
+		}
+		if (throttle != null) {
+			throttle.acquireFile();
+		}
+
+		long length = from.getChainedLength();
+		byte[] state = from.getState();
+		byte[] previousState = from.getPreviousState();
+
+		messageDigest.reset();
+		messageDigest.update(state);
+		try (SeekableByteChannel channel = Files.newByteChannel(file
+				.toPath());
+				InputStream inputStream = OverlappedInputStream.wrap(
+						Channels.newInputStream(channel.position(length)),
+						channel.size() - length)) {
+			byte[] buffer = new byte[8192];
+			int inBlock = 0;
+			int read;
+			while ((read = inputStream.read(buffer, 0,
+					Math.min(buffer.length, BLOCK_SIZE - inBlock))) != -1) {
+				if (throttle != null) {
+					throttle.acquireBytes(read);
+				}
+				messageDigest.update(buffer, 0, read);
+				length += read;
+				inBlock += read;
+				if (inBlock == BLOCK_SIZE) {
+					// Complete block, it becomes the chain
+					previousState = state;
+					state = messageDigest.digest();
+					messageDigest.update(state);
+					inBlock = 0;
+				}
+			}
+		}
+
+		// The length keeps a partial block from looking like a chain
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			messageDigest.update((byte) (length >>> shift));
+		}
+		ContentHash contentHash = new ContentHash(messageDigest.digest());
+		AppendState appendState = new AppendState(length
+				- (length % BLOCK_SIZE), state, previousState);
+		return new FileHash(file, contentHash, appendState);
+	}
+}
@@ -0,0 +1,354 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Saves the progress of a scan so it can be resumed if the process is
+ * stopped. Newly created hashes are appended to a journal every so many
+ * files or seconds. With them the checkpoint records which root directories
+ * are finished and the paths still waiting to be processed (the frontier) in
+ * the root being scanned.
+ * 
+ * When resumed, the journal is merged into the cache and a root that was
+ * started continues from its frontier. The files that were already processed
+ * are taken from the cache after checking they haven't changed.
+ * 
+ * The checkpoint is made of two files, the state file and the state file name
+ * plus ".journal". Only one create should use a checkpoint at a time.
+ */
+public class Checkpoint {
+
+	public static final int DEFAULT_EVERY_FILES = 1000;
+	public static final long DEFAULT_EVERY_MILLIS = 60 * 1000;
+
+	private static final String JOURNAL_SUFFIX = ".journal";
+
+	private final File stateFile;
+	private final File journalFile;
+
+	private int everyFiles = DEFAULT_EVERY_FILES;
+	private long everyMillis = DEFAULT_EVERY_MILLIS;
+
+	// Roots that were finished, in this run or the one being resumed
+	private final Set<String> finishedRoots = new LinkedHashSet<>();
+
+	// Frontiers of unfinished roots from the run being resumed
+	private final Map<String, List<String>> resumeFrontiers = new HashMap<>();
+
+	// Root being scanned and what is left to process in it
+	private String currentRoot = null;
+	private Collection<Path> currentFrontier = null;
+
+	// Hashes created since the last save
+	private final List<FileHash> pending = new ArrayList<>();
+
+	private long journalLength = 0;
+	private long lastSaveMillis = System.currentTimeMillis();
+
+	private String hashAlgorithm = null;
+
+	/**
+	 * @param stateFile
+	 *            where to save the checkpoint, the journal is saved next to it
+	 */
+	public Checkpoint(File stateFile) {
+		if (stateFile == null) {
+			throw new IllegalArgumentException("stateFile cannot be null");
+		}
+		this.stateFile = stateFile;
+		this.journalFile = new File(stateFile.getPath() + JOURNAL_SUFFIX);
+	}
+
+	/**
+	 * @return true if there is a saved checkpoint
+	 */
+	public boolean exists() {
+		return stateFile.exists();
+	}
+
+	/**
+	 * Load a saved checkpoint. The hashes in the journal are merged into the
+	 * hashCreator's cache and count as modifications so they are saved with
+	 * the cache. Later checkpoints add to the saved one.
+	 * 
+	 * @param hashCreator
+	 *            to load the hashes into
+	 * @return number of hashes loaded from the journal
+	 * @throws HashException
+	 *             if the checkpoint is malformed or was created with a
+	 *             different hash algorithm
+	 */
+	public synchronized int resume(HashCreator hashCreator)
+			throws HashException, IOException {
+		if (hashCreator == null) {
+			throw new IllegalArgumentException("hashCreator cannot be null");
+		}
+		try (InputStream fis = new FileInputStream(stateFile);
+				ObjectInputStream in = new ObjectInputStream(fis)) {
+			String savedHashAlgorithm = in.readUTF();
+			if (!savedHashAlgorithm.equals(hashCreator.getHashAlgorithm())) {
+				throw new HashException(stateFile,
+						"The checkpoint was written with " + savedHashAlgorithm
+								+ " but the hash algorithm is "
+								+ hashCreator.getHashAlgorithm());
+			}
+			journalLength = in.readLong();
+			int finished = in.readInt();
+			for (int i = 0; i < finished; i++) {
+				finishedRoots.add(in.readUTF());
+			}
+			if (in.readBoolean()) {
+				String root = in.readUTF();
+				int size = in.readInt();
+				List<String> frontier = new ArrayList<>(size);
+				for (int i = 0; i < size; i++) {
+					frontier.add(in.readUTF());
+				}
+				resumeFrontiers.put(root, frontier);
+			}
+		}
+
+		// Only read what the state says was completely written
+		List<FileHash> hashes = new ArrayList<>();
+		if (journalLength > 0) {
+			try (InputStream fis = new FileInputStream(journalFile);
+					DataInputStream in = new DataInputStream(fis)) {
+				long read = 0;
+				while (read < journalLength) {
+					int length = in.readInt();
+					byte[] chunk = new byte[length];
+					in.readFully(chunk);
+					read += 4 + length;
+					try (ObjectInputStream oInStream = new ObjectInputStream(
+							new ByteArrayInputStream(chunk))) {
+						HashCreator.readCache(oInStream, hashes);
+					}
+				}
+			} catch (EOFException e) {
+				throw new HashException(journalFile,
+						"The checkpoint journal is short", e);
+			}
+		}
+		for (FileHash fileHash : hashes) {
+			hashCreator.resumed(fileHash);
+		}
+		return hashes.size();
+	}
+
+	/**
+	 * Remove the checkpoint files, the scan has finished or is starting over.
+	 */
+	public synchronized void delete() throws IOException {
+		if (stateFile.exists() && !stateFile.delete()) {
+			throw new IOException("Could not delete checkpoint - " + stateFile);
+		}
+		if (journalFile.exists() && !journalFile.delete()) {
+			throw new IOException("Could not delete checkpoint - "
+					+ journalFile);
+		}
+		journalLength = 0;
+	}
+
+	/**
+	 * @param root
+	 *            absolute path of a root directory
+	 * @return true if the root was finished in the run being resumed
+	 */
+	synchronized boolean isFinished(String root) {
+		return finishedRoots.contains(root);
+	}
+
+	/**
+	 * @param root
+	 *            absolute path of a root directory
+	 * @return the paths, relative to the root, that were left to process or
+	 *         null if the root was not started
+	 */
+	synchronized List<String> getFrontier(String root) {
+		return resumeFrontiers.get(root);
+	}
+
+	/**
+	 * Start scanning a root directory.
+	 * 
+	 * @param root
+	 *            absolute path of the root directory
+	 * @param frontier
+	 *            the paths to process, kept up to date by the caller
+	 * @param algorithm
+	 *            hash algorithm used by the scan
+	 */
+	synchronized void started(String root, Collection<Path> frontier,
+			String algorithm) {
+		currentRoot = root;
+		currentFrontier = frontier;
+		hashAlgorithm = algorithm;
+	}
+
+	/**
+	 * A hash was created. Saves the checkpoint if enough files or time have
+	 * gone by.
+	 * 
+	 * @param fileHash
+	 *            the new hash
+	 */
+	synchronized void hashed(FileHash fileHash) throws IOException {
+		pending.add(fileHash);
+		if ((pending.size() >= everyFiles)
+				|| (System.currentTimeMillis() - lastSaveMillis >= everyMillis)) {
+			save();
+		}
+	}
+
+	/**
+	 * The root directory has been completely processed.
+	 * 
+	 * @param root
+	 *            absolute path of the root directory
+	 */
+	synchronized void finished(String root) throws IOException {
+		finishedRoots.add(root);
+		resumeFrontiers.remove(root);
+		currentRoot = null;
+		currentFrontier = null;
+		save();
+	}
+
+	/**
+	 * Append the pending hashes to the journal and then write the state. The
+	 * state is written last so it never refers to a partly written journal.
+	 */
+	public synchronized void save() throws IOException {
+		if (hashAlgorithm == null) {
+			// Nothing started
+			return;
+		}
+		if (!pending.isEmpty()) {
+			ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+			try (ObjectOutputStream oOutStream = new ObjectOutputStream(chunk)) {
+				HashCreator.writeCache(oOutStream, hashAlgorithm, pending);
+			}
+			try (FileOutputStream fos = new FileOutputStream(journalFile, true)) {
+				// Throw away anything after the last complete chunk
+				fos.getChannel().truncate(journalLength);
+				byte[] length = new byte[] { (byte) (chunk.size() >>> 24),
+						(byte) (chunk.size() >>> 16),
+						(byte) (chunk.size() >>> 8), (byte) chunk.size() };
+				fos.write(length);
+				chunk.writeTo(fos);
+				fos.getFD().sync();
+			}
+			journalLength += 4 + chunk.size();
+			pending.clear();
+		}
+
+		File temp = new File(stateFile.getPath() + ".tmp");
+		try (OutputStream fos = new FileOutputStream(temp);
+				ObjectOutputStream out = new ObjectOutputStream(fos)) {
+			out.writeUTF(hashAlgorithm);
+			out.writeLong(journalLength);
+			out.writeInt(finishedRoots.size());
+			for (String root : finishedRoots) {
+				out.writeUTF(root);
+			}
+			out.writeBoolean(currentRoot != null);
+			if (currentRoot != null) {
+				out.writeUTF(currentRoot);
+				// Relative to the root so the scan can be resumed from
+				// another working directory
+				Path root = Paths.get(currentRoot);
+				List<Path> frontier = new ArrayList<>(currentFrontier);
+				out.writeInt(frontier.size());
+				for (Path path : frontier) {
+					out.writeUTF(root.relativize(path.toAbsolutePath())
+							.toString());
+				}
+			}
+		}
+		CacheFile.replace(temp, stateFile);
+		lastSaveMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the roots finished so far
+	 */
+	public synchronized Set<String> getFinishedRoots() {
+		return Collections.unmodifiableSet(new LinkedHashSet<>(finishedRoots));
+	}
+
+	/**
+	 * @return the number of new hashes between saves
+	 */
+	public int getEveryFiles() {
+		return everyFiles;
+	}
+
+	/**
+	 * @param everyFiles
+	 *            the number of new hashes between saves
+	 */
+	public void setEveryFiles(int everyFiles) {
+		if (everyFiles < 1) {
+			throw new IllegalArgumentException("everyFiles must be at least 1");
+		}
+		this.everyFiles = everyFiles;
+	}
+
+	/**
+	 * @return the most milliseconds between saves
+	 */
+	public long getEveryMillis() {
+		return everyMillis;
+	}
+
+	/**
+	 * @param everyMillis
+	 *            the most milliseconds between saves
+	 */
+	public void setEveryMillis(long everyMillis) {
+		if (everyMillis < 1) {
+			throw new IllegalArgumentException(
+					"everyMillis must be at least 1");
+		}
+		this.everyMillis = everyMillis;
+	}
+}
@@ -0,0 +1,596 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes caches in a compact format. The entries are sorted by path
+ * and each path only stores what differs from the path before it (front
+ * coding). Numbers are written as varints. The entries are written in blocks
+ * that are compressed separately so a reader only holds one block at a time.
+ * 
+ * Format: magic, version, hash algorithm (UTF), entry count, then blocks of
+ * (entry count, length, compressed length, compressed entries) ending with a
+ * block with 0 entries. The first entry count can be padded with continued
+ * zero groups so it can be filled in after the blocks are written. Each
+ * entry is (shared prefix length, suffix length, suffix, length,
+ * lastModified, digest length, digest, flags). Paths are UTF-8. The
+ * SAMPLED and FINGERPRINT flags give the digest's strength, FULL if neither. When
+ * the APPEND_STATE flag is set the entry is followed by (chained length, state
+ * length, state, previous state length, previous state). When the
+ * OTHER_HASHES flag is set that is followed by (count, then for each hash the
+ * algorithm length, algorithm, digest length, digest).
+ */
+public class CompactCacheCodec {
+
+	// "CDFC" - never the start of an ObjectOutputStream (0xACED)
+	static final byte[] MAGIC = { 'C', 'D', 'F', 'C' };
+	static final int VERSION = 1;
+
+	// Entries in each compressed block
+	static final int BLOCK_SIZE = 4096;
+
+	// Most bytes a block can take, compressed or not, so a malformed length
+	// can't make a reader allocate more
+	static final int MAX_BLOCK_LENGTH = 64 * 1024 * 1024;
+
+	// Bytes of a padded entry count, enough for any count below 2^63
+	static final int COUNT_BYTES = 9;
+
+	// Entry flags
+	static final int APPEND_STATE = 0x01;
+	static final int SAMPLED = 0x02;
+	static final int OTHER_HASHES = 0x04;
+	static final int FINGERPRINT = 0x08;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private CompactCacheCodec() {
+		// Static methods only
+	}
+
+	/**
+	 * Determine if the stream holds a compact cache. The stream must support
+	 * mark and is left where it was.
+	 * 
+	 * @param inputStream
+	 *            to check
+	 * @return true if the stream starts with the compact cache magic
+	 */
+	public static boolean isCompact(InputStream inputStream)
+			throws IOException {
+		if (!inputStream.markSupported()) {
+			throw new IllegalArgumentException(
+					"inputStream must support mark");
+		}
+		inputStream.mark(MAGIC.length);
+		try {
+			byte[] start = new byte[MAGIC.length];
+			int read = 0;
+			while (read < start.length) {
+				int count = inputStream.read(start, read, start.length - read);
+				if (count == -1) {
+					return false;
+				}
+				read += count;
+			}
+			return Arrays.equals(start, MAGIC);
+		} finally {
+			inputStream.reset();
+		}
+	}
+
+	/**
+	 * Write the hashes in the compact format.
+	 * 
+	 * @param outputStream
+	 *            to write to, not closed
+	 * @param hashAlgorithm
+	 *            the hashes were created with
+	 * @param fileHashes
+	 *            to write
+	 * @return number of hashes written
+	 */
+	public static int write(OutputStream outputStream, String hashAlgorithm,
+			Collection<FileHash> fileHashes) throws IOException {
+		List<FileHash> sorted = new ArrayList<>(fileHashes);
+		Collections.sort(sorted, FileHashSorter.BY_PATH);
+
+		Writer writer = new Writer(outputStream, hashAlgorithm, sorted.size());
+		for (FileHash fileHash : sorted) {
+			writer.add(fileHash);
+		}
+		return (int) writer.finish();
+	}
+
+	/**
+	 * Writes the hashes a block at a time as they are added. When the count
+	 * isn't known up front the header holds a placeholder COUNT_BYTES long
+	 * that is written over with {@link #countBytes} once the hashes are
+	 * written.
+	 */
+	static final class Writer {
+		private final DataOutputStream out;
+		private final ByteArrayOutputStream block;
+		private final ByteArrayOutputStream compressed;
+		private byte[] previous = new byte[0];
+		private int entries = 0;
+		private long count = 0;
+
+		/**
+		 * Write the header.
+		 * 
+		 * @param outputStream
+		 *            to write to, not closed
+		 * @param hashAlgorithm
+		 *            the hashes were created with
+		 * @param expected
+		 *            number of hashes that will be added or -1 to write the
+		 *            placeholder
+		 */
+		Writer(OutputStream outputStream, String hashAlgorithm, long expected)
+				throws IOException {
+			out = new DataOutputStream(outputStream);
+			block = new ByteArrayOutputStream();
+			compressed = new ByteArrayOutputStream();
+			out.write(MAGIC);
+			out.writeByte(VERSION);
+			out.writeUTF(hashAlgorithm);
+			if (expected < 0) {
+				out.write(countBytes(0));
+			} else {
+				writeVarLong(out, expected);
+			}
+		}
+
+		/**
+		 * @param fileHash
+		 *            to write, best added in path order
+		 */
+		void add(FileHash fileHash) throws IOException {
+			previous = writeEntry(block, previous, fileHash);
+			entries++;
+			count++;
+			if ((entries == BLOCK_SIZE)
+					|| (block.size() >= MAX_BLOCK_LENGTH / 2)) {
+				writeBlock();
+			}
+		}
+
+		/**
+		 * Write the last block and the end of the blocks.
+		 * 
+		 * @return number of hashes written
+		 */
+		long finish() throws IOException {
+			writeBlock();
+			writeVarLong(out, 0);
+			out.flush();
+			return count;
+		}
+
+		private void writeBlock() throws IOException {
+			if (entries == 0) {
+				return;
+			}
+			compressed.reset();
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try (DeflaterOutputStream deflate = new DeflaterOutputStream(
+					compressed, deflater)) {
+				block.writeTo(deflate);
+			} finally {
+				deflater.end();
+			}
+
+			writeVarLong(out, entries);
+			writeVarLong(out, block.size());
+			writeVarLong(out, compressed.size());
+			compressed.writeTo(out);
+			block.reset();
+			previous = new byte[0];
+			entries = 0;
+		}
+	}
+
+	/**
+	 * The entry count as a varint padded to COUNT_BYTES, which any reader
+	 * reads the same as the short form.
+	 * 
+	 * @param count
+	 *            of entries
+	 * @return the bytes to write over the placeholder
+	 */
+	static byte[] countBytes(long count) {
+		byte[] bytes = new byte[COUNT_BYTES];
+		long remaining = count;
+		for (int i = 0; i < bytes.length - 1; i++) {
+			bytes[i] = (byte) ((remaining & 0x7F) | 0x80);
+			remaining >>>= 7;
+		}
+		bytes[bytes.length - 1] = (byte) remaining;
+		return bytes;
+	}
+
+	/**
+	 * Read all of the hashes written by write.
+	 * 
+	 * @param inputStream
+	 *            to read from, not closed
+	 * @param fileHashes
+	 *            the hashes are added to this
+	 * @return the hash algorithm the hashes were created with
+	 * @throws HashException
+	 *             if the stream is malformed
+	 */
+	public static String read(InputStream inputStream,
+			Collection<FileHash> fileHashes) throws HashException, IOException {
+		return read(inputStream, CacheFile.collect(fileHashes));
+	}
+
+	/**
+	 * Read hashes written by write, passing each hash to the visitor as it is
+	 * read. Only one decompressed block is held at a time.
+	 * 
+	 * @param inputStream
+	 *            to read from, not closed
+	 * @param visitor
+	 *            is passed the hash algorithm and then the hashes, reading
+	 *            stops if it returns false
+	 * @return the hash algorithm the hashes were created with
+	 * @throws HashException
+	 *             if the stream is malformed
+	 */
+	public static String read(InputStream inputStream, CacheVisitor visitor)
+			throws HashException, IOException {
+		DataInputStream in = new DataInputStream(inputStream);
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new HashException("Not a compact cache.  Stream is malformed");
+		}
+		int version = in.readUnsignedByte();
+		if (version != VERSION) {
+			throw new HashException("Unknown compact cache version "
+					+ version);
+		}
+		String hashAlgorithm = in.readUTF();
+		long count = readVarLong(in);
+		visitor.start(hashAlgorithm);
+
+		long read = 0;
+		byte[] compressed = new byte[0];
+		byte[] block = new byte[0];
+		Inflater inflater = new Inflater();
+		try {
+			for (long entries = readVarLong(in); entries > 0; entries = readVarLong(in)) {
+				int blockLength = readBlockLength(in);
+				int compressedLength = readBlockLength(in);
+				if (compressed.length < compressedLength) {
+					compressed = new byte[compressedLength];
+				}
+				in.readFully(compressed, 0, compressedLength);
+				if (block.length < blockLength) {
+					block = new byte[blockLength];
+				}
+				inflater.reset();
+				inflater.setInput(compressed, 0, compressedLength);
+				try {
+					if (inflater.inflate(block, 0, blockLength) != blockLength) {
+						throw new HashException(
+								"Block is short.  Stream is malformed");
+					}
+				} catch (DataFormatException e) {
+					throw new HashException("Stream is malformed", e);
+				}
+
+				if (!readBlock(new BlockReader(block, blockLength), entries,
+						visitor)) {
+					return hashAlgorithm;
+				}
+				read += entries;
+			}
+		} finally {
+			inflater.end();
+		}
+		if (read != count) {
+			throw new HashException("Read " + read + " entries of " + count
+					+ ".  Stream is malformed");
+		}
+		return hashAlgorithm;
+	}
+
+	// Read a block length, checked before anything is allocated for it
+	private static int readBlockLength(InputStream in) throws HashException,
+			IOException {
+		long length = readVarLong(in);
+		if ((length < 0) || (length > MAX_BLOCK_LENGTH)) {
+			throw new HashException("Block length " + length
+					+ ".  Stream is malformed");
+		}
+		return (int) length;
+	}
+
+	// Write one entry, front coded against the previous path. Returns the
+	// path.
+	private static byte[] writeEntry(OutputStream out, byte[] previous,
+			FileHash fileHash) throws IOException {
+		byte[] path = fileHash.getAbsolutePath().getBytes(UTF8);
+		int shared = sharedPrefix(previous, path);
+		writeVarLong(out, shared);
+		writeVarLong(out, path.length - shared);
+		out.write(path, shared, path.length - shared);
+		writeVarLong(out, fileHash.getLength());
+		writeVarLong(out, zigZag(fileHash.getLastModifiedMillis()));
+		byte[] digest = fileHash.getContentHash().getDigest();
+		writeVarLong(out, digest.length);
+		out.write(digest);
+
+		AppendState appendState = fileHash.getAppendState();
+		Map<String, ContentHash> otherHashes = fileHash.getOtherHashes();
+		int flags = 0;
+		switch (fileHash.getContentHash().getStrength()) {
+		case SAMPLED:
+			flags = SAMPLED;
+			break;
+		case FINGERPRINT:
+			flags = FINGERPRINT;
+			break;
+		default:
+			break;
+		}
+		if (appendState != null) {
+			flags |= APPEND_STATE;
+		}
+		if (!otherHashes.isEmpty()) {
+			flags |= OTHER_HASHES;
+		}
+		out.write(flags);
+		if (appendState != null) {
+			writeVarLong(out, appendState.getChainedLength());
+			writeVarLong(out, appendState.getState().length);
+			out.write(appendState.getState());
+			writeVarLong(out, appendState.getPreviousState().length);
+			out.write(appendState.getPreviousState());
+		}
+		if (!otherHashes.isEmpty()) {
+			writeVarLong(out, otherHashes.size());
+			for (Map.Entry<String, ContentHash> other : otherHashes.entrySet()) {
+				byte[] algorithm = other.getKey().getBytes(UTF8);
+				writeVarLong(out, algorithm.length);
+				out.write(algorithm);
+				byte[] otherDigest = other.getValue().getDigest();
+				writeVarLong(out, otherDigest.length);
+				out.write(otherDigest);
+			}
+		}
+		return path;
+	}
+
+	// Read the entries of a decompressed block, false if the visitor stopped
+	private static boolean readBlock(BlockReader block, long entries,
+			CacheVisitor visitor) throws HashException {
+		for (long i = 0; i < entries; i++) {
+			if (!visitor.visit(readEntry(block))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Read one entry, front coded against the block's previous path
+	private static FileHash readEntry(BlockReader block) throws HashException {
+		byte[] previous = block.previous;
+		int shared = (int) block.readVarLong();
+		int suffixLength = (int) block.readVarLong();
+		if ((shared < 0) || (shared > previous.length) || (suffixLength < 0)
+				|| (suffixLength > block.remaining())) {
+			throw new HashException("Bad path prefix.  Stream is malformed");
+		}
+		byte[] path = Arrays.copyOf(previous, shared + suffixLength);
+		block.read(path, shared, suffixLength);
+		long length = block.readVarLong();
+		long lastModified = unZigZag(block.readVarLong());
+		byte[] digest = block.readBytes();
+		int flags = block.read();
+		if ((flags & ~(APPEND_STATE | SAMPLED | OTHER_HASHES | FINGERPRINT)) != 0) {
+			throw new HashException("Unknown entry flags " + flags
+					+ ".  Stream is malformed");
+		}
+		AppendState appendState = null;
+		if ((flags & APPEND_STATE) != 0) {
+			long chainedLength = block.readVarLong();
+			byte[] state = block.readBytes();
+			byte[] previousState = block.readBytes();
+			appendState = new AppendState(chainedLength, state, previousState);
+		}
+		Map<String, ContentHash> otherHashes = null;
+		if ((flags & OTHER_HASHES) != 0) {
+			otherHashes = new HashMap<>();
+			long count = block.readVarLong();
+			for (long j = 0; j < count; j++) {
+				byte[] algorithm = block.readBytes();
+				byte[] otherDigest = block.readBytes();
+				otherHashes.put(new String(algorithm, UTF8), new ContentHash(
+						otherDigest));
+			}
+		}
+
+		ContentHash.Strength strength = ContentHash.Strength.FULL;
+		if ((flags & SAMPLED) != 0) {
+			strength = ContentHash.Strength.SAMPLED;
+		} else if ((flags & FINGERPRINT) != 0) {
+			strength = ContentHash.Strength.FINGERPRINT;
+		}
+		block.previous = path;
+		return new FileHash(new String(path, UTF8), new ContentHash(digest,
+				strength), length, lastModified, appendState, otherHashes);
+	}
+
+	/**
+	 * Encode a single hash, uncompressed and without front coding.
+	 * 
+	 * @param fileHash
+	 *            to encode
+	 * @return the encoded entry
+	 */
+	static byte[] encode(FileHash fileHash) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeEntry(out, new byte[0], fileHash);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode a hash written by encode.
+	 * 
+	 * @param bytes
+	 *            the encoded entry
+	 * @param length
+	 *            bytes used
+	 * @return the hash
+	 * @throws HashException
+	 *             if the entry is malformed
+	 */
+	static FileHash decode(byte[] bytes, int length) throws HashException {
+		return readEntry(new BlockReader(bytes, length));
+	}
+
+	/**
+	 * Reads from a decompressed block
+	 */
+	private static class BlockReader {
+		private final byte[] bytes;
+		private final int length;
+		private int position = 0;
+
+		// Path of the last entry read, for the front coding
+		byte[] previous = new byte[0];
+
+		BlockReader(byte[] bytes, int length) {
+			this.bytes = bytes;
+			this.length = length;
+		}
+
+		int read() throws HashException {
+			if (position >= length) {
+				throw new HashException("Block is short.  Stream is malformed");
+			}
+			return bytes[position++] & 0xFF;
+		}
+
+		void read(byte[] to, int offset, int count) throws HashException {
+			if ((count < 0) || (position + count > length)) {
+				throw new HashException("Block is short.  Stream is malformed");
+			}
+			System.arraycopy(bytes, position, to, offset, count);
+			position += count;
+		}
+
+		long readVarLong() throws HashException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = read();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new HashException("Varint too long.  Stream is malformed");
+		}
+
+		// Read a length and that many bytes, checking the length against the
+		// block before allocating
+		byte[] readBytes() throws HashException {
+			long count = readVarLong();
+			if ((count < 0) || (count > remaining())) {
+				throw new HashException("Bad length " + count
+						+ ".  Stream is malformed");
+			}
+			byte[] to = new byte[(int) count];
+			read(to, 0, to.length);
+			return to;
+		}
+
+		int remaining() {
+			return length - position;
+		}
+	}
+
+	// Number of bytes at the start that are the same in both
+	private static int sharedPrefix(byte[] a, byte[] b) {
+		int max = Math.min(a.length, b.length);
+		int i = 0;
+		while ((i < max) && (a[i] == b[i])) {
+			i++;
+		}
+		return i;
+	}
+
+	// Map signed to unsigned so small negatives stay small
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	// Write 7 bits at a time, high bit set when more follow
+	static void writeVarLong(OutputStream out, long value) throws IOException {
+		long remaining = value;
+		while ((remaining & ~0x7FL) != 0) {
+			out.write((int) ((remaining & 0x7F) | 0x80));
+			remaining >>>= 7;
+		}
+		out.write((int) remaining);
+	}
+
+	static long readVarLong(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b == -1) {
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Varint too long.  Stream is malformed");
+	}
+}
@@ -33,8 +33,25 @@ import java.util.Arrays;
  */
 public class ContentHash implements Serializable {
 
+	/**
+	 * How much of the file the hash covers
+	 */
+	public enum Strength {
+		// Every byte of the file
+		FULL,
+
+		// The length and some blocks, matches are only probable
+		SAMPLED,
+
+		// Every byte with a fast 64-bit hash, matches must be confirmed
+		FINGERPRINT
+	}
+
 	private static final long serialVersionUID = -8071207538401027533L;
 	private final byte[] digest;
+
+	// Null in hashes saved before there were strengths
+	private final Strength strength;
 	
 	/**
 	 * Instantiate a ContentHash from the file and message digest.
@@ -44,6 +61,19 @@ public class ContentHash implements Serializable {
 	 */
 	public ContentHash(File file, MessageDigest messageDigest)
 			throws IOException {
+		this(file, messageDigest, null);
+	}
+
+	/**
+	 * Instantiate a ContentHash from the file and message digest, reading the
+	 * file no faster than the throttle allows.
+	 * 
+	 * @param file that the ContentHash will match
+	 * @param messageDigest to use create the hash.
+	 * @param throttle to limit the reads or null for no limit
+	 */
+	public ContentHash(File file, MessageDigest messageDigest,
+			IoThrottle throttle) throws IOException {
 
 		if (messageDigest == null) {
 			throw new IllegalArgumentException("messasgeDigest cannot be null");
@@ -55,17 +85,73 @@ public class ContentHash implements Serializable {
 			throw new FileNotFoundException("File does not exist - " + file);
 		}
 
+		if (throttle != null) {
+			throttle.acquireFile();
+		}
+
 		// Make sure the message digest is ready
 		messageDigest.reset();
-		try (InputStream inputStream = Files.newInputStream(file.toPath());
+		try (InputStream inputStream = OverlappedInputStream.wrap(
+				Files.newInputStream(file.toPath()), file.length());
 				DigestInputStream digestStream = new DigestInputStream(
 						inputStream, messageDigest)) {
 			byte[] buffer = new byte[8192];
-			while (digestStream.read(buffer) != -1) {
-				// No body
+			int read;
+			while ((read = digestStream.read(buffer)) != -1) {
+				if (throttle != null) {
+					throttle.acquireBytes(read);
+				}
 			}
 		}
 		digest = messageDigest.digest();
+		strength = Strength.FULL;
+	}
+
+	/**
+	 * Instantiate a ContentHash from a digest that was saved earlier.
+	 * 
+	 * @param digest the saved digest, not copied
+	 */
+	ContentHash(byte[] digest) {
+		this(digest, Strength.FULL);
+	}
+
+	/**
+	 * Instantiate a ContentHash from a digest.
+	 * 
+	 * @param digest the digest, not copied
+	 * @param strength how much of the file the digest covers
+	 */
+	ContentHash(byte[] digest, Strength strength) {
+		if (digest == null) {
+			throw new IllegalArgumentException("digest cannot be null");
+		}
+		if (strength == null) {
+			throw new IllegalArgumentException("strength cannot be null");
+		}
+		this.digest = digest;
+		this.strength = strength;
+	}
+
+	/**
+	 * @return the digest, must not be modified
+	 */
+	byte[] getDigest() {
+		return digest;
+	}
+
+	/**
+	 * @return how much of the file the hash covers
+	 */
+	public Strength getStrength() {
+		return (strength == null ? Strength.FULL : strength);
+	}
+
+	/**
+	 * @return true if every byte of the file was hashed
+	 */
+	public boolean isFull() {
+		return getStrength() == Strength.FULL;
 	}
 
 	@Override
@@ -91,11 +177,15 @@ public class ContentHash implements Serializable {
 		if (!Arrays.equals(digest, other.digest)) {
 			return false;
 		}
+		if (getStrength() != other.getStrength()) {
+			return false;
+		}
 		return true;
 	}
 
 	@Override
 	public String toString() {
-		return "ContentHash [digest=" + Arrays.toString(digest) + "]";
+		return "ContentHash [digest=" + Arrays.toString(digest)
+				+ (isFull() ? "" : ", strength=" + getStrength()) + "]";
 	}
 }
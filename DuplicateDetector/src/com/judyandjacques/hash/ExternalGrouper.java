@@ -0,0 +1,347 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Groups files by content hash without keeping them all in memory. Each
+ * file's path is written to a path table on disk and only a record of the
+ * hash and the path's position in the table is kept. When the records reach
+ * the memory budget they are sorted and spilled to a run file. group merges
+ * the runs and reads the paths of the groups that have duplicates back from
+ * the table.
+ * 
+ * The files are written to a new directory inside the given directory, which
+ * is removed by close.
+ */
+public class ExternalGrouper implements Closeable {
+
+	public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+	// Rough size of a record in memory besides the digest
+	private static final int RECORD_OVERHEAD = 64;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Receives each group of files with the same content hash
+	 */
+	public interface GroupVisitor {
+		/**
+		 * @param contentHash
+		 *            shared by the files
+		 * @param masters
+		 *            the master files with the hash
+		 * @param tests
+		 *            the test files with the hash, never empty
+		 */
+		void visit(ContentHash contentHash, Set<File> masters, Set<File> tests)
+				throws IOException;
+	}
+
+	/**
+	 * A content hash and where its file's path is in the path table
+	 */
+	private static class Record {
+		final byte[] digest;
+		final ContentHash.Strength strength;
+		final boolean master;
+		final long pathId;
+
+		Record(byte[] digest, ContentHash.Strength strength, boolean master,
+				long pathId) {
+			this.digest = digest;
+			this.strength = strength;
+			this.master = master;
+			this.pathId = pathId;
+		}
+
+		boolean sameHash(Record other) {
+			return (strength == other.strength)
+					&& (compareDigests(digest, other.digest) == 0);
+		}
+	}
+
+	private static final Comparator<Record> BY_HASH = new Comparator<Record>() {
+		@Override
+		public int compare(Record o1, Record o2) {
+			int result = o1.strength.compareTo(o2.strength);
+			if (result == 0) {
+				result = compareDigests(o1.digest, o2.digest);
+			}
+			return result;
+		}
+	};
+
+	private final File directory;
+	private final long memoryBudget;
+
+	private final File pathTable;
+	private final DataOutputStream pathOut;
+	private long pathTableLength = 0;
+
+	private final List<Record> records = new ArrayList<>();
+	private long recordBytes = 0;
+	private long recordCount = 0;
+	private final List<File> runs = new ArrayList<>();
+
+	/**
+	 * @param parent
+	 *            directory to create the temporary files in
+	 * @param memoryBudget
+	 *            bytes of records to hold in memory before spilling a run
+	 */
+	public ExternalGrouper(File parent, long memoryBudget) throws IOException {
+		if (parent == null) {
+			throw new IllegalArgumentException("parent cannot be null");
+		}
+		if (memoryBudget < 1) {
+			throw new IllegalArgumentException(
+					"memoryBudget must be at least 1");
+		}
+		this.memoryBudget = memoryBudget;
+		directory = File.createTempFile("grouper", "", parent);
+		if (!directory.delete() || !directory.mkdir()) {
+			throw new IOException("Could not create directory - " + directory);
+		}
+		pathTable = new File(directory, "paths");
+		pathOut = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(pathTable)));
+	}
+
+	/**
+	 * Add a file, spilling a run if the memory budget is reached.
+	 * 
+	 * @param file
+	 *            the file
+	 * @param contentHash
+	 *            of the file
+	 * @param master
+	 *            true if the file is in a master directory
+	 */
+	public void add(File file, ContentHash contentHash, boolean master)
+			throws IOException {
+		byte[] path = file.getPath().getBytes(UTF8);
+		pathOut.writeInt(path.length);
+		pathOut.write(path);
+		Record record = new Record(contentHash.getDigest(),
+				contentHash.getStrength(), master, pathTableLength);
+		pathTableLength += 4 + path.length;
+
+		records.add(record);
+		recordCount++;
+		recordBytes += record.digest.length + RECORD_OVERHEAD;
+		if (recordBytes >= memoryBudget) {
+			spill();
+		}
+	}
+
+	// Sort the records in memory and write them to a new run
+	private void spill() throws IOException {
+		if (records.isEmpty()) {
+			return;
+		}
+		Collections.sort(records, BY_HASH);
+		File run = new File(directory, "run" + runs.size());
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(run)))) {
+			for (Record record : records) {
+				out.writeByte(record.strength.ordinal());
+				out.writeByte(record.master ? 1 : 0);
+				out.writeShort(record.digest.length);
+				out.write(record.digest);
+				out.writeLong(record.pathId);
+			}
+		}
+		runs.add(run);
+		records.clear();
+		recordBytes = 0;
+	}
+
+	/**
+	 * The next record of a run
+	 */
+	private static class RunReader {
+		final DataInputStream in;
+		Record current;
+
+		RunReader(File run) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(run)));
+		}
+
+		// Move to the next record, false at the end of the run
+		boolean next() throws IOException {
+			int strength;
+			try {
+				strength = in.readUnsignedByte();
+			} catch (EOFException e) {
+				current = null;
+				return false;
+			}
+			boolean master = in.readByte() != 0;
+			byte[] digest = new byte[in.readUnsignedShort()];
+			in.readFully(digest);
+			current = new Record(digest,
+					ContentHash.Strength.values()[strength], master,
+					in.readLong());
+			return true;
+		}
+	}
+
+	/**
+	 * Merge the runs and pass each group that has a test file and at least
+	 * one other file to the visitor. The groups come in hash order.
+	 * 
+	 * @param visitor
+	 *            to pass the groups to
+	 */
+	public void group(GroupVisitor visitor) throws IOException {
+		spill();
+		pathOut.flush();
+
+		PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1,
+				runs.size()), new Comparator<RunReader>() {
+			@Override
+			public int compare(RunReader o1, RunReader o2) {
+				return BY_HASH.compare(o1.current, o2.current);
+			}
+		});
+		List<RunReader> readers = new ArrayList<>();
+		try (RandomAccessFile paths = new RandomAccessFile(pathTable, "r")) {
+			for (File run : runs) {
+				RunReader reader = new RunReader(run);
+				readers.add(reader);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+
+			List<Record> group = new ArrayList<>();
+			while (!queue.isEmpty()) {
+				RunReader reader = queue.poll();
+				Record record = reader.current;
+				if (!group.isEmpty() && !group.get(0).sameHash(record)) {
+					visitGroup(group, paths, visitor);
+					group.clear();
+				}
+				group.add(record);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+			visitGroup(group, paths, visitor);
+		} finally {
+			for (RunReader reader : readers) {
+				reader.in.close();
+			}
+		}
+	}
+
+	// Read the paths of a group with duplicates and pass it on
+	private static void visitGroup(List<Record> group, RandomAccessFile paths,
+			GroupVisitor visitor) throws IOException {
+		int tests = 0;
+		for (Record record : group) {
+			if (!record.master) {
+				tests++;
+			}
+		}
+		if ((tests == 0) || (group.size() < 2)) {
+			return;
+		}
+
+		Set<File> masterFiles = new HashSet<>();
+		Set<File> testFiles = new HashSet<>();
+		for (Record record : group) {
+			paths.seek(record.pathId);
+			byte[] path = new byte[paths.readInt()];
+			paths.readFully(path);
+			File file = new File(new String(path, UTF8));
+			if (record.master) {
+				masterFiles.add(file);
+			} else {
+				testFiles.add(file);
+			}
+		}
+		Record first = group.get(0);
+		visitor.visit(new ContentHash(first.digest, first.strength),
+				masterFiles, testFiles);
+	}
+
+	// Unsigned byte by byte comparison, shorter digests first
+	private static int compareDigests(byte[] a, byte[] b) {
+		int max = Math.min(a.length, b.length);
+		for (int i = 0; i < max; i++) {
+			int result = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (result != 0) {
+				return result;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	/**
+	 * @return the number of files added
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @return the number of runs spilled to disk
+	 */
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * Remove the temporary files.
+	 */
+	@Override
+	public void close() throws IOException {
+		pathOut.close();
+		for (File run : runs) {
+			run.delete();
+		}
+		pathTable.delete();
+		if (!directory.delete()) {
+			throw new IOException("Could not delete directory - " + directory);
+		}
+	}
+}
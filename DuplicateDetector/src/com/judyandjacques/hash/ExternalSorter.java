@@ -0,0 +1,303 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts more items than fit in memory. The items are held until they reach
+ * the memory budget, then sorted and spilled to a run file. sorted merges the
+ * runs, or sorts the items in memory if none were spilled, and can be called
+ * again to read the items again. Items that compare equal come out in the
+ * order they were added.
+ * 
+ * The run files are written in the given directory and removed by close.
+ * 
+ * @param <T>
+ *            type of the items
+ */
+abstract class ExternalSorter<T> implements Closeable {
+
+	/**
+	 * Reads the sorted items
+	 * 
+	 * @param <T>
+	 *            type of the items
+	 */
+	interface Cursor<T> extends Closeable {
+		/**
+		 * @return the next item or null at the end
+		 */
+		T next() throws IOException;
+	}
+
+	private final File directory;
+	private final long memoryBudget;
+	private final Comparator<? super T> order;
+
+	private final List<T> items = new ArrayList<>();
+	private long itemBytes = 0;
+	private long size = 0;
+	private boolean sorted = false;
+
+	// Each run and the number of items in it
+	private final List<File> runs = new ArrayList<>();
+	private final List<Long> runSizes = new ArrayList<>();
+
+	/**
+	 * @param directory
+	 *            to write the run files in
+	 * @param memoryBudget
+	 *            bytes of items to hold in memory before spilling a run
+	 * @param order
+	 *            to sort the items in
+	 */
+	ExternalSorter(File directory, long memoryBudget,
+			Comparator<? super T> order) {
+		if (directory == null) {
+			throw new IllegalArgumentException("directory cannot be null");
+		}
+		if (memoryBudget < 1) {
+			throw new IllegalArgumentException(
+					"memoryBudget must be at least 1");
+		}
+		if (order == null) {
+			throw new IllegalArgumentException("order cannot be null");
+		}
+		this.directory = directory;
+		this.memoryBudget = memoryBudget;
+		this.order = order;
+	}
+
+	/**
+	 * @param item
+	 *            to estimate
+	 * @return rough bytes the item takes in memory
+	 */
+	abstract long estimateBytes(T item);
+
+	/**
+	 * Write an item to a run.
+	 * 
+	 * @param out
+	 *            the run
+	 * @param item
+	 *            to write
+	 */
+	abstract void write(DataOutputStream out, T item) throws IOException;
+
+	/**
+	 * Read an item written by write.
+	 * 
+	 * @param in
+	 *            the run
+	 * @return the item
+	 */
+	abstract T read(DataInputStream in) throws IOException;
+
+	/**
+	 * Add an item, spilling a run if the memory budget is reached.
+	 * 
+	 * @param item
+	 *            to add
+	 */
+	void add(T item) throws IOException {
+		if (sorted) {
+			throw new IllegalStateException("Cannot add once sorted");
+		}
+		items.add(item);
+		size++;
+		itemBytes += estimateBytes(item);
+		if (itemBytes >= memoryBudget) {
+			spill();
+		}
+	}
+
+	// Sort the items in memory and write them to a new run
+	private void spill() throws IOException {
+		if (items.isEmpty()) {
+			return;
+		}
+		Collections.sort(items, order);
+		File run = File.createTempFile("sort", ".run", directory);
+		runs.add(run);
+		runSizes.add(Long.valueOf(items.size()));
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(run)))) {
+			for (T item : items) {
+				write(out, item);
+			}
+		}
+		items.clear();
+		itemBytes = 0;
+	}
+
+	/**
+	 * The next item of a run
+	 */
+	private class RunReader {
+		final int number;
+		final DataInputStream in;
+		long remaining;
+		T current;
+
+		RunReader(int number) throws IOException {
+			this.number = number;
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(runs.get(number))));
+			remaining = runSizes.get(number).longValue();
+		}
+
+		// Move to the next item, false at the end of the run
+		boolean next() throws IOException {
+			if (remaining == 0) {
+				current = null;
+				return false;
+			}
+			remaining--;
+			current = read(in);
+			return true;
+		}
+	}
+
+	/**
+	 * Read the items in order. No more items can be added.
+	 * 
+	 * @return the items, close it when done
+	 */
+	Cursor<T> sorted() throws IOException {
+		if (!sorted) {
+			sorted = true;
+			if (runs.isEmpty()) {
+				Collections.sort(items, order);
+			} else {
+				spill();
+			}
+		}
+
+		if (runs.isEmpty()) {
+			final Iterator<T> iterator = items.iterator();
+			return new Cursor<T>() {
+				@Override
+				public T next() {
+					return (iterator.hasNext() ? iterator.next() : null);
+				}
+
+				@Override
+				public void close() {
+					// Nothing to close
+				}
+			};
+		}
+
+		// Ties go to the earlier run, which has the items added first
+		final PriorityQueue<RunReader> queue = new PriorityQueue<>(
+				runs.size(), new Comparator<RunReader>() {
+					@Override
+					public int compare(RunReader o1, RunReader o2) {
+						int result = order.compare(o1.current, o2.current);
+						if (result == 0) {
+							result = o1.number - o2.number;
+						}
+						return result;
+					}
+				});
+		final List<RunReader> readers = new ArrayList<>();
+		try {
+			for (int i = 0; i < runs.size(); i++) {
+				RunReader reader = new RunReader(i);
+				readers.add(reader);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+		} catch (IOException e) {
+			for (RunReader reader : readers) {
+				reader.in.close();
+			}
+			throw e;
+		}
+		return new Cursor<T>() {
+			@Override
+			public T next() throws IOException {
+				RunReader reader = queue.poll();
+				if (reader == null) {
+					return null;
+				}
+				T item = reader.current;
+				if (reader.next()) {
+					queue.add(reader);
+				}
+				return item;
+			}
+
+			@Override
+			public void close() throws IOException {
+				for (RunReader reader : readers) {
+					reader.in.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return the number of items added
+	 */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of runs spilled to disk
+	 */
+	int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * Remove the run files.
+	 */
+	@Override
+	public void close() throws IOException {
+		items.clear();
+		boolean deleted = true;
+		for (File run : runs) {
+			deleted &= (run.delete() || !run.exists());
+		}
+		runs.clear();
+		if (!deleted) {
+			throw new IOException("Could not delete the runs in - "
+					+ directory);
+		}
+	}
+}
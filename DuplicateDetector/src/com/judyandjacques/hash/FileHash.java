@@ -21,7 +21,10 @@ package com.judyandjacques.hash;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * This matches a contentHash to a file on the file system. As long as the file is
@@ -37,6 +40,12 @@ public class FileHash implements Serializable {
 	private final long length;
 	private final long lastModified;
 
+	// Only for chained digests, null otherwise
+	private final AppendState appendState;
+
+	// Full hashes with other algorithms by algorithm name, null if none
+	private final Map<String, ContentHash> otherHashes;
+
 	/**
 	 * Create a FileHash for the file and contentHash.
 	 * 
@@ -49,6 +58,23 @@ public class FileHash implements Serializable {
 	 */
 	public FileHash(File file, ContentHash contentHash)
 			throws FileNotFoundException {
+		this(file, contentHash, null);
+	}
+
+	/**
+	 * Create a FileHash for the file and a chained contentHash.
+	 * 
+	 * @param file
+	 *            that the FileHash refers to.
+	 * @param contentHash
+	 *            for the file
+	 * @param appendState
+	 *            to continue the chain or null
+	 * @throws FileNotFoundException
+	 *             if the file does not exist.
+	 */
+	FileHash(File file, ContentHash contentHash, AppendState appendState)
+			throws FileNotFoundException {
 		if (file == null) {
 			throw new IllegalArgumentException("file cannot be null");
 		}
@@ -64,6 +90,79 @@ public class FileHash implements Serializable {
 		this.absolutePath = file.getAbsolutePath();
 		this.length = file.length();
 		this.lastModified = file.lastModified();
+		this.appendState = appendState;
+		this.otherHashes = null;
+	}
+
+	/**
+	 * Create a FileHash from information that was saved earlier.
+	 * 
+	 * @param absolutePath
+	 *            of the file
+	 * @param contentHash
+	 *            for the file
+	 * @param length
+	 *            of the file
+	 * @param lastModified
+	 *            of the file
+	 */
+	FileHash(String absolutePath, ContentHash contentHash, long length,
+			long lastModified) {
+		this(absolutePath, contentHash, length, lastModified, null);
+	}
+
+	/**
+	 * Create a FileHash from information that was saved earlier.
+	 * 
+	 * @param absolutePath
+	 *            of the file
+	 * @param contentHash
+	 *            for the file
+	 * @param length
+	 *            of the file
+	 * @param lastModified
+	 *            of the file
+	 * @param appendState
+	 *            to continue a chained contentHash or null
+	 */
+	FileHash(String absolutePath, ContentHash contentHash, long length,
+			long lastModified, AppendState appendState) {
+		this(absolutePath, contentHash, length, lastModified, appendState,
+				null);
+	}
+
+	/**
+	 * Create a FileHash from information that was saved earlier.
+	 * 
+	 * @param absolutePath
+	 *            of the file
+	 * @param contentHash
+	 *            for the file
+	 * @param length
+	 *            of the file
+	 * @param lastModified
+	 *            of the file
+	 * @param appendState
+	 *            to continue a chained contentHash or null
+	 * @param otherHashes
+	 *            full hashes with other algorithms, copied, or null
+	 */
+	FileHash(String absolutePath, ContentHash contentHash, long length,
+			long lastModified, AppendState appendState,
+			Map<String, ContentHash> otherHashes) {
+		if (absolutePath == null) {
+			throw new IllegalArgumentException("absolutePath cannot be null");
+		}
+		if (contentHash == null) {
+			throw new IllegalArgumentException("hash cannot be null");
+		}
+		this.absolutePath = absolutePath;
+		this.contentHash = contentHash;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.appendState = appendState;
+		this.otherHashes = ((otherHashes == null) || otherHashes.isEmpty() ? null
+				: Collections.unmodifiableMap(new TreeMap<>(otherHashes)));
 	}
 
 	/**
@@ -84,6 +183,29 @@ public class FileHash implements Serializable {
 				&& (file.length() == length) && (file.lastModified() == lastModified));
 	}
 
+	/**
+	 * Determines if the FileHash is still valid for a file whose attributes
+	 * have already been read, so the file system isn't asked again.
+	 * 
+	 * @param absolutePath
+	 *            of the file
+	 * @param length
+	 *            of the file
+	 * @param lastModifiedMillis
+	 *            the file's lastModifiedTime in milliseconds
+	 * @return true if the FileHash is still valid
+	 */
+	boolean isValidFor(String absolutePath, long length,
+			long lastModifiedMillis) {
+		// The saved time is from File.lastModified, which some JDKs truncate
+		// to the second (JDK-8177809)
+		long truncated = (lastModifiedMillis / 1000) * 1000;
+		return absolutePath.equalsIgnoreCase(this.absolutePath)
+				&& (length == this.length)
+				&& ((lastModifiedMillis == lastModified)
+						|| (truncated == lastModified));
+	}
+
 	/**
 	 * @return the file's absolutePath
 	 */
@@ -112,6 +234,101 @@ public class FileHash implements Serializable {
 		return new Date(lastModified);
 	}
 
+	/**
+	 * @return the file's lastModified in milliseconds
+	 */
+	long getLastModifiedMillis() {
+		return lastModified;
+	}
+
+	/**
+	 * @return the state to continue a chained contentHash or null
+	 */
+	AppendState getAppendState() {
+		return appendState;
+	}
+
+	/**
+	 * @param algorithm
+	 *            hash algorithm name
+	 * @return the full hash of the file with the algorithm or null if there
+	 *         is none. The algorithm of getContentHash is not included.
+	 */
+	public ContentHash getOtherHash(String algorithm) {
+		return (otherHashes == null ? null : otherHashes.get(algorithm));
+	}
+
+	/**
+	 * @return read only map of the full hashes with other algorithms
+	 */
+	public Map<String, ContentHash> getOtherHashes() {
+		if (otherHashes == null) {
+			return Collections.emptyMap();
+		}
+		return otherHashes;
+	}
+
+	/**
+	 * @param hashes
+	 *            full hashes with other algorithms to add
+	 * @return a FileHash for the same file that also has the hashes
+	 */
+	FileHash withOtherHashes(Map<String, ContentHash> hashes) {
+		Map<String, ContentHash> merged = new TreeMap<>(getOtherHashes());
+		merged.putAll(hashes);
+		return new FileHash(absolutePath, contentHash, length, lastModified,
+				appendState, merged);
+	}
+
+	/**
+	 * Combine two hashes of the same version of a file, which can each have
+	 * other hashes that the other lacks since equals ignores them.
+	 * 
+	 * @param other
+	 *            hash equal to this one
+	 * @return a FileHash with the other hashes of both, this one's where both
+	 *         have an algorithm, or this if other adds none
+	 */
+	FileHash withOtherHashesOf(FileHash other) {
+		Map<String, ContentHash> missing = new TreeMap<>(other
+				.getOtherHashes());
+		missing.keySet().removeAll(getOtherHashes().keySet());
+		if (missing.isEmpty()) {
+			return this;
+		}
+		return withOtherHashes(missing);
+	}
+
+	/**
+	 * Make the hash with another algorithm the contentHash. The old
+	 * contentHash is kept as another hash if it is full.
+	 * 
+	 * @param algorithm
+	 *            of the contentHash
+	 * @param wanted
+	 *            algorithm that should be the contentHash
+	 * @return the promoted FileHash, this if the algorithms are the same or
+	 *         null if there is no full hash with the wanted algorithm
+	 */
+	FileHash promote(String algorithm, String wanted) {
+		if (algorithm.equals(wanted)) {
+			return this;
+		}
+		ContentHash promoted = getOtherHash(wanted);
+		if (promoted == null) {
+			return null;
+		}
+		Map<String, ContentHash> others = new TreeMap<>(getOtherHashes());
+		others.remove(wanted);
+		if (contentHash.isFull()) {
+			others.put(algorithm, contentHash);
+		}
+
+		// The append state belongs to the old chained contentHash
+		return new FileHash(absolutePath, promoted, length, lastModified,
+				null, others);
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
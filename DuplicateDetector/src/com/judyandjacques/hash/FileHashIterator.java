@@ -0,0 +1,132 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pulls the hashes of a scan as they are found. The scan runs on its own
+ * thread and waits while CAPACITY hashes are waiting to be taken, so a slow
+ * consumer slows the scan rather than filling memory.
+ * 
+ * next can be called from several threads at once to share the hashes
+ * between them. close stops the scan early.
+ */
+public class FileHashIterator implements Closeable {
+
+	public static final int CAPACITY = 1024;
+
+	// Put on the queue when the scan ends, left there for other consumers
+	private static final Object END = new Object();
+
+	private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(
+			CAPACITY);
+	private final Thread producer;
+	private volatile boolean closed = false;
+
+	/**
+	 * Start scanning.
+	 * 
+	 * @param hashCreator
+	 *            to scan with
+	 * @param toSearch
+	 *            collection of paths to search
+	 */
+	FileHashIterator(final HashCreator hashCreator, Collection<Path> toSearch) {
+		final Collection<Path> paths = new ArrayList<>(toSearch);
+		producer = new Thread(new Runnable() {
+			@SuppressWarnings("synthetic-access")
+			@Override
+			public void run() {
+				Object last = END;
+				try {
+					hashCreator.visit(paths, new FileHashVisitor() {
+						@Override
+						public boolean visit(FileHash fileHash) {
+							return offer(fileHash);
+						}
+					});
+				} catch (HashException | RuntimeException e) {
+					last = e;
+				}
+				offer(last);
+			}
+		}, "FileHashIterator");
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	// Wait for room on the queue, false if closed
+	private boolean offer(Object item) {
+		while (!closed) {
+			try {
+				queue.put(item);
+				return true;
+			} catch (InterruptedException e) {
+				// close interrupts, check closed again
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Wait for the next hash.
+	 * 
+	 * @return the next hash or null when the scan has finished or was closed
+	 * @throws HashException
+	 *             if the scan failed
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public FileHash next() throws HashException, InterruptedException {
+		if (closed) {
+			return null;
+		}
+		Object item = queue.take();
+		if (item instanceof FileHash) {
+			return (FileHash) item;
+		}
+
+		// Leave the end for the other consumers
+		queue.put(item);
+		if (item instanceof HashException) {
+			throw new HashException((HashException) item);
+		}
+		if (item instanceof RuntimeException) {
+			throw new HashException((RuntimeException) item);
+		}
+		return null;
+	}
+
+	/**
+	 * Stop the scan. Hashes that were not taken are dropped.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		producer.interrupt();
+		queue.clear();
+		queue.offer(END);
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Comparator;
+
+/**
+ * Sorts hashes that may not fit in memory. The runs hold the hashes in the
+ * entry format of {@link CompactCacheCodec}.
+ */
+final class FileHashSorter extends ExternalSorter<FileHash> {
+
+	static final Comparator<FileHash> BY_PATH = new Comparator<FileHash>() {
+		@Override
+		public int compare(FileHash o1, FileHash o2) {
+			return o1.getAbsolutePath().compareTo(o2.getAbsolutePath());
+		}
+	};
+
+	/**
+	 * @param directory
+	 *            to write the run files in
+	 * @param memoryBudget
+	 *            bytes of hashes to hold in memory before spilling a run
+	 * @param order
+	 *            to sort the hashes in
+	 */
+	FileHashSorter(File directory, long memoryBudget,
+			Comparator<? super FileHash> order) {
+		super(directory, memoryBudget, order);
+	}
+
+	@Override
+	long estimateBytes(FileHash item) {
+		return TieredCache.estimateBytes(item);
+	}
+
+	@Override
+	void write(DataOutputStream out, FileHash item) throws IOException {
+		byte[] entry = CompactCacheCodec.encode(item);
+		out.writeInt(entry.length);
+		out.write(entry);
+	}
+
+	@Override
+	FileHash read(DataInputStream in) throws IOException {
+		byte[] entry = new byte[in.readInt()];
+		in.readFully(entry);
+		try {
+			return CompactCacheCodec.decode(entry, entry.length);
+		} catch (HashException e) {
+			throw new IOException("Could not read a sorted run", e);
+		}
+	}
+}
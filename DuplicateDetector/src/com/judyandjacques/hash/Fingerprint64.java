@@ -0,0 +1,137 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.security.MessageDigest;
+
+/**
+ * A fast 64-bit hash of every byte, for finding the few files that might be
+ * duplicates before spending a strong digest on them. It is not collision
+ * resistant so matches must be confirmed with the hash algorithm.
+ * 
+ * The mixing follows the xxHash64 round and avalanche steps on 8-byte words
+ * but is not compatible with xxHash.
+ */
+final class Fingerprint64 extends MessageDigest {
+
+	static final String ALGORITHM = "FINGERPRINT64";
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private long hash;
+	private long length;
+
+	// Bytes that don't make a whole word yet
+	private final byte[] pending = new byte[8];
+	private int pendingCount;
+
+	Fingerprint64() {
+		super(ALGORITHM);
+		engineReset();
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return 8;
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		pending[pendingCount++] = input;
+		length++;
+		if (pendingCount == 8) {
+			round(word(pending, 0));
+			pendingCount = 0;
+		}
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		int position = offset;
+		int end = offset + len;
+		length += len;
+
+		// Finish the pending word
+		while ((pendingCount > 0) && (position < end)) {
+			pending[pendingCount++] = input[position++];
+			if (pendingCount == 8) {
+				round(word(pending, 0));
+				pendingCount = 0;
+			}
+		}
+		while (position + 8 <= end) {
+			round(word(input, position));
+			position += 8;
+		}
+		while (position < end) {
+			pending[pendingCount++] = input[position++];
+		}
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		long h = hash;
+		for (int i = 0; i < pendingCount; i++) {
+			h ^= (pending[i] & 0xFFL) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+		}
+		h ^= length;
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+
+		byte[] digest = new byte[8];
+		for (int i = 0; i < 8; i++) {
+			digest[i] = (byte) (h >>> (56 - (8 * i)));
+		}
+		engineReset();
+		return digest;
+	}
+
+	@Override
+	protected void engineReset() {
+		hash = PRIME5;
+		length = 0;
+		pendingCount = 0;
+	}
+
+	private void round(long word) {
+		long k = word * PRIME2;
+		k = Long.rotateLeft(k, 31) * PRIME1;
+		hash ^= k;
+		hash = (Long.rotateLeft(hash, 27) * PRIME1) + PRIME4;
+	}
+
+	// Little endian word at offset
+	private static long word(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFFL) | ((bytes[offset + 1] & 0xFFL) << 8)
+				| ((bytes[offset + 2] & 0xFFL) << 16)
+				| ((bytes[offset + 3] & 0xFFL) << 24)
+				| ((bytes[offset + 4] & 0xFFL) << 32)
+				| ((bytes[offset + 5] & 0xFFL) << 40)
+				| ((bytes[offset + 6] & 0xFFL) << 48)
+				| ((bytes[offset + 7] & 0xFFL) << 56);
+	}
+}
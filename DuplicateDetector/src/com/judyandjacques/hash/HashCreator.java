@@ -25,32 +25,85 @@ import java.io.ObjectOutputStream;
 import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Create content hashes and manage the caches
+ * 
+ * The cache and the counters can be shared by several threads calling the
+ * create methods at the same time. The settings (extensions, algorithm,
+ * verbose) should be set before the creator is shared.
  */
 public class HashCreator {
 
+	/**
+	 * What a scan does with symbolic links
+	 */
+	public enum LinkPolicy {
+		// Follow links to files and directories, each directory is still only
+		// processed once
+		FOLLOW,
+
+		// Leave links out of the scan, roots are still followed
+		SKIP
+	}
+
 	// if false then throw an exception if a file does not exist
 	private boolean ignoreFileNotFound = false;
 
-	// Cached hashes
-	private final Map<String, FileHash> cache = new HashMap<>();
+	// Cached hashes, replaced by setCacheMemoryBudget
+	private volatile ConcurrentMap<String, FileHash> cache = new ConcurrentHashMap<>();
+
+	// The cache when it has a memory budget, null if unbounded
+	private volatile TieredCache tieredCache = null;
+
+	// The cache being loaded by loadCacheInBackground, null once it is loaded
+	private volatile Future<?> cacheLoad = null;
 
-	private String extensionsToMatch = null;
+	// The thread loading the cache, which uses it without waiting
+	private volatile Thread cacheLoader = null;
+
+	// Which files and directories are processed
+	private volatile PathFilter filter = new PathFilter();
 
 	// Cache has been modified
-	private boolean cacheModified = false;
+	private volatile boolean cacheModified = false;
+
+	// Directories holding the cache entries added, replaced or removed, which
+	// grows with the directories rather than the files
+	private final Set<String> modifiedDirectories = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	// Absolute paths of the cache entries removed since the cache was last
+	// written with CacheFile.writeShared, guarded by removedLock
+	private Set<String> removedPaths = new HashSet<>();
+	private final Object removedLock = new Object();
 	
 	// Print out directories being processed
 	private boolean verbose = false;
@@ -58,61 +111,142 @@ public class HashCreator {
 	// Default to MD5, can override
 	private String hashAlgorithm = "MD5";
 
+	// Also computed whenever a file is fully read, for moving to a new
+	// algorithm
+	private String[] extraAlgorithms = new String[0];
+
+	// Read files with valid cached hashes that are missing an extra algorithm
+	private boolean migrating = false;
+
+	// Group by a fast fingerprint and only use the hash algorithm on files
+	// that share one
+	private boolean twoTier = false;
+
+	// Files read at once during a scan
+	private int threads = 1;
+
+	// Reads the files for every scan when threads is more than 1, created
+	// when first needed
+	private ExecutorService hashPool = null;
+
+	// Scans running on each pool. A pool replaced by setThreads is shut down
+	// when the last scan on it finishes.
+	private final Map<ExecutorService, Integer> poolScans = new HashMap<>();
+
+	// Limits how fast files are read, null for no limit
+	private volatile IoThrottle throttle = null;
+
 	// Count of files processed
-	private int filesProcessed = 0;
+	private final AtomicInteger filesProcessed = new AtomicInteger();
 
 	// Count how many files were found in the cache
-	private int cacheHits = 0;
+	private final AtomicInteger cacheHits = new AtomicInteger();
 
-	/**
-	 * Filter files to only accept those that have the correct extension
-	 */
-	private final DirectoryStream.Filter<Path> extensionFilter = new DirectoryStream.Filter<Path>() {
-		// Accept the file if there are no extensionsToMatch or if the files
-		// extension is in the extensionsToMatch
+	// Count how many grown files only had the appended bytes hashed
+	private final AtomicInteger appendsRehashed = new AtomicInteger();
 
-		@SuppressWarnings("synthetic-access")
-		@Override
-		public boolean accept(Path path) throws IOException {
-			boolean accept = true;
-			if (extensionsToMatch != null) {
-				File file = path.toFile();
+	// Count how many cached hashes were read again for the extra algorithms
+	private final AtomicInteger hashesMigrated = new AtomicInteger();
 
-				// Always accept directories
-				if (!file.isDirectory()) {
-					String name = path.toFile().getName();
-					if (name != null) {
-						int position = name.lastIndexOf(".");
-						String extension = (position == -1 ? null : name
-								.substring(position + 1));
+	// Count how many files that shared a fingerprint were strongly hashed
+	private final AtomicInteger fingerprintsConfirmed = new AtomicInteger();
 
-						accept = ((extension != null) && extensionsToMatch
-								.contains(extension.toUpperCase()));
-					}
-				}
-			}
-			return accept;
-		}
-	};
+	// Files at least this long are sampled rather than fully hashed, 0 to
+	// always fully hash
+	private long sampledAbove = 0;
+
+	// Files that can't match a master are left out, null to keep all files
+	private volatile MasterIndex masterIndex = null;
+
+	// Count how many files the master index left out
+	private final AtomicInteger masterIndexSkips = new AtomicInteger();
+
+	// Saves progress so a scan can be resumed, null if not checkpointing
+	private volatile Checkpoint checkpoint = null;
+
+	// Whether symbolic links are followed
+	private volatile LinkPolicy linkPolicy = LinkPolicy.FOLLOW;
+
+	// Keys of directories that scans of other roots don't descend into
+	private volatile Set<Object> separateRoots = Collections.emptySet();
+
+	// Count of directories and links left out because they were already
+	// processed, are separate roots or are links being skipped
+	private final AtomicInteger aliasesSkipped = new AtomicInteger();
 
 	/**
-	 * Add the contents of the directory to the toProcess list. Return the
-	 * number of items added.
+	 * Add the contents of the directory to the toProcess list. Entries the
+	 * filter rejects by name are skipped without reading their attributes.
+	 * Directories and files already in visited are skipped so links, mounts,
+	 * cycles and hard links don't process a directory or file twice. Every
+	 * directory is added to visited but only the files that can be reached by
+	 * another name, those with more than one hard link or reached through a
+	 * symbolic link, so visited grows with the directories rather than the
+	 * files. The attributes of the entries added are put in queued so they
+	 * aren't read again.
 	 */
-	private void addDirectoryToProcess(LinkedList<Path> toProcess, Path path)
-			throws HashException {
+	private void addDirectoryToProcess(LinkedList<Path> toProcess, Path path,
+			Path toSearch, MasterIndex index, Set<Object> visited,
+			Map<Path, BasicFileAttributes> queued) throws HashException {
 
 		// Add the directory's contents to toProcess
-		try (DirectoryStream<Path> stream = Files.newDirectoryStream(path,
-				extensionFilter)) {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
 
 			for (Path item : stream) {
-				if (item.toFile().isDirectory()) {
-					// Put directories at the end
-					toProcess.addLast(item);
-				} else {
-					// put files at the beginning
+				Path relative = toSearch.relativize(item);
+				if (filter.isExcluded(item, relative)) {
+					continue;
+				}
+
+				// Links are read again, following them, only when they are
+				// followed
+				BasicFileAttributes attributes;
+				boolean throughLink = false;
+				try {
+					attributes = LinkCountAttributes.read(item,
+							LinkOption.NOFOLLOW_LINKS);
+					if (attributes.isSymbolicLink()
+							&& (linkPolicy == LinkPolicy.FOLLOW)) {
+						attributes = Files.readAttributes(item,
+								BasicFileAttributes.class);
+						throughLink = true;
+					}
+				} catch (IOException e) {
+					// Let the processing loop report it
 					toProcess.addFirst(item);
+					continue;
+				}
+
+				if (attributes.isSymbolicLink()) {
+					// Only seen when links are not followed
+					aliasesSkipped.incrementAndGet();
+				} else if (attributes.isDirectory()) {
+					Object key = directoryKey(item, attributes);
+					if (separateRoots.contains(key) || !visited.add(key)) {
+						if (verbose) {
+							System.out.println("Already processed - " + item);
+						}
+						aliasesSkipped.incrementAndGet();
+					} else {
+						// Put directories at the end
+						toProcess.addLast(item);
+						queued.put(item, attributes);
+					}
+				} else if (filter.acceptFile(relative, attributes.size())) {
+					if (isAlias(item, attributes, throughLink, visited)) {
+						if (verbose) {
+							System.out.println("Already processed - " + item);
+						}
+						aliasesSkipped.incrementAndGet();
+					} else if ((index != null)
+							&& !index.hasLength(attributes.size())) {
+						// No master has the length, don't hash it
+						masterIndexSkips.incrementAndGet();
+					} else {
+						// put files at the beginning
+						toProcess.addFirst(item);
+						queued.put(item, attributes);
+					}
 				}
 			}
 		} catch (IOException | DirectoryIteratorException e) {
@@ -120,6 +254,40 @@ public class HashCreator {
 		}
 	}
 
+	/**
+	 * True if the file was already processed by another name. A file with one
+	 * name is only remembered if it was reached through a link. A link to a
+	 * file in a directory that was already visited is an alias too, since the
+	 * file is processed as part of the directory.
+	 */
+	private static boolean isAlias(Path item, BasicFileAttributes attributes,
+			boolean throughLink, Set<Object> visited) {
+		Object key = attributes.fileKey();
+		if (key == null) {
+			return false;
+		}
+		if (throughLink) {
+			Path directory = realPath(item).getParent();
+			try {
+				if ((directory != null)
+						&& visited.contains(directoryKey(directory, Files
+								.readAttributes(directory,
+										BasicFileAttributes.class)))) {
+					return true;
+				}
+			} catch (IOException e) {
+				// Only checked by the file's key
+			}
+			return !visited.add(key);
+		}
+		if (LinkCountAttributes.linkCount(attributes) > 1) {
+			return !visited.add(key);
+		}
+
+		// Reached through a link earlier
+		return visited.contains(key);
+	}
+
 	/**
 	 * Process the toSearch paths and return content hashes and matching files.
 	 * 
@@ -132,16 +300,45 @@ public class HashCreator {
 	 */
 	public Map<ContentHash, Set<File>> create(Collection<Path> toSearch)
 			throws HashException {
+		return create(toSearch, new HashSet<>());
+	}
+
+	/**
+	 * Process the toSearch paths and return content hashes and matching files.
+	 * Directories and files in visited are skipped and the ones processed are
+	 * added, so scans sharing the set, such as the masters then the tests,
+	 * never return the same file twice however it was reached.
+	 * 
+	 * @param toSearch
+	 *            collection of paths to search
+	 * @param visited
+	 *            keys of the directories and files already processed
+	 * @return map of content hashes and the associated file or files
+	 * @throws HashException
+	 *             if a file is not found or there is an error iterating over a
+	 *             directory
+	 */
+	public Map<ContentHash, Set<File>> create(Collection<Path> toSearch,
+			Set<Object> visited) throws HashException {
 
 		if (toSearch == null) {
 			throw new IllegalArgumentException("toSearch cannot be null");
 		}
+		if (visited == null) {
+			throw new IllegalArgumentException("visited cannot be null");
+		}
 
 		// Process each toSearch directory
-		Map<File, ContentHash> fileHashes = new HashMap<>();
+		final Map<File, ContentHash> fileHashes = new HashMap<>();
+		ResultVisitor resultVisitor = new ResultVisitor() {
+			@Override
+			public boolean visit(File file, FileHash fileHash) {
+				fileHashes.put(file, fileHash.getContentHash());
+				return true;
+			}
+		};
 		for (Path path : toSearch) {
-			Map<File, ContentHash> pathHashes = create(path);
-			fileHashes.putAll(pathHashes);
+			scan(path, visited, resultVisitor);
 		}
 
 		// Put results into Map with content hash as the key
@@ -178,239 +375,1507 @@ public class HashCreator {
 			throw new IllegalArgumentException("toSearch cannot be null");
 		}
 
-		MessageDigest md;
-		try {
-			md = MessageDigest.getInstance(hashAlgorithm);
-		} catch (NoSuchAlgorithmException e) {
-			throw new HashException(e);
-		}
-
-		// LinkedList of paths (both directories and files) to be processed.
-		LinkedList<Path> toProcess = new LinkedList<>();
-		toProcess.add(toSearch);
-
-		Map<File, ContentHash> hashes = new HashMap<>();
-
-		// The file system may contain many levels of directories so it not wise
-		// to use recursion
-		while (!toProcess.isEmpty()) {
-			Path path = toProcess.removeFirst();
-
-			File file = path.toFile();
-
-			if (!file.exists()) {
-				if (!ignoreFileNotFound) {
-					throw new HashException(file, "File does not exist - "
-							+ file);
-				}
-			} else if (file.isDirectory()) {
-				if (verbose) {
-					System.out.println("Processing directory - "
-							+ filesProcessed + "/" + toProcess.size() + " - "
-							+ file);
-				}
-				addDirectoryToProcess(toProcess, path);
-			} else {
-				// System.out.println("Processing file - " + filesProcessed +
-				// "/" + toProcess.size() + " - " + file);
-
-				String absolutePath = file.getAbsolutePath();
-				FileHash cachedHash = cache.get(absolutePath);
-				ContentHash hash;
-
-				// Note: Assumes the file still exists at this point (which
-				// should be a pretty safe bet). It was checked above.
-
-				// If there is a valid cached hash then use it
-				if ((cachedHash != null) && cachedHash.isValidForFile(file)) {
-					hash = cachedHash.getContentHash();
-					cacheHits++;
-				} else {
-					try {
-						hash = new ContentHash(file, md);
-
-						// Add (or replace) cache entry
-						FileHash fileHash = new FileHash(file, hash);
-						cache.put(file.getAbsolutePath(), fileHash);
-						cacheModified = true;
-					} catch (IOException e) {
-						throw new HashException(file,
-								"Could not create content hash for file - "
-										+ file);
-					}
-				}
-				hashes.put(file, hash);
-				filesProcessed++;
+		final Map<File, ContentHash> hashes = new HashMap<>();
+		scan(toSearch, new HashSet<>(), new ResultVisitor() {
+			@Override
+			public boolean visit(File file, FileHash fileHash) {
+				hashes.put(file, fileHash.getContentHash());
+				return true;
 			}
-		}
+		});
 		return hashes;
 	}
 
 	/**
-	 * Process the master directories using the current cache and return a map
-	 * of content hashes.
+	 * Process the toSearch paths and add the content hashes to the grouper
+	 * rather than keeping them in memory.
 	 * 
-	 * @param masters
-	 *            directories to process
-	 * @return map of content hashes and the associated files
+	 * @param toSearch
+	 *            collection of paths to search
+	 * @param grouper
+	 *            to add the hashes to
+	 * @param master
+	 *            true if the paths are master directories
+	 * @throws HashException
+	 *             if a file is not found, there is an error iterating over a
+	 *             directory or the grouper can't write its records
 	 */
-	public Map<ContentHash, Set<File>> createFromCache(Collection<Path> masters) {
-		Map<ContentHash, Set<File>> hashes = new HashMap<>();
-
-		if (masters == null) {
-			throw new IllegalArgumentException("Masters cannot be null");
-		}
+	public void create(Collection<Path> toSearch, ExternalGrouper grouper,
+			boolean master) throws HashException {
+		create(toSearch, grouper, master, new HashSet<>());
+	}
 
-		// To the Collection<Path> into a Collection<String>
-		// using the absolute path
-		Collection<String> masterPaths = new LinkedList<>();
-		for (Path path : masters) {
-			String absolutePath = path.toFile().getAbsolutePath();
+	/**
+	 * Process the toSearch paths and add the content hashes to the grouper
+	 * rather than keeping them in memory. Directories and files in visited
+	 * are skipped and the ones processed are added.
+	 * 
+	 * @param toSearch
+	 *            collection of paths to search
+	 * @param grouper
+	 *            to add the hashes to
+	 * @param master
+	 *            true if the paths are master directories
+	 * @param visited
+	 *            keys of the directories and files already processed
+	 * @throws HashException
+	 *             if a file is not found, there is an error iterating over a
+	 *             directory or the grouper can't write its records
+	 */
+	public void create(Collection<Path> toSearch, final ExternalGrouper grouper,
+			final boolean master, Set<Object> visited) throws HashException {
 
-			// Add the trailing / so it doesn't match things it shouldn't
-			masterPaths.add(absolutePath + File.separator);
+		if (toSearch == null) {
+			throw new IllegalArgumentException("toSearch cannot be null");
+		}
+		if (grouper == null) {
+			throw new IllegalArgumentException("grouper cannot be null");
+		}
+		if (visited == null) {
+			throw new IllegalArgumentException("visited cannot be null");
 		}
 
-		for (Map.Entry<String, FileHash> entry : cache.entrySet()) {
-			String absolutePath = entry.getKey();
-			FileHash fileHash = entry.getValue();
-
-			for (String path : masterPaths) {
-				// Is this item from the cache in the path?
-				if (absolutePath.startsWith(path)) {
-					ContentHash contentHash = fileHash.getContentHash();
-					Set<File> files = hashes.get(contentHash);
-					if (files == null) {
-						files = new HashSet<>();
-						hashes.put(contentHash, files);
+		for (Path path : toSearch) {
+			scan(path, visited, new ResultVisitor() {
+				@Override
+				public boolean visit(File file, FileHash fileHash)
+						throws HashException {
+					try {
+						grouper.add(file, fileHash.getContentHash(), master);
+					} catch (IOException e) {
+						throw new HashException(file,
+								"Could not add to the grouper", e);
 					}
-					files.add(new File(absolutePath));
-
-					// No need to check any more
-					break;
+					return true;
 				}
-			}
+			});
 		}
-		return hashes;
 	}
 
 	/**
-	 * Load the cache from the objectInputStream. The cache should have been
-	 * written with the corresponding writeCache method.
+	 * Process the toSearch paths, passing each file's hash to the visitor as
+	 * soon as it is found. Nothing is kept apart from the cache. The visitor
+	 * can stop the scan by returning false.
 	 * 
-	 * @param objectInputStream
-	 *            to read from
+	 * @param toSearch
+	 *            collection of paths to search
+	 * @param visitor
+	 *            is passed each hash
+	 * @return true if every path was processed, false if the visitor stopped
+	 *         the scan
+	 * @throws HashException
+	 *             if a file is not found, there is an error iterating over a
+	 *             directory or the visitor throws it
 	 */
-	public void loadCache(ObjectInputStream objectInputStream)
-			throws HashException, IOException {
-		String savedHashAlgorithm = objectInputStream.readUTF();
+	public boolean visit(Collection<Path> toSearch,
+			final FileHashVisitor visitor) throws HashException {
 
-		if (savedHashAlgorithm == null) {
-			throw new HashException(
-					"The hash algorithm is null.  Stream is malformed");
+		if (toSearch == null) {
+			throw new IllegalArgumentException("toSearch cannot be null");
 		}
-
-		int cacheSize = objectInputStream.readInt();
-		if (cacheSize < 0) {
-			throw new HashException("Caches in stream = " + cacheSize
-					+ ".  Stream is malformed");
+		if (visitor == null) {
+			throw new IllegalArgumentException("visitor cannot be null");
 		}
 
-		if (cacheSize > 0) {
-			for (int i = 0; i < cacheSize; i++) {
-				FileHash hash;
-				try {
-					hash = (FileHash) objectInputStream.readObject();
-				} catch (ClassNotFoundException e) {
-					throw new HashException("Stream is malformed", e);
-				}
-				cache.put(hash.getAbsolutePath(), hash);
+		ResultVisitor resultVisitor = new ResultVisitor() {
+			@Override
+			public boolean visit(File file, FileHash fileHash)
+					throws HashException {
+				return visitor.visit(fileHash);
+			}
+		};
+		Set<Object> visited = new HashSet<>();
+		for (Path path : toSearch) {
+			if (!scan(path, visited, resultVisitor)) {
+				return false;
 			}
 		}
+		return true;
 	}
 
 	/**
-	 * Write the caches so they can be read back using the loadCache
+	 * Process the toSearch paths on another thread. The hashes are read from
+	 * the returned iterator as they are found, the scan waits when the
+	 * consumer falls behind. Closing the iterator stops the scan.
 	 * 
-	 * @param objectOutputStream
-	 *            to write to
-	 * @return number of items in the cache
+	 * @param toSearch
+	 *            collection of paths to search
+	 * @return the iterator over the hashes
 	 */
-	public int writeCache(ObjectOutputStream objectOutputStream)
-			throws IOException {
-
-		objectOutputStream.writeUTF(hashAlgorithm);
-		objectOutputStream.writeInt(cache.size());
-		for (FileHash fileHash : cache.values()) {
-			objectOutputStream.writeObject(fileHash);
+	public FileHashIterator iterate(Collection<Path> toSearch) {
+		if (toSearch == null) {
+			throw new IllegalArgumentException("toSearch cannot be null");
 		}
-		return cache.size();
+		return new FileHashIterator(this, toSearch);
+	}
+
+	// Receives each file and its hash as a scan finds them, false to stop
+	private interface ResultVisitor {
+		boolean visit(File file, FileHash fileHash) throws HashException;
 	}
 
 	/**
-	 * Set the extensions to match
-	 * 
-	 * @param extensions
-	 *            to match, can be null to match all
+	 * Process the toSearch path and pass each matching file and its hash to
+	 * the visitor. Returns false if the visitor stopped the scan. Directories
+	 * and files in visited are not processed again, the ones processed are
+	 * added.
 	 */
-	public void setExtensionsToMatch(String[] extensions) {
-		if ((extensions == null) || (extensions.length == 0)) {
-			extensionsToMatch = null;
-		} else {
-			boolean first = true;
-			StringBuffer newExtensions = new StringBuffer();
+	private boolean scan(Path toSearch, Set<Object> visited,
+			ResultVisitor visitor) throws HashException {
 
-			for (String ext : extensions) {
-				if (ext == null) {
-					throw new IllegalArgumentException(
-							"Individual extensions cannot be null");
+		// A root that was listed twice or is inside an earlier root
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(toSearch,
+					BasicFileAttributes.class);
+			Object key = (attributes.isDirectory() ? directoryKey(toSearch,
+					attributes) : attributes.fileKey());
+			if ((key != null) && !visited.add(key)) {
+				if (verbose) {
+					System.out.println("Already processed - " + toSearch);
 				}
-				if (ext.length() == 0) {
-					throw new IllegalArgumentException(
-							"Individual extensions cannot be empty (Not supported)");
+				aliasesSkipped.incrementAndGet();
+				return true;
+			}
+		} catch (IOException e) {
+			// Let the processing loop report it
+		}
+
+		final Digests digests = createDigests();
+
+		// LinkedList of paths (both directories and files) to be processed.
+		LinkedList<Path> toProcess = new LinkedList<>();
+
+		// Files found while the cache is loading, looked up once it has
+		LinkedList<Path> deferred = new LinkedList<>();
+
+		// Attributes read when the paths were listed, until they are processed
+		Map<Path, BasicFileAttributes> queued = new HashMap<>();
+
+		MasterIndex index = this.masterIndex;
+
+		// Continue from where a checkpointed scan was stopped
+		Checkpoint checkpoint = this.checkpoint;
+		String root = toSearch.toFile().getAbsolutePath();
+		if ((checkpoint != null) && checkpoint.isFinished(root)) {
+			return addResumedHashes(toSearch, root, null, visitor);
+		}
+		List<String> frontier = (checkpoint == null ? null : checkpoint
+				.getFrontier(root));
+		if (frontier != null) {
+			for (String relative : frontier) {
+				toProcess.add(toSearch.resolve(relative));
+			}
+			if (!addResumedHashes(toSearch, root, toProcess, visitor)) {
+				return false;
+			}
+		} else {
+			toProcess.add(toSearch);
+		}
+
+		// Files that need reading are hashed on other threads, each with its
+		// own digests
+		HashScheduler<ReadJob> scheduler = null;
+		ExecutorService pool = null;
+		ThreadLocal<Digests> threadDigests = null;
+		Collection<Path> unprocessed = new Frontier(toProcess, deferred);
+		int scanThreads = threads;
+		if (scanThreads > 1) {
+			pool = acquireHashPool();
+			scheduler = new HashScheduler<>(pool, scanThreads);
+			threadDigests = new ThreadLocal<>();
+			unprocessed = new Frontier(unprocessed, scheduler.getPending());
+		}
+		if (checkpoint != null) {
+			checkpoint.started(root, unprocessed, hashAlgorithm);
+		}
+
+		try {
+			// The file system may contain many levels of directories so it
+			// not wise to use recursion
+			while (!toProcess.isEmpty() || !deferred.isEmpty()) {
+
+				// Look the deferred files up once the cache has loaded or
+				// there is nothing else to do
+				if (!deferred.isEmpty()
+						&& (toProcess.isEmpty() || !isCacheLoading())) {
+					awaitCache();
+					toProcess.addAll(0, deferred);
+					deferred.clear();
 				}
-				if (ext.contains(".")) {
-					throw new IllegalArgumentException(
-							"Individual extensions cannot contain periods (.)");
+				Path path = toProcess.removeFirst();
+
+				File file = path.toFile();
+
+				// Roots, resumed paths and entries that couldn't be read when
+				// they were listed are read now
+				BasicFileAttributes attributes = queued.remove(path);
+				if (attributes == null) {
+					attributes = readAttributes(path);
 				}
-				if (!first) {
-					newExtensions.append(".");
+
+				if (attributes == null) {
+					if (!ignoreFileNotFound) {
+						throw new HashException(file, "File does not exist - "
+								+ file);
+					}
+				} else if (attributes.isDirectory()) {
+					if (verbose) {
+						System.out.println("Processing directory - "
+								+ filesProcessed + "/" + toProcess.size()
+								+ " - " + file);
+					}
+					addDirectoryToProcess(toProcess, path, toSearch, index,
+							visited, queued);
+				} else if (cacheLoad != null) {
+					deferred.add(path);
+					queued.put(path, attributes);
+				} else {
+					String absolutePath = file.getAbsolutePath();
+					FileHash cachedHash = cache.get(absolutePath);
+
+					// Checked against the attributes already read rather than
+					// the file system again
+					long length = attributes.size();
+					boolean valid = (cachedHash != null)
+							&& cachedHash.isValidFor(absolutePath, length,
+									attributes.lastModifiedTime().toMillis());
+
+					ContentHash.Strength strength = scanStrength(length);
+					boolean sample = (strength == ContentHash.Strength.SAMPLED);
+
+					// A full hash will do for a fingerprint if it has one
+					boolean fingerprinted = valid
+							&& (strength == ContentHash.Strength.FINGERPRINT)
+							&& (fingerprintOf(cachedHash) != null);
+
+					// A full hash will do for a sample if it has a sampled
+					// hash too
+					boolean sampled = valid && sample
+							&& (sampledOf(cachedHash) != null);
+
+					// If there is a valid cached hash then use it
+					boolean hit = fingerprinted || sampled
+							|| (valid && (cachedHash.getContentHash()
+									.getStrength() == strength));
+					if (hit) {
+						cacheHits.incrementAndGet();
+					}
+
+					// Fill in the extra algorithms while the file is here
+					boolean migrate = hit && migrating
+							&& (strength == ContentHash.Strength.FULL)
+							&& (missingExtras(cachedHash) > 0);
+
+					if (hit && !migrate) {
+						if (!finishFile(new Hashed(file, cachedHash, null),
+								index, checkpoint, visitor)) {
+							// Stopped, so the root isn't finished
+							return false;
+						}
+					} else if (scheduler == null) {
+						Hashed hashed = readHash(file, cachedHash, valid,
+								sample, strength, migrate, digests);
+						if (!finishFile(hashed, index, checkpoint, visitor)) {
+							return false;
+						}
+					} else {
+						scheduler.add(new ReadJob(path, file, length,
+								cachedHash, valid, sample, strength, migrate,
+								threadDigests));
+						if (!finishScheduled(scheduler, false, index,
+								checkpoint, visitor)) {
+							return false;
+						}
+					}
 				}
-				first = false;
-				newExtensions.append(ext.trim().toUpperCase());
 			}
-			extensionsToMatch = newExtensions.toString();
+
+			// The files still being hashed
+			if ((scheduler != null)
+					&& !finishScheduled(scheduler, true, index, checkpoint,
+							visitor)) {
+				return false;
+			}
+		} finally {
+			if (scheduler != null) {
+				scheduler.close();
+				releaseHashPool(pool);
+			}
+		}
+
+		if (checkpoint != null) {
+			try {
+				checkpoint.finished(root);
+			} catch (IOException e) {
+				throw new HashException(toSearch.toFile(),
+						"Could not save checkpoint", e);
+			}
 		}
+		return true;
 	}
 
-	/**
-	 * @return array of the extension to match
-	 */
-	public String[] getExtensionsToMatch() {
-		String[] array;
-		if (extensionsToMatch == null) {
-			array = new String[0];
-		} else {
-			array = extensionsToMatch.split("\\.");
+	// The hash a scan passes on for a file and the hash it cached, if any
+	private static final class Hashed {
+		final File file;
+		final FileHash fileHash;
+		final FileHash newHash;
+
+		Hashed(File file, FileHash fileHash, FileHash newHash) {
+			this.file = file;
+			this.fileHash = fileHash;
+			this.newHash = newHash;
 		}
-		return array;
 	}
 
-	/**
-	 * Match all extensions
-	 */
-	public void matchAllExtensions() {
-		extensionsToMatch = null;
+	// The message digests a thread hashes with and its read buffer
+	private static final class Digests {
+		final MessageDigest md;
+		final MessageDigest[] extras;
+		final boolean chained;
+		final MessageDigest fingerprint = new Fingerprint64();
+		final byte[] buffer = new byte[64 * 1024];
+
+		Digests(MessageDigest md, MessageDigest[] extras, boolean chained) {
+			this.md = md;
+			this.extras = extras;
+			this.chained = chained;
+		}
 	}
 
-	/**
-	 * @return the hashAlgorithm
+	// Digests for the hash algorithm and the extra algorithms
+	private Digests createDigests() throws HashException {
+		MessageDigest[] extras = new MessageDigest[extraAlgorithms.length];
+		try {
+			MessageDigest md = ChainedDigest.getDigest(hashAlgorithm);
+			for (int i = 0; i < extras.length; i++) {
+				extras[i] = MessageDigest.getInstance(extraAlgorithms[i]);
+			}
+			return new Digests(md, extras,
+					ChainedDigest.isChained(hashAlgorithm));
+		} catch (NoSuchAlgorithmException e) {
+			throw new HashException(e);
+		}
+	}
+
+	// A file read on one of the scheduler's threads
+	private final class ReadJob extends HashScheduler.Job {
+		private final File file;
+		private final FileHash cachedHash;
+		private final boolean valid;
+		private final boolean sample;
+		private final ContentHash.Strength strength;
+		private final boolean migrate;
+		private final ThreadLocal<Digests> threadDigests;
+		private Hashed hashed;
+
+		ReadJob(Path path, File file, long length, FileHash cachedHash,
+				boolean valid, boolean sample, ContentHash.Strength strength,
+				boolean migrate, ThreadLocal<Digests> threadDigests) {
+			super(path, length);
+			this.file = file;
+			this.cachedHash = cachedHash;
+			this.valid = valid;
+			this.sample = sample;
+			this.strength = strength;
+			this.migrate = migrate;
+			this.threadDigests = threadDigests;
+		}
+
+		@Override
+		void run() throws HashException {
+			Digests digests = threadDigests.get();
+			if (digests == null) {
+				digests = createDigests();
+				threadDigests.set(digests);
+			}
+			hashed = readHash(file, cachedHash, valid, sample, strength,
+					migrate, digests);
+		}
+	}
+
+	// Pass on the scheduled files that have finished, false if the visitor
+	// stopped the scan. Only waits for them if all is true or the scheduler
+	// is full.
+	private boolean finishScheduled(HashScheduler<ReadJob> scheduler,
+			boolean all, MasterIndex index, Checkpoint checkpoint,
+			ResultVisitor visitor) throws HashException {
+		ReadJob job;
+		while ((job = ((all || scheduler.isFull()) ? scheduler.next()
+				: scheduler.poll())) != null) {
+			if (!finishFile(job.hashed, index, checkpoint, visitor)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Read the file for the hash a scan wants and cache it. Safe to call
+	// from several threads with their own digests.
+	private Hashed readHash(File file, FileHash cachedHash, boolean valid,
+			boolean sample, ContentHash.Strength strength, boolean migrate,
+			Digests digests) throws HashException {
+		String absolutePath = file.getAbsolutePath();
+		FileHash fileHash;
+		FileHash newHash = null;
+		try {
+			if (migrate) {
+				newHash = addExtras(file, cachedHash, digests);
+				fileHash = newHash;
+				hashesMigrated.incrementAndGet();
+			} else if (sample) {
+				ContentHash sampled = SampledDigest.hash(file, digests.md,
+						throttle);
+				if (valid && cachedHash.getContentHash().isFull()) {
+					// Keep the full hash with its sampled hash
+					newHash = cachedHash.withOtherHashes(Collections
+							.singletonMap(sampledName(), new ContentHash(
+									sampled.getDigest())));
+				} else {
+					newHash = new FileHash(file, sampled);
+				}
+				fileHash = newHash;
+			} else if (strength == ContentHash.Strength.FINGERPRINT) {
+				ContentHash fingerprint = MultiDigest.hash(file,
+						new MessageDigest[] { digests.fingerprint }, throttle,
+						digests.buffer)[0];
+				if (valid && cachedHash.getContentHash().isFull()) {
+					// Keep the full hash with its fingerprint
+					newHash = cachedHash.withOtherHashes(Collections
+							.singletonMap(Fingerprint64.ALGORITHM, fingerprint));
+				} else {
+					newHash = new FileHash(file, new ContentHash(
+							fingerprint.getDigest(),
+							ContentHash.Strength.FINGERPRINT));
+				}
+				fileHash = newHash;
+			} else {
+				newHash = hashFile(file, cachedHash, digests);
+				fileHash = newHash;
+			}
+		} catch (IOException e) {
+			throw new HashException(file,
+					"Could not create content hash for file - " + file);
+		}
+
+		// Add (or replace) cache entry
+		if (newHash != null) {
+			cache.put(absolutePath, newHash);
+			modified(absolutePath);
+		}
+		return new Hashed(file, fileHash, newHash);
+	}
+
+	// Count, checkpoint and pass on the file's hash, false if the visitor
+	// stopped the scan
+	private boolean finishFile(Hashed hashed, MasterIndex index,
+			Checkpoint checkpoint, ResultVisitor visitor) throws HashException {
+		filesProcessed.incrementAndGet();
+
+		if ((checkpoint != null) && (hashed.newHash != null)) {
+			try {
+				checkpoint.hashed(hashed.newHash);
+			} catch (IOException e) {
+				throw new HashException(hashed.file,
+						"Could not save checkpoint", e);
+			}
+		}
+
+		// Grouped by the fingerprint
+		FileHash fileHash = groupingFileHash(hashed.fileHash);
+		if ((index != null) && !index.mightContain(fileHash.getContentHash())) {
+			// Not a master's hash
+			masterIndexSkips.incrementAndGet();
+			return true;
+		}
+		return visitor.visit(hashed.file, fileHash);
+	}
+
+	// The paths a checkpoint saves, the ones waiting to be processed and the
+	// files waiting for the cache or to be hashed
+	private static final class Frontier extends AbstractCollection<Path> {
+		private final Collection<Path> toProcess;
+		private final Collection<Path> pending;
+
+		Frontier(Collection<Path> toProcess, Collection<Path> pending) {
+			this.toProcess = toProcess;
+			this.pending = pending;
+		}
+
+		@Override
+		public Iterator<Path> iterator() {
+			List<Path> all = new ArrayList<>(toProcess);
+			all.addAll(pending);
+			return all.iterator();
+		}
+
+		@Override
+		public int size() {
+			return toProcess.size() + pending.size();
+		}
+	}
+
+	/**
+	 * Create a full hash of the file with the extra algorithms. A chained hash
+	 * of a file that has grown only reads what was appended.
+	 */
+	private FileHash hashFile(File file, FileHash cachedHash, Digests digests)
+			throws IOException {
+		MessageDigest md = digests.md;
+		MessageDigest[] extras = digests.extras;
+		if (!digests.chained) {
+			// One read for all of the algorithms
+			MessageDigest[] all = new MessageDigest[extras.length + 1];
+			all[0] = md;
+			System.arraycopy(extras, 0, all, 1, extras.length);
+			ContentHash[] hashes = MultiDigest.hash(file, all, throttle,
+					digests.buffer);
+			if (extras.length == 0) {
+				return new FileHash(file, hashes[0]);
+			}
+			Map<String, ContentHash> others = new HashMap<>();
+			for (int i = 0; i < extras.length; i++) {
+				others.put(extraAlgorithms[i], hashes[i + 1]);
+			}
+			return new FileHash(file, hashes[0]).withOtherHashes(others);
+		}
+		FileHash newHash = null;
+		if ((cachedHash != null) && cachedHash.getContentHash().isFull()) {
+			newHash = ChainedDigest.resume(file, md, throttle, cachedHash);
+		}
+		if (newHash != null) {
+			appendsRehashed.incrementAndGet();
+		} else {
+			newHash = ChainedDigest.hash(file, md, throttle);
+		}
+
+		// The chain is not a plain digest so the extras need their own read
+		if (extras.length > 0) {
+			newHash = addExtras(file, newHash, digests);
+		}
+		return newHash;
+	}
+
+	// The path's attributes, following links, or null if it can't be read
+	private static BasicFileAttributes readAttributes(Path path) {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Identify a directory however it was reached. The file system's key is
+	 * used when it has one, otherwise the real path.
+	 */
+	private static Object directoryKey(Path path, BasicFileAttributes attributes) {
+		Object key = attributes.fileKey();
+		if (key != null) {
+			return key;
+		}
+		return realPath(path).toString();
+	}
+
+	// The path with links resolved or the normalized absolute path if it can't
+	// be resolved
+	private static Path realPath(Path path) {
+		try {
+			return path.toRealPath();
+		} catch (IOException e) {
+			return path.toAbsolutePath().normalize();
+		}
+	}
+
+	/**
+	 * Remove the roots that are the same as or inside another root so nothing
+	 * is scanned twice. Links are resolved before the roots are compared.
+	 * 
+	 * @param roots
+	 *            to collapse
+	 * @return the roots that are not inside another, in the same order
+	 */
+	public static List<Path> collapseRoots(Collection<Path> roots) {
+		if (roots == null) {
+			throw new IllegalArgumentException("roots cannot be null");
+		}
+		List<Path> collapsed = new ArrayList<>();
+		List<Path> kept = new ArrayList<>();
+		for (Path root : roots) {
+			Path real = realPath(root);
+			boolean nested = false;
+			for (int i = 0; i < kept.size(); i++) {
+				if (real.startsWith(kept.get(i))) {
+					nested = true;
+					break;
+				}
+				if (kept.get(i).startsWith(real)) {
+					// Replaces the root inside it
+					kept.remove(i);
+					collapsed.remove(i);
+					i--;
+				}
+			}
+			if (!nested) {
+				kept.add(real);
+				collapsed.add(root);
+			}
+		}
+		return collapsed;
+	}
+
+	/**
+	 * @param roots
+	 *            to check
+	 * @param others
+	 *            roots to compare with
+	 * @return the roots that are not the same directory as one of the others
+	 */
+	public static List<Path> removeSame(Collection<Path> roots,
+			Collection<Path> others) {
+		if (roots == null) {
+			throw new IllegalArgumentException("roots cannot be null");
+		}
+		if (others == null) {
+			throw new IllegalArgumentException("others cannot be null");
+		}
+		Set<Path> realOthers = new HashSet<>();
+		for (Path other : others) {
+			realOthers.add(realPath(other));
+		}
+		List<Path> kept = new ArrayList<>();
+		for (Path root : roots) {
+			if (!realOthers.contains(realPath(root))) {
+				kept.add(root);
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * @param fileHash
+	 *            cached hash of a file
+	 * @return the hash the file is grouped by. A file that is sampled is
+	 *         grouped by its sampled hash if it has one and with two tiers a
+	 *         file is grouped by its fingerprint if it has one, otherwise by
+	 *         the content hash.
+	 */
+	ContentHash groupingHash(FileHash fileHash) {
+		if (isSampled(fileHash.getLength())) {
+			ContentHash sampled = sampledOf(fileHash);
+			if (sampled != null) {
+				return sampled;
+			}
+		}
+		if (twoTier) {
+			ContentHash fingerprint = fingerprintOf(fileHash);
+			if (fingerprint != null) {
+				return fingerprint;
+			}
+		}
+		return fileHash.getContentHash();
+	}
+
+	// The FileHash with the hash the file is grouped by as its content hash
+	private FileHash groupingFileHash(FileHash fileHash) {
+		ContentHash contentHash = groupingHash(fileHash);
+		if (contentHash == fileHash.getContentHash()) {
+			return fileHash;
+		}
+		return new FileHash(fileHash.getAbsolutePath(), contentHash,
+				fileHash.getLength(), fileHash.getLastModifiedMillis());
+	}
+
+	// True if files of the length are grouped by a sampled hash
+	private boolean isSampled(long length) {
+		return (sampledAbove > 0) && (length >= sampledAbove);
+	}
+
+	/**
+	 * @param length
+	 *            of a file
+	 * @return the strength of the hash a scan groups a file of the length by.
+	 *         Large files are only sampled in sampled mode and the rest are
+	 *         fingerprinted with two tiers.
+	 */
+	ContentHash.Strength scanStrength(long length) {
+		if (isSampled(length)) {
+			return ContentHash.Strength.SAMPLED;
+		}
+		return (twoTier ? ContentHash.Strength.FINGERPRINT
+				: ContentHash.Strength.FULL);
+	}
+
+	// The name the sampled hash is kept under next to a full hash
+	private String sampledName() {
+		return SampledDigest.ALGORITHM_PREFIX + hashAlgorithm;
+	}
+
+	// The sampled hash of the file or null if it doesn't have one
+	private ContentHash sampledOf(FileHash fileHash) {
+		ContentHash contentHash = fileHash.getContentHash();
+		if (contentHash.getStrength() == ContentHash.Strength.SAMPLED) {
+			return contentHash;
+		}
+		ContentHash other = fileHash.getOtherHash(sampledName());
+		if (other == null) {
+			return null;
+		}
+		return new ContentHash(other.getDigest(), ContentHash.Strength.SAMPLED);
+	}
+
+	/**
+	 * Give a cached hash of a file that is sampled the sampled hash it is
+	 * grouped by, so a cached master that was fully hashed can match sampled
+	 * test files. The file is only read if it is unchanged, the new hash is
+	 * cached.
+	 * 
+	 * @param fileHash
+	 *            cached hash of a file
+	 * @return the hash with a sampled hash or fileHash if it has one, isn't
+	 *         sampled or can't be read
+	 */
+	FileHash withSampledHash(FileHash fileHash) {
+		if (!isSampled(fileHash.getLength()) || (sampledOf(fileHash) != null)
+				|| !fileHash.getContentHash().isFull()) {
+			return fileHash;
+		}
+		File file = new File(fileHash.getAbsolutePath());
+		if (!fileHash.isValidForFile(file)) {
+			return fileHash;
+		}
+		FileHash newHash;
+		try {
+			ContentHash sampled = SampledDigest.hash(file,
+					ChainedDigest.getDigest(hashAlgorithm), throttle);
+			newHash = fileHash.withOtherHashes(Collections.singletonMap(
+					sampledName(), new ContentHash(sampled.getDigest())));
+		} catch (IOException | NoSuchAlgorithmException e) {
+			// Left to match only full hashes
+			return fileHash;
+		}
+		String absolutePath = fileHash.getAbsolutePath();
+		if (cache.replace(absolutePath, fileHash, newHash)) {
+			modified(absolutePath);
+		}
+		return newHash;
+	}
+
+	// The fingerprint of the file or null if it doesn't have one
+	private static ContentHash fingerprintOf(FileHash fileHash) {
+		ContentHash contentHash = fileHash.getContentHash();
+		if (contentHash.getStrength() == ContentHash.Strength.FINGERPRINT) {
+			return contentHash;
+		}
+		ContentHash other = fileHash.getOtherHash(Fingerprint64.ALGORITHM);
+		if (other == null) {
+			return null;
+		}
+		return new ContentHash(other.getDigest(),
+				ContentHash.Strength.FINGERPRINT);
+	}
+
+	/**
+	 * Replace the fingerprints that more than one file shares with content
+	 * hashes from the hash algorithm. Only these files are read with the
+	 * strong digest, usually just after the scan so they are likely to still
+	 * be in the page cache. A fingerprint with one file is left as it is since
+	 * the file can't be a duplicate. The strong hashes are cached with the
+	 * fingerprints.
+	 * 
+	 * @param maps
+	 *            content hashes and their files, such as the tests and the
+	 *            masters. A fingerprint is shared if the maps have more than
+	 *            one file for it between them.
+	 * @return the number of files given a strong hash
+	 * @throws HashException
+	 *             if a file can't be hashed
+	 */
+	public int confirmFingerprints(Collection<Map<ContentHash, Set<File>>> maps)
+			throws HashException {
+		if (maps == null) {
+			throw new IllegalArgumentException("maps cannot be null");
+		}
+
+		Map<ContentHash, Integer> counts = new HashMap<>();
+		for (Map<ContentHash, Set<File>> map : maps) {
+			for (Map.Entry<ContentHash, Set<File>> entry : map.entrySet()) {
+				if (entry.getKey().getStrength() == ContentHash.Strength.FINGERPRINT) {
+					Integer count = counts.get(entry.getKey());
+					counts.put(entry.getKey(), (count == null ? 0 : count)
+							+ entry.getValue().size());
+				}
+			}
+		}
+
+		Digests digests = createDigests();
+
+		int confirmed = 0;
+		for (Map<ContentHash, Set<File>> map : maps) {
+			for (ContentHash fingerprint : new ArrayList<>(map.keySet())) {
+				Integer count = counts.get(fingerprint);
+				if ((count == null) || (count < 2)) {
+					continue;
+				}
+				for (File file : map.remove(fingerprint)) {
+					ContentHash contentHash = strongHash(file, digests);
+					Set<File> files = map.get(contentHash);
+					if (files == null) {
+						files = new HashSet<>();
+						map.put(contentHash, files);
+					}
+					files.add(file);
+					confirmed++;
+				}
+			}
+		}
+		return confirmed;
+	}
+
+	/**
+	 * Get the full content hash of one file, from the cache if it has a valid
+	 * one, otherwise by reading the file and caching its hash.
+	 * 
+	 * @param file
+	 *            to hash
+	 * @return the file's full content hash
+	 * @throws HashException
+	 *             if the file does not exist or can't be read
+	 */
+	public ContentHash fullHash(File file) throws HashException {
+		if (file == null) {
+			throw new IllegalArgumentException("file cannot be null");
+		}
+		if (!file.isFile()) {
+			throw new HashException(file, "File does not exist - " + file);
+		}
+		waitForCache();
+		return strongHash(file, createDigests());
+	}
+
+	// The full content hash of the file from the cache or by hashing it
+	private ContentHash strongHash(File file, Digests digests)
+			throws HashException {
+		String absolutePath = file.getAbsolutePath();
+		FileHash cachedHash = cache.get(absolutePath);
+		boolean valid = (cachedHash != null)
+				&& cachedHash.isValidForFile(file);
+		if (valid && cachedHash.getContentHash().isFull()) {
+			return cachedHash.getContentHash();
+		}
+
+		FileHash newHash;
+		try {
+			newHash = hashFile(file, cachedHash, digests);
+		} catch (IOException e) {
+			throw new HashException(file,
+					"Could not create content hash for file - " + file);
+		}
+
+		// Keep the fingerprint and sampled hash so the file is still grouped
+		// by them
+		ContentHash fingerprint = (valid ? fingerprintOf(cachedHash) : null);
+		if (fingerprint != null) {
+			newHash = newHash.withOtherHashes(Collections.singletonMap(
+					Fingerprint64.ALGORITHM,
+					new ContentHash(fingerprint.getDigest())));
+		}
+		ContentHash sampled = (valid ? sampledOf(cachedHash) : null);
+		if (sampled != null) {
+			newHash = newHash.withOtherHashes(Collections.singletonMap(
+					sampledName(), new ContentHash(sampled.getDigest())));
+		}
+		cache.put(absolutePath, newHash);
+		modified(absolutePath);
+		fingerprintsConfirmed.incrementAndGet();
+		return newHash.getContentHash();
+	}
+
+	// Count the extra algorithms that the hash does not have
+	private int missingExtras(FileHash fileHash) {
+		int missing = 0;
+		for (String algorithm : extraAlgorithms) {
+			if (fileHash.getOtherHash(algorithm) == null) {
+				missing++;
+			}
+		}
+		return missing;
+	}
+
+	// Read the file once to add the missing extra algorithms to the hash
+	private FileHash addExtras(File file, FileHash fileHash, Digests digests)
+			throws IOException {
+		MessageDigest[] extras = digests.extras;
+		List<MessageDigest> missing = new ArrayList<>();
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < extras.length; i++) {
+			if (fileHash.getOtherHash(extraAlgorithms[i]) == null) {
+				missing.add(extras[i]);
+				names.add(extraAlgorithms[i]);
+			}
+		}
+		ContentHash[] hashes = MultiDigest.hash(file,
+				missing.toArray(new MessageDigest[missing.size()]), throttle,
+				digests.buffer);
+		Map<String, ContentHash> others = new HashMap<>();
+		for (int i = 0; i < hashes.length; i++) {
+			others.put(names.get(i), hashes[i]);
+		}
+		return fileHash.withOtherHashes(others);
+	}
+
+	/**
+	 * Add the hashes of files in root that a resumed scan had already
+	 * processed. They are taken from the cache if they are still valid.
+	 * 
+	 * @param toSearch
+	 *            the root as given to create
+	 * @param root
+	 *            absolute path of the root
+	 * @param frontier
+	 *            paths that were still to be processed or null if the root
+	 *            was finished
+	 * @param visitor
+	 *            is passed the hashes
+	 * @return false if the visitor stopped the scan
+	 */
+	private boolean addResumedHashes(Path toSearch, String root,
+			Collection<Path> frontier, ResultVisitor visitor)
+			throws HashException {
+		awaitCache();
+		String rootPrefix = root + File.separator;
+		MasterIndex index = this.masterIndex;
+
+		// Files in these have not been processed yet
+		List<String> unprocessed = new ArrayList<>();
+		if (frontier != null) {
+			for (Path path : frontier) {
+				unprocessed.add(path.toFile().getAbsolutePath());
+			}
+		}
+
+		for (Map.Entry<String, FileHash> entry : cache.entrySet()) {
+			String absolutePath = entry.getKey();
+			if (!absolutePath.startsWith(rootPrefix)) {
+				continue;
+			}
+			boolean processed = true;
+			for (String path : unprocessed) {
+				// Add the trailing / so it doesn't match things it shouldn't
+				if (absolutePath.equals(path)
+						|| absolutePath.startsWith(path + File.separator)) {
+					processed = false;
+					break;
+				}
+			}
+			Path relative = Paths.get(absolutePath.substring(rootPrefix
+					.length()));
+			File file = toSearch.resolve(relative).toFile();
+			FileHash fileHash = groupingFileHash(entry.getValue());
+			if (processed
+					&& filter.accept(toSearch, relative, fileHash.getLength())
+					&& fileHash.isValidForFile(file)
+					&& ((index == null) || index.mightContain(fileHash
+							.getContentHash()))) {
+				cacheHits.incrementAndGet();
+				filesProcessed.incrementAndGet();
+				if (!visitor.visit(file, fileHash)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Process the master directories using the current cache and return a map
+	 * of content hashes.
+	 * 
+	 * @param masters
+	 *            directories to process
+	 * @return map of content hashes and the associated files
+	 */
+	public Map<ContentHash, Set<File>> createFromCache(Collection<Path> masters) {
+		return createFromCache(masters, (Set<ContentHash>) null);
+	}
+
+	/**
+	 * Process the master directories using the current cache and return a map
+	 * of the content hashes that are wanted.
+	 * 
+	 * @param masters
+	 *            directories to process
+	 * @param wanted
+	 *            content hashes to return or null for all of them
+	 * @return map of content hashes and the associated files
+	 */
+	public Map<ContentHash, Set<File>> createFromCache(
+			Collection<Path> masters, Set<ContentHash> wanted) {
+		Map<ContentHash, Set<File>> hashes = new HashMap<>();
+
+		if (masters == null) {
+			throw new IllegalArgumentException("Masters cannot be null");
+		}
+		waitForCache();
+
+		// To the Collection<Path> into a Collection<String>
+		// using the absolute path
+		Collection<String> masterPaths = new LinkedList<>();
+		for (Path path : masters) {
+			String absolutePath = path.toFile().getAbsolutePath();
+
+			// Add the trailing / so it doesn't match things it shouldn't
+			masterPaths.add(absolutePath + File.separator);
+		}
+
+		for (Map.Entry<String, FileHash> entry : cache.entrySet()) {
+			String absolutePath = entry.getKey();
+			for (String path : masterPaths) {
+				// Is this item from the cache in the path?
+				if (absolutePath.startsWith(path)) {
+					ContentHash contentHash = groupingHash(withSampledHash(entry
+							.getValue()));
+					if ((wanted != null) && !wanted.contains(contentHash)) {
+						break;
+					}
+					Set<File> files = hashes.get(contentHash);
+					if (files == null) {
+						files = new HashSet<>();
+						hashes.put(contentHash, files);
+					}
+					files.add(new File(absolutePath));
+
+					// No need to check any more
+					break;
+				}
+			}
+		}
+		return hashes;
+	}
+
+	/**
+	 * Add the cached hashes of the files in the master directories to the
+	 * grouper.
+	 * 
+	 * @param masters
+	 *            directories to process
+	 * @param grouper
+	 *            to add the master hashes to
+	 * @throws HashException
+	 *             if the grouper can't write its records
+	 */
+	public void createFromCache(Collection<Path> masters,
+			ExternalGrouper grouper) throws HashException {
+		if (masters == null) {
+			throw new IllegalArgumentException("Masters cannot be null");
+		}
+		if (grouper == null) {
+			throw new IllegalArgumentException("grouper cannot be null");
+		}
+		waitForCache();
+
+		// Add the trailing / so it doesn't match things it shouldn't
+		Collection<String> masterPaths = new LinkedList<>();
+		for (Path path : masters) {
+			masterPaths.add(path.toFile().getAbsolutePath() + File.separator);
+		}
+
+		for (FileHash fileHash : cache.values()) {
+			String absolutePath = fileHash.getAbsolutePath();
+			for (String path : masterPaths) {
+				if (absolutePath.startsWith(path)) {
+					File file = new File(absolutePath);
+					try {
+						grouper.add(file,
+								groupingHash(withSampledHash(fileHash)), true);
+					} catch (IOException e) {
+						throw new HashException(file,
+								"Could not add to the grouper", e);
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Load the cache from the objectInputStream. The cache should have been
+	 * written with the corresponding writeCache method.
+	 * 
+	 * When the cache already has a hash for a file, the hash with the newest
+	 * lastModified is kept. If they are as new the one already in the cache is
+	 * kept.
+	 * 
+	 * @param objectInputStream
+	 *            to read from
+	 * @throws HashException
+	 *             if the stream is malformed or was written with a different
+	 *             hash algorithm
+	 */
+	public void loadCache(ObjectInputStream objectInputStream)
+			throws HashException, IOException {
+		CacheLoader loader = new CacheLoader(this);
+		readCache(objectInputStream, loader);
+		if (loader.isRejected()) {
+			throw new HashException("The cache was written with "
+					+ loader.getHashAlgorithm() + " but the hash algorithm is "
+					+ hashAlgorithm);
+		}
+		loader.reportPromoted();
+	}
+
+	/**
+	 * Make hashes written with another algorithm use the hash algorithm. Hashes
+	 * that do not also have a full hash with the hash algorithm are left out
+	 * so the files will be hashed again. Hashes with different algorithms are
+	 * never mixed.
+	 * 
+	 * @param savedHashAlgorithm
+	 *            the hashes were written with
+	 * @param hashes
+	 *            to promote
+	 * @return the hashes with the hash algorithm or null if there were hashes
+	 *         but none could be promoted
+	 */
+	List<FileHash> promote(String savedHashAlgorithm,
+			Collection<FileHash> hashes) {
+		if (savedHashAlgorithm.equals(hashAlgorithm)) {
+			return new ArrayList<>(hashes);
+		}
+		List<FileHash> promoted = new ArrayList<>();
+		for (FileHash fileHash : hashes) {
+			FileHash promotedHash = promote(savedHashAlgorithm, fileHash);
+			if (promotedHash != null) {
+				promoted.add(promotedHash);
+			}
+		}
+		if (promoted.isEmpty() && !hashes.isEmpty()) {
+			return null;
+		}
+		if (verbose) {
+			System.out.println("Promoted " + promoted.size() + " of "
+					+ hashes.size() + " hashes from " + savedHashAlgorithm
+					+ " to " + hashAlgorithm);
+		}
+		return promoted;
+	}
+
+	/**
+	 * Make a hash written with another algorithm use the hash algorithm.
+	 * 
+	 * @param savedHashAlgorithm
+	 *            the hash was written with
+	 * @param fileHash
+	 *            to promote
+	 * @return the hash with the hash algorithm or null if it does not also
+	 *         have a full hash with the hash algorithm
+	 */
+	FileHash promote(String savedHashAlgorithm, FileHash fileHash) {
+		if (savedHashAlgorithm.equals(hashAlgorithm)) {
+			return fileHash;
+		}
+		return fileHash.promote(savedHashAlgorithm, hashAlgorithm);
+	}
+
+	/**
+	 * Read a cache written by writeCache without loading it.
+	 * 
+	 * @param objectInputStream
+	 *            to read from
+	 * @param hashes
+	 *            the cached hashes are added to this
+	 * @return the hash algorithm the cache was written with
+	 * @throws HashException
+	 *             if the stream is malformed
+	 */
+	static String readCache(ObjectInputStream objectInputStream,
+			Collection<FileHash> hashes) throws HashException, IOException {
+		return readCache(objectInputStream, CacheFile.collect(hashes));
+	}
+
+	/**
+	 * Read a cache written by writeCache, passing each hash to the visitor as
+	 * it is read.
+	 * 
+	 * @param objectInputStream
+	 *            to read from
+	 * @param visitor
+	 *            is passed the hash algorithm and then the cached hashes,
+	 *            reading stops if it returns false
+	 * @return the hash algorithm the cache was written with
+	 * @throws HashException
+	 *             if the stream is malformed
+	 */
+	static String readCache(ObjectInputStream objectInputStream,
+			CacheVisitor visitor) throws HashException, IOException {
+		String savedHashAlgorithm = objectInputStream.readUTF();
+
+		if (savedHashAlgorithm == null) {
+			throw new HashException(
+					"The hash algorithm is null.  Stream is malformed");
+		}
+
+		int cacheSize = objectInputStream.readInt();
+		if (cacheSize < 0) {
+			throw new HashException("Caches in stream = " + cacheSize
+					+ ".  Stream is malformed");
+		}
+		visitor.start(savedHashAlgorithm);
+
+		if (cacheSize > 0) {
+			for (int i = 0; i < cacheSize; i++) {
+				FileHash hash;
+				try {
+					hash = (FileHash) objectInputStream.readObject();
+				} catch (ClassNotFoundException e) {
+					throw new HashException("Stream is malformed", e);
+				}
+				if (!visitor.visit(hash)) {
+					break;
+				}
+			}
+		}
+		return savedHashAlgorithm;
+	}
+
+	/**
+	 * Add the hash to the cache unless the cache already has a hash for the
+	 * file with the same or a newer lastModified. If the cached hash is equal
+	 * it gains the other hashes it doesn't have. This does not count as a
+	 * modification of the cache.
+	 * 
+	 * @param fileHash
+	 *            to add, must have been created with the hash algorithm
+	 * @return true if the hash was added or the cached hash gained other
+	 *         hashes
+	 */
+	public boolean mergeIntoCache(FileHash fileHash) {
+		if (fileHash == null) {
+			throw new IllegalArgumentException("fileHash cannot be null");
+		}
+		waitForCache();
+		String absolutePath = fileHash.getAbsolutePath();
+		long lastModified = fileHash.getLastModified().getTime();
+		while (true) {
+			FileHash existing = cache.get(absolutePath);
+			if (existing == null) {
+				if (cache.putIfAbsent(absolutePath, fileHash) == null) {
+					return true;
+				}
+			} else if (existing.equals(fileHash)) {
+				FileHash combined = existing.withOtherHashesOf(fileHash);
+				if (combined == existing) {
+					return false;
+				}
+				if (cache.replace(absolutePath, existing, combined)) {
+					return true;
+				}
+			} else if (existing.getLastModified().getTime() >= lastModified) {
+				return false;
+			} else if (cache.replace(absolutePath, existing, fileHash)) {
+				return true;
+			}
+			// Changed by another thread, try again
+		}
+	}
+
+	/**
+	 * Add a hash saved by a checkpoint. Unlike mergeIntoCache it counts as a
+	 * modification since the hash has not been saved to a cache yet.
+	 * 
+	 * @param fileHash
+	 *            to add
+	 */
+	void resumed(FileHash fileHash) {
+		if (mergeIntoCache(fileHash)) {
+			modified(fileHash.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Add the hash of a file that was hashed outside a scan, such as a file
+	 * the IngestGate copied. It counts as a modification of the cache.
+	 * 
+	 * @param fileHash
+	 *            to add
+	 */
+	void cacheHash(FileHash fileHash) {
+		waitForCache();
+		String absolutePath = fileHash.getAbsolutePath();
+		cache.put(absolutePath, fileHash);
+		modified(absolutePath);
+	}
+
+	/**
+	 * @param absolutePath
+	 *            of the file
+	 * @return the cached hash for the file or null if there is none
+	 */
+	public FileHash getCachedHash(String absolutePath) {
+		waitForCache();
+		return cache.get(absolutePath);
+	}
+
+	/**
+	 * Write the caches so they can be read back using the loadCache
+	 * 
+	 * @param objectOutputStream
+	 *            to write to
+	 * @return number of items in the cache
+	 */
+	public int writeCache(ObjectOutputStream objectOutputStream)
+			throws IOException {
+		waitForCache();
+		return writeCache(objectOutputStream, cache.values());
+	}
+
+	/**
+	 * Write some of the cached hashes so they can be read back using the
+	 * loadCache
+	 * 
+	 * @param objectOutputStream
+	 *            to write to
+	 * @param fileHashes
+	 *            cached hashes to write
+	 * @return number of items written
+	 */
+	public int writeCache(ObjectOutputStream objectOutputStream,
+			Collection<FileHash> fileHashes) throws IOException {
+		return writeCache(objectOutputStream, hashAlgorithm, fileHashes);
+	}
+
+	/**
+	 * Write cached hashes so they can be read back using the loadCache
+	 * 
+	 * @param objectOutputStream
+	 *            to write to
+	 * @param hashAlgorithm
+	 *            the hashes were created with
+	 * @param fileHashes
+	 *            cached hashes to write
+	 * @return number of items written
+	 */
+	static int writeCache(ObjectOutputStream objectOutputStream,
+			String hashAlgorithm, Collection<FileHash> fileHashes)
+			throws IOException {
+
+		// Copy so the count matches even if the cache is being added to
+		List<FileHash> toWrite = new ArrayList<>(fileHashes);
+
+		objectOutputStream.writeUTF(hashAlgorithm);
+		objectOutputStream.writeInt(toWrite.size());
+		for (FileHash fileHash : toWrite) {
+			objectOutputStream.writeObject(fileHash);
+		}
+		return toWrite.size();
+	}
+
+	/**
+	 * @return read only view of the cached hashes
+	 */
+	public Collection<FileHash> getCachedHashes() {
+		waitForCache();
+		return Collections.unmodifiableCollection(cache.values());
+	}
+
+	/**
+	 * @return read only view of the directories holding the cache entries
+	 *         that have been added, replaced or removed since the creator was
+	 *         created. Loading a cache does not count as a modification.
+	 */
+	public Set<String> getModifiedDirectories() {
+		waitForCache();
+		return Collections.unmodifiableSet(modifiedDirectories);
+	}
+
+	/**
+	 * Take the paths removed from the cache since the last call, for a
+	 * writeShared that drops them from the file.
+	 * 
+	 * @return the removed paths, which are no longer remembered
+	 */
+	Set<String> takeRemovedPaths() {
+		synchronized (removedLock) {
+			Set<String> taken = removedPaths;
+			removedPaths = new HashSet<>();
+			return taken;
+		}
+	}
+
+	/**
+	 * Remember removed paths again after a writeShared that failed.
+	 * 
+	 * @param paths
+	 *            returned by takeRemovedPaths
+	 */
+	void restoreRemovedPaths(Set<String> paths) {
+		synchronized (removedLock) {
+			removedPaths.addAll(paths);
+		}
+	}
+
+	// Remember that the cache entry for the path was added, replaced or
+	// removed
+	private void modified(String absolutePath) {
+		String directory = new File(absolutePath).getParent();
+		if (directory != null) {
+			modifiedDirectories.add(directory);
+		}
+		cacheModified = true;
+	}
+
+	/**
+	 * Set the extensions to match
+	 * 
+	 * @param extensions
+	 *            to match, can be null to match all
+	 */
+	public void setExtensionsToMatch(String[] extensions) {
+		filter.setExtensions(extensions);
+	}
+
+	/**
+	 * @return array of the extension to match
+	 */
+	public String[] getExtensionsToMatch() {
+		return filter.getExtensions();
+	}
+
+	/**
+	 * Match all extensions
+	 */
+	public void matchAllExtensions() {
+		filter.setExtensions(null);
+	}
+
+	/**
+	 * @return the filter deciding which files and directories are processed
+	 */
+	public PathFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * @param filter
+	 *            decides which files and directories are processed
+	 */
+	public void setFilter(PathFilter filter) {
+		if (filter == null) {
+			throw new IllegalArgumentException("filter cannot be null");
+		}
+		this.filter = filter;
+	}
+
+	/**
+	 * @return the hashAlgorithm
 	 */
 	public String getHashAlgorithm() {
 		return hashAlgorithm;
 	}
 
 	/**
+	 * Cached hashes with the old algorithm are promoted to the new one if they
+	 * have it as an extra hash and are removed if they do not.
+	 * 
 	 * @param hashAlgorithm
 	 *            the hashAlgorithm to set
 	 */
@@ -418,27 +1883,498 @@ public class HashCreator {
 		if (hashAlgorithm == null) {
 			throw new IllegalArgumentException("hashAlgorithm cannot be null");
 		}
-		this.hashAlgorithm = hashAlgorithm;
+		changeAlgorithm(hashAlgorithm);
+	}
+
+	// Change the algorithm, keeping only the cached hashes that can follow
+	private void changeAlgorithm(String newAlgorithm) {
+		waitForCache();
+		String oldAlgorithm = hashAlgorithm;
+		hashAlgorithm = newAlgorithm;
+		if (oldAlgorithm.equals(newAlgorithm)) {
+			return;
+		}
+		for (Map.Entry<String, FileHash> entry : cache.entrySet()) {
+			FileHash promoted = entry.getValue().promote(oldAlgorithm,
+					newAlgorithm);
+			if (promoted == null) {
+				cache.remove(entry.getKey());
+			} else {
+				cache.put(entry.getKey(), promoted);
+			}
+			modified(entry.getKey());
+		}
+	}
+
+	/**
+	 * @return the algorithms also computed when a file is fully read
+	 */
+	public String[] getExtraAlgorithms() {
+		return extraAlgorithms.clone();
+	}
+
+	/**
+	 * Compute full hashes with these algorithms in the same read as the
+	 * content hash and keep them in the cache. Once every cached hash has an
+	 * algorithm, setHashAlgorithm can switch to it without reading the files
+	 * again.
+	 * 
+	 * @param extraAlgorithms
+	 *            plain digest names, not chained
+	 */
+	public void setExtraAlgorithms(String... extraAlgorithms) {
+		if (extraAlgorithms == null) {
+			throw new IllegalArgumentException(
+					"extraAlgorithms cannot be null");
+		}
+		for (String algorithm : extraAlgorithms) {
+			if (algorithm == null) {
+				throw new IllegalArgumentException(
+						"extraAlgorithms cannot contain null");
+			}
+			if (ChainedDigest.isChained(algorithm)) {
+				throw new IllegalArgumentException(
+						"extraAlgorithms cannot be chained - " + algorithm);
+			}
+			try {
+				MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalArgumentException("Unknown algorithm - "
+						+ algorithm, e);
+			}
+		}
+		this.extraAlgorithms = extraAlgorithms.clone();
+	}
+
+	/**
+	 * @return true if valid cached hashes are read again to add missing extra
+	 *         algorithms
+	 */
+	public boolean isMigrating() {
+		return migrating;
+	}
+
+	/**
+	 * When migrating, files whose valid cached hashes are missing an extra
+	 * algorithm are read during the scan to fill it in. Otherwise extra
+	 * algorithms are only added to files that are being hashed anyway.
+	 * 
+	 * @param migrating
+	 *            true to read files that are missing an extra algorithm
+	 */
+	public void setMigrating(boolean migrating) {
+		this.migrating = migrating;
+	}
+
+	/**
+	 * Hash files as a chain of blocks so files that only grow are rehashed by
+	 * reading what was appended. The hashes differ from the plain digest so
+	 * the hash algorithm becomes the digest name plus "+CHAIN" and caches of
+	 * the other kind are not loaded.
+	 * 
+	 * @param appendable
+	 *            true to chain the hashes
+	 */
+	public void setAppendable(boolean appendable) {
+		if (appendable && !isAppendable()) {
+			changeAlgorithm(hashAlgorithm + ChainedDigest.SUFFIX);
+		} else if (!appendable && isAppendable()) {
+			changeAlgorithm(hashAlgorithm.substring(0, hashAlgorithm.length()
+					- ChainedDigest.SUFFIX.length()));
+		}
+	}
+
+	/**
+	 * @return true if the hashes are chained
+	 */
+	public boolean isAppendable() {
+		return ChainedDigest.isChained(hashAlgorithm);
+	}
+
+	/**
+	 * @return files at least this long are sampled, 0 if files are always
+	 *         fully hashed
+	 */
+	public long getSampledAbove() {
+		return sampledAbove;
+	}
+
+	/**
+	 * Files at least sampledAbove long get a SAMPLED hash made from their
+	 * length and a few blocks. Matches between sampled hashes are only
+	 * probable and must be confirmed before acting on them.
+	 * 
+	 * @param sampledAbove
+	 *            the length to start sampling at, 0 to always fully hash
+	 */
+	public void setSampledAbove(long sampledAbove) {
+		if (sampledAbove < 0) {
+			throw new IllegalArgumentException(
+					"sampledAbove cannot be negative");
+		}
+		this.sampledAbove = sampledAbove;
+	}
+
+	/**
+	 * @return the throttle used when reading files or null if there is none
+	 */
+	public IoThrottle getThrottle() {
+		return throttle;
+	}
+
+	/**
+	 * @param throttle
+	 *            limits how fast files are read, null for no limit
+	 */
+	public void setThrottle(IoThrottle throttle) {
+		this.throttle = throttle;
+	}
+
+	/**
+	 * @return the index files must match or null if all files are kept
+	 */
+	public MasterIndex getMasterIndex() {
+		return masterIndex;
+	}
+
+	/**
+	 * Only keep files that might match a master. Files whose length no
+	 * master has are not hashed and files whose hash isn't a master's are left
+	 * out of the results. Only use it when files that don't match a master
+	 * don't matter.
+	 * 
+	 * @param masterIndex
+	 *            index files must match or null to keep all files
+	 */
+	public void setMasterIndex(MasterIndex masterIndex) {
+		this.masterIndex = masterIndex;
+	}
+
+	/**
+	 * @return the number of files the master index left out
+	 */
+	public int getMasterIndexSkips() {
+		return masterIndexSkips.get();
+	}
+
+	/**
+	 * @return the checkpoint or null if the scan is not checkpointed
+	 */
+	public Checkpoint getCheckpoint() {
+		return checkpoint;
+	}
+
+	/**
+	 * @param checkpoint
+	 *            to save the progress of scans or null to not checkpoint
+	 */
+	public void setCheckpoint(Checkpoint checkpoint) {
+		this.checkpoint = checkpoint;
 	}
 
 	/**
 	 * @return the filesProcessed
 	 */
 	public int getFilesProcessed() {
-		return filesProcessed;
+		return filesProcessed.get();
 	}
 
 	/**
 	 * @return the cacheHits
 	 */
 	public int getCacheHits() {
-		return cacheHits;
+		return cacheHits.get();
+	}
+
+	/**
+	 * @return the number of files read at once during a scan
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Read several files at once during a scan, largest first with small
+	 * files in batches. Cache hits are still passed on as the scan finds
+	 * them. Scans that are already running keep reading with the threads
+	 * they started with.
+	 * 
+	 * @param threads
+	 *            number of files read at once, 1 to read them on the scan's
+	 *            thread
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		synchronized (this) {
+			if ((hashPool != null) && (threads != this.threads)) {
+				// Scans already running keep the old pool, which the last of
+				// them shuts down
+				if (!poolScans.containsKey(hashPool)) {
+					hashPool.shutdown();
+				}
+				hashPool = null;
+			}
+			this.threads = threads;
+		}
+	}
+
+	// The pool shared by the scans, its threads don't keep the JVM running.
+	// The scan gives it back with releaseHashPool.
+	private synchronized ExecutorService acquireHashPool() {
+		if (hashPool == null) {
+			hashPool = Executors.newFixedThreadPool(threads,
+					new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "Hash reader "
+									+ count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		Integer scans = poolScans.get(hashPool);
+		poolScans.put(hashPool,
+				Integer.valueOf(scans == null ? 1 : scans.intValue() + 1));
+		return hashPool;
+	}
+
+	// A scan has finished with the pool. The last scan on a pool that was
+	// replaced shuts it down.
+	private synchronized void releaseHashPool(ExecutorService pool) {
+		int scans = poolScans.get(pool).intValue() - 1;
+		if (scans > 0) {
+			poolScans.put(pool, Integer.valueOf(scans));
+		} else {
+			poolScans.remove(pool);
+			if (pool != hashPool) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * @return true if files are grouped by a fingerprint first
+	 */
+	public boolean isTwoTier() {
+		return twoTier;
+	}
+
+	/**
+	 * Give every file a fast 64-bit FINGERPRINT hash rather than a full hash.
+	 * confirmFingerprints then gives the files that share a fingerprint a
+	 * full hash with the hash algorithm, most files are never read by it.
+	 * 
+	 * @param twoTier
+	 *            true to group by a fingerprint first
+	 */
+	public void setTwoTier(boolean twoTier) {
+		this.twoTier = twoTier;
+	}
+
+	/**
+	 * @return the number of files that shared a fingerprint and were given a
+	 *         full hash
+	 */
+	public int getFingerprintsConfirmed() {
+		return fingerprintsConfirmed.get();
+	}
+
+	/**
+	 * @return whether symbolic links are followed
+	 */
+	public LinkPolicy getLinkPolicy() {
+		return linkPolicy;
+	}
+
+	/**
+	 * @param linkPolicy
+	 *            whether symbolic links are followed
+	 */
+	public void setLinkPolicy(LinkPolicy linkPolicy) {
+		if (linkPolicy == null) {
+			throw new IllegalArgumentException("linkPolicy cannot be null");
+		}
+		this.linkPolicy = linkPolicy;
+	}
+
+	/**
+	 * Directories that are scanned as roots of their own, such as the masters
+	 * and tests. Scans of other roots don't descend into them so a master
+	 * inside a test directory is not also treated as a test and the other way
+	 * around. Directories that don't exist are ignored.
+	 * 
+	 * @param roots
+	 *            the separate roots
+	 */
+	public void setSeparateRoots(Collection<Path> roots) {
+		if (roots == null) {
+			throw new IllegalArgumentException("roots cannot be null");
+		}
+		Set<Object> keys = new HashSet<>();
+		for (Path root : roots) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(root,
+						BasicFileAttributes.class);
+				if (attributes.isDirectory()) {
+					keys.add(directoryKey(root, attributes));
+				}
+			} catch (IOException e) {
+				// Nothing to keep out
+			}
+		}
+		separateRoots = keys;
+	}
+
+	/**
+	 * @return the number of directories and links left out because they were
+	 *         already processed, are separate roots or are links being
+	 *         skipped
+	 */
+	public int getAliasesSkipped() {
+		return aliasesSkipped.get();
+	}
+
+	/**
+	 * @return the number of grown files that only had the appended bytes
+	 *         hashed
+	 */
+	public int getAppendsRehashed() {
+		return appendsRehashed.get();
+	}
+
+	/**
+	 * @return the number of cached hashes read again for the extra algorithms
+	 */
+	public int getHashesMigrated() {
+		return hashesMigrated.get();
+	}
+
+	/**
+	 * Keep roughly memoryBudget bytes of cached hashes on the heap and evict
+	 * the least recently used to a temporary file, so a scan of a huge tree
+	 * runs in fixed memory. The hashes already cached are moved over. Call it
+	 * before the creator is shared with other threads.
+	 * 
+	 * @param memoryBudget
+	 *            rough bytes of hashes kept on the heap
+	 * @param directory
+	 *            where to create the temporary file or null for the default
+	 *            temporary directory
+	 * @throws IOException
+	 *             if the temporary file can't be created
+	 */
+	public void setCacheMemoryBudget(long memoryBudget, File directory)
+			throws IOException {
+		waitForCache();
+		TieredCache newCache = new TieredCache(directory, memoryBudget);
+		for (Map.Entry<String, FileHash> entry : cache.entrySet()) {
+			newCache.put(entry.getKey(), entry.getValue());
+		}
+		TieredCache oldCache = tieredCache;
+		cache = newCache;
+		tieredCache = newCache;
+		if (oldCache != null) {
+			oldCache.close();
+		}
+	}
+
+	/**
+	 * @return the cache when it has a memory budget, for its hit rates and to
+	 *         close it, or null if the cache is unbounded
+	 */
+	public TieredCache getTieredCache() {
+		return tieredCache;
+	}
+
+	/**
+	 * Load the cache on another thread while this one goes on. A scan walks
+	 * the directories and collects the files while the cache loads and only
+	 * looks their hashes up once it has loaded. The other methods that use the
+	 * cache wait for it, apart from on the loading thread.
+	 * 
+	 * @param loader
+	 *            loads the cache, usually by merging into it
+	 * @return the loader's result, also available from awaitCache
+	 * @throws IllegalStateException
+	 *             if a cache is already being loaded
+	 */
+	public synchronized <T> Future<T> loadCacheInBackground(Callable<T> loader) {
+		if (loader == null) {
+			throw new IllegalArgumentException("loader cannot be null");
+		}
+		if (isCacheLoading()) {
+			throw new IllegalStateException("The cache is already loading");
+		}
+		FutureTask<T> task = new FutureTask<>(loader);
+		Thread thread = new Thread(task, "Cache loader");
+		thread.setDaemon(true);
+		cacheLoader = thread;
+		cacheLoad = task;
+		thread.start();
+		return task;
+	}
+
+	/**
+	 * @return true if a cache is being loaded in the background
+	 */
+	public boolean isCacheLoading() {
+		Future<?> load = cacheLoad;
+		return (load != null) && !load.isDone();
+	}
+
+	/**
+	 * Wait for a cache being loaded in the background.
+	 * 
+	 * @throws HashException
+	 *             if the cache could not be loaded
+	 */
+	public void awaitCache() throws HashException {
+		Future<?> load = cacheLoad;
+		if ((load == null) || (Thread.currentThread() == cacheLoader)) {
+			return;
+		}
+		try {
+			load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HashException("Interrupted loading the cache", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof HashException) {
+				throw (HashException) cause;
+			}
+			throw new HashException("Could not load the cache",
+					(cause instanceof Exception ? (Exception) cause : e));
+		}
+		cacheLoad = null;
+	}
+
+	// Wait for a background load before using the cache, a failed load is
+	// reported by awaitCache
+	private void waitForCache() {
+		Future<?> load = cacheLoad;
+		if ((load == null) || (Thread.currentThread() == cacheLoader)) {
+			return;
+		}
+		try {
+			load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// Left for awaitCache
+		}
 	}
 
 	/**
 	 * @return the cache size
 	 */
 	public int getCacheSize() {
+		waitForCache();
 		return cache.size();
 	}
 
@@ -463,16 +2399,38 @@ public class HashCreator {
 		this.verbose = verbose;
 	}
 
+	/**
+	 * Hash the files again as a scan would, updating the cache. Used for
+	 * cached hashes that are known to be stale.
+	 */
+	void rehash(Collection<File> files) throws HashException {
+		ResultVisitor ignore = new ResultVisitor() {
+			@Override
+			public boolean visit(File file, FileHash fileHash) {
+				return true;
+			}
+		};
+		Set<Object> visited = new HashSet<>();
+		for (File file : files) {
+			scan(file.toPath(), visited, ignore);
+		}
+	}
+
 	// TODO
 	public int removeFromCache(List<File> toRemove) {
 		if (toRemove == null) {
 			throw new IllegalArgumentException("toRemove cannot be null");
 		}
+		waitForCache();
 		int removed = 0;
 		for (File file : toRemove) {
 			String absolutePath = file.getAbsolutePath();
 		    FileHash removedHash = cache.remove(absolutePath);
 		    if (removedHash != null) {
+		    	synchronized (removedLock) {
+		    		removedPaths.add(absolutePath);
+		    	}
+		    	modified(absolutePath);
 		    	removed++;
 		    }
 		}
@@ -0,0 +1,315 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the file reads of a scan on a pool of threads while the scan goes on
+ * walking the directories. Up to two tasks per thread are in flight and
+ * whenever one finishes the largest waiting file is started next, so a huge
+ * file found early is never left to run alone at the end and one that is
+ * still running doesn't hold up the others. Files smaller than SMALL_FILE
+ * are packed into batches that one thread runs in turn, so a tiny file
+ * doesn't pay for a task of its own. A partial batch is only started when a
+ * thread would otherwise be idle or the scan is waiting for the results.
+ * 
+ * The digests in use read a file from start to end so a large file is not
+ * split, starting it first keeps the other threads busy with the rest.
+ * 
+ * The jobs run on the pool but are returned by poll and next on the scan's
+ * thread, so the scan passes on the results from one thread. The pool can be
+ * shared by several schedulers.
+ * 
+ * @param <J>
+ *            the jobs the scheduler runs
+ */
+final class HashScheduler<J extends HashScheduler.Job> implements Closeable {
+
+	// Files smaller than this are batched
+	static final long SMALL_FILE = 1024 * 1024;
+
+	// Most files and bytes in a batch
+	static final int BATCH_FILES = 64;
+	static final long BATCH_BYTES = 8 * SMALL_FILE;
+
+	// Jobs added but not returned before the scan waits for one to finish
+	static final int WINDOW = 4096;
+
+	/**
+	 * Reads one file on a pool thread
+	 */
+	abstract static class Job {
+		final Path path;
+		final long length;
+		HashException error;
+
+		/**
+		 * @param path
+		 *            of the file to read
+		 * @param length
+		 *            of the file, larger files are started first
+		 */
+		Job(Path path, long length) {
+			this.path = path;
+			this.length = length;
+		}
+
+		/**
+		 * Read the file and keep the result in the job
+		 */
+		abstract void run() throws HashException;
+	}
+
+	// Largest first
+	private static final Comparator<Job> LARGEST_FIRST = new Comparator<Job>() {
+		@Override
+		public int compare(Job o1, Job o2) {
+			return Long.compare(o2.length, o1.length);
+		}
+	};
+
+	private final int threads;
+	private final ExecutorService executor;
+
+	// True if the executor is the scheduler's own and is shut down on close
+	private final boolean ownExecutor;
+
+	// Added but not started, largest first
+	private final PriorityQueue<J> waiting = new PriorityQueue<>(11,
+			LARGEST_FIRST);
+
+	// Paths of the jobs that haven't been returned by poll or next
+	private final Set<Path> pending = new LinkedHashSet<>();
+
+	private final BlockingQueue<J> done = new LinkedBlockingQueue<>();
+
+	// Tasks submitted that haven't finished, counted down on the pool
+	private final AtomicInteger tasks = new AtomicInteger();
+
+	// Tasks that may still be running, to cancel on close
+	private final List<Future<?>> started = new ArrayList<>();
+
+	// Started but not returned
+	private int running = 0;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Create a scheduler with its own pool.
+	 * 
+	 * @param threads
+	 *            files read at once
+	 */
+	HashScheduler(int threads) {
+		this(null, threads);
+	}
+
+	/**
+	 * @param executor
+	 *            pool to run the jobs on or null for one of its own
+	 * @param threads
+	 *            files read at once, the pool's size
+	 */
+	HashScheduler(ExecutorService executor, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.threads = threads;
+		this.ownExecutor = (executor == null);
+		this.executor = (executor == null ? Executors
+				.newFixedThreadPool(threads) : executor);
+	}
+
+	/**
+	 * Add the job, it is started once there is room
+	 */
+	void add(J job) {
+		waiting.add(job);
+		pending.add(job.path);
+	}
+
+	/**
+	 * @return true if so many jobs haven't been returned that the scan should
+	 *         wait for one before adding more
+	 */
+	boolean isFull() {
+		return pending.size() >= WINDOW;
+	}
+
+	/**
+	 * @return paths of the jobs that haven't been returned, for a checkpoint
+	 *         to save
+	 */
+	Collection<Path> getPending() {
+		return Collections.unmodifiableSet(pending);
+	}
+
+	/**
+	 * Start waiting jobs if there is room and return a finished one without
+	 * waiting.
+	 * 
+	 * @return a finished job or null if none has finished
+	 * @throws HashException
+	 *             if the job failed
+	 */
+	J poll() throws HashException {
+		start(false);
+		J job = done.poll();
+		return (job == null ? null : returned(job));
+	}
+
+	/**
+	 * Start waiting jobs and wait for the next to finish.
+	 * 
+	 * @return the next finished job or null once every job has been returned
+	 * @throws HashException
+	 *             if the job failed or the thread is interrupted
+	 */
+	J next() throws HashException {
+		start(true);
+		if (running == 0) {
+			return null;
+		}
+		J job;
+		try {
+			job = done.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HashException("Interrupted while hashing", e);
+		}
+		return returned(job);
+	}
+
+	private J returned(J job) throws HashException {
+		running--;
+		pending.remove(job.path);
+		if (job.error != null) {
+			throw job.error;
+		}
+		return job;
+	}
+
+	// Submit the largest waiting jobs while there is room, large files on
+	// their own and small ones in batches
+	private void start(boolean draining) {
+		while (!waiting.isEmpty() && (tasks.get() < 2 * threads)) {
+			J first = waiting.peek();
+			if ((first.length < SMALL_FILE) && !draining
+					&& (tasks.get() >= threads)
+					&& (waiting.size() < BATCH_FILES)) {
+				// The threads are busy so let the batch fill up
+				break;
+			}
+			List<J> batch = new ArrayList<>();
+			long batchBytes = 0;
+			do {
+				J job = waiting.poll();
+				batch.add(job);
+				batchBytes += job.length;
+			} while ((first.length < SMALL_FILE) && !waiting.isEmpty()
+					&& (batch.size() < BATCH_FILES)
+					&& (batchBytes < BATCH_BYTES));
+			submit(batch);
+		}
+
+		// Forget the tasks that are over
+		if (started.size() > 4 * threads) {
+			Iterator<Future<?>> iterator = started.iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().isDone()) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	private void submit(final List<J> batch) {
+		running += batch.size();
+		tasks.incrementAndGet();
+		started.add(executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				// The scan waits for every job it started, so the rest of the
+				// batch still runs after an error and it is thrown at the end
+				Error error = null;
+				try {
+					for (J job : batch) {
+						if (closed) {
+							job.error = new HashException("Stopped - "
+									+ job.path);
+							continue;
+						}
+						try {
+							job.run();
+						} catch (HashException e) {
+							job.error = e;
+						} catch (RuntimeException e) {
+							job.error = new HashException(e);
+						} catch (Error e) {
+							job.error = new HashException("Could not hash - "
+									+ job.path + " - " + e);
+							if (error == null) {
+								error = e;
+							}
+						}
+					}
+				} finally {
+					// Counted down first so a scan woken by the results sees
+					// the room
+					tasks.decrementAndGet();
+					done.addAll(batch);
+				}
+				if (error != null) {
+					throw error;
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Stop the jobs, the ones that are still running are interrupted
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (Future<?> future : started) {
+			future.cancel(true);
+		}
+		if (ownExecutor) {
+			executor.shutdownNow();
+		}
+	}
+}
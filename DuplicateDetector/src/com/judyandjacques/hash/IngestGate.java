@@ -0,0 +1,405 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Copies files into the archive only if the archive does not already have
+ * them, checking each file against the cached hashes of the master
+ * directories. A file whose length no master has can't be archived, so it is
+ * hashed as it is copied. A file with a master's length is hashed first and
+ * only copied if its hash is new. Either way each file is read once unless
+ * it has a master's length but new contents.
+ * 
+ * The copies are added to the cache as they land and to the hashes checked,
+ * so a file that is on the source twice is only copied once.
+ * 
+ * A master that is only cached with a fingerprint or a sample, or whose
+ * cached hash is out of date, is fully hashed the first time a file of its
+ * length comes along. A master that changed since it was hashed is hashed
+ * again before a file is skipped as a copy of it.
+ */
+public class IngestGate {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final HashCreator hashCreator;
+
+	// The archived files by their full hash, with the length and
+	// lastModified they had when hashed, and their lengths
+	private final Map<ContentHash, FileHash> archived = new HashMap<>();
+	private final Set<Long> lengths = new HashSet<>();
+
+	// The masters without a full hash by their length
+	private final Map<Long, List<File>> unhashed = new HashMap<>();
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	// If true nothing is copied
+	private boolean pretend = false;
+
+	/**
+	 * The outcome of a call to ingest
+	 */
+	public static class Result {
+		private int copied = 0;
+		private int skipped = 0;
+		private long bytesCopied = 0;
+		private long bytesSkipped = 0;
+
+		/**
+		 * @return the number of files copied
+		 */
+		public int getCopied() {
+			return copied;
+		}
+
+		/**
+		 * @return the number of files not copied since they are archived
+		 */
+		public int getSkipped() {
+			return skipped;
+		}
+
+		/**
+		 * @return the bytes copied
+		 */
+		public long getBytesCopied() {
+			return bytesCopied;
+		}
+
+		/**
+		 * @return the bytes not copied since they are archived
+		 */
+		public long getBytesSkipped() {
+			return bytesSkipped;
+		}
+	}
+
+	/**
+	 * Create a gate for the archive in the master directories.
+	 * 
+	 * @param hashCreator
+	 *            whose cache has the hashes of the master files, its hash
+	 *            algorithm must not be chained
+	 * @param masters
+	 *            master directories
+	 */
+	public IngestGate(HashCreator hashCreator, Collection<Path> masters) {
+		if (hashCreator == null) {
+			throw new IllegalArgumentException("hashCreator cannot be null");
+		}
+		if (masters == null) {
+			throw new IllegalArgumentException("Masters cannot be null");
+		}
+		if (hashCreator.isAppendable()) {
+			throw new IllegalArgumentException(
+					"A chained hash can't be created while copying");
+		}
+		this.hashCreator = hashCreator;
+
+		// Add the trailing / so it doesn't match things it shouldn't
+		List<String> masterPaths = new ArrayList<>();
+		for (Path path : masters) {
+			masterPaths.add(path.toFile().getAbsolutePath() + File.separator);
+		}
+		for (FileHash fileHash : hashCreator.getCachedHashes()) {
+			for (String path : masterPaths) {
+				if (fileHash.getAbsolutePath().startsWith(path)) {
+					File file = new File(fileHash.getAbsolutePath());
+					if (fileHash.getContentHash().isFull()
+							&& fileHash.isValidForFile(file)) {
+						add(fileHash);
+					} else if (file.isFile()) {
+						// By the length it has now if it changed
+						Long length = Long.valueOf(file.length());
+						List<File> files = unhashed.get(length);
+						if (files == null) {
+							files = new ArrayList<>();
+							unhashed.put(length, files);
+						}
+						files.add(file);
+						lengths.add(length);
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if nothing is copied
+	 */
+	public boolean isPretend() {
+		return pretend;
+	}
+
+	/**
+	 * @param pretend
+	 *            true to only hash the files and report what would be copied
+	 */
+	public void setPretend(boolean pretend) {
+		this.pretend = pretend;
+	}
+
+	/**
+	 * Copy the files in the sources that aren't archived to the destination.
+	 * A file keeps its path relative to its source directory, with a number
+	 * added to its name if the destination already has a file of that name.
+	 * The hashCreator's filter chooses the files.
+	 * 
+	 * @param sources
+	 *            files and directories to copy from
+	 * @param destination
+	 *            directory to copy to
+	 * @param out
+	 *            where to print each file copied or skipped or null
+	 * @return what was copied
+	 * @throws HashException
+	 *             if a file can't be read or copied
+	 */
+	public Result ingest(Collection<Path> sources, File destination,
+			PrintStream out) throws HashException {
+		if (sources == null) {
+			throw new IllegalArgumentException("sources cannot be null");
+		}
+		if (destination == null) {
+			throw new IllegalArgumentException("destination cannot be null");
+		}
+
+		Result result = new Result();
+		PathFilter filter = hashCreator.getFilter();
+		for (Path source : sources) {
+			boolean isRoot = Files.isDirectory(source);
+			Path root = (isRoot ? source : source.getParent());
+
+			// Directories can be deep so no recursion
+			LinkedList<Path> toProcess = new LinkedList<>();
+			toProcess.add(source);
+			while (!toProcess.isEmpty()) {
+				Path path = toProcess.removeFirst();
+				Path relative = root.relativize(path);
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(path,
+							BasicFileAttributes.class);
+				} catch (IOException e) {
+					throw new HashException(path.toFile(),
+							"Could not read attributes - " + path, e);
+				}
+				if (attributes.isDirectory()) {
+					if ((path != source) && filter.isExcluded(path, relative)) {
+						continue;
+					}
+					try (DirectoryStream<Path> stream = Files
+							.newDirectoryStream(path)) {
+						for (Path item : stream) {
+							toProcess.add(item);
+						}
+					} catch (IOException e) {
+						throw new HashException(path.toFile(),
+								"Could not list directory - " + path, e);
+					}
+				} else if (attributes.isRegularFile()
+						&& ((path == source) || !filter.isExcluded(path,
+								relative))
+						&& filter.acceptFile(relative, attributes.size())) {
+					ingest(path.toFile(), new File(destination,
+							relative.toString()), result, out);
+				}
+			}
+		}
+		return result;
+	}
+
+	// Copy the file unless it is archived
+	private void ingest(File source, File target, Result result,
+			PrintStream out) throws HashException {
+		long length = source.length();
+		try {
+			// It may be archived so read it without writing anything
+			if (lengths.contains(Long.valueOf(length))) {
+				hashMasters(length);
+				File copy = findArchived(hash(source, null));
+				if (copy != null) {
+					result.skipped++;
+					result.bytesSkipped += length;
+					if (out != null) {
+						out.println("Archived \"" + source + "\" as \"" + copy
+								+ "\"");
+					}
+					return;
+				}
+			}
+
+			if (pretend) {
+				// Still counted as archived so a repeat isn't counted
+				add(new FileHash(source, hash(source, null)));
+			} else {
+				target = copy(source, target);
+			}
+			result.copied++;
+			result.bytesCopied += length;
+			if (out != null) {
+				out.println((pretend ? "Would copy \"" : "Copied \"") + source
+						+ "\" to \"" + target + "\"");
+			}
+		} catch (IOException e) {
+			throw new HashException(source, "Could not ingest file - "
+					+ source, e);
+		}
+	}
+
+	// Fully hash the masters of the length that don't have a full hash
+	private void hashMasters(long length) throws IOException, HashException {
+		List<File> files = unhashed.remove(Long.valueOf(length));
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			// Gone since it was cached
+			if (file.isFile()) {
+				add(new FileHash(file, hashCreator.fullHash(file)));
+			}
+		}
+	}
+
+	// The archived file with the hash that still has it or null. A file
+	// changed since it was hashed is hashed again, since one edited in place
+	// can keep its length.
+	private File findArchived(ContentHash contentHash) throws IOException,
+			HashException {
+		FileHash fileHash = archived.get(contentHash);
+		if (fileHash == null) {
+			return null;
+		}
+		File copy = new File(fileHash.getAbsolutePath());
+		if (fileHash.isValidForFile(copy)) {
+			return copy;
+		}
+		archived.remove(contentHash);
+		if (!copy.isFile()) {
+			return null;
+		}
+		FileHash newHash = new FileHash(copy, hashCreator.fullHash(copy));
+		add(newHash);
+		return (newHash.getContentHash().equals(contentHash) ? copy : null);
+	}
+
+	// Copy and hash the file in one read and add the copy to the cache
+	private File copy(File source, File target) throws IOException,
+			HashException {
+		File directory = target.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create directory - " + directory);
+		}
+
+		// Written under a temporary name so a partial copy is never archived
+		File temp = File.createTempFile(target.getName() + ".", ".tmp",
+				directory);
+		try {
+			ContentHash contentHash = hash(source, temp);
+			if (!temp.setLastModified(source.lastModified())) {
+				throw new IOException("Could not set last modified - " + temp);
+			}
+			target = unusedName(target);
+			Files.move(temp.toPath(), target.toPath());
+			FileHash fileHash = new FileHash(target, contentHash);
+			hashCreator.cacheHash(fileHash);
+			add(fileHash);
+			return target;
+		} finally {
+			if (temp.exists()) {
+				temp.delete();
+			}
+		}
+	}
+
+	// Hash every byte of the file, writing them to target if it isn't null
+	private ContentHash hash(File source, File target) throws IOException,
+			HashException {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = ChainedDigest.getDigest(hashCreator
+					.getHashAlgorithm());
+		} catch (NoSuchAlgorithmException e) {
+			throw new HashException(e);
+		}
+		IoThrottle throttle = hashCreator.getThrottle();
+		if (throttle != null) {
+			throttle.acquireFile();
+		}
+		try (InputStream in = new FileInputStream(source);
+				OutputStream out = (target == null ? null
+						: new FileOutputStream(target))) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				if (throttle != null) {
+					throttle.acquireBytes(read);
+				}
+				messageDigest.update(buffer, 0, read);
+				if (out != null) {
+					out.write(buffer, 0, read);
+				}
+			}
+		}
+		return new ContentHash(messageDigest.digest());
+	}
+
+	// The target or the target with a number added that does not exist
+	private static File unusedName(File target) {
+		String name = target.getName();
+		int dot = name.lastIndexOf('.');
+		String base = (dot > 0 ? name.substring(0, dot) : name);
+		String extension = (dot > 0 ? name.substring(dot) : "");
+		File unused = target;
+		for (int i = 1; unused.exists(); i++) {
+			unused = new File(target.getParentFile(), base + "-" + i
+					+ extension);
+		}
+		return unused;
+	}
+
+	// Count the file as archived
+	private void add(FileHash fileHash) {
+		archived.put(fileHash.getContentHash(), fileHash);
+		lengths.add(Long.valueOf(fileHash.getLength()));
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how fast files are read so hashing can run alongside other work.
+ * There is a token bucket for bytes and one for files. One throttle is shared
+ * by every thread that reads so the limits are for the whole process.
+ * 
+ * The limits can be changed at any time, threads that are waiting pick up the
+ * new limit straight away. A limit of 0 means no limit.
+ */
+public class IoThrottle {
+
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * A token bucket that holds up to one second of tokens. Tokens can be
+	 * borrowed, the next caller waits until the debt is paid back.
+	 */
+	private static class Bucket {
+		private long rate = 0;
+		private double tokens = 0;
+		private long lastRefill = System.nanoTime();
+
+		void refill(long now) {
+			if (rate > 0) {
+				tokens = Math.min(rate, tokens + (now - lastRefill)
+						* (double) rate / NANOS_PER_SECOND);
+			}
+			lastRefill = now;
+		}
+
+		void setRate(long newRate, long now) {
+			refill(now);
+			rate = newRate;
+			tokens = Math.min(tokens, newRate);
+			if (newRate == 0) {
+				tokens = 0;
+			}
+		}
+	}
+
+	private final Bucket bytes = new Bucket();
+	private final Bucket files = new Bucket();
+
+	// Total time threads have spent waiting
+	private long throttledNanos = 0;
+
+	/**
+	 * Create a throttle without any limits
+	 */
+	public IoThrottle() {
+		// No limits
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *            most bytes read each second or 0 for no limit
+	 * @param filesPerSecond
+	 *            most files opened each second or 0 for no limit
+	 */
+	public IoThrottle(long bytesPerSecond, long filesPerSecond) {
+		setBytesPerSecond(bytesPerSecond);
+		setFilesPerSecond(filesPerSecond);
+	}
+
+	/**
+	 * Wait until the bytes can be read. The bytes may already have been read,
+	 * this then waits for the time the read should have taken.
+	 * 
+	 * @param count
+	 *            number of bytes
+	 * @throws InterruptedIOException
+	 *             if the thread is interrupted while waiting
+	 */
+	public void acquireBytes(long count) throws InterruptedIOException {
+		acquire(bytes, count);
+	}
+
+	/**
+	 * Wait until another file can be opened.
+	 * 
+	 * @throws InterruptedIOException
+	 *             if the thread is interrupted while waiting
+	 */
+	public void acquireFile() throws InterruptedIOException {
+		acquire(files, 1);
+	}
+
+	// Take the tokens from the bucket and wait until it is no longer in debt
+	private synchronized void acquire(Bucket bucket, long count)
+			throws InterruptedIOException {
+		long start = System.nanoTime();
+		bucket.refill(start);
+		if (bucket.rate == 0) {
+			return;
+		}
+		bucket.tokens -= count;
+		try {
+			while ((bucket.rate > 0) && (bucket.tokens < 0)) {
+				long waitNanos = (long) (-bucket.tokens * NANOS_PER_SECOND / bucket.rate);
+				TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, 1));
+				bucket.refill(System.nanoTime());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while throttled");
+		} finally {
+			throttledNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * @return the most bytes read each second or 0 for no limit
+	 */
+	public synchronized long getBytesPerSecond() {
+		return bytes.rate;
+	}
+
+	/**
+	 * Change the byte limit. Waiting threads use the new limit.
+	 * 
+	 * @param bytesPerSecond
+	 *            most bytes read each second or 0 for no limit
+	 */
+	public synchronized void setBytesPerSecond(long bytesPerSecond) {
+		if (bytesPerSecond < 0) {
+			throw new IllegalArgumentException(
+					"bytesPerSecond cannot be negative");
+		}
+		bytes.setRate(bytesPerSecond, System.nanoTime());
+		notifyAll();
+	}
+
+	/**
+	 * @return the most files opened each second or 0 for no limit
+	 */
+	public synchronized long getFilesPerSecond() {
+		return files.rate;
+	}
+
+	/**
+	 * Change the file limit. Waiting threads use the new limit.
+	 * 
+	 * @param filesPerSecond
+	 *            most files opened each second or 0 for no limit
+	 */
+	public synchronized void setFilesPerSecond(long filesPerSecond) {
+		if (filesPerSecond < 0) {
+			throw new IllegalArgumentException(
+					"filesPerSecond cannot be negative");
+		}
+		files.setRate(filesPerSecond, System.nanoTime());
+		notifyAll();
+	}
+
+	/**
+	 * @return total milliseconds that all threads have spent waiting
+	 */
+	public synchronized long getThrottledMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(throttledNanos);
+	}
+}
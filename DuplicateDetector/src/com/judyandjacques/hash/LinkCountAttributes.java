@@ -0,0 +1,145 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+/**
+ * Basic file attributes read together with the number of hard links to the
+ * file, so a scan can tell which files might be reached by another name
+ * without reading the file system twice.
+ */
+final class LinkCountAttributes implements BasicFileAttributes {
+
+	// The basic attributes and the link count from the unix view
+	private static final String ATTRIBUTES = "unix:size,lastModifiedTime,"
+			+ "lastAccessTime,creationTime,isRegularFile,isDirectory,"
+			+ "isSymbolicLink,isOther,fileKey,nlink";
+
+	private final long size;
+	private final FileTime lastModifiedTime;
+	private final FileTime lastAccessTime;
+	private final FileTime creationTime;
+	private final boolean regularFile;
+	private final boolean directory;
+	private final boolean symbolicLink;
+	private final boolean other;
+	private final Object fileKey;
+	private final int linkCount;
+
+	private LinkCountAttributes(Map<String, Object> attributes) {
+		size = ((Long) attributes.get("size")).longValue();
+		lastModifiedTime = (FileTime) attributes.get("lastModifiedTime");
+		lastAccessTime = (FileTime) attributes.get("lastAccessTime");
+		creationTime = (FileTime) attributes.get("creationTime");
+		regularFile = ((Boolean) attributes.get("isRegularFile"))
+				.booleanValue();
+		directory = ((Boolean) attributes.get("isDirectory")).booleanValue();
+		symbolicLink = ((Boolean) attributes.get("isSymbolicLink"))
+				.booleanValue();
+		other = ((Boolean) attributes.get("isOther")).booleanValue();
+		fileKey = attributes.get("fileKey");
+		linkCount = ((Integer) attributes.get("nlink")).intValue();
+	}
+
+	/**
+	 * Read the path's attributes, with the link count if its file system has
+	 * the unix view.
+	 * 
+	 * @param path
+	 *            to read
+	 * @param options
+	 *            whether links are followed
+	 * @return the attributes
+	 * @throws IOException
+	 *             if they can't be read
+	 */
+	static BasicFileAttributes read(Path path, LinkOption... options)
+			throws IOException {
+		if (path.getFileSystem().supportedFileAttributeViews()
+				.contains("unix")) {
+			return new LinkCountAttributes(Files.readAttributes(path,
+					ATTRIBUTES, options));
+		}
+		return Files.readAttributes(path, BasicFileAttributes.class, options);
+	}
+
+	/**
+	 * @param attributes
+	 *            read by read
+	 * @return the number of hard links to the file, 1 if it isn't known
+	 */
+	static int linkCount(BasicFileAttributes attributes) {
+		if (attributes instanceof LinkCountAttributes) {
+			return ((LinkCountAttributes) attributes).linkCount;
+		}
+		return 1;
+	}
+
+	@Override
+	public FileTime lastModifiedTime() {
+		return lastModifiedTime;
+	}
+
+	@Override
+	public FileTime lastAccessTime() {
+		return lastAccessTime;
+	}
+
+	@Override
+	public FileTime creationTime() {
+		return creationTime;
+	}
+
+	@Override
+	public boolean isRegularFile() {
+		return regularFile;
+	}
+
+	@Override
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	@Override
+	public boolean isSymbolicLink() {
+		return symbolicLink;
+	}
+
+	@Override
+	public boolean isOther() {
+		return other;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public Object fileKey() {
+		return fileKey;
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A summary of the master files in the cache: the distinct lengths and a
+ * Bloom filter over the content hashes. Used when test files only matter if
+ * they match a master, so a test file whose length no master has isn't
+ * hashed and a test file whose hash can't be a master's is dropped without
+ * building the map of master hashes.
+ * <p>
+ * The masters are indexed by the hash a scan groups them by. If a master only
+ * has a hash of another strength, say a full hash where the scan samples,
+ * hashes of the strength the scan wanted can't be ruled out.
+ */
+public class MasterIndex {
+
+	// Sorted and distinct
+	private final long[] lengths;
+	private final BloomFilter contentHashes;
+	private final int size;
+
+	// Strengths some master isn't indexed by
+	private final Set<ContentHash.Strength> missing;
+
+	private MasterIndex(long[] lengths, BloomFilter contentHashes, int size,
+			Set<ContentHash.Strength> missing) {
+		this.lengths = lengths;
+		this.contentHashes = contentHashes;
+		this.size = size;
+		this.missing = missing;
+	}
+
+	/**
+	 * Summarise the cached hashes of the files in the master directories.
+	 * 
+	 * @param hashCreator
+	 *            whose cache holds the masters
+	 * @param masters
+	 *            master directories
+	 * @return the index of the masters
+	 */
+	public static MasterIndex fromCache(HashCreator hashCreator,
+			Collection<Path> masters) {
+		if (hashCreator == null) {
+			throw new IllegalArgumentException("hashCreator cannot be null");
+		}
+		if (masters == null) {
+			throw new IllegalArgumentException("Masters cannot be null");
+		}
+
+		// Add the trailing / so it doesn't match things it shouldn't
+		List<String> masterPaths = new ArrayList<>();
+		for (Path path : masters) {
+			masterPaths.add(path.toFile().getAbsolutePath() + File.separator);
+		}
+
+		List<FileHash> inMasters = new ArrayList<>();
+		for (FileHash fileHash : hashCreator.getCachedHashes()) {
+			for (String path : masterPaths) {
+				if (fileHash.getAbsolutePath().startsWith(path)) {
+					inMasters.add(fileHash);
+					break;
+				}
+			}
+		}
+
+		long[] lengths = new long[inMasters.size()];
+		BloomFilter contentHashes = new BloomFilter(inMasters.size(),
+				BloomFilter.DEFAULT_FALSE_POSITIVE_RATE);
+		Set<ContentHash.Strength> missing = EnumSet
+				.noneOf(ContentHash.Strength.class);
+		for (int i = 0; i < lengths.length; i++) {
+			FileHash fileHash = inMasters.get(i);
+			lengths[i] = fileHash.getLength();
+			ContentHash contentHash = hashCreator.groupingHash(hashCreator
+					.withSampledHash(fileHash));
+			contentHashes.add(contentHash);
+
+			ContentHash.Strength wanted = hashCreator.scanStrength(lengths[i]);
+			if (contentHash.getStrength() != wanted) {
+				missing.add(wanted);
+			}
+		}
+
+		// Sort and remove the repeats
+		Arrays.sort(lengths);
+		int distinct = 0;
+		for (int i = 0; i < lengths.length; i++) {
+			if ((distinct == 0) || (lengths[distinct - 1] != lengths[i])) {
+				lengths[distinct++] = lengths[i];
+			}
+		}
+		return new MasterIndex(Arrays.copyOf(lengths, distinct),
+				contentHashes, inMasters.size(), missing);
+	}
+
+	/**
+	 * @param length
+	 *            of a file
+	 * @return true if a master file has the length
+	 */
+	public boolean hasLength(long length) {
+		return Arrays.binarySearch(lengths, length) >= 0;
+	}
+
+	/**
+	 * @param contentHash
+	 *            of a file
+	 * @return false if no master file has the hash, true if one probably does
+	 */
+	public boolean mightContain(ContentHash contentHash) {
+		return missing.contains(contentHash.getStrength())
+				|| contentHashes.mightContain(contentHash);
+	}
+
+	/**
+	 * @return the number of master files in the index
+	 */
+	public int size() {
+		return size;
+	}
+}
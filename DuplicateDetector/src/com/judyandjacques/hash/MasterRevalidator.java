@@ -0,0 +1,286 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks the cached hashes of the master directories against the file system
+ * without reading the files. Each file gets one stat for its length and last
+ * modified time, run on several threads since the time is spent waiting on the
+ * file system. Missing files are removed from the cache and changed files are
+ * hashed again.
+ * 
+ * A sample rate below 1 only checks that fraction of the files. If the sample
+ * finds a stale hash the rest are checked too, so the masters are either
+ * trusted on the sample or fully revalidated.
+ */
+public class MasterRevalidator {
+
+	public static final int DEFAULT_THREADS = 16;
+
+	// Files each task checks
+	private static final int BATCH_SIZE = 256;
+
+	private final HashCreator hashCreator;
+
+	// Stats at once
+	private int threads = DEFAULT_THREADS;
+
+	// Fraction of the files checked, 1 for all of them
+	private double sampleRate = 1;
+
+	private final Random random = new Random();
+
+	/**
+	 * The outcome of a call to revalidate
+	 */
+	public static class Result {
+		private int cached = 0;
+		private int checked = 0;
+		private int missing = 0;
+		private int changed = 0;
+
+		/**
+		 * @return the number of cached hashes in the master directories
+		 */
+		public int getCached() {
+			return cached;
+		}
+
+		/**
+		 * @return the number of files that were checked
+		 */
+		public int getChecked() {
+			return checked;
+		}
+
+		/**
+		 * @return the number of files that no longer exist
+		 */
+		public int getMissing() {
+			return missing;
+		}
+
+		/**
+		 * @return the number of files that changed and were hashed again
+		 */
+		public int getChanged() {
+			return changed;
+		}
+
+		/**
+		 * @return the number of stale hashes
+		 */
+		public int getStale() {
+			return missing + changed;
+		}
+
+		/**
+		 * @return true if every cached hash in the masters was checked
+		 */
+		public boolean isFullyChecked() {
+			return checked == cached;
+		}
+	}
+
+	/**
+	 * @param hashCreator
+	 *            whose cache is revalidated
+	 */
+	public MasterRevalidator(HashCreator hashCreator) {
+		if (hashCreator == null) {
+			throw new IllegalArgumentException("hashCreator cannot be null");
+		}
+		this.hashCreator = hashCreator;
+	}
+
+	/**
+	 * Check the cached hashes of the files in the master directories, remove
+	 * the missing files from the cache and hash the changed files again.
+	 * 
+	 * @param masters
+	 *            master directories
+	 * @return how many were checked and stale
+	 * @throws HashException
+	 *             if a changed file can't be hashed or the check is
+	 *             interrupted
+	 */
+	public Result revalidate(Collection<Path> masters) throws HashException {
+		if (masters == null) {
+			throw new IllegalArgumentException("masters cannot be null");
+		}
+
+		// Add the trailing / so it doesn't match things it shouldn't
+		List<String> masterPaths = new ArrayList<>();
+		for (Path path : masters) {
+			masterPaths.add(path.toFile().getAbsolutePath() + File.separator);
+		}
+
+		Result result = new Result();
+		List<FileHash> sample = new ArrayList<>();
+		List<FileHash> rest = new ArrayList<>();
+		for (FileHash fileHash : hashCreator.getCachedHashes()) {
+			for (String path : masterPaths) {
+				if (fileHash.getAbsolutePath().startsWith(path)) {
+					if ((sampleRate >= 1) || (random.nextDouble() < sampleRate)) {
+						sample.add(fileHash);
+					} else {
+						rest.add(fileHash);
+					}
+					result.cached++;
+					break;
+				}
+			}
+		}
+
+		List<FileHash> stale = check(sample);
+		result.checked += sample.size();
+		if (!stale.isEmpty() && !rest.isEmpty()) {
+			// The sample can't be trusted
+			stale.addAll(check(rest));
+			result.checked += rest.size();
+		}
+
+		List<File> missing = new ArrayList<>();
+		List<File> changed = new ArrayList<>();
+		for (FileHash fileHash : stale) {
+			File file = new File(fileHash.getAbsolutePath());
+			if (file.isFile()) {
+				changed.add(file);
+			} else {
+				missing.add(file);
+			}
+		}
+		hashCreator.removeFromCache(missing);
+		hashCreator.rehash(changed);
+		result.missing = missing.size();
+		result.changed = changed.size();
+		return result;
+	}
+
+	// The stale hashes, checked on the pool of threads
+	private List<FileHash> check(List<FileHash> toCheck) throws HashException {
+		List<FileHash> stale = new ArrayList<>();
+		if (toCheck.isEmpty()) {
+			return stale;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<List<FileHash>>> futures = new ArrayList<>();
+			for (int start = 0; start < toCheck.size(); start += BATCH_SIZE) {
+				final List<FileHash> batch = toCheck.subList(start,
+						Math.min(start + BATCH_SIZE, toCheck.size()));
+				futures.add(executor.submit(new Callable<List<FileHash>>() {
+					@Override
+					public List<FileHash> call() {
+						return staleIn(batch);
+					}
+				}));
+			}
+			for (Future<List<FileHash>> future : futures) {
+				stale.addAll(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HashException("Interrupted while revalidating the masters",
+					e);
+		} catch (ExecutionException e) {
+			throw new HashException("Could not revalidate the masters", e);
+		} finally {
+			executor.shutdownNow();
+		}
+		return stale;
+	}
+
+	// The hashes in the batch whose file is missing or has changed
+	private static List<FileHash> staleIn(List<FileHash> batch) {
+		List<FileHash> stale = new ArrayList<>();
+		for (FileHash fileHash : batch) {
+			try {
+				String absolutePath = fileHash.getAbsolutePath();
+				BasicFileAttributes attributes = Files.readAttributes(
+						new File(absolutePath).toPath(),
+						BasicFileAttributes.class);
+
+				// The one stat is compared the way a scan compares it, which
+				// allows for a saved time truncated to the second
+				if (!attributes.isRegularFile()
+						|| !fileHash.isValidFor(absolutePath, attributes
+								.size(), attributes.lastModifiedTime()
+								.toMillis())) {
+					stale.add(fileHash);
+				}
+			} catch (IOException e) {
+				stale.add(fileHash);
+			}
+		}
+		return stale;
+	}
+
+	/**
+	 * @return the number of stats at once
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads
+	 *            number of stats at once
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * @return the fraction of the files checked
+	 */
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @param sampleRate
+	 *            fraction of the files checked, 1 to check them all
+	 */
+	public void setSampleRate(double sampleRate) {
+		if ((sampleRate <= 0) || (sampleRate > 1)) {
+			throw new IllegalArgumentException(
+					"sampleRate must be greater than 0 and at most 1");
+		}
+		this.sampleRate = sampleRate;
+	}
+}
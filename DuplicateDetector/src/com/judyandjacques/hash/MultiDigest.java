@@ -0,0 +1,99 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+
+/**
+ * Hashes a file with several message digests in one read so hashes with a
+ * new algorithm can be added without reading the file again.
+ */
+final class MultiDigest {
+
+	private MultiDigest() {
+		// Static methods only
+	}
+
+	/**
+	 * Hash every byte of the file with each of the message digests.
+	 * 
+	 * @param file
+	 *            to hash
+	 * @param messageDigests
+	 *            to hash with
+	 * @param throttle
+	 *            to limit the reads or null for no limit
+	 * @return the full hash from each message digest, in the same order
+	 */
+	static ContentHash[] hash(File file, MessageDigest[] messageDigests,
+			IoThrottle throttle) throws IOException {
+		return hash(file, messageDigests, throttle, new byte[8192]);
+	}
+
+	/**
+	 * Hash every byte of the file with each of the message digests, reading
+	 * into the caller's buffer so a thread hashing many files reuses one.
+	 * 
+	 * @param file
+	 *            to hash
+	 * @param messageDigests
+	 *            to hash with
+	 * @param throttle
+	 *            to limit the reads or null for no limit
+	 * @param buffer
+	 *            to read into
+	 * @return the full hash from each message digest, in the same order
+	 */
+	static ContentHash[] hash(File file, MessageDigest[] messageDigests,
+			IoThrottle throttle, byte[] buffer) throws IOException {
+		if (!file.exists()) {
+			throw new FileNotFoundException("File does not exist - " + file);
+		}
+		if (throttle != null) {
+			throttle.acquireFile();
+		}
+
+		for (MessageDigest messageDigest : messageDigests) {
+			messageDigest.reset();
+		}
+		try (InputStream inputStream = OverlappedInputStream.wrap(
+				Files.newInputStream(file.toPath()), file.length())) {
+			int read;
+			while ((read = inputStream.read(buffer)) != -1) {
+				if (throttle != null) {
+					throttle.acquireBytes(read);
+				}
+				for (MessageDigest messageDigest : messageDigests) {
+					messageDigest.update(buffer, 0, read);
+				}
+			}
+		}
+
+		ContentHash[] hashes = new ContentHash[messageDigests.length];
+		for (int i = 0; i < messageDigests.length; i++) {
+			hashes[i] = new ContentHash(messageDigests[i].digest());
+		}
+		return hashes;
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads ahead of the consumer on its own thread so the disk and the digest
+ * work at the same time. The reader fills one buffer while the consumer uses
+ * the other, for large files this can nearly halve the time to hash when the
+ * disk and digest are of similar speed.
+ * 
+ * Only one thread may read from the stream.
+ */
+final class OverlappedInputStream extends InputStream {
+
+	// Bytes in each of the two buffers
+	static final int BUFFER_SIZE = 1024 * 1024;
+
+	// Smaller files are not worth a thread
+	static final long THRESHOLD = 8L * 1024 * 1024;
+
+	private static class Chunk {
+		final byte[] data;
+		int length;
+		IOException error;
+
+		Chunk(int size) {
+			data = new byte[size];
+		}
+	}
+
+	private final InputStream in;
+	private final BlockingQueue<Chunk> empty = new ArrayBlockingQueue<>(2);
+	private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(2);
+	private final Thread reader;
+
+	// The chunk being consumed, null before the first read
+	private Chunk current;
+	private int position;
+	private boolean closed;
+
+	/**
+	 * Wrap the stream if it is long enough to benefit from reading ahead.
+	 * 
+	 * @param in
+	 *            stream to read
+	 * @param length
+	 *            bytes expected from the stream
+	 * @return the stream to read from, closing it closes in
+	 */
+	static InputStream wrap(InputStream in, long length) {
+		if (length < THRESHOLD) {
+			return in;
+		}
+		return new OverlappedInputStream(in, BUFFER_SIZE);
+	}
+
+	/**
+	 * @param in
+	 *            stream to read
+	 * @param bufferSize
+	 *            bytes in each buffer
+	 */
+	OverlappedInputStream(InputStream in, int bufferSize) {
+		if (in == null) {
+			throw new IllegalArgumentException("in cannot be null");
+		}
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("bufferSize must be positive");
+		}
+		this.in = in;
+		empty.add(new Chunk(bufferSize));
+		empty.add(new Chunk(bufferSize));
+
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				fill();
+			}
+		}, "OverlappedInputStream");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	// Runs on the reader thread
+	void fill() {
+		try {
+			while (true) {
+				Chunk chunk = empty.take();
+				chunk.length = 0;
+				try {
+					int read = 0;
+					while ((chunk.length < chunk.data.length)
+							&& ((read = in.read(chunk.data, chunk.length,
+									chunk.data.length - chunk.length)) != -1)) {
+						chunk.length += read;
+					}
+					if ((read == -1) && (chunk.length == 0)) {
+						// End of the stream
+						chunk.length = -1;
+					}
+				} catch (IOException e) {
+					chunk.error = e;
+				}
+				full.put(chunk);
+				if ((chunk.length == -1) || (chunk.error != null)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			// Closed
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		int read = read(one, 0, 1);
+		return (read == -1 ? -1 : one[0] & 0xff);
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if (length == 0) {
+			return 0;
+		}
+		if (current != null) {
+			if (current.error != null) {
+				throw current.error;
+			}
+			if (current.length == -1) {
+				return -1;
+			}
+		}
+		if ((current == null) || (position == current.length)) {
+			if (current != null) {
+				empty.add(current);
+			}
+			try {
+				current = full.take();
+			} catch (InterruptedException e) {
+				current = null;
+				throw new InterruptedIOException("Read interrupted");
+			}
+			position = 0;
+			if (current.error != null) {
+				throw current.error;
+			}
+			if (current.length == -1) {
+				return -1;
+			}
+		}
+		int count = Math.min(length, current.length - position);
+		System.arraycopy(current.data, position, buffer, offset, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		reader.interrupt();
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		in.close();
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which files and directories a scan looks at. The checks that only
+ * need the name are done before anything is read from the file system so
+ * excluded directories are never listed.
+ * 
+ * Globs use the syntax of FileSystem.getPathMatcher. They are matched against
+ * the name and against the path relative to the directory being searched.
+ * Include globs only apply to files, directories are always searched unless
+ * they are excluded.
+ */
+public class PathFilter {
+
+	// Upper case extensions to match or empty for all
+	private final Set<String> extensions = new LinkedHashSet<>();
+
+	private final List<PathMatcher> includes = new ArrayList<>();
+	private final List<PathMatcher> excludes = new ArrayList<>();
+
+	// Absolute paths of directories that are not searched
+	private final Set<String> excludedDirectories = new HashSet<>();
+
+	private long minSize = 0;
+	private long maxSize = Long.MAX_VALUE;
+
+	/**
+	 * Set the extensions to match
+	 * 
+	 * @param extensions
+	 *            to match or null or empty for all
+	 */
+	public void setExtensions(String[] extensions) {
+		Set<String> newExtensions = new LinkedHashSet<>();
+		if (extensions != null) {
+			for (String ext : extensions) {
+				if (ext == null) {
+					throw new IllegalArgumentException(
+							"Individual extensions cannot be null");
+				}
+				if (ext.length() == 0) {
+					throw new IllegalArgumentException(
+							"Individual extensions cannot be empty (Not supported)");
+				}
+				if (ext.contains(".")) {
+					throw new IllegalArgumentException(
+							"Individual extensions cannot contain periods (.)");
+				}
+				newExtensions.add(ext.trim().toUpperCase());
+			}
+		}
+		this.extensions.clear();
+		this.extensions.addAll(newExtensions);
+	}
+
+	/**
+	 * @return the upper case extensions to match, empty for all
+	 */
+	public String[] getExtensions() {
+		return extensions.toArray(new String[extensions.size()]);
+	}
+
+	/**
+	 * @param glob
+	 *            only files that match one of the include globs are accepted
+	 */
+	public void addInclude(String glob) {
+		includes.add(createMatcher(glob));
+	}
+
+	/**
+	 * @param glob
+	 *            files and directories that match are not accepted
+	 */
+	public void addExclude(String glob) {
+		excludes.add(createMatcher(glob));
+	}
+
+	/**
+	 * @param directory
+	 *            directory that is not searched
+	 */
+	public void addExcludedDirectory(Path directory) {
+		if (directory == null) {
+			throw new IllegalArgumentException("directory cannot be null");
+		}
+		excludedDirectories.add(directory.toAbsolutePath().normalize()
+				.toString());
+	}
+
+	private static PathMatcher createMatcher(String glob) {
+		if ((glob == null) || (glob.length() == 0)) {
+			throw new IllegalArgumentException("glob cannot be null or empty");
+		}
+		return FileSystems.getDefault().getPathMatcher("glob:" + glob);
+	}
+
+	/**
+	 * Check the names only, nothing is read from the file system.
+	 * 
+	 * @param path
+	 *            the file or directory
+	 * @param relative
+	 *            the path relative to the directory being searched
+	 * @return true if the file or directory is excluded
+	 */
+	public boolean isExcluded(Path path, Path relative) {
+		if (matches(excludes, relative)) {
+			return true;
+		}
+		return !excludedDirectories.isEmpty()
+				&& excludedDirectories.contains(path.toAbsolutePath()
+						.normalize().toString());
+	}
+
+	/**
+	 * Check a file that isn't excluded.
+	 * 
+	 * @param relative
+	 *            the path relative to the directory being searched
+	 * @param size
+	 *            of the file
+	 * @return true if the file should be processed
+	 */
+	public boolean acceptFile(Path relative, long size) {
+		if ((size < minSize) || (size > maxSize)) {
+			return false;
+		}
+		if (!extensions.isEmpty()) {
+			String name = String.valueOf(relative.getFileName());
+			int position = name.lastIndexOf('.');
+			if ((position == -1)
+					|| !extensions.contains(name.substring(position + 1)
+							.toUpperCase())) {
+				return false;
+			}
+		}
+		return includes.isEmpty() || matches(includes, relative);
+	}
+
+	/**
+	 * Check a file and every directory it is in, for files that are found
+	 * without searching.
+	 * 
+	 * @param root
+	 *            the directory being searched
+	 * @param relative
+	 *            the path of the file relative to root
+	 * @param size
+	 *            of the file
+	 * @return true if the file would be processed by a search of root
+	 */
+	public boolean accept(Path root, Path relative, long size) {
+		Path parent = root;
+		for (int i = 1; i <= relative.getNameCount(); i++) {
+			Path part = relative.subpath(0, i);
+			if (isExcluded(parent.resolve(part.getFileName()), part)) {
+				return false;
+			}
+			parent = parent.resolve(part.getFileName());
+		}
+		return acceptFile(relative, size);
+	}
+
+	private static boolean matches(List<PathMatcher> matchers, Path relative) {
+		if (matchers.isEmpty()) {
+			return false;
+		}
+		Path name = relative.getFileName();
+		boolean nested = relative.getNameCount() > 1;
+		for (PathMatcher matcher : matchers) {
+			if (((name != null) && matcher.matches(name))
+					|| (nested && matcher.matches(relative))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the smallest file size accepted
+	 */
+	public long getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * @param minSize
+	 *            the smallest file size accepted
+	 */
+	public void setMinSize(long minSize) {
+		if (minSize < 0) {
+			throw new IllegalArgumentException("minSize cannot be negative");
+		}
+		this.minSize = minSize;
+	}
+
+	/**
+	 * @return the largest file size accepted
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param maxSize
+	 *            the largest file size accepted
+	 */
+	public void setMaxSize(long maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize cannot be negative");
+		}
+		this.maxSize = maxSize;
+	}
+}
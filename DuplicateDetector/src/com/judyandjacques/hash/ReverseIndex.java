@@ -0,0 +1,490 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A file that maps content hashes to the files that have them, so a file can
+ * be looked up without loading a cache. Only full hashes are indexed.
+ * 
+ * The file has a header, then sorted fixed size records that are binary
+ * searched where they are on disk:
+ * <ul>
+ * <li>for each file, the offset of its path in the paths</li>
+ * <li>for each file, its digest and length, in digest order. A file's id is
+ * its position here.</li>
+ * <li>for each file, its length and id, in length order</li>
+ * <li>the paths</li>
+ * </ul>
+ */
+public class ReverseIndex implements Closeable {
+
+	static final byte[] MAGIC = { 'C', 'D', 'R', 'I' };
+	static final int VERSION = 1;
+
+	// Unsigned, byte by byte
+	private static final Comparator<FileHash> DIGEST_ORDER = new Comparator<FileHash>() {
+		@Override
+		public int compare(FileHash o1, FileHash o2) {
+			int result = compareDigests(o1.getContentHash().getDigest(), o2
+					.getContentHash().getDigest());
+			if (result == 0) {
+				result = o1.getAbsolutePath().compareTo(o2.getAbsolutePath());
+			}
+			return result;
+		}
+	};
+
+	private final RandomAccessFile file;
+	private final String hashAlgorithm;
+	private final int digestLength;
+	private final int size;
+	private final long offsetsStart;
+	private final long digestsStart;
+	private final long lengthsStart;
+	private final long pathsStart;
+
+	private ReverseIndex(RandomAccessFile file) throws HashException,
+			IOException {
+		this.file = file;
+		byte[] magic = new byte[MAGIC.length];
+		file.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new HashException("Not a reverse index");
+		}
+		int version = file.readUnsignedByte();
+		if (version != VERSION) {
+			throw new HashException("Unknown reverse index version - "
+					+ version);
+		}
+		hashAlgorithm = file.readUTF();
+		digestLength = file.readInt();
+		size = file.readInt();
+		if ((digestLength < 0) || (size < 0)) {
+			throw new HashException("Malformed reverse index");
+		}
+		offsetsStart = file.getFilePointer();
+		digestsStart = offsetsStart + 8L * size;
+		lengthsStart = digestsStart + (digestLength + 8L) * size;
+		pathsStart = lengthsStart + 12L * size;
+		if (pathsStart > file.length()) {
+			throw new HashException("Reverse index is truncated");
+		}
+	}
+
+	/**
+	 * Write a reverse index of the full hashes. The file is replaced
+	 * atomically like a cache file.
+	 * 
+	 * @param indexFile
+	 *            to write
+	 * @param hashAlgorithm
+	 *            the hashes were created with
+	 * @param fileHashes
+	 *            to index, hashes that aren't full are left out
+	 * @return the number of files indexed
+	 */
+	public static int write(File indexFile, String hashAlgorithm,
+			Collection<FileHash> fileHashes) throws IOException {
+		if (indexFile == null) {
+			throw new IllegalArgumentException("indexFile cannot be null");
+		}
+		if (hashAlgorithm == null) {
+			throw new IllegalArgumentException("hashAlgorithm cannot be null");
+		}
+		if (fileHashes == null) {
+			throw new IllegalArgumentException("fileHashes cannot be null");
+		}
+
+		try (Builder builder = new Builder(indexFile, hashAlgorithm,
+				ExternalGrouper.DEFAULT_MEMORY_BUDGET)) {
+			for (FileHash fileHash : fileHashes) {
+				builder.add(fileHash);
+			}
+			return builder.write();
+		}
+	}
+
+	/**
+	 * A file's length and id, for the records in length order
+	 */
+	private static final class Length {
+		final long length;
+		final int id;
+
+		Length(long length, int id) {
+			this.length = length;
+			this.id = id;
+		}
+	}
+
+	// Ids are added in order, so the sort keeps them in order for a length
+	private static final Comparator<Length> LENGTH_ORDER = new Comparator<Length>() {
+		@Override
+		public int compare(Length o1, Length o2) {
+			if (o1.length != o2.length) {
+				return (o1.length < o2.length ? -1 : 1);
+			}
+			return 0;
+		}
+	};
+
+	/**
+	 * Writes a reverse index of hashes added one at a time. The hashes are
+	 * sorted by digest and then by length within a memory budget, spilling to
+	 * runs next to the index file.
+	 */
+	static final class Builder implements Closeable {
+		private final File indexFile;
+		private final String hashAlgorithm;
+		private final FileHashSorter byDigest;
+		private final ExternalSorter<Length> byLength;
+
+		// Every digest of an algorithm has the same length
+		private int digestLength = -1;
+
+		/**
+		 * @param indexFile
+		 *            to write
+		 * @param hashAlgorithm
+		 *            the hashes were created with
+		 * @param memoryBudget
+		 *            bytes to sort in before spilling
+		 */
+		Builder(File indexFile, String hashAlgorithm, long memoryBudget) {
+			this.indexFile = indexFile;
+			this.hashAlgorithm = hashAlgorithm;
+			File directory = indexFile.getAbsoluteFile().getParentFile();
+			long budget = Math.max(1, memoryBudget / 2);
+			byDigest = new FileHashSorter(directory, budget, DIGEST_ORDER);
+			byLength = new ExternalSorter<Length>(directory, budget,
+					LENGTH_ORDER) {
+				@Override
+				long estimateBytes(Length item) {
+					return 32;
+				}
+
+				@Override
+				void write(DataOutputStream out, Length item)
+						throws IOException {
+					out.writeLong(item.length);
+					out.writeInt(item.id);
+				}
+
+				@Override
+				Length read(DataInputStream in) throws IOException {
+					return new Length(in.readLong(), in.readInt());
+				}
+			};
+		}
+
+		/**
+		 * @param fileHash
+		 *            to index, left out if it isn't full
+		 */
+		void add(FileHash fileHash) throws IOException {
+			ContentHash contentHash = fileHash.getContentHash();
+			if (!contentHash.isFull()) {
+				return;
+			}
+			if (digestLength < 0) {
+				digestLength = contentHash.getDigest().length;
+			}
+			if (contentHash.getDigest().length == digestLength) {
+				byDigest.add(fileHash);
+			}
+		}
+
+		/**
+		 * Write the index. The file is replaced atomically like a cache
+		 * file.
+		 * 
+		 * @return the number of files indexed
+		 */
+		int write() throws IOException {
+			if (byDigest.size() > Integer.MAX_VALUE) {
+				throw new IOException("Too many files to index - "
+						+ byDigest.size());
+			}
+			int size = (int) byDigest.size();
+			File temp = File.createTempFile(indexFile.getName() + ".",
+					".tmp", indexFile.getAbsoluteFile().getParentFile());
+			try {
+				try (DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(temp),
+								64 * 1024))) {
+					out.write(MAGIC);
+					out.writeByte(VERSION);
+					out.writeUTF(hashAlgorithm);
+					out.writeInt(Math.max(digestLength, 0));
+					out.writeInt(size);
+					writeSections(out);
+				}
+				CacheFile.replace(temp, indexFile);
+				return size;
+			} finally {
+				// Only still there if the write or the move failed
+				if (temp.exists()) {
+					temp.delete();
+				}
+			}
+		}
+
+		// Each section is a pass over the hashes in digest order
+		private void writeSections(DataOutputStream out) throws IOException {
+			long offset = 0;
+			try (ExternalSorter.Cursor<FileHash> hashes = byDigest.sorted()) {
+				FileHash fileHash;
+				while ((fileHash = hashes.next()) != null) {
+					out.writeLong(offset);
+					offset += utfLength(fileHash.getAbsolutePath());
+				}
+			}
+			int id = 0;
+			try (ExternalSorter.Cursor<FileHash> hashes = byDigest.sorted()) {
+				FileHash fileHash;
+				while ((fileHash = hashes.next()) != null) {
+					out.write(fileHash.getContentHash().getDigest());
+					out.writeLong(fileHash.getLength());
+					byLength.add(new Length(fileHash.getLength(), id));
+					id++;
+				}
+			}
+			try (ExternalSorter.Cursor<Length> lengths = byLength.sorted()) {
+				Length length;
+				while ((length = lengths.next()) != null) {
+					out.writeLong(length.length);
+					out.writeInt(length.id);
+				}
+			}
+			try (ExternalSorter.Cursor<FileHash> hashes = byDigest.sorted()) {
+				FileHash fileHash;
+				while ((fileHash = hashes.next()) != null) {
+					out.writeUTF(fileHash.getAbsolutePath());
+				}
+			}
+		}
+
+		/**
+		 * Remove the runs.
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				byDigest.close();
+			} finally {
+				byLength.close();
+			}
+		}
+	}
+
+	/**
+	 * Open a reverse index for lookups. Nothing but the header is read.
+	 * 
+	 * @param indexFile
+	 *            written by write
+	 * @return the open index, close it when done
+	 * @throws HashException
+	 *             if the file isn't a reverse index
+	 */
+	public static ReverseIndex open(File indexFile) throws HashException,
+			IOException {
+		if (indexFile == null) {
+			throw new IllegalArgumentException("indexFile cannot be null");
+		}
+		RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+		try {
+			return new ReverseIndex(file);
+		} catch (HashException | IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the hash algorithm of the indexed hashes
+	 */
+	public String getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	/**
+	 * @return the number of files in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param length
+	 *            of a file
+	 * @return true if an indexed file has the length
+	 */
+	public synchronized boolean hasLength(long length) throws IOException {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			file.seek(lengthsStart + 12L * middle);
+			long middleLength = file.readLong();
+			if (middleLength == length) {
+				return true;
+			} else if (middleLength < length) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the indexed files with the content hash and length.
+	 * 
+	 * @param contentHash
+	 *            full hash of a file
+	 * @param length
+	 *            of the file
+	 * @return the files, empty if there are none
+	 */
+	public synchronized List<File> find(ContentHash contentHash, long length)
+			throws IOException {
+		if (contentHash == null) {
+			throw new IllegalArgumentException("contentHash cannot be null");
+		}
+		byte[] digest = contentHash.getDigest();
+		List<File> found = new ArrayList<>();
+		if (!contentHash.isFull() || (digest.length != digestLength)) {
+			return found;
+		}
+
+		// The first record with the digest
+		byte[] record = new byte[digestLength];
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			file.seek(digestsStart + (digestLength + 8L) * middle);
+			file.readFully(record);
+			if (compareDigests(record, digest) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		for (int id = low; id < size; id++) {
+			file.seek(digestsStart + (digestLength + 8L) * id);
+			file.readFully(record);
+			if (!Arrays.equals(record, digest)) {
+				break;
+			}
+			if (file.readLong() == length) {
+				found.add(new File(readPath(id)));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Find the indexed copies of a file. The file is only hashed if an
+	 * indexed file has its length.
+	 * 
+	 * @param toFind
+	 *            file to look up
+	 * @param hashCreator
+	 *            hashes the file, must use the index's hash algorithm
+	 * @return the indexed files with the same contents, empty if there are
+	 *         none
+	 * @throws HashException
+	 *             if the file can't be hashed
+	 */
+	public List<File> lookup(File toFind, HashCreator hashCreator)
+			throws HashException, IOException {
+		if (toFind == null) {
+			throw new IllegalArgumentException("toFind cannot be null");
+		}
+		if (hashCreator == null) {
+			throw new IllegalArgumentException("hashCreator cannot be null");
+		}
+		if (!hashCreator.getHashAlgorithm().equals(hashAlgorithm)) {
+			throw new HashException("The index was written with "
+					+ hashAlgorithm + " but the hash algorithm is "
+					+ hashCreator.getHashAlgorithm());
+		}
+		long length = toFind.length();
+		if (!hasLength(length)) {
+			return new ArrayList<>();
+		}
+		return find(hashCreator.fullHash(toFind), length);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		file.close();
+	}
+
+	// The path of the file with the id
+	private String readPath(int id) throws IOException {
+		file.seek(offsetsStart + 8L * id);
+		file.seek(pathsStart + file.readLong());
+		return file.readUTF();
+	}
+
+	// Compare digests as unsigned bytes
+	static int compareDigests(byte[] digest1, byte[] digest2) {
+		int length = Math.min(digest1.length, digest2.length);
+		for (int i = 0; i < length; i++) {
+			int result = (digest1[i] & 0xff) - (digest2[i] & 0xff);
+			if (result != 0) {
+				return result;
+			}
+		}
+		return digest1.length - digest2.length;
+	}
+
+	// Bytes writeUTF writes for the string
+	private static long utfLength(String string) {
+		long length = 2;
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			if ((c >= 0x0001) && (c <= 0x007F)) {
+				length++;
+			} else if (c > 0x07FF) {
+				length += 3;
+			} else {
+				length += 2;
+			}
+		}
+		return length;
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Creates a fingerprint of a large file from its length and a few blocks:
+ * the head, middle, tail and SAMPLES blocks at pseudo-random offsets. The
+ * offsets only depend on the length so identical files are sampled at the
+ * same places.
+ * 
+ * Files with the same fingerprint are only probably the same. The
+ * fingerprints have the SAMPLED strength so they never equal a full hash.
+ */
+final class SampledDigest {
+
+	// Bytes in each sample
+	static final int SAMPLE_SIZE = 64 * 1024;
+
+	// Pseudo-random samples besides the head, middle and tail
+	static final int SAMPLES = 8;
+
+	// Added to the hash algorithm for the name a sampled hash is kept under
+	// next to a full hash
+	static final String ALGORITHM_PREFIX = "SAMPLED-";
+
+	private SampledDigest() {
+		// Static methods only
+	}
+
+	/**
+	 * @param file
+	 *            to fingerprint
+	 * @param messageDigest
+	 *            to hash the samples with
+	 * @param throttle
+	 *            to limit the reads or null for no limit
+	 * @return the SAMPLED content hash of the file
+	 */
+	static ContentHash hash(File file, MessageDigest messageDigest,
+			IoThrottle throttle) throws IOException {
+		if (!file.exists()) {
+			throw new FileNotFoundException("File does not exist - " + file);
+		}
+		if (throttle != null) {
+			throttle.acquireFile();
+		}
+
+		messageDigest.reset();
+		ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_SIZE);
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			long length = channel.size();
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				messageDigest.update((byte) (length >>> shift));
+			}
+			for (long offset : offsets(length)) {
+				buffer.clear();
+				while (buffer.hasRemaining()) {
+					int read = channel.read(buffer, offset + buffer.position());
+					if (read == -1) {
+						break;
+					}
+					if (throttle != null) {
+						throttle.acquireBytes(read);
+					}
+				}
+				messageDigest.update(buffer.array(), 0, buffer.position());
+			}
+		}
+		return new ContentHash(messageDigest.digest(),
+				ContentHash.Strength.SAMPLED);
+	}
+
+	/**
+	 * @param length
+	 *            of the file
+	 * @return sorted offsets of the samples
+	 */
+	static long[] offsets(long length) {
+		long last = Math.max(0, length - SAMPLE_SIZE);
+		long[] offsets = new long[SAMPLES + 3];
+		offsets[0] = 0;
+		offsets[1] = last / 2;
+		offsets[2] = last;
+
+		// Seeded by the length so every file of this length is sampled the
+		// same way
+		Random random = new Random(length);
+		for (int i = 3; i < offsets.length; i++) {
+			offsets[i] = (last == 0 ? 0 : (random.nextLong() >>> 1)
+					% (last + 1));
+		}
+		Arrays.sort(offsets);
+		return offsets;
+	}
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * A cache kept in a directory as one shard file per root directory plus a
+ * manifest listing the root of each shard. Only the shards that overlap the
+ * directories being processed are loaded and only the shards with modified
+ * entries are written back.
+ * 
+ * Each shard file is a {@link CacheFile} in either format. A cache entry
+ * belongs to the shard with the longest root that contains it. Roots can be
+ * nested.
+ */
+public class ShardedCache {
+
+	static final String MANIFEST_NAME = "manifest.properties";
+
+	private static final String SHARD_PREFIX = "shard";
+	private static final String SHARD_SUFFIX = ".ser";
+
+	private final File directory;
+
+	// Root of each shard (absolute path with a trailing separator) and the
+	// name of the shard's file
+	private final Map<String, String> shards = new HashMap<>();
+
+	// Roots of the shards that have been loaded or created
+	private final Set<String> loaded = new HashSet<>();
+
+	private boolean manifestRead = false;
+
+	// Write shards in the compact format
+	private boolean compact = false;
+
+	/**
+	 * @param directory
+	 *            holding the manifest and shards, created when saved if it
+	 *            does not exist
+	 */
+	public ShardedCache(File directory) {
+		if (directory == null) {
+			throw new IllegalArgumentException("directory cannot be null");
+		}
+		this.directory = directory;
+	}
+
+	// Add the trailing / so it doesn't match things it shouldn't
+	private static String toRoot(Path path) {
+		String absolutePath = path.toFile().getAbsolutePath();
+		if (!absolutePath.endsWith(File.separator)) {
+			absolutePath += File.separator;
+		}
+		return absolutePath;
+	}
+
+	/**
+	 * Load the shards that overlap the paths into the hashCreator. A path that
+	 * is not inside an existing shard gets a new shard.
+	 * 
+	 * @param hashCreator
+	 *            to load the shards into
+	 * @param paths
+	 *            directories that are going to be processed
+	 * @return number of shards loaded
+	 */
+	public int load(HashCreator hashCreator, Collection<Path> paths)
+			throws HashException, IOException {
+		if (hashCreator == null) {
+			throw new IllegalArgumentException("hashCreator cannot be null");
+		}
+		if (paths == null) {
+			throw new IllegalArgumentException("paths cannot be null");
+		}
+		readManifest();
+
+		int count = 0;
+		for (Path path : paths) {
+			String root = toRoot(path);
+			boolean covered = false;
+			for (Map.Entry<String, String> shard : new ArrayList<>(
+					shards.entrySet())) {
+				String shardRoot = shard.getKey();
+				if (root.startsWith(shardRoot)) {
+					covered = true;
+				} else if (!shardRoot.startsWith(root)) {
+					// No overlap
+					continue;
+				}
+				if (loaded.add(shardRoot)) {
+					File file = new File(directory, shard.getValue());
+					if (file.exists()) {
+						loadShard(hashCreator, file);
+						count++;
+					}
+				}
+			}
+			if (!covered) {
+				shards.put(root, newShardName());
+				loaded.add(root);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Write the loaded shards that contain entries modified in the
+	 * hashCreator, and the manifest. Cache entries that are not inside a
+	 * shard are not written.
+	 * 
+	 * @param hashCreator
+	 *            whose cache is written
+	 * @return number of shards written
+	 */
+	public int save(HashCreator hashCreator) throws IOException {
+		if (hashCreator == null) {
+			throw new IllegalArgumentException("hashCreator cannot be null");
+		}
+		Set<String> dirty = new HashSet<>();
+		for (String modified : hashCreator.getModifiedDirectories()) {
+			String owner = ownerOf(modified + File.separator);
+			if ((owner != null) && loaded.contains(owner)) {
+				dirty.add(owner);
+			}
+		}
+		if (dirty.isEmpty()) {
+			return 0;
+		}
+
+		Map<String, List<FileHash>> contents = new HashMap<>();
+		for (String root : dirty) {
+			contents.put(root, new ArrayList<FileHash>());
+		}
+		for (FileHash fileHash : hashCreator.getCachedHashes()) {
+			List<FileHash> content = contents.get(ownerOf(fileHash
+					.getAbsolutePath()));
+			if (content != null) {
+				content.add(fileHash);
+			}
+		}
+
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Could not create cache directory - "
+					+ directory);
+		}
+		for (Map.Entry<String, List<FileHash>> entry : contents.entrySet()) {
+			File file = new File(directory, shards.get(entry.getKey()));
+			CacheFile.write(file, hashCreator.getHashAlgorithm(),
+					entry.getValue(), compact);
+		}
+		writeManifest();
+		return dirty.size();
+	}
+
+	// Merge a shard file into the hashCreator's cache
+	private static void loadShard(HashCreator hashCreator, File file)
+			throws HashException, IOException {
+		CacheLoader loader = new CacheLoader(hashCreator);
+		CacheFile.read(file, loader);
+		if (loader.isRejected()) {
+			throw new HashException(file, "The shard was written with "
+					+ loader.getHashAlgorithm() + " but the hash algorithm is "
+					+ hashCreator.getHashAlgorithm());
+		}
+		loader.reportPromoted();
+	}
+
+	// The root of the shard that the path belongs to or null if none
+	private String ownerOf(String absolutePath) {
+		String owner = null;
+		for (String root : shards.keySet()) {
+			if (absolutePath.startsWith(root)
+					&& ((owner == null) || (root.length() > owner.length()))) {
+				owner = root;
+			}
+		}
+		return owner;
+	}
+
+	// Pick a file name that is not used by another shard
+	private String newShardName() {
+		Collection<String> used = shards.values();
+		int number = shards.size();
+		String name;
+		do {
+			name = SHARD_PREFIX + number + SHARD_SUFFIX;
+			number++;
+		} while (used.contains(name));
+		return name;
+	}
+
+	private void readManifest() throws IOException {
+		if (manifestRead) {
+			return;
+		}
+		manifestRead = true;
+		File manifest = new File(directory, MANIFEST_NAME);
+		if (!manifest.exists()) {
+			return;
+		}
+		Properties properties = new Properties();
+		try (InputStream fis = new FileInputStream(manifest)) {
+			properties.load(fis);
+		}
+		for (String name : properties.stringPropertyNames()) {
+			shards.put(properties.getProperty(name), name);
+		}
+	}
+
+	private void writeManifest() throws IOException {
+		Properties properties = new Properties();
+		for (Map.Entry<String, String> shard : shards.entrySet()) {
+			properties.setProperty(shard.getValue(), shard.getKey());
+		}
+		File manifest = new File(directory, MANIFEST_NAME);
+		File temp = new File(directory, MANIFEST_NAME + ".tmp");
+		try (OutputStream fos = new FileOutputStream(temp)) {
+			properties.store(fos, "Shard file = root directory");
+		}
+		CacheFile.replace(temp, manifest);
+	}
+
+	/**
+	 * @return the directory holding the manifest and shards
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return true if shards are written in the compact format
+	 */
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * @param compact
+	 *            true to write shards in the compact format
+	 */
+	public void setCompact(boolean compact) {
+		this.compact = compact;
+	}
+
+	/**
+	 * @return number of shards in the manifest, including new ones
+	 */
+	public int getShardCount() {
+		return shards.size();
+	}
+}
@@ -0,0 +1,670 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cached hashes held in a fixed amount of memory. The most recently used
+ * hashes are kept on the heap and the least recently used are evicted to a
+ * temporary file that is read when they are looked up again.
+ * 
+ * A hash is only written to the file when it is evicted after being added or
+ * changed. A hash read back from the file keeps its record so evicting it
+ * again is free. The records are found through an index in a second temporary
+ * file, so the heap doesn't grow with the number of paths. The index holds a
+ * 64-bit hash of each path and the offset of its record, 16 bytes a slot, and
+ * the record is read to check the path when the hashes match.
+ * 
+ * All of the methods are synchronized. Iterating sees the hashes that were in
+ * the cache when the iterator was created unless they are changed or removed
+ * before the iterator reaches them.
+ */
+public final class TieredCache extends AbstractMap<String, FileHash> implements
+		ConcurrentMap<String, FileHash>, Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Rough bytes for the objects of an entry apart from its arrays
+	private static final int ENTRY_OVERHEAD = 160;
+
+	// A path hash and a record offset
+	private static final int SLOT_BYTES = 16;
+	private static final int INITIAL_SLOTS = 1024;
+
+	// Slots read at once when the index is rebuilt
+	private static final int REHASH_SLOTS = 4096;
+
+	// A hash on the heap
+	private static class Node {
+		final FileHash fileHash;
+
+		// Offset of the record that matches it or -1 if it isn't in the file
+		long offset;
+		final long bytes;
+
+		Node(FileHash fileHash, long offset) {
+			this.fileHash = fileHash;
+			this.offset = offset;
+			this.bytes = estimateBytes(fileHash);
+		}
+	}
+
+	private final long memoryBudget;
+	private final File directory;
+	private final File file;
+	private final RandomAccessFile records;
+	private long fileLength = 0;
+
+	// Least recently used first
+	private final LinkedHashMap<String, Node> heap = new LinkedHashMap<>(16,
+			0.75f, true);
+	private long heapBytes = 0;
+
+	// Heap nodes that also have a record in the index
+	private int cleanInHeap = 0;
+
+	// Open addressing from path hash to record offset. A key of 0 is empty and
+	// an offset of -1 is removed.
+	private File indexFile;
+	private RandomAccessFile index;
+	private int capacity = INITIAL_SLOTS;
+	private int used = 0;
+	private int live = 0;
+
+	// The slot last read
+	private final byte[] slot = new byte[SLOT_BYTES];
+	private long slotKey;
+	private long slotOffset;
+
+	// The hash read while looking for a path, the offset of its record and
+	// the record's length
+	private FileHash lastRead;
+	private long lastOffset;
+	private int recordLength;
+
+	private final Fingerprint64 pathDigest = new Fingerprint64();
+
+	private long heapHits = 0;
+	private long diskHits = 0;
+	private long misses = 0;
+	private long recordsWritten = 0;
+
+	/**
+	 * @param directory
+	 *            where to create the temporary file or null for the default
+	 *            temporary directory
+	 * @param memoryBudget
+	 *            rough bytes of hashes to keep on the heap
+	 */
+	TieredCache(File directory, long memoryBudget) throws IOException {
+		if (memoryBudget <= 0) {
+			throw new IllegalArgumentException("memoryBudget must be positive");
+		}
+		this.memoryBudget = memoryBudget;
+		this.directory = directory;
+		file = File.createTempFile("hashcache", ".tier", directory);
+		file.deleteOnExit();
+		records = new RandomAccessFile(file, "rw");
+		try {
+			indexFile = createIndex();
+			index = new RandomAccessFile(indexFile, "rw");
+			index.setLength((long) SLOT_BYTES * capacity);
+		} catch (IOException e) {
+			records.close();
+			file.delete();
+			if (indexFile != null) {
+				indexFile.delete();
+			}
+			throw e;
+		}
+	}
+
+	// A new empty index file
+	private File createIndex() throws IOException {
+		File created = File.createTempFile("hashcache", ".index", directory);
+		created.deleteOnExit();
+		return created;
+	}
+
+	// Rough bytes the hash takes on the heap
+	static long estimateBytes(FileHash fileHash) {
+		long bytes = ENTRY_OVERHEAD + (2L * fileHash.getAbsolutePath().length())
+				+ fileHash.getContentHash().getDigest().length;
+		for (ContentHash other : fileHash.getOtherHashes().values()) {
+			bytes += 64 + other.getDigest().length;
+		}
+		AppendState appendState = fileHash.getAppendState();
+		if (appendState != null) {
+			bytes += 64 + appendState.getState().length
+					+ appendState.getPreviousState().length;
+		}
+		return bytes;
+	}
+
+	@Override
+	public synchronized FileHash get(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		String path = (String) key;
+		Node node = heap.get(path);
+		if (node != null) {
+			heapHits++;
+			return node.fileHash;
+		}
+		int slot = findSlot(path);
+		if (slot == -1) {
+			misses++;
+			return null;
+		}
+		diskHits++;
+		FileHash fileHash = lastRead;
+		addToHeap(path, new Node(fileHash, lastOffset));
+		return fileHash;
+	}
+
+	@Override
+	public synchronized boolean containsKey(Object key) {
+		if (!(key instanceof String)) {
+			return false;
+		}
+		return heap.containsKey(key) || (findSlot((String) key) != -1);
+	}
+
+	@Override
+	public synchronized FileHash put(String key, FileHash value) {
+		if ((key == null) || (value == null)) {
+			throw new NullPointerException();
+		}
+		FileHash old = removeFromTiers(key);
+		addToHeap(key, new Node(value, -1));
+		return old;
+	}
+
+	@Override
+	public synchronized FileHash remove(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		return removeFromTiers((String) key);
+	}
+
+	@Override
+	public synchronized FileHash putIfAbsent(String key, FileHash value) {
+		FileHash existing = get(key);
+		if (existing == null) {
+			put(key, value);
+		}
+		return existing;
+	}
+
+	@Override
+	public synchronized boolean remove(Object key, Object value) {
+		FileHash existing = get(key);
+		if ((existing != null) && existing.equals(value)) {
+			remove(key);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized boolean replace(String key, FileHash oldValue,
+			FileHash newValue) {
+		FileHash existing = get(key);
+		if ((existing != null) && existing.equals(oldValue)) {
+			put(key, newValue);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized FileHash replace(String key, FileHash value) {
+		FileHash existing = get(key);
+		if (existing != null) {
+			put(key, value);
+		}
+		return existing;
+	}
+
+	@Override
+	public synchronized int size() {
+		return heap.size() - cleanInHeap + live;
+	}
+
+	@Override
+	public synchronized void clear() {
+		heap.clear();
+		heapBytes = 0;
+		cleanInHeap = 0;
+		capacity = INITIAL_SLOTS;
+		used = 0;
+		live = 0;
+		fileLength = 0;
+		try {
+			records.setLength(0);
+
+			// Zeroed, so every slot is empty
+			index.setLength(0);
+			index.setLength((long) SLOT_BYTES * capacity);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not clear the cache file",
+					e);
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<String, FileHash>> entrySet() {
+		return new AbstractSet<Map.Entry<String, FileHash>>() {
+			@Override
+			public Iterator<Map.Entry<String, FileHash>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return TieredCache.this.size();
+			}
+		};
+	}
+
+	/**
+	 * Walks the heap as it was when created and then the file up to where it
+	 * ended
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<String, FileHash>> {
+		private final List<Map.Entry<String, FileHash>> heapEntries = new ArrayList<>();
+		private final Set<String> heapKeys = new HashSet<>();
+		private final long end;
+		private int heapPosition = 0;
+		private long filePosition = 0;
+		private Map.Entry<String, FileHash> next;
+		private String lastKey;
+
+		EntryIterator() {
+			synchronized (TieredCache.this) {
+				for (Map.Entry<String, Node> entry : heap.entrySet()) {
+					heapEntries.add(new AbstractMap.SimpleImmutableEntry<>(
+							entry.getKey(), entry.getValue().fileHash));
+					heapKeys.add(entry.getKey());
+				}
+				end = fileLength;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null) {
+				next = advance();
+			}
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<String, FileHash> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, FileHash> entry = next;
+			next = null;
+			lastKey = entry.getKey();
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			if (lastKey == null) {
+				throw new IllegalStateException();
+			}
+			TieredCache.this.remove(lastKey);
+			lastKey = null;
+		}
+
+		// The next entry or null at the end
+		private Map.Entry<String, FileHash> advance() {
+			if (heapPosition < heapEntries.size()) {
+				return heapEntries.get(heapPosition++);
+			}
+			synchronized (TieredCache.this) {
+				while (filePosition < end) {
+					long offset = filePosition;
+					FileHash fileHash = readRecord(offset);
+					filePosition = offset + 4 + recordLength;
+					String path = fileHash.getAbsolutePath();
+
+					// Only the newest record of a hash that isn't on the heap
+					if (!heapKeys.contains(path)
+							&& isCurrent(pathHash(path), offset)) {
+						return new AbstractMap.SimpleImmutableEntry<>(path,
+								fileHash);
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+	// Remove the path from both tiers, returning its hash
+	private FileHash removeFromTiers(String path) {
+		FileHash old = null;
+		Node node = heap.remove(path);
+		if (node != null) {
+			old = node.fileHash;
+			heapBytes -= node.bytes;
+			if (node.offset >= 0) {
+				cleanInHeap--;
+			}
+		}
+		int found = findSlot(path);
+		if (found != -1) {
+			if (old == null) {
+				old = lastRead;
+			}
+			writeSlot(found, pathHash(path), -1);
+			live--;
+		}
+		return old;
+	}
+
+	// Add to the heap and evict the least recently used beyond the budget
+	private void addToHeap(String path, Node node) {
+		heap.put(path, node);
+		heapBytes += node.bytes;
+		if (node.offset >= 0) {
+			cleanInHeap++;
+		}
+		Iterator<Node> eldest = heap.values().iterator();
+		while ((heapBytes > memoryBudget) && (heap.size() > 1)) {
+			Node evicted = eldest.next();
+			eldest.remove();
+			heapBytes -= evicted.bytes;
+			if (evicted.offset >= 0) {
+				// Its record is still in the file
+				cleanInHeap--;
+			} else {
+				insert(pathHash(evicted.fileHash.getAbsolutePath()),
+						writeRecord(evicted.fileHash));
+			}
+		}
+	}
+
+	// 64-bit hash of the path, never 0
+	private long pathHash(String path) {
+		pathDigest.update(path.getBytes(UTF8));
+		byte[] digest = pathDigest.digest();
+		long hash = 0;
+		for (byte b : digest) {
+			hash = (hash << 8) | (b & 0xFF);
+		}
+		return (hash == 0 ? 1 : hash);
+	}
+
+	// First slot to probe for the hash
+	private static int start(long hash, int mask) {
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	// The slot with the path's record, setting lastRead and lastOffset, or -1
+	// if none
+	private int findSlot(String path) {
+		long hash = pathHash(path);
+		int mask = capacity - 1;
+		for (int i = start(hash, mask); readSlot(i) != 0; i = (i + 1) & mask) {
+			if ((slotKey == hash) && (slotOffset >= 0)) {
+				long offset = slotOffset;
+				FileHash fileHash = readRecord(offset);
+				if (fileHash.getAbsolutePath().equals(path)) {
+					lastRead = fileHash;
+					lastOffset = offset;
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	// True if the record at offset is the newest for a path with the hash
+	private boolean isCurrent(long hash, long offset) {
+		int mask = capacity - 1;
+		for (int i = start(hash, mask); readSlot(i) != 0; i = (i + 1) & mask) {
+			if ((slotKey == hash) && (slotOffset == offset)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Index a record for a path that isn't indexed
+	private void insert(long hash, long offset) {
+		if ((used + 1) * 2 > capacity) {
+			rehash();
+		}
+		int mask = capacity - 1;
+		int i = start(hash, mask);
+		while ((readSlot(i) != 0) && (slotOffset != -1)) {
+			i = (i + 1) & mask;
+		}
+		if (slotKey == 0) {
+			used++;
+		}
+		writeSlot(i, hash, offset);
+		live++;
+	}
+
+	// Copy the live slots to a new index file, growing it if more than a
+	// quarter is live
+	private void rehash() {
+		File oldFile = indexFile;
+		RandomAccessFile oldIndex = index;
+		int oldCapacity = capacity;
+		if ((live + 1) * 4 > capacity) {
+			capacity *= 2;
+		}
+		used = 0;
+		live = 0;
+		try {
+			indexFile = createIndex();
+			index = new RandomAccessFile(indexFile, "rw");
+			index.setLength((long) SLOT_BYTES * capacity);
+
+			byte[] slots = new byte[SLOT_BYTES * REHASH_SLOTS];
+			oldIndex.seek(0);
+			for (int first = 0; first < oldCapacity; first += REHASH_SLOTS) {
+				int count = Math.min(REHASH_SLOTS, oldCapacity - first);
+				oldIndex.readFully(slots, 0, SLOT_BYTES * count);
+				for (int i = 0; i < count; i++) {
+					long key = getLong(slots, SLOT_BYTES * i);
+					long offset = getLong(slots, SLOT_BYTES * i + 8);
+					if ((key != 0) && (offset != -1)) {
+						insert(key, offset);
+					}
+				}
+			}
+			oldIndex.close();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not rebuild the index - "
+					+ indexFile, e);
+		}
+		oldFile.delete();
+	}
+
+	// Read the slot into slotKey and slotOffset, returning its key
+	private long readSlot(int i) {
+		try {
+			index.seek((long) SLOT_BYTES * i);
+			index.readFully(slot);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read the index - "
+					+ indexFile, e);
+		}
+		slotKey = getLong(slot, 0);
+		slotOffset = getLong(slot, 8);
+		return slotKey;
+	}
+
+	private void writeSlot(int i, long key, long offset) {
+		putLong(slot, 0, key);
+		putLong(slot, 8, offset);
+		try {
+			index.seek((long) SLOT_BYTES * i);
+			index.write(slot);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not write the index - "
+					+ indexFile, e);
+		}
+	}
+
+	private static long getLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	private static void putLong(byte[] bytes, int offset, long value) {
+		for (int i = 0; i < 8; i++) {
+			bytes[offset + i] = (byte) (value >>> (56 - 8 * i));
+		}
+	}
+
+	private FileHash readRecord(long offset) {
+		try {
+			records.seek(offset);
+			recordLength = records.readInt();
+			byte[] bytes = new byte[recordLength];
+			records.readFully(bytes);
+			return CompactCacheCodec.decode(bytes, bytes.length);
+		} catch (IOException | HashException e) {
+			throw new IllegalStateException("Could not read the cache file - "
+					+ file, e);
+		}
+	}
+
+	// Append a record, returning its offset
+	private long writeRecord(FileHash fileHash) {
+		try {
+			byte[] entry = CompactCacheCodec.encode(fileHash);
+			byte[] record = new byte[4 + entry.length];
+			record[0] = (byte) (entry.length >>> 24);
+			record[1] = (byte) (entry.length >>> 16);
+			record[2] = (byte) (entry.length >>> 8);
+			record[3] = (byte) entry.length;
+			System.arraycopy(entry, 0, record, 4, entry.length);
+			long offset = fileLength;
+			records.seek(offset);
+			records.write(record);
+			fileLength += record.length;
+			recordsWritten++;
+			return offset;
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not write the cache file - "
+					+ file, e);
+		}
+	}
+
+	/**
+	 * Close and delete the temporary files. The cache can't be used after.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			try {
+				records.close();
+			} finally {
+				index.close();
+			}
+		} finally {
+			if (!file.delete() && file.exists()) {
+				throw new IOException("Could not delete the cache file - "
+						+ file);
+			}
+			if (!indexFile.delete() && indexFile.exists()) {
+				throw new IOException("Could not delete the index - "
+						+ indexFile);
+			}
+		}
+	}
+
+	/**
+	 * @return rough bytes of hashes kept on the heap
+	 */
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @return number of hashes on the heap
+	 */
+	public synchronized int getHeapSize() {
+		return heap.size();
+	}
+
+	/**
+	 * @return number of hashes with a record in the file
+	 */
+	public synchronized int getDiskSize() {
+		return live;
+	}
+
+	/**
+	 * @return lookups found on the heap
+	 */
+	public synchronized long getHeapHits() {
+		return heapHits;
+	}
+
+	/**
+	 * @return lookups read from the file
+	 */
+	public synchronized long getDiskHits() {
+		return diskHits;
+	}
+
+	/**
+	 * @return lookups that were in neither tier
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return hashes written to the file when they were evicted
+	 */
+	public synchronized long getRecordsWritten() {
+		return recordsWritten;
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.duplicateFileUtility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.judyandjacques.hash.CacheFile;
+import com.judyandjacques.hash.FileHash;
+import com.judyandjacques.hash.HashCreator;
+
+public class DeletionExecutorTest {
+	@Rule
+	public ExpectedException exception = ExpectedException.none();
+
+	private static final String PARENT_PATH = "test data\\junit\\";
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File(PARENT_PATH, dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File(PARENT_PATH, name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+		file.deleteOnExit();
+		return file;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testDelete() throws Exception {
+		File dir = createTestDataDirectory("deletion");
+		List<File> toDelete = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			toDelete.add(createTestDataFile("deletion\\" + i, "X" + i));
+		}
+
+		HashCreator creator = new HashCreator();
+		Collection<Path> toSearch = new LinkedList<>();
+		toSearch.add(dir.toPath());
+		creator.create(toSearch);
+		assertEquals(10, creator.getCacheSize());
+
+		File missing = new File(dir, "Does not exist");
+		toDelete.add(missing);
+
+		DeletionExecutor executor = new DeletionExecutor(creator);
+		executor.setParallelism(2);
+		executor.setBatchSize(3);
+		DeletionExecutor.Result result = executor.delete(toDelete);
+
+		assertEquals(10, result.getDeleted().size());
+		assertEquals(1, result.getFailures().size());
+		assertTrue(result.getFailures().containsKey(missing));
+		assertEquals(0, creator.getCacheSize());
+		for (File file : result.getDeleted()) {
+			assertFalse(file.exists());
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testBatchesAreSaved() throws Exception {
+		File dir = createTestDataDirectory("deletionSaved");
+		File kept = createTestDataFile("deletionSaved\\kept", "Kept");
+		List<File> toDelete = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			toDelete.add(createTestDataFile("deletionSaved\\" + i, "X" + i));
+		}
+		File cacheFile = new File(PARENT_PATH, "deletionSaved.ser");
+		cacheFile.deleteOnExit();
+		new File(cacheFile.getPath() + CacheFile.LOCK_SUFFIX).deleteOnExit();
+
+		HashCreator creator = new HashCreator();
+		creator.create(Collections.singletonList(dir.toPath()));
+		CacheFile.writeShared(cacheFile, creator, true);
+
+		DeletionExecutor executor = new DeletionExecutor(creator);
+		executor.setBatchSize(2);
+		executor.setCacheFile(cacheFile, true);
+		DeletionExecutor.Result result = executor.delete(toDelete);
+		assertEquals(5, result.getDeleted().size());
+		assertNull(result.getSaveFailure());
+
+		// Saved once at the end since the interval hadn't passed
+		assertEquals(1, result.getSaves());
+
+		// The file only has what is left
+		List<FileHash> saved = new ArrayList<>();
+		CacheFile.read(cacheFile, saved);
+		assertEquals(1, saved.size());
+		assertEquals(kept.getAbsolutePath(), saved.get(0).getAbsolutePath());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testSaveEveryBatch() throws Exception {
+		File dir = createTestDataDirectory("deletionEvery");
+		List<File> toDelete = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			toDelete.add(createTestDataFile("deletionEvery\\" + i, "X" + i));
+		}
+		File cacheFile = new File(PARENT_PATH, "deletionEvery.ser");
+		cacheFile.deleteOnExit();
+		new File(cacheFile.getPath() + CacheFile.LOCK_SUFFIX).deleteOnExit();
+
+		HashCreator creator = new HashCreator();
+		creator.create(Collections.singletonList(dir.toPath()));
+
+		// One delete at a time so each batch is saved as it completes
+		DeletionExecutor executor = new DeletionExecutor(creator);
+		executor.setParallelism(1);
+		executor.setBatchSize(2);
+		executor.setSaveSeconds(0);
+		executor.setCacheFile(cacheFile, false);
+		DeletionExecutor.Result result = executor.delete(toDelete);
+		assertEquals(3, result.getSaves());
+		List<FileHash> saved = new ArrayList<>();
+		CacheFile.read(cacheFile, saved);
+		assertEquals(0, saved.size());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testBadParallelism() {
+		DeletionExecutor executor = new DeletionExecutor(null);
+
+		exception.expect(IllegalArgumentException.class);
+		executor.setParallelism(0);
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.duplicateFileUtility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.judyandjacques.hash.ContentHash;
+
+public class DeletionPlanTest {
+
+	private static final String PARENT_PATH = "test data\\junit\\";
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File(PARENT_PATH, dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File(PARENT_PATH, name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+		file.deleteOnExit();
+		return file;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testWriteAndCheck() throws Exception {
+		File tests = createTestDataDirectory("planTest");
+		File master = createTestDataFile("planMasterA", "A");
+		File copyA = createTestDataFile("planTest\\a", "A");
+		File copyB = createTestDataFile("planTest\\b", "B");
+		File otherB = createTestDataFile("planTest\\c", "B");
+		File copyD = createTestDataFile("planTest\\d", "D");
+		File otherD = createTestDataFile("planTest\\e", "D");
+
+		// One group with a master copy, the others only in the test directory
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		ContentHash hashA = new ContentHash(copyA, md);
+		Map<ContentHash, Set<File>> testHashes = new HashMap<>();
+		testHashes.put(hashA, new LinkedHashSet<>(Arrays.asList(copyA)));
+		testHashes.put(new ContentHash(copyB, md), new LinkedHashSet<>(
+				Arrays.asList(copyB, otherB)));
+		testHashes.put(new ContentHash(copyD, md), new LinkedHashSet<>(
+				Arrays.asList(copyD, otherD)));
+		Map<ContentHash, Set<File>> masterHashes = new HashMap<>();
+		masterHashes.put(hashA, new LinkedHashSet<>(Arrays.asList(master)));
+
+		List<String> deletables = new LinkedList<>();
+		deletables.add(tests.getAbsolutePath());
+		DeletionPlanner planner = new DeletionPlanner(deletables,
+				new LinkedList<Path>());
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bOut);
+		List<File> toRemove = planner.plan(testHashes, masterHashes, false,
+				false, out);
+		assertEquals(3, toRemove.size());
+
+		File planFile = new File(PARENT_PATH, "plan.bin");
+		planFile.deleteOnExit();
+		assertEquals(3, DeletionPlan.write(planFile, toRemove, planner));
+		List<DeletionPlan.Entry> entries = DeletionPlan.read(planFile);
+		assertEquals(3, entries.size());
+		assertEquals(copyA.getAbsoluteFile(), entries.get(0).getFile());
+		assertEquals(master.getAbsoluteFile(), entries.get(0).getKeptCopy());
+
+		// The master copy goes, a planned file changes and the last group is
+		// still safe
+		assertTrue(master.delete());
+		File plannedB = planner.getKeptCopy(copyB) != null ? copyB : otherB;
+		createTestDataFile("planTest\\" + plannedB.getName(), "Changed");
+
+		List<File> checked = DeletionPlan.check(entries, true, out);
+		assertEquals(1, checked.size());
+		assertTrue(checked.get(0).getName().equals(copyD.getName())
+				|| checked.get(0).getName().equals(otherD.getName()));
+		assertTrue(bOut.toString().contains("kept copy is gone"));
+		assertTrue(bOut.toString().contains("changed or missing"));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testKeptCopyChanged() throws Exception {
+		File planned = createTestDataFile("keptPlanned", "Same");
+		File kept = createTestDataFile("keptCopy", "Same");
+		File touched = createTestDataFile("keptTouched", "Same");
+		File keptTouched = createTestDataFile("keptCopyTouched", "Same");
+		List<DeletionPlan.Entry> entries = new LinkedList<>();
+		entries.add(new DeletionPlan.Entry(planned, planned.length(), planned
+				.lastModified(), kept, kept.length(), kept.lastModified()));
+		entries.add(new DeletionPlan.Entry(touched, touched.length(), touched
+				.lastModified(), keptTouched, keptTouched.length(),
+				keptTouched.lastModified()));
+
+		// One kept copy is edited, the other is only touched
+		createTestDataFile("keptCopy", "Diff");
+		assertTrue(kept.setLastModified(kept.lastModified() + 2000));
+		assertTrue(keptTouched.setLastModified(keptTouched.lastModified()
+				+ 2000));
+
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		List<File> checked = DeletionPlan.check(entries, true, new PrintStream(
+				bOut));
+		assertEquals(Arrays.asList(touched), checked);
+		assertTrue(bOut.toString().contains("kept copy changed"));
+	}
+}
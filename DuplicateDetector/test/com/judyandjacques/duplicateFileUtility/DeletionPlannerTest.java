@@ -0,0 +1,154 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.duplicateFileUtility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.judyandjacques.hash.ContentHash;
+
+public class DeletionPlannerTest {
+
+	private static final String PARENT_PATH = "test data\\junit\\";
+
+	// Nothing is read from these so they don't need to exist
+	private static final File ROOT = new File("planner");
+
+	// Hash of a test data file with the contents
+	private static ContentHash hashOf(String name, String contents)
+			throws IOException, NoSuchAlgorithmException {
+		File file = new File(PARENT_PATH, name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+		file.deleteOnExit();
+		return new ContentHash(file, MessageDigest.getInstance("MD5"));
+	}
+
+	private static File file(String... names) {
+		File file = ROOT;
+		for (String name : names) {
+			file = new File(file, name);
+		}
+		return file;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testPathBoundary() {
+		List<String> deletables = new LinkedList<>();
+		deletables.add(file("a").getPath());
+		DeletionPlanner planner = new DeletionPlanner(deletables,
+				new LinkedList<Path>());
+		assertTrue(planner.isDeletable(file("a", "x")));
+		assertTrue(planner.isDeletable(file("a", "b", "c", "x")));
+		assertFalse(planner.isDeletable(file("ab", "x")));
+		assertFalse(planner.isDeletable(file("x")));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testDeepestDirectoryOwns() {
+		List<String> deletables = new LinkedList<>();
+		deletables.add(file("data").getPath());
+		deletables.add(file("data", "master", "incoming").getPath());
+		List<Path> masters = new LinkedList<>();
+		masters.add(file("data", "master").toPath());
+		DeletionPlanner planner = new DeletionPlanner(deletables, masters);
+		assertTrue(planner.isDeletable(file("data", "other", "x")));
+		assertFalse(planner.isDeletable(file("data", "master", "x")));
+		assertFalse(planner.isDeletable(file("data", "master", "sub", "x")));
+		assertTrue(planner.isDeletable(file("data", "master", "incoming",
+				"x")));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testLastCopyKept() throws Exception {
+		List<String> deletables = new LinkedList<>();
+		deletables.add(file("one").getPath());
+		deletables.add(file("two").getPath());
+		DeletionPlanner planner = new DeletionPlanner(deletables,
+				new LinkedList<Path>());
+
+		File inOne = file("one", "x");
+		File inTwo = file("two", "x");
+		Set<File> testFiles = new LinkedHashSet<>();
+		testFiles.add(inTwo);
+		testFiles.add(inOne);
+		Map<ContentHash, Set<File>> testHashes = new HashMap<>();
+		testHashes.put(hashOf("plannerLast", "Last"), testFiles);
+
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bOut);
+		List<File> toRemove = planner.plan(testHashes,
+				new HashMap<ContentHash, Set<File>>(), false, true, out);
+
+		// The copy in the delete directory given last is kept
+		assertEquals(1, toRemove.size());
+		assertEquals(inOne, toRemove.get(0));
+		assertEquals(inTwo, planner.getKeptCopy(inOne));
+		assertTrue(bOut.toString().contains("Not deleting last copy"));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testMasterCopyKept() throws Exception {
+		List<String> deletables = new LinkedList<>();
+		deletables.add(file("one").getPath());
+		DeletionPlanner planner = new DeletionPlanner(deletables,
+				new LinkedList<Path>());
+
+		ContentHash hash = hashOf("plannerMaster", "Master");
+		Set<File> testFiles = new LinkedHashSet<>();
+		testFiles.add(file("one", "x"));
+		testFiles.add(file("one", "y"));
+		Map<ContentHash, Set<File>> testHashes = new HashMap<>();
+		testHashes.put(hash, testFiles);
+		Set<File> masterFiles = new LinkedHashSet<>();
+		masterFiles.add(file("master", "x"));
+		Map<ContentHash, Set<File>> masterHashes = new HashMap<>();
+		masterHashes.put(hash, masterFiles);
+
+		List<File> toRemove = planner.plan(testHashes, masterHashes, true,
+				false, System.out);
+		assertEquals(2, toRemove.size());
+		assertEquals(file("master", "x"),
+				planner.getKeptCopy(file("one", "y")));
+
+	}
+}
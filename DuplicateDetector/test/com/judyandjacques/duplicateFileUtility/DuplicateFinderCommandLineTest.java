@@ -145,4 +145,27 @@ public class DuplicateFinderCommandLineTest {
 	public final void testIsPretend() {
 		assertTrue(dfcl.isPretend());
 	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testGroupOnDiskBoundsCache() throws Exception {
+		String group = PARENT_PATH + MASTER;
+		DuplicateFinderCommandLine cl = new DuplicateFinderCommandLine(
+				new String[] { "-groupondisk", group, "-groupmemory", "8",
+						"-master", PARENT_PATH + MASTER });
+		assertEquals(8 * 1024 * 1024, cl.getCacheMemory());
+		assertEquals(new File(group), cl.getCacheTierDirectory());
+
+		// An explicit budget and directory are kept
+		cl = new DuplicateFinderCommandLine(new String[] { "-groupondisk",
+				group, "-cachememory", "16", "-cachetierdir",
+				PARENT_PATH + TESTS, "-master", PARENT_PATH + MASTER });
+		assertEquals(16 * 1024 * 1024, cl.getCacheMemory());
+		assertEquals(new File(PARENT_PATH + TESTS), cl.getCacheTierDirectory());
+
+		// Unbounded without -groupondisk
+		cl = new DuplicateFinderCommandLine(new String[] { "-master",
+				PARENT_PATH + MASTER });
+		assertEquals(0, cl.getCacheMemory());
+	}
 }
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.duplicateFileUtility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class DuplicateFinderServerTest {
+
+	private static final String PARENT_PATH = "test data\\junit\\";
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File(PARENT_PATH, dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File(PARENT_PATH, name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+		file.deleteOnExit();
+		return file;
+	}
+
+	// A loopback port nothing is listening on
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	// Send the request with the client and return the response without the
+	// line that ends it
+	private static String send(int port, String request, String arguments,
+			boolean ok) throws IOException {
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		try (PrintStream out = new PrintStream(bOut, true,
+				DuplicateFinderServer.CHARSET)) {
+			assertEquals(ok,
+					DuplicateFinderClient.send(port, request, arguments, out));
+		}
+		return bOut.toString(DuplicateFinderServer.CHARSET);
+	}
+
+	// Wait for the server to listen, checking an unknown request is refused
+	private static void awaitServer(int port) throws IOException,
+			InterruptedException {
+		for (int i = 0;; i++) {
+			try {
+				String response = send(port, "bogus", "", false);
+				assertTrue(response
+						.startsWith(DuplicateFinderServer.ERROR_RESPONSE
+								+ " Unknown request - bogus"));
+				return;
+			} catch (ConnectException e) {
+				if (i == 100) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testRoundTrip() throws Exception {
+		File master = createTestDataDirectory("serverMaster");
+		File test = createTestDataDirectory("serverTest");
+		createTestDataFile("serverMaster\\one", "One");
+		createTestDataFile("serverTest\\copy", "One");
+		createTestDataFile("serverTest\\other", "Other");
+		final int port = freePort();
+
+		final DuplicateFinderServer server = new DuplicateFinderServer(
+				new DuplicateFinderCommandLine(new String[] { "-master",
+						master.getPath(), "-port", Integer.toString(port) }));
+		final IOException[] failure = new IOException[1];
+		Thread serving = new Thread() {
+			@Override
+			public void run() {
+				try {
+					server.serve(port);
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+		};
+		// Doesn't keep the tests running if one fails
+		serving.setDaemon(true);
+		serving.start();
+		awaitServer(port);
+
+		final String testArgument = DuplicateFinderServer.TEST_ARGUMENT + "\t"
+				+ test.getAbsolutePath() + "\n";
+		assertEquals("Scanned 2 files", send(port, "scan", testArgument, true)
+				.trim());
+
+		// Two clients at once share the cache
+		final String[] responses = new String[2];
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] clients = new Thread[responses.length];
+		for (int i = 0; i < clients.length; i++) {
+			final int client = i;
+			clients[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						responses[client] = send(port, "duplicates",
+								testArgument, true);
+					} catch (IOException | InterruptedException e) {
+						responses[client] = e.toString();
+					}
+				}
+			};
+			clients[i].start();
+		}
+		start.countDown();
+		for (Thread client : clients) {
+			client.join();
+		}
+		for (String response : responses) {
+			assertTrue(response.startsWith("Duplicates found(2):"));
+			assertTrue(response.contains("(T) "
+					+ new File(test, "copy").getAbsolutePath()));
+			assertFalse(response.contains("other"));
+		}
+
+		// A delete plan only lists what would be deleted
+		String plan = send(port, "deleteplan", testArgument
+				+ DuplicateFinderServer.DELETE_ARGUMENT + "\t"
+				+ test.getAbsolutePath() + "\n", true);
+		assertTrue(plan.contains("Would delete 1 files"));
+		assertTrue(new File(test, "copy").exists());
+		send(port, "deleteplan", testArgument, false);
+
+		send(port, "shutdown", "", true);
+		serving.join(10000);
+		assertFalse(serving.isAlive());
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.duplicateFileUtility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.judyandjacques.hash.ContentHash;
+import com.judyandjacques.hash.HashCreator;
+
+public class DuplicateVerifierTest {
+
+	private static final String PARENT_PATH = "test data\\junit\\";
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File(PARENT_PATH, dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File(PARENT_PATH, name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+		file.deleteOnExit();
+		return file;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testSameContents() throws IOException {
+		File one = createTestDataFile("verifyOne", "Same");
+		File two = createTestDataFile("verifyTwo", "Same");
+		File three = createTestDataFile("verifyThree", "Diff");
+		assertTrue(DuplicateVerifier.sameContents(one, two));
+		assertFalse(DuplicateVerifier.sameContents(one, three));
+		assertFalse(DuplicateVerifier.sameContents(one, one));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testProbableDeletionsAreConfirmed() throws Exception {
+		File masters = createTestDataDirectory("verifyMaster");
+		File tests = createTestDataDirectory("verifyTest");
+		File master = createTestDataFile("verifyMaster\\a", "A");
+		createTestDataFile("verifyMaster\\b", "B");
+		File copyA = createTestDataFile("verifyTest\\a", "A");
+		File copyB = createTestDataFile("verifyTest\\b", "B");
+
+		HashCreator creator = new HashCreator();
+		creator.setSampledAbove(1);
+		Collection<Path> masterPaths = new LinkedList<>();
+		masterPaths.add(masters.toPath());
+		Collection<Path> testPaths = new LinkedList<>();
+		testPaths.add(tests.toPath());
+		Map<ContentHash, Set<File>> masterHashes = creator.create(masterPaths);
+		Map<ContentHash, Set<File>> testHashes = creator.create(testPaths);
+
+		List<String> deletables = new LinkedList<>();
+		deletables.add(tests.getAbsolutePath());
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bOut);
+		List<File> toRemove = new DeletionPlanner(deletables, masterPaths)
+				.plan(testHashes, masterHashes, true, false, out);
+		assertEquals(2, toRemove.size());
+
+		// The master copy of a is gone so only b is confirmed
+		assertTrue(master.delete());
+		List<File> confirmed = DuplicateVerifier.confirm(toRemove,
+				testHashes, masterHashes, true, out);
+		assertEquals(1, confirmed.size());
+		assertEquals(copyB, confirmed.get(0));
+		assertTrue(bOut.toString().contains(copyA.getName()));
+	}
+}
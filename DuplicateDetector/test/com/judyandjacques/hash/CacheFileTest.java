@@ -0,0 +1,258 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class CacheFileTest {
+	@Rule
+	public ExpectedException exception = ExpectedException.none();
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File("test data\\junit", name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File("test data\\junit", dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	// Hash the directory with a new creator
+	private static HashCreator hashDirectory(File dir) throws HashException {
+		HashCreator hashCreator = new HashCreator();
+		Collection<Path> roots = new LinkedList<>();
+		roots.add(dir.toPath());
+		hashCreator.create(roots);
+		return hashCreator;
+	}
+
+	// The paths in a cache file
+	private static Set<String> readPaths(File cache) throws HashException,
+			IOException {
+		List<FileHash> hashes = new LinkedList<>();
+		CacheFile.read(cache, hashes);
+		Set<String> paths = new HashSet<>();
+		for (FileHash fileHash : hashes) {
+			paths.add(fileHash.getAbsolutePath());
+		}
+		return paths;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testWriteSharedMerges() throws IOException,
+			HashException {
+		File first = createTestDataDirectory("sharedFirst");
+		File a = createTestDataFile("sharedFirst\\a", "A");
+		File second = createTestDataDirectory("sharedSecond");
+		File b = createTestDataFile("sharedSecond\\b", "B");
+		File cache = new File("test data\\junit", "shared.cache");
+		cache.delete();
+		cache.deleteOnExit();
+		new File(cache.getPath() + CacheFile.LOCK_SUFFIX).deleteOnExit();
+
+		// Two jobs save to the same file and neither loses the other's hashes
+		HashCreator firstCreator = hashDirectory(first);
+		HashCreator secondCreator = hashDirectory(second);
+		assertEquals(1, CacheFile.writeShared(cache, firstCreator, true));
+		assertEquals(2, CacheFile.writeShared(cache, secondCreator, false));
+		Set<String> paths = readPaths(cache);
+		assertTrue(paths.contains(a.getAbsolutePath()));
+		assertTrue(paths.contains(b.getAbsolutePath()));
+
+		// A file deleted by one job is removed from the shared cache
+		assertTrue(a.delete());
+		assertEquals(1,
+				firstCreator.removeFromCache(Collections.singletonList(a)));
+		assertEquals(1, CacheFile.writeShared(cache, firstCreator, true));
+		paths = readPaths(cache);
+		assertFalse(paths.contains(a.getAbsolutePath()));
+		assertTrue(paths.contains(b.getAbsolutePath()));
+		assertTrue(firstCreator.takeRemovedPaths().isEmpty());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testWriteSharedSpills() throws IOException,
+			HashException {
+		File dir = createTestDataDirectory("sharedSpills");
+		for (int i = 0; i < 20; i++) {
+			createTestDataFile("sharedSpills\\file" + i, "File " + i);
+		}
+		File cache = new File("test data\\junit", "spills.cache");
+		cache.delete();
+		cache.deleteOnExit();
+		new File(cache.getPath() + CacheFile.LOCK_SUFFIX).deleteOnExit();
+		File index = new File("test data\\junit", "spills.index");
+		index.deleteOnExit();
+
+		// A budget so small that every hash is spilled to its own run, in
+		// both formats and both with and without a file to merge
+		HashCreator hashCreator = hashDirectory(dir);
+		hashCreator.setCacheMemoryBudget(1, dir.getParentFile());
+		try {
+			assertEquals(20,
+					CacheFile.writeShared(cache, hashCreator, true, index));
+			assertEquals(20, readPaths(cache).size());
+			assertEquals(20,
+					CacheFile.writeShared(cache, hashCreator, false, index));
+			assertEquals(20, readPaths(cache).size());
+			try (ReverseIndex reverseIndex = ReverseIndex.open(index)) {
+				assertEquals(20, reverseIndex.size());
+			}
+		} finally {
+			hashCreator.getTieredCache().close();
+		}
+		for (String name : dir.getParentFile().list()) {
+			assertFalse(name.endsWith(".run"));
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testOtherHashesKept() throws IOException,
+			HashException {
+		File cache = new File("test data\\junit", "otherHashes.cache");
+		cache.delete();
+		cache.deleteOnExit();
+		new File(cache.getPath() + CacheFile.LOCK_SUFFIX).deleteOnExit();
+
+		// The saved hash gained a migrated digest, the cached one didn't
+		ContentHash contentHash = new ContentHash(new byte[] { 1, 2, 3 });
+		FileHash migrated = new FileHash("/other/a", contentHash, 10, 1000,
+				null, Collections.singletonMap("SHA-256", new ContentHash(
+						new byte[] { 4, 5, 6 })));
+		FileHash plain = new FileHash("/other/a", contentHash, 10, 1000);
+		CacheFile.write(cache, "MD5", Collections.singletonList(migrated),
+				true);
+
+		// Loading adds it to the equal cached hash
+		HashCreator loaded = new HashCreator();
+		assertTrue(loaded.mergeIntoCache(plain));
+		CacheLoader loader = new CacheLoader(loaded);
+		CacheFile.read(cache, loader);
+		assertEquals(1, loader.getMerged());
+		assertEquals(0, loader.getIdentical());
+		assertTrue(loaded.getCachedHash("/other/a").getOtherHashes()
+				.containsKey("SHA-256"));
+
+		// So does merging on a save
+		HashCreator saving = new HashCreator();
+		assertTrue(saving.mergeIntoCache(plain));
+		assertEquals(1, CacheFile.writeShared(cache, saving, false));
+		List<FileHash> hashes = new LinkedList<>();
+		CacheFile.read(cache, hashes);
+		assertTrue(hashes.get(0).getOtherHashes().containsKey("SHA-256"));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testWriteSharedConcurrently() throws IOException,
+			HashException, InterruptedException {
+		File cache = new File("test data\\junit", "concurrent.cache");
+		cache.delete();
+		cache.deleteOnExit();
+		new File(cache.getPath() + CacheFile.LOCK_SUFFIX).deleteOnExit();
+
+		final File cacheFile = cache;
+		final List<Throwable> errors = Collections
+				.synchronizedList(new LinkedList<Throwable>());
+		List<Thread> threads = new LinkedList<>();
+		for (int i = 0; i < 4; i++) {
+			File dir = createTestDataDirectory("concurrent" + i);
+			createTestDataFile("concurrent" + i + "\\file", "File " + i);
+			final HashCreator hashCreator = hashDirectory(dir);
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						CacheFile.writeShared(cacheFile, hashCreator, true);
+					} catch (HashException | IOException e) {
+						errors.add(e);
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(errors.isEmpty());
+		assertEquals(4, readPaths(cache).size());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testFailedWriteRemovesTemp() throws IOException {
+		// A directory that isn't empty can't be replaced
+		File cache = createTestDataDirectory("notReplaced.cache");
+		createTestDataFile("notReplaced.cache\\file", "File");
+		try {
+			CacheFile.write(cache, "MD5", new LinkedList<FileHash>(), true);
+			fail("Replaced a directory that isn't empty");
+		} catch (IOException e) {
+			// Expected
+		}
+		for (String name : cache.getAbsoluteFile().getParentFile().list()) {
+			assertFalse(name.startsWith(cache.getName() + ".")
+					&& name.endsWith(".tmp"));
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testWriteSharedNull() throws IOException,
+			HashException {
+		exception.expect(IllegalArgumentException.class);
+		CacheFile.writeShared(null, new HashCreator(), true);
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class CacheMergerTest {
+
+	private static final long OLD = 1389000000000L;
+	private static final long NEW = OLD + 60000;
+
+	private static FileHash createHash(String name, int digest,
+			long lastModified) {
+		return new FileHash("/archive/" + name, new ContentHash(new byte[] {
+				(byte) digest, 1, 2, 3 }), 1000L, lastModified);
+	}
+
+	// Write a cache file that is deleted on jvm exit
+	private static File createCache(String name, String hashAlgorithm,
+			boolean compact, FileHash... fileHashes) throws IOException {
+		File file = new File("test data\\junit", name);
+		file.deleteOnExit();
+		CacheFile.write(file, hashAlgorithm, Arrays.asList(fileHashes),
+				compact);
+		return file;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testNewestWins() throws IOException, HashException {
+		HashCreator hashCreator = new HashCreator();
+		String algorithm = hashCreator.getHashAlgorithm();
+		File older = createCache("mergeOlder.cache", algorithm, false,
+				createHash("a.jpg", 1, OLD), createHash("b.jpg", 2, NEW));
+		File newer = createCache("mergeNewer.cache", algorithm, true,
+				createHash("a.jpg", 3, NEW), createHash("b.jpg", 4, OLD));
+
+		// The newest hash of each file wins whichever cache it is in
+		CacheMerger merger = new CacheMerger(hashCreator);
+		merger.setThreads(2);
+		assertEquals(2, merger.load(Arrays.asList(older, newer)));
+		assertEquals(createHash("a.jpg", 3, NEW),
+				hashCreator.getCachedHash("/archive/a.jpg"));
+		assertEquals(createHash("b.jpg", 2, NEW),
+				hashCreator.getCachedHash("/archive/b.jpg"));
+		assertEquals(2, merger.getCachesLoaded());
+		assertEquals(4, merger.getEntriesRead());
+		assertEquals(3, merger.getEntriesMerged());
+		assertEquals(0, merger.getEntriesIdentical());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testTieKeepsFirst() throws IOException, HashException {
+		HashCreator hashCreator = new HashCreator();
+		String algorithm = hashCreator.getHashAlgorithm();
+		File first = createCache("mergeFirst.cache", algorithm, true,
+				createHash("a.jpg", 1, OLD));
+		File second = createCache("mergeSecond.cache", algorithm, false,
+				createHash("a.jpg", 2, OLD));
+
+		// The same in either order, however many threads read them
+		for (int threads = 1; threads <= 2; threads++) {
+			hashCreator = new HashCreator();
+			CacheMerger merger = new CacheMerger(hashCreator);
+			merger.setThreads(threads);
+			merger.load(Arrays.asList(first, second));
+			assertEquals(createHash("a.jpg", 1, OLD),
+					hashCreator.getCachedHash("/archive/a.jpg"));
+			assertEquals(1, merger.getEntriesMerged());
+
+			hashCreator = new HashCreator();
+			merger = new CacheMerger(hashCreator);
+			merger.setThreads(threads);
+			merger.load(Arrays.asList(second, first));
+			assertEquals(createHash("a.jpg", 2, OLD),
+					hashCreator.getCachedHash("/archive/a.jpg"));
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testIdenticalKeptOnce() throws IOException,
+			HashException {
+		HashCreator hashCreator = new HashCreator();
+		String algorithm = hashCreator.getHashAlgorithm();
+
+		// More than a chunk so the hand off between threads is used
+		List<FileHash> hashes = new ArrayList<>();
+		for (int i = 0; i < 3000; i++) {
+			hashes.add(createHash(i + ".jpg", i, OLD));
+		}
+		FileHash[] array = hashes.toArray(new FileHash[hashes.size()]);
+		File first = createCache("mergeSame1.cache", algorithm, true, array);
+		File second = createCache("mergeSame2.cache", algorithm, false, array);
+
+		CacheMerger merger = new CacheMerger(hashCreator);
+		assertEquals(2, merger.load(Arrays.asList(first, second)));
+		assertEquals(3000, hashCreator.getCacheSize());
+		assertEquals(6000, merger.getEntriesRead());
+		assertEquals(3000, merger.getEntriesMerged());
+		assertEquals(3000, merger.getEntriesIdentical());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testWrongAlgorithm() throws IOException, HashException {
+		HashCreator hashCreator = new HashCreator();
+		String algorithm = hashCreator.getHashAlgorithm();
+
+		// Only one hash also has a full hash with the hash algorithm
+		Map<String, ContentHash> other = new TreeMap<>();
+		other.put(algorithm, new ContentHash(new byte[] { 9, 9, 9, 9 }));
+		FileHash promotable = new FileHash("/archive/a.jpg", new ContentHash(
+				new byte[] { 1, 2, 3, 4 }), 1000L, OLD, null, other);
+		File mixed = createCache("mergeMixed.cache", "MD2", true, promotable,
+				createHash("b.jpg", 2, OLD));
+		File none = createCache("mergeNone.cache", "MD2", false,
+				createHash("c.jpg", 3, OLD), createHash("d.jpg", 4, OLD));
+		File missing = new File("test data\\junit", "mergeMissing.cache");
+		missing.delete();
+
+		CacheMerger merger = new CacheMerger(hashCreator);
+		assertEquals(1, merger.load(Arrays.asList(mixed, none, missing)));
+		assertEquals(new ContentHash(new byte[] { 9, 9, 9, 9 }), hashCreator
+				.getCachedHash("/archive/a.jpg").getContentHash());
+		assertNull(hashCreator.getCachedHash("/archive/b.jpg"));
+		assertNull(hashCreator.getCachedHash("/archive/c.jpg"));
+		assertEquals(1, merger.getCachesLoaded());
+		assertEquals(1, merger.getCachesRejected());
+		assertEquals(4, merger.getEntriesRead());
+		assertEquals(3, merger.getEntriesRejected());
+		assertEquals(1, merger.getEntriesMerged());
+
+		// Nothing to load
+		assertEquals(0, new CacheMerger(hashCreator).load(Collections
+				.<File> emptyList()));
+	}
+}
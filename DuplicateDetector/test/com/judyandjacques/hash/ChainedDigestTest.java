@@ -0,0 +1,126 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ChainedDigestTest {
+
+	// Appends count bytes to the file, deletes the file on jvm exit
+	private static File appendTestDataFile(String name, int count, int seed)
+			throws IOException {
+
+		File file = new File("test data\\junit", name);
+		byte[] bytes = new byte[count];
+		for (int i = 0; i < count; i++) {
+			bytes[i] = (byte) (i * seed);
+		}
+		try (FileOutputStream fOut = new FileOutputStream(file, true)) {
+			fOut.write(bytes);
+		}
+
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testResumeMatchesFullHash() throws IOException,
+			NoSuchAlgorithmException {
+		File file = new File("test data\\junit", "chainedGrow");
+		file.delete();
+		appendTestDataFile("chainedGrow", ChainedDigest.BLOCK_SIZE * 2 + 100,
+				3);
+		MessageDigest md = ChainedDigest.getDigest("MD5"
+				+ ChainedDigest.SUFFIX);
+		FileHash before = ChainedDigest.hash(file, md, null);
+		assertEquals(ChainedDigest.BLOCK_SIZE * 2, before
+				.getAppendState().getChainedLength());
+
+		// Not grown
+		assertNull(ChainedDigest.resume(file, md, null, before));
+
+		appendTestDataFile("chainedGrow", ChainedDigest.BLOCK_SIZE, 5);
+		FileHash resumed = ChainedDigest.resume(file, md, null, before);
+		assertNotNull(resumed);
+		FileHash full = ChainedDigest.hash(file, md, null);
+		assertEquals(full.getContentHash(), resumed.getContentHash());
+		assertEquals(ChainedDigest.BLOCK_SIZE * 3, resumed
+				.getAppendState().getChainedLength());
+
+		// A rewritten block is caught
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(ChainedDigest.BLOCK_SIZE * 3 - 1);
+			raf.write(1);
+		}
+		appendTestDataFile("chainedGrow", 10, 7);
+		assertNull(ChainedDigest.resume(file, md, null, full));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testAppendedFilesAreRehashed() throws IOException,
+			HashException {
+		File file = new File("test data\\junit", "chainedCreator");
+		file.delete();
+		appendTestDataFile("chainedCreator", ChainedDigest.BLOCK_SIZE + 1, 3);
+
+		HashCreator creator = new HashCreator();
+		creator.setAppendable(true);
+		assertEquals("MD5+CHAIN", creator.getHashAlgorithm());
+		creator.create(file.toPath());
+
+		appendTestDataFile("chainedCreator", 10, 5);
+		ContentHash appended = creator.create(file.toPath()).get(file);
+		assertEquals(1, creator.getAppendsRehashed());
+
+		// The append state survives the compact cache
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		CompactCacheCodec.write(bOut, creator.getHashAlgorithm(),
+				creator.getCachedHashes());
+		List<FileHash> read = new ArrayList<>();
+		CompactCacheCodec.read(new ByteArrayInputStream(bOut.toByteArray()),
+				read);
+		assertNotNull(read.get(0).getAppendState());
+
+		HashCreator plain = new HashCreator();
+		plain.setAppendable(true);
+		plain.setAppendable(false);
+		assertEquals("MD5", plain.getHashAlgorithm());
+		ContentHash digest = plain.create(file.toPath()).get(file);
+		assertFalse(digest.equals(appended));
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class CheckpointTest {
+
+	@Rule
+	public ExpectedException exception = ExpectedException.none();
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File("test data\\junit", name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File("test data\\junit", dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testResumeFinishedRoot() throws IOException,
+			HashException {
+		File root = createTestDataDirectory("checkpointOne");
+		createTestDataDirectory("checkpointOne\\sub");
+		createTestDataFile("checkpointOne\\a", "A");
+		createTestDataFile("checkpointOne\\sub\\b", "B");
+		File state = new File("test data\\junit", "checkpointOne.ckpt");
+
+		Checkpoint checkpoint = new Checkpoint(state);
+		checkpoint.delete();
+		checkpoint.setEveryFiles(1);
+		HashCreator creator = new HashCreator();
+		creator.setCheckpoint(checkpoint);
+		assertEquals(2, creator.create(root.toPath()).size());
+		assertTrue(checkpoint.exists());
+
+		// Nothing is hashed again
+		Checkpoint resumed = new Checkpoint(state);
+		HashCreator resumer = new HashCreator();
+		assertEquals(2, resumed.resume(resumer));
+		assertTrue(resumer.isCacheModified());
+		resumer.setCheckpoint(resumed);
+		assertEquals(2, resumer.create(root.toPath()).size());
+		assertEquals(2, resumer.getCacheHits());
+
+		resumed.delete();
+		assertFalse(resumed.exists());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testResumeFromFrontier() throws IOException,
+			HashException, NoSuchAlgorithmException {
+		File root = createTestDataDirectory("checkpointTwo");
+		File sub = createTestDataDirectory("checkpointTwo\\sub");
+		File a = createTestDataFile("checkpointTwo\\a", "A");
+		createTestDataFile("checkpointTwo\\sub\\b", "B");
+		File state = new File("test data\\junit", "checkpointTwo.ckpt");
+
+		// Stopped after hashing a with sub still to do
+		Checkpoint checkpoint = new Checkpoint(state);
+		checkpoint.delete();
+		List<Path> frontier = new LinkedList<>();
+		frontier.add(sub.toPath());
+		checkpoint.started(root.getAbsolutePath(), frontier, "MD5");
+		checkpoint.hashed(new FileHash(a, new ContentHash(a,
+				MessageDigest.getInstance("MD5"))));
+		checkpoint.save();
+
+		Checkpoint resumed = new Checkpoint(state);
+		HashCreator resumer = new HashCreator();
+		assertEquals(1, resumed.resume(resumer));
+		resumer.setCheckpoint(resumed);
+		assertEquals(2, resumer.create(root.toPath()).size());
+		assertEquals(1, resumer.getCacheHits());
+		assertEquals(2, resumer.getCacheSize());
+
+		resumed.delete();
+	}
+
+	@Test
+	public final void testResumeWrongAlgorithm() throws IOException,
+			HashException {
+		File root = createTestDataDirectory("checkpointThree");
+		createTestDataFile("checkpointThree\\a", "A");
+		File state = new File("test data\\junit", "checkpointThree.ckpt");
+		state.deleteOnExit();
+		new File(state.getPath() + ".journal").deleteOnExit();
+
+		Checkpoint checkpoint = new Checkpoint(state);
+		checkpoint.delete();
+		HashCreator creator = new HashCreator();
+		creator.setCheckpoint(checkpoint);
+		creator.create(root.toPath());
+
+		HashCreator resumer = new HashCreator();
+		resumer.setHashAlgorithm("SHA-1");
+		exception.expect(HashException.class);
+		new Checkpoint(state).resume(resumer);
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class CompactCacheCodecTest {
+	@Rule
+	public ExpectedException exception = ExpectedException.none();
+
+	private static List<FileHash> createHashes(int count) {
+		List<FileHash> hashes = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			byte[] digest = new byte[] { (byte) i, (byte) (i >> 8), 1, 2 };
+			hashes.add(new FileHash("/archive/" + (i % 7) + "/\u00e9t\u00e9/"
+					+ i + ".jpg", new ContentHash(digest), i * 1000L,
+					1389000000000L - i));
+		}
+		return hashes;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testRoundTrip() throws IOException, HashException {
+		// More than one block
+		List<FileHash> hashes = createHashes(CompactCacheCodec.BLOCK_SIZE + 10);
+
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		assertEquals(hashes.size(),
+				CompactCacheCodec.write(bOut, "MD5", hashes));
+
+		List<FileHash> read = new ArrayList<>();
+		try (InputStream in = new BufferedInputStream(new ByteArrayInputStream(
+				bOut.toByteArray()))) {
+			assertTrue(CompactCacheCodec.isCompact(in));
+			assertEquals("MD5", CompactCacheCodec.read(in, read));
+		}
+		assertEquals(new HashSet<>(hashes), new HashSet<>(read));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testOtherHashes() throws IOException, HashException {
+		Map<String, ContentHash> others = new HashMap<>();
+		others.put("SHA-256", new ContentHash(new byte[] { 9, 8, 7 }));
+		FileHash fileHash = new FileHash("/archive/one.jpg", new ContentHash(
+				new byte[] { 1, 2 }), 10, 1389000000000L, null, others);
+		List<FileHash> hashes = new ArrayList<>();
+		hashes.add(fileHash);
+
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		CompactCacheCodec.write(bOut, "MD5", hashes);
+
+		List<FileHash> read = new ArrayList<>();
+		CompactCacheCodec.read(new ByteArrayInputStream(bOut.toByteArray()),
+				read);
+		assertEquals(others, read.get(0).getOtherHashes());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testObjectStreamIsNotCompact() throws IOException {
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		try (ObjectOutputStream oStream = new ObjectOutputStream(bOut)) {
+			oStream.writeUTF("MD5");
+		}
+		try (InputStream in = new BufferedInputStream(new ByteArrayInputStream(
+				bOut.toByteArray()))) {
+			assertFalse(CompactCacheCodec.isCompact(in));
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testTruncated() throws IOException, HashException {
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		CompactCacheCodec.write(bOut, "MD5", createHashes(100));
+		byte[] bytes = bOut.toByteArray();
+
+		List<FileHash> read = new ArrayList<>();
+		exception.expect(IOException.class);
+		CompactCacheCodec.read(new ByteArrayInputStream(bytes, 0,
+				bytes.length - 10), read);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testBadLength() throws HashException {
+		// Path "a", length 0, lastModified 0 and a digest of 2^31 - 1 bytes
+		byte[] bytes = new byte[] { 0, 1, 'a', 0, 0, (byte) 0xFF, (byte) 0xFF,
+				(byte) 0xFF, (byte) 0xFF, 0x07, 0 };
+		exception.expect(HashException.class);
+		CompactCacheCodec.decode(bytes, bytes.length);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testBadBlockLength() throws IOException,
+			HashException {
+		// One block of 1 entry, 10 bytes long but 2^31 - 1 bytes compressed
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		bOut.write(CompactCacheCodec.MAGIC);
+		bOut.write(CompactCacheCodec.VERSION);
+		bOut.write(new byte[] { 0, 3, 'M', 'D', '5', 1, 1, 10, (byte) 0xFF,
+				(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 });
+		List<FileHash> read = new ArrayList<>();
+		exception.expect(HashException.class);
+		CompactCacheCodec.read(new ByteArrayInputStream(bOut.toByteArray()),
+				read);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testBadOtherHashLength() throws IOException,
+			HashException {
+		Map<String, ContentHash> others = new HashMap<>();
+		others.put("SHA-256", new ContentHash(new byte[] { 9, 8, 7 }));
+		byte[] encoded = CompactCacheCodec.encode(new FileHash("/a",
+				new ContentHash(new byte[] { 1, 2 }), 10, 0, null, others));
+
+		// Replace the other digest's length, just before its 3 bytes, with
+		// 2^31 - 1
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		bOut.write(encoded, 0, encoded.length - 4);
+		bOut.write(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+				(byte) 0xFF, 0x07, 9, 8, 7 });
+		byte[] bytes = bOut.toByteArray();
+		exception.expect(HashException.class);
+		CompactCacheCodec.decode(bytes, bytes.length);
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ExternalGrouperTest {
+
+	private static ContentHash hash(int value) {
+		return new ContentHash(new byte[] { 0, (byte) value });
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testGroupsAcrossRuns() throws IOException {
+		File parent = new File("test data\\junit");
+		final List<String> groups = new ArrayList<>();
+		try (ExternalGrouper grouper = new ExternalGrouper(parent, 100)) {
+			grouper.add(new File("m1"), hash(1), true);
+			grouper.add(new File("t1"), hash(1), false);
+			grouper.add(new File("t2"), hash(2), false);
+			grouper.add(new File("t3"), hash(3), false);
+			grouper.add(new File("t4"), hash(3), false);
+			grouper.add(new File("m2"), hash(4), true);
+			grouper.add(new File("m3"), hash(4), true);
+			grouper.add(new File("t5"), new ContentHash(new byte[] { 0, 3 },
+					ContentHash.Strength.SAMPLED), false);
+			assertEquals(8, grouper.getRecordCount());
+			assertTrue(grouper.getRunCount() > 1);
+
+			grouper.group(new ExternalGrouper.GroupVisitor() {
+				@Override
+				public void visit(ContentHash contentHash, Set<File> masters,
+						Set<File> tests) {
+					groups.add(contentHash.getDigest()[1] + ":"
+							+ masters.size() + ":" + tests.size());
+				}
+			});
+		}
+
+		// Only groups with a test file and a duplicate, in hash order
+		assertEquals("[1:1:1, 3:0:2]", groups.toString());
+
+		// The temporary files are removed
+		for (File file : parent.listFiles()) {
+			assertFalse(file.getName().startsWith("grouper"));
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ExternalSorterTest {
+
+	// Orders by length only, so the paths show the order ties come out in
+	private static final Comparator<FileHash> BY_LENGTH = new Comparator<FileHash>() {
+		@Override
+		public int compare(FileHash o1, FileHash o2) {
+			return Long.compare(o1.getLength(), o2.getLength());
+		}
+	};
+
+	// The directory the runs go in
+	private static File createTestDataDirectory(String dir) {
+		File file = new File("test data\\junit", dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	private static FileHash createHash(int number, long length) {
+		return new FileHash("/sorted/file" + number, new ContentHash(
+				new byte[] { (byte) number }), length, 0L);
+	}
+
+	// Read the sorted hashes
+	private static List<FileHash> readSorted(FileHashSorter sorter)
+			throws IOException {
+		List<FileHash> sorted = new LinkedList<>();
+		try (ExternalSorter.Cursor<FileHash> cursor = sorter.sorted()) {
+			FileHash fileHash;
+			while ((fileHash = cursor.next()) != null) {
+				sorted.add(fileHash);
+			}
+		}
+		return sorted;
+	}
+
+	// Check the hashes are by length and then in the order added
+	private static void checkSorted(List<FileHash> sorted) {
+		assertEquals(30, sorted.size());
+		for (int i = 0; i < sorted.size(); i++) {
+			FileHash fileHash = sorted.get(i);
+			assertEquals(i / 10, fileHash.getLength());
+			assertEquals("/sorted/file" + (i % 10 * 3 + i / 10),
+					fileHash.getAbsolutePath());
+		}
+	}
+
+	private static void sort(long memoryBudget) throws IOException {
+		File dir = createTestDataDirectory("sorter");
+		try (FileHashSorter sorter = new FileHashSorter(dir, memoryBudget,
+				BY_LENGTH)) {
+			for (int i = 0; i < 30; i++) {
+				sorter.add(createHash(i, i % 3));
+			}
+			assertEquals(30, sorter.size());
+			checkSorted(readSorted(sorter));
+
+			// Read again
+			checkSorted(readSorted(sorter));
+			if (memoryBudget == 1) {
+				assertEquals(30, sorter.getRunCount());
+			} else {
+				assertEquals(0, sorter.getRunCount());
+			}
+		}
+		assertEquals(0, dir.list().length);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testSortInMemory() throws IOException {
+		sort(Long.MAX_VALUE);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testSortRuns() throws IOException {
+		sort(1);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testAddAfterSorted() throws IOException {
+		File dir = createTestDataDirectory("sorterClosed");
+		try (FileHashSorter sorter = new FileHashSorter(dir, 1,
+				FileHashSorter.BY_PATH)) {
+			sorter.add(createHash(1, 1));
+			readSorted(sorter);
+			try {
+				sorter.add(createHash(2, 2));
+				fail("Added after sorting");
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+		}
+	}
+}
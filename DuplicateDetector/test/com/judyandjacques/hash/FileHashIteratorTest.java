@@ -0,0 +1,138 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class FileHashIteratorTest {
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File("test data\\junit", name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File("test data\\junit", dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	private static Collection<Path> createFiles(String dir, int count)
+			throws IOException {
+		File directory = createTestDataDirectory(dir);
+		for (int i = 0; i < count; i++) {
+			createTestDataFile(dir + "\\" + i, "X" + i);
+		}
+		Collection<Path> toSearch = new LinkedList<>();
+		toSearch.add(directory.toPath());
+		return toSearch;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testVisitorStops() throws IOException, HashException {
+		Collection<Path> toSearch = createFiles("visitStop", 10);
+
+		HashCreator creator = new HashCreator();
+		final int[] visited = new int[1];
+		assertFalse(creator.visit(toSearch, new FileHashVisitor() {
+			@Override
+			public boolean visit(FileHash fileHash) {
+				visited[0]++;
+				return visited[0] < 3;
+			}
+		}));
+		assertEquals(3, visited[0]);
+		assertEquals(3, creator.getFilesProcessed());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testIterate() throws IOException, HashException,
+			InterruptedException {
+		Collection<Path> toSearch = createFiles("iterate", 20);
+
+		HashCreator creator = new HashCreator();
+		Set<String> paths = new HashSet<>();
+		try (FileHashIterator iterator = creator.iterate(toSearch)) {
+			FileHash fileHash;
+			while ((fileHash = iterator.next()) != null) {
+				paths.add(fileHash.getAbsolutePath());
+			}
+
+			// Stays at the end
+			assertNull(iterator.next());
+		}
+		assertEquals(20, paths.size());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testCloseEarly() throws IOException, HashException,
+			InterruptedException {
+		Collection<Path> toSearch = createFiles("iterateClose", 20);
+
+		HashCreator creator = new HashCreator();
+		FileHashIterator iterator = creator.iterate(toSearch);
+		assertNotNull(iterator.next());
+		iterator.close();
+		assertNull(iterator.next());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testScanError() throws InterruptedException {
+		Collection<Path> toSearch = new LinkedList<>();
+		toSearch.add(new File("test data\\junit", "iterateMissing").toPath());
+
+		HashCreator creator = new HashCreator();
+		try (FileHashIterator iterator = creator.iterate(toSearch)) {
+			iterator.next();
+			throw new IllegalStateException("Expected a HashException");
+		} catch (HashException e) {
+			// Expected
+		}
+	}
+}
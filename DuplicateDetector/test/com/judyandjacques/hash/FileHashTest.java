@@ -136,4 +136,21 @@ public class FileHashTest {
 		exception.expect(IllegalArgumentException.class);
 		fileHash.isValidForFile(null);
 	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testValidForAttributes() {
+		String path = "/archive/one.jpg";
+		long time = 1389000000000L;
+		FileHash fileHash = new FileHash(path, new ContentHash(new byte[] { 1,
+				2 }), 10, time);
+		assertTrue(fileHash.isValidFor(path, 10, time));
+
+		// Saved by a JDK that truncates File.lastModified to the second
+		assertTrue(fileHash.isValidFor(path, 10, time + 123));
+
+		assertFalse(fileHash.isValidFor(path, 11, time));
+		assertFalse(fileHash.isValidFor(path, 10, time + 1000));
+		assertFalse(fileHash.isValidFor("/archive/two.jpg", 10, time));
+	}
 }
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class Fingerprint64Test {
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File("test data\\junit", name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File("test data\\junit", dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testUpdateInPieces() {
+		byte[] data = new byte[1000];
+		new Random(1).nextBytes(data);
+
+		Fingerprint64 whole = new Fingerprint64();
+		whole.update(data);
+		byte[] expected = whole.digest();
+		assertEquals(8, expected.length);
+
+		Fingerprint64 pieces = new Fingerprint64();
+		pieces.update(data, 0, 3);
+		pieces.update(data[3]);
+		pieces.update(data, 4, 500);
+		pieces.update(data, 504, 496);
+		assertArrayEquals(expected, pieces.digest());
+
+		// Reset by digest
+		whole.update(data);
+		assertArrayEquals(expected, whole.digest());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testLengthMatters() {
+		Fingerprint64 fingerprint = new Fingerprint64();
+		fingerprint.update(new byte[8]);
+		byte[] eight = fingerprint.digest();
+		fingerprint.update(new byte[16]);
+		byte[] sixteen = fingerprint.digest();
+		assertFalse(Arrays.equals(eight, sixteen));
+		assertFalse(Arrays.equals(eight, fingerprint.digest()));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testTwoTier() throws IOException, HashException {
+		File dir = createTestDataDirectory("twoTier");
+		createTestDataFile("twoTier\\one", "Same");
+		createTestDataFile("twoTier\\two", "Same");
+		createTestDataFile("twoTier\\three", "Different");
+		Collection<Path> toSearch = new LinkedList<>();
+		toSearch.add(dir.toPath());
+
+		HashCreator creator = new HashCreator();
+		creator.setTwoTier(true);
+		Map<ContentHash, Set<File>> hashes = creator.create(toSearch);
+		assertEquals(2, hashes.size());
+		for (ContentHash contentHash : hashes.keySet()) {
+			assertEquals(ContentHash.Strength.FINGERPRINT,
+					contentHash.getStrength());
+		}
+
+		// Only the two that share a fingerprint are strongly hashed
+		assertEquals(2, creator.confirmFingerprints(Arrays.asList(hashes)));
+		assertEquals(2, creator.getFingerprintsConfirmed());
+		int full = 0;
+		for (Map.Entry<ContentHash, Set<File>> entry : hashes.entrySet()) {
+			if (entry.getKey().isFull()) {
+				assertEquals(2, entry.getValue().size());
+				full++;
+			}
+		}
+		assertEquals(1, full);
+
+		// Both tiers are cached
+		FileHash cached = creator.getCachedHash(new File(dir, "one")
+				.getAbsolutePath());
+		assertEquals(ContentHash.Strength.FULL, cached.getContentHash()
+				.getStrength());
+		assertNotNull(cached.getOtherHash(Fingerprint64.ALGORITHM));
+
+		hashes = creator.create(toSearch);
+		assertEquals(2, hashes.size());
+		assertEquals(2, creator.confirmFingerprints(Arrays.asList(hashes)));
+		assertEquals(2, creator.getFingerprintsConfirmed());
+	}
+}
@@ -29,15 +29,19 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -157,4 +161,286 @@ public class HashCreatorTest {
 
 	}
 
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testLoadCacheWrongAlgorithm() throws IOException,
+			HashException {
+		File dir = createTestDataDirectory("algorithm");
+		createTestDataFile("algorithm\\one", "X");
+
+		HashCreator creator = new HashCreator();
+		creator.setHashAlgorithm("MD5");
+		Collection<Path> toSearch = new LinkedList<>();
+		toSearch.add(dir.toPath());
+		creator.create(toSearch);
+
+		try (ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+				ObjectOutputStream oStream = new ObjectOutputStream(bOut)) {
+
+			creator.writeCache(oStream);
+			HashCreator creatorCache = new HashCreator();
+			creatorCache.setHashAlgorithm("SHA-256");
+
+			try (ByteArrayInputStream bInput = new ByteArrayInputStream(
+					bOut.toByteArray());
+					ObjectInputStream iStream = new ObjectInputStream(bInput)) {
+
+				exception.expect(HashException.class);
+				creatorCache.loadCache(iStream);
+			}
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testSymbolicLinkCycle() throws IOException,
+			HashException {
+		File dir = createTestDataDirectory("linkCycle");
+		createTestDataFile("linkCycle\\one", "1");
+		File link = new File(dir, "loop");
+		if (!Files.isSymbolicLink(link.toPath())) {
+			Files.createSymbolicLink(link.toPath(), dir.getAbsoluteFile()
+					.toPath());
+		}
+		link.deleteOnExit();
+
+		Collection<Path> toSearch = new LinkedList<>();
+		toSearch.add(dir.toPath());
+
+		// The link leads back to the root so it is not processed again
+		HashCreator creator = new HashCreator();
+		assertEquals(1, countFiles(creator.create(toSearch)));
+		assertEquals(1, creator.getAliasesSkipped());
+
+		creator = new HashCreator();
+		creator.setLinkPolicy(HashCreator.LinkPolicy.SKIP);
+		assertEquals(1, countFiles(creator.create(toSearch)));
+		assertEquals(1, creator.getAliasesSkipped());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testOverlappingRoots() throws IOException,
+			HashException {
+		File dir = createTestDataDirectory("overlap");
+		File sub = createTestDataDirectory("overlap\\sub");
+		createTestDataFile("overlap\\one", "1");
+		createTestDataFile("overlap\\sub\\two", "2");
+
+		// Listed twice and nested, each file is only processed once
+		Collection<Path> toSearch = new LinkedList<>();
+		toSearch.add(sub.toPath());
+		toSearch.add(dir.toPath());
+		toSearch.add(dir.toPath());
+		HashCreator creator = new HashCreator();
+		assertEquals(2, countFiles(creator.create(toSearch)));
+		assertEquals(2, creator.getFilesProcessed());
+
+		List<Path> collapsed = HashCreator.collapseRoots(toSearch);
+		assertEquals(Collections.singletonList(dir.toPath()), collapsed);
+		assertEquals(Collections.singletonList(sub.toPath()),
+				HashCreator.removeSame(toSearch, collapsed));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testSeparateRoots() throws IOException, HashException {
+		File dir = createTestDataDirectory("separate");
+		File sub = createTestDataDirectory("separate\\master");
+		createTestDataFile("separate\\one", "1");
+		createTestDataFile("separate\\master\\two", "2");
+
+		HashCreator creator = new HashCreator();
+		creator.setSeparateRoots(Collections.singletonList(sub.toPath()));
+
+		// The separate root is left out of other roots but not itself
+		assertEquals(1, creator.create(dir.toPath()).size());
+		assertEquals(1, creator.create(sub.toPath()).size());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testSharedVisited() throws IOException, HashException {
+		File master = createTestDataDirectory("sharedMaster");
+		File one = createTestDataFile("sharedMaster\\one", "1");
+		File test = createTestDataDirectory("sharedTest");
+		createTestDataFile("sharedTest\\two", "2");
+
+		// A hard link to a master file and a link to the master directory
+		File hardLink = new File(test, "hard");
+		if (!hardLink.exists()) {
+			Files.createLink(hardLink.toPath(), one.toPath());
+		}
+		hardLink.deleteOnExit();
+		File link = new File(test, "linked");
+		if (!Files.isSymbolicLink(link.toPath())) {
+			Files.createSymbolicLink(link.toPath(), master.getAbsoluteFile()
+					.toPath());
+		}
+		link.deleteOnExit();
+
+		// Scanned on their own the tests include the master's file once
+		Collection<Path> masters = Collections.singletonList(master.toPath());
+		Collection<Path> tests = Collections.singletonList(test.toPath());
+		assertEquals(2, countFiles(new HashCreator().create(tests)));
+
+		// Sharing what was visited leaves the master's file to the masters
+		HashCreator creator = new HashCreator();
+		Set<Object> visited = new HashSet<>();
+		assertEquals(1, countFiles(creator.create(masters, visited)));
+		assertEquals(1, countFiles(creator.create(tests, visited)));
+		assertEquals(2, creator.getAliasesSkipped());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testOnlyAliasesRemembered() throws IOException,
+			HashException {
+		File dir = createTestDataDirectory("aliases");
+		File one = createTestDataFile("aliases\\one", "1");
+		createTestDataFile("aliases\\two", "2");
+		File outside = createTestDataDirectory("aliasesOutside");
+		File three = createTestDataFile("aliasesOutside\\three", "3");
+
+		// A link to a file in the directory and one to a file outside it
+		File inside = new File(dir, "linkOne");
+		if (!Files.isSymbolicLink(inside.toPath())) {
+			Files.createSymbolicLink(inside.toPath(), one.getAbsoluteFile()
+					.toPath());
+		}
+		inside.deleteOnExit();
+		File out = new File(dir, "linkThree");
+		if (!Files.isSymbolicLink(out.toPath())) {
+			Files.createSymbolicLink(out.toPath(), three.getAbsoluteFile()
+					.toPath());
+		}
+		out.deleteOnExit();
+
+		// The directory's own files aren't remembered, the outside file
+		// reached through the link is, so it isn't processed again
+		HashCreator creator = new HashCreator();
+		Set<Object> visited = new HashSet<>();
+		assertEquals(3, countFiles(creator.create(
+				Collections.singletonList(dir.toPath()), visited)));
+		assertEquals(2, visited.size());
+		assertEquals(1, creator.getAliasesSkipped());
+		assertEquals(0, countFiles(creator.create(
+				Collections.singletonList(outside.toPath()), visited)));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testThreads() throws IOException, HashException {
+		File dir = createTestDataDirectory("threads");
+		createTestDataDirectory("threads\\sub");
+		for (int i = 0; i < 50; i++) {
+			createTestDataFile("threads\\" + i, "File " + (i % 10));
+		}
+		createTestDataFile("threads\\sub\\copy", "File 3");
+
+		// Large enough to run on its own
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 2 * HashScheduler.SMALL_FILE) {
+			large.append("Large file ");
+		}
+		createTestDataFile("threads\\large", large.toString());
+
+		Collection<Path> toSearch = Collections.singletonList(dir.toPath());
+		HashCreator single = new HashCreator();
+		Map<ContentHash, Set<File>> expected = single.create(toSearch);
+
+		HashCreator creator = new HashCreator();
+		creator.setThreads(4);
+		assertEquals(expected, creator.create(toSearch));
+		assertEquals(52, creator.getFilesProcessed());
+		assertEquals(52, creator.getCacheSize());
+
+		// Cached now so nothing is read
+		assertEquals(expected, creator.create(toSearch));
+		assertEquals(52, creator.getCacheHits());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testSetThreadsWhileScanning() throws IOException,
+			HashException {
+		File dir = createTestDataDirectory("setThreads");
+		for (int i = 0; i < 20; i++) {
+			createTestDataDirectory("setThreads\\" + i);
+			for (int j = 0; j < 10; j++) {
+				createTestDataFile("setThreads\\" + i + "\\" + j, "File "
+						+ i + " " + j);
+			}
+		}
+
+		// The running scan keeps reading on the pool it started with
+		final HashCreator creator = new HashCreator();
+		creator.setThreads(2);
+		final AtomicInteger visited = new AtomicInteger();
+		Collection<Path> toSearch = Collections.singletonList(dir.toPath());
+		assertTrue(creator.visit(toSearch, new FileHashVisitor() {
+			@Override
+			public boolean visit(FileHash fileHash) {
+				if (visited.incrementAndGet() == 1) {
+					creator.setThreads(3);
+				}
+				return true;
+			}
+		}));
+		assertEquals(200, visited.get());
+		assertEquals(3, creator.getThreads());
+		assertEquals(200, countFiles(creator.create(toSearch)));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testLoadCacheInBackground() throws IOException,
+			HashException {
+		File dir = createTestDataDirectory("background");
+		createTestDataDirectory("background\\sub");
+		for (int i = 0; i < 10; i++) {
+			createTestDataFile("background\\" + i, "File " + i);
+		}
+		createTestDataFile("background\\sub\\copy", "File 3");
+		Collection<Path> toSearch = Collections.singletonList(dir.toPath());
+		final HashCreator earlier = new HashCreator();
+		Map<ContentHash, Set<File>> expected = earlier.create(toSearch);
+
+		// The scan walks the directories while the cache loads and waits
+		// for it to look the files up
+		final HashCreator creator = new HashCreator();
+		creator.loadCacheInBackground(new Callable<Integer>() {
+			@Override
+			public Integer call() throws InterruptedException {
+				Thread.sleep(100);
+				for (FileHash fileHash : earlier.getCachedHashes()) {
+					creator.mergeIntoCache(fileHash);
+				}
+				return Integer.valueOf(creator.getCacheSize());
+			}
+		});
+		assertEquals(expected, creator.create(toSearch));
+		assertFalse(creator.isCacheLoading());
+		assertEquals(11, creator.getCacheHits());
+		assertEquals(11, creator.getCacheSize());
+
+		// A failed load stops the scan
+		HashCreator failing = new HashCreator();
+		failing.loadCacheInBackground(new Callable<Integer>() {
+			@Override
+			public Integer call() throws HashException {
+				throw new HashException("Cache is malformed");
+			}
+		});
+		exception.expect(HashException.class);
+		failing.create(toSearch);
+	}
+
+	private static int countFiles(Map<ContentHash, Set<File>> hashes) {
+		int count = 0;
+		for (Set<File> files : hashes.values()) {
+			count += files.size();
+		}
+		return count;
+	}
 }
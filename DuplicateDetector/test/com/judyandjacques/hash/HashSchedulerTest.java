@@ -0,0 +1,228 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class HashSchedulerTest {
+	@Rule
+	public ExpectedException exception = ExpectedException.none();
+
+	// Records the order the jobs ran in
+	private static class OrderJob extends HashScheduler.Job {
+		private final List<Long> order;
+		private final boolean fail;
+		private final boolean error;
+
+		OrderJob(long length, List<Long> order, boolean fail) {
+			this(length, order, fail, false);
+		}
+
+		OrderJob(long length, List<Long> order, boolean fail, boolean error) {
+			super(Paths.get("job" + length), length);
+			this.order = order;
+			this.fail = fail;
+			this.error = error;
+		}
+
+		@Override
+		void run() throws HashException {
+			if (fail) {
+				throw new HashException("Failed " + length);
+			}
+			if (error) {
+				throw new Error("Error " + length);
+			}
+			order.add(length);
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testLargestFirst() throws HashException {
+		List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+		long[] lengths = { 10, 5 * HashScheduler.SMALL_FILE, 100,
+				3 * HashScheduler.SMALL_FILE, 1000 };
+		try (HashScheduler<OrderJob> scheduler = new HashScheduler<>(1)) {
+			for (long length : lengths) {
+				scheduler.add(new OrderJob(length, order, false));
+			}
+			assertEquals(5, scheduler.getPending().size());
+
+			int finished = 0;
+			while (scheduler.next() != null) {
+				finished++;
+			}
+			assertEquals(5, finished);
+			assertTrue(scheduler.getPending().isEmpty());
+		}
+
+		// One thread runs them in the order they were started
+		List<Long> expected = new ArrayList<>();
+		expected.add(5 * HashScheduler.SMALL_FILE);
+		expected.add(3 * HashScheduler.SMALL_FILE);
+		expected.add(1000L);
+		expected.add(100L);
+		expected.add(10L);
+		assertEquals(expected, order);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testManySmallFiles() throws HashException {
+		List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+		try (HashScheduler<OrderJob> scheduler = new HashScheduler<>(4)) {
+			for (int i = 0; i < HashScheduler.WINDOW + 10; i++) {
+				scheduler.add(new OrderJob(i, order, false));
+			}
+			assertTrue(scheduler.isFull());
+			List<Path> returned = new ArrayList<>();
+			OrderJob job;
+			while ((job = scheduler.next()) != null) {
+				returned.add(job.path);
+			}
+			assertEquals(HashScheduler.WINDOW + 10, returned.size());
+		}
+		assertEquals(HashScheduler.WINDOW + 10, order.size());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testFailure() throws HashException {
+		List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+		try (HashScheduler<OrderJob> scheduler = new HashScheduler<>(2)) {
+			scheduler.add(new OrderJob(1, order, true));
+			exception.expect(HashException.class);
+			scheduler.next();
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testErrorInBatch() throws HashException {
+		List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+		int returned = 0;
+		int failed = 0;
+		try (HashScheduler<OrderJob> scheduler = new HashScheduler<>(1)) {
+			// One batch, the largest runs first and throws
+			scheduler.add(new OrderJob(100, order, false, true));
+			for (int i = 1; i < 10; i++) {
+				scheduler.add(new OrderJob(i, order, false));
+			}
+			while (true) {
+				try {
+					if (scheduler.next() == null) {
+						break;
+					}
+					returned++;
+				} catch (HashException e) {
+					failed++;
+				}
+			}
+		}
+		assertEquals(9, returned);
+		assertEquals(1, failed);
+		assertEquals(9, order.size());
+	}
+
+	// Runs until released
+	private static class SlowJob extends HashScheduler.Job {
+		private final CountDownLatch release;
+
+		SlowJob(long length, CountDownLatch release) {
+			super(Paths.get("slow" + length), length);
+			this.release = release;
+		}
+
+		@Override
+		void run() throws HashException {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new HashException("Interrupted", e);
+			}
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testStragglerDoesNotBlock() throws HashException,
+			InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			runStraggler(pool, release, order);
+
+			// The pool is shared so closing the scheduler leaves it running
+			assertFalse(pool.isShutdown());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void runStraggler(ExecutorService pool,
+			CountDownLatch release, List<Long> order) throws HashException,
+			InterruptedException {
+		try (HashScheduler<HashScheduler.Job> scheduler = new HashScheduler<>(
+				pool, 2)) {
+			// The huge file is started and holds one thread
+			scheduler.add(new SlowJob(100 * HashScheduler.SMALL_FILE, release));
+			assertEquals(null, scheduler.poll());
+
+			// The files found after it are hashed on the other thread and
+			// returned while it is still running
+			int returned = 0;
+			for (int i = 0; i < 200; i++) {
+				scheduler.add(new OrderJob(2 * HashScheduler.SMALL_FILE + i,
+						order, false));
+				while (scheduler.poll() != null) {
+					returned++;
+				}
+			}
+			while (returned < 200) {
+				if (scheduler.poll() != null) {
+					returned++;
+				} else {
+					Thread.sleep(1);
+				}
+			}
+			assertEquals(1, scheduler.getPending().size());
+
+			release.countDown();
+			assertTrue(scheduler.next() instanceof SlowJob);
+			assertEquals(null, scheduler.next());
+		}
+	}
+}
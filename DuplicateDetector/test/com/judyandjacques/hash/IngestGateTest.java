@@ -0,0 +1,216 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class IngestGateTest {
+	@Rule
+	public ExpectedException exception = ExpectedException.none();
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File("test data\\junit", name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File("test data\\junit", dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testIngest() throws IOException, HashException {
+		File archive = createTestDataDirectory("ingestArchive");
+		createTestDataFile("ingestArchive\\old", "Archived");
+		File card = createTestDataDirectory("ingestCard");
+		createTestDataDirectory("ingestCard\\sub");
+		createTestDataFile("ingestCard\\copy", "Archived");
+		File added = createTestDataFile("ingestCard\\new", "New photo");
+		createTestDataFile("ingestCard\\sub\\repeat", "New photo");
+		createTestDataFile("ingestCard\\sameLength", "Archives");
+		File destination = createTestDataDirectory("ingestArchive\\incoming");
+
+		HashCreator hashCreator = new HashCreator();
+		Collection<Path> masters = new LinkedList<>();
+		masters.add(archive.toPath());
+		hashCreator.create(masters);
+		assertEquals(Collections.singleton(archive.getAbsolutePath()),
+				hashCreator.getModifiedDirectories());
+
+		IngestGate gate = new IngestGate(hashCreator, masters);
+		IngestGate.Result result = gate.ingest(
+				Collections.singletonList(card.toPath()), destination, null);
+		assertEquals(2, result.getCopied());
+		assertEquals(2, result.getSkipped());
+		assertEquals(added.length() + 9, result.getBytesCopied());
+
+		// The copies are in the cache as they are on disk. The repeat in the
+		// sub directory is found after the first copy.
+		File copied = new File(destination, "new");
+		copied.deleteOnExit();
+		File sameLength = new File(destination, "sameLength");
+		sameLength.deleteOnExit();
+		assertTrue(copied.isFile());
+		assertTrue(sameLength.isFile());
+		assertEquals(added.lastModified(), copied.lastModified());
+		assertTrue(hashCreator.getCachedHash(copied.getAbsolutePath())
+				.isValidForFile(copied));
+		assertTrue(hashCreator.getModifiedDirectories().contains(
+				destination.getAbsolutePath()));
+		assertEquals(3, hashCreator.getCacheSize());
+		for (File file : destination.listFiles()) {
+			file.deleteOnExit();
+			assertFalse(file.getName().endsWith(".tmp"));
+		}
+
+		// Now everything is archived
+		result = gate.ingest(Collections.singletonList(card.toPath()),
+				destination, null);
+		assertEquals(0, result.getCopied());
+		assertEquals(4, result.getSkipped());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testPretend() throws IOException, HashException {
+		File archive = createTestDataDirectory("pretendArchive");
+		File card = createTestDataDirectory("pretendCard");
+		createTestDataFile("pretendCard\\first", "Photo");
+		createTestDataFile("pretendCard\\second", "Photo");
+		File destination = new File(archive, "incoming");
+
+		HashCreator hashCreator = new HashCreator();
+		IngestGate gate = new IngestGate(hashCreator,
+				Collections.singletonList(archive.toPath()));
+		gate.setPretend(true);
+		IngestGate.Result result = gate.ingest(
+				Collections.singletonList(card.toPath()), destination, null);
+		assertEquals(1, result.getCopied());
+		assertEquals(1, result.getSkipped());
+		assertFalse(destination.exists());
+		assertEquals(0, hashCreator.getCacheSize());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testSampledMasters() throws IOException,
+			HashException {
+		File archive = createTestDataDirectory("sampledArchive");
+		File old = createTestDataFile("sampledArchive\\old", "Archived");
+		File card = createTestDataDirectory("sampledCard");
+		createTestDataFile("sampledCard\\copy", "Archived");
+		createTestDataFile("sampledCard\\sameLength", "Archives");
+		File destination = new File(archive, "incoming");
+
+		// The master is cached with only a sampled hash
+		HashCreator hashCreator = new HashCreator();
+		hashCreator.setSampledAbove(1);
+		Collection<Path> masters = Collections.singletonList(archive.toPath());
+		hashCreator.create(masters);
+		assertFalse(hashCreator.getCachedHash(old.getAbsolutePath())
+				.getContentHash().isFull());
+
+		// It is fully hashed to check the files of its length
+		IngestGate gate = new IngestGate(hashCreator, masters);
+		gate.setPretend(true);
+		IngestGate.Result result = gate.ingest(
+				Collections.singletonList(card.toPath()), destination, null);
+		assertEquals(1, result.getCopied());
+		assertEquals(1, result.getSkipped());
+		assertTrue(hashCreator.getCachedHash(old.getAbsolutePath())
+				.getContentHash().isFull());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testMasterEditedAtSameLength() throws IOException,
+			HashException {
+		File archive = createTestDataDirectory("editedArchive");
+		File before = createTestDataFile("editedArchive\\before", "Archived");
+		File after = createTestDataFile("editedArchive\\after", "Original");
+		File card = createTestDataDirectory("editedCard");
+		createTestDataFile("editedCard\\first", "Archived");
+		createTestDataFile("editedCard\\second", "Original");
+		File destination = new File(archive, "incoming");
+
+		HashCreator hashCreator = new HashCreator();
+		Collection<Path> masters = Collections.singletonList(archive.toPath());
+		hashCreator.create(masters);
+
+		// Edited in place before the gate reads the cache
+		edit(before, "Replaced");
+		IngestGate gate = new IngestGate(hashCreator, masters);
+
+		// And after
+		edit(after, "Replaces");
+
+		// Neither card file is archived any more so both are copied
+		gate.setPretend(true);
+		IngestGate.Result result = gate.ingest(
+				Collections.singletonList(card.toPath()), destination, null);
+		assertEquals(2, result.getCopied());
+		assertEquals(0, result.getSkipped());
+	}
+
+	// Rewrite the file with contents of the same length and a new time
+	private static void edit(File file, String contents) throws IOException {
+		long lastModified = file.lastModified();
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+		assertTrue(file.setLastModified(lastModified + 2000));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testChained() {
+		HashCreator hashCreator = new HashCreator();
+		hashCreator.setAppendable(true);
+		exception.expect(IllegalArgumentException.class);
+		new IngestGate(hashCreator, new LinkedList<Path>());
+	}
+}
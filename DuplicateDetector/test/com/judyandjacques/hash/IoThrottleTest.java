@@ -0,0 +1,168 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class IoThrottleTest {
+	@Rule
+	public ExpectedException exception = ExpectedException.none();
+
+	// Some slack for the clock and the scheduler
+	private static final long SLACK_MILLIS = 50;
+
+	/**
+	 * Acquires bytes or files a number of times
+	 */
+	private static class Reader extends Thread {
+		private final IoThrottle throttle;
+		private final int times;
+		private final long bytes;
+		private volatile Exception failure = null;
+
+		// Files if bytes is 0
+		Reader(IoThrottle throttle, int times, long bytes) {
+			this.throttle = throttle;
+			this.times = times;
+			this.bytes = bytes;
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (int i = 0; i < times; i++) {
+					if (bytes == 0) {
+						throttle.acquireFile();
+					} else {
+						throttle.acquireBytes(bytes);
+					}
+				}
+			} catch (InterruptedIOException e) {
+				failure = e;
+			}
+		}
+	}
+
+	// Run the readers at once and return the milliseconds they took
+	private static long run(Reader... readers) throws Exception {
+		long start = System.nanoTime();
+		for (Reader reader : readers) {
+			reader.start();
+		}
+		for (Reader reader : readers) {
+			reader.join();
+			if (reader.failure != null) {
+				throw reader.failure;
+			}
+		}
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testBytesCeilingAcrossThreads() throws Exception {
+		// 400,000 bytes at 1,000,000 a second between four threads
+		IoThrottle throttle = new IoThrottle(1000000, 0);
+		long millis = run(new Reader(throttle, 10, 10000), new Reader(
+				throttle, 10, 10000), new Reader(throttle, 10, 10000),
+				new Reader(throttle, 10, 10000));
+		assertTrue(millis >= 400 - SLACK_MILLIS);
+		assertTrue(millis < 4000);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testFilesCeilingAcrossThreads() throws Exception {
+		// 20 files at 50 a second between four threads
+		IoThrottle throttle = new IoThrottle(0, 50);
+		long millis = run(new Reader(throttle, 5, 0), new Reader(throttle, 5,
+				0), new Reader(throttle, 5, 0), new Reader(throttle, 5, 0));
+		assertTrue(millis >= 400 - SLACK_MILLIS);
+		assertTrue(millis < 4000);
+
+		// The bytes aren't limited
+		long start = System.nanoTime();
+		throttle.acquireBytes(Long.MAX_VALUE / 2);
+		long elapsed = System.nanoTime() - start;
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(elapsed) < 1000);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testChangeLimitsWhileWaiting() throws Exception {
+		// Would wait 100 seconds at this rate
+		IoThrottle throttle = new IoThrottle(10, 0);
+		Reader reader = new Reader(throttle, 1, 1000);
+		reader.start();
+		Thread.sleep(100);
+		assertTrue(reader.isAlive());
+
+		// A higher limit pays the debt back straight away
+		throttle.setBytesPerSecond(1000000);
+		reader.join(2000);
+		assertFalse(reader.isAlive());
+		assertEquals(1000000, throttle.getBytesPerSecond());
+
+		// So does removing the limit
+		throttle.setFilesPerSecond(1);
+		Reader files = new Reader(throttle, 100, 0);
+		files.start();
+		Thread.sleep(100);
+		assertTrue(files.isAlive());
+		throttle.setFilesPerSecond(0);
+		files.join(2000);
+		assertFalse(files.isAlive());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testThrottledTime() throws Exception {
+		IoThrottle throttle = new IoThrottle();
+		throttle.acquireBytes(1000000000);
+		throttle.acquireFile();
+		assertEquals(0, throttle.getThrottledMillis());
+
+		// Two threads each wait about as long as the whole run, the waits
+		// add up
+		throttle.setBytesPerSecond(1000);
+		long millis = run(new Reader(throttle, 1, 100), new Reader(throttle,
+				1, 100));
+		assertTrue(millis >= 200 - SLACK_MILLIS);
+		long throttled = throttle.getThrottledMillis();
+		assertTrue(throttled >= 300 - SLACK_MILLIS);
+		assertTrue(throttled <= 2 * millis + SLACK_MILLIS);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testNegativeLimit() {
+		IoThrottle throttle = new IoThrottle();
+		exception.expect(IllegalArgumentException.class);
+		throttle.setBytesPerSecond(-1);
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class MasterIndexTest {
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File("test data\\junit", name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File("test data\\junit", dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	private static ContentHash randomHash(Random random) {
+		byte[] digest = new byte[16];
+		random.nextBytes(digest);
+		return new ContentHash(digest);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testBloomFilter() {
+		Random random = new Random(42);
+		BloomFilter filter = new BloomFilter(1000, 0.01);
+		ContentHash[] added = new ContentHash[1000];
+		for (int i = 0; i < added.length; i++) {
+			added[i] = randomHash(random);
+			filter.add(added[i]);
+		}
+		for (ContentHash contentHash : added) {
+			assertTrue(filter.mightContain(contentHash));
+		}
+
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (filter.mightContain(randomHash(random))) {
+				falsePositives++;
+			}
+		}
+		assertTrue(falsePositives < 300);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testTestFilesArePruned() throws IOException,
+			HashException {
+		File master = createTestDataDirectory("indexMaster");
+		File test = createTestDataDirectory("indexTest");
+		createTestDataFile("indexMaster\\a", "AAAA");
+		createTestDataFile("indexMaster\\b", "BBBBBBBB");
+		createTestDataFile("indexTest\\a", "AAAA");
+		createTestDataFile("indexTest\\c", "CCCC");
+		createTestDataFile("indexTest\\d", "DDDDDDDDDDDD");
+
+		Collection<Path> masters = new LinkedList<>();
+		masters.add(master.toPath());
+		Collection<Path> tests = new LinkedList<>();
+		tests.add(test.toPath());
+
+		HashCreator creator = new HashCreator();
+		creator.create(masters);
+		MasterIndex index = MasterIndex.fromCache(creator, masters);
+		assertEquals(2, index.size());
+		assertTrue(index.hasLength(5));
+		assertFalse(index.hasLength(13));
+
+		// d has no master length so it isn't hashed, c is dropped by the hash
+		creator.setMasterIndex(index);
+		Map<ContentHash, Set<File>> testHashes = creator.create(tests);
+		assertEquals(1, testHashes.size());
+		assertEquals(2, creator.getMasterIndexSkips());
+		assertEquals(2 + 2, creator.getCacheSize());
+
+		Map<ContentHash, Set<File>> masterHashes = creator.createFromCache(
+				masters, testHashes.keySet());
+		assertEquals(1, masterHashes.size());
+		assertEquals(testHashes.keySet(), masterHashes.keySet());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testIndexedByScanStrength() throws IOException,
+			HashException {
+		File master = createTestDataDirectory("strengthMaster");
+		File test = createTestDataDirectory("strengthTest");
+		createTestDataFile("strengthMaster\\large", "Large file");
+		createTestDataFile("strengthTest\\large", "Large file");
+
+		Collection<Path> masters = new LinkedList<>();
+		masters.add(master.toPath());
+		Collection<Path> tests = new LinkedList<>();
+		tests.add(test.toPath());
+
+		// The masters are cached with full hashes and indexed by the samples
+		// the test files are hashed with
+		HashCreator creator = new HashCreator();
+		creator.create(masters);
+		creator.setSampledAbove(5);
+		creator.setMasterIndex(MasterIndex.fromCache(creator, masters));
+		Map<ContentHash, Set<File>> testHashes = creator.create(tests);
+		assertEquals(1, testHashes.size());
+		assertEquals(0, creator.getMasterIndexSkips());
+		assertEquals(testHashes.keySet(),
+				creator.createFromCache(masters, testHashes.keySet())
+						.keySet());
+
+		// A master without a fingerprint can't rule fingerprints out
+		HashCreator twoTier = new HashCreator();
+		twoTier.create(masters);
+		twoTier.setTwoTier(true);
+		MasterIndex index = MasterIndex.fromCache(twoTier, masters);
+		for (ContentHash contentHash : twoTier.create(test.toPath())
+				.values()) {
+			assertEquals(ContentHash.Strength.FINGERPRINT,
+					contentHash.getStrength());
+			assertTrue(index.mightContain(contentHash));
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class MasterRevalidatorTest {
+	@Rule
+	public ExpectedException exception = ExpectedException.none();
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File("test data\\junit", name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File("test data\\junit", dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testStaleMasters() throws IOException, HashException {
+		File master = createTestDataDirectory("revalidateMaster");
+		createTestDataFile("revalidateMaster\\same", "Same");
+		File gone = createTestDataFile("revalidateMaster\\gone", "Gone");
+		File changed = createTestDataFile("revalidateMaster\\changed", "Old");
+
+		HashCreator hashCreator = new HashCreator();
+		Collection<Path> masters = new LinkedList<>();
+		masters.add(master.toPath());
+		hashCreator.create(masters);
+		assertEquals(3, hashCreator.getCacheSize());
+
+		assertTrue(gone.delete());
+		createTestDataFile("revalidateMaster\\changed", "Newer contents");
+		MasterRevalidator.Result result = new MasterRevalidator(hashCreator)
+				.revalidate(masters);
+		assertEquals(3, result.getCached());
+		assertEquals(3, result.getChecked());
+		assertTrue(result.isFullyChecked());
+		assertEquals(1, result.getMissing());
+		assertEquals(1, result.getChanged());
+		assertEquals(2, result.getStale());
+
+		// The cache only has the files as they are now
+		assertEquals(2, hashCreator.getCacheSize());
+		assertTrue(hashCreator.getCachedHash(changed.getAbsolutePath())
+				.isValidForFile(changed));
+		Map<ContentHash, Set<File>> fromCache = hashCreator
+				.createFromCache(masters);
+		for (Set<File> files : fromCache.values()) {
+			assertFalse(files.contains(gone.getAbsoluteFile()));
+		}
+
+		// Nothing is stale now
+		result = new MasterRevalidator(hashCreator).revalidate(masters);
+		assertEquals(0, result.getStale());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testTruncatedTime() throws IOException, HashException {
+		File master = createTestDataDirectory("revalidateTruncated");
+		File file = createTestDataFile("revalidateTruncated\\file", "File");
+		Files.setLastModifiedTime(file.toPath(),
+				FileTime.fromMillis(1389000000500L));
+
+		// Saved by a JDK that truncates File.lastModified to the second
+		HashCreator hashCreator = new HashCreator();
+		assertTrue(hashCreator.mergeIntoCache(new FileHash(file
+				.getAbsolutePath(), new ContentHash(new byte[] { 1 }), file
+				.length(), 1389000000000L)));
+		Collection<Path> masters = new LinkedList<>();
+		masters.add(master.toPath());
+		MasterRevalidator.Result result = new MasterRevalidator(hashCreator)
+				.revalidate(masters);
+		assertEquals(1, result.getChecked());
+		assertEquals(0, result.getStale());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testSample() throws IOException, HashException {
+		File master = createTestDataDirectory("revalidateSample");
+		for (int i = 0; i < 20; i++) {
+			createTestDataFile("revalidateSample\\" + i, "File " + i);
+		}
+		HashCreator hashCreator = new HashCreator();
+		Collection<Path> masters = new LinkedList<>();
+		masters.add(master.toPath());
+		hashCreator.create(masters);
+
+		MasterRevalidator revalidator = new MasterRevalidator(hashCreator);
+		revalidator.setSampleRate(0.25);
+		revalidator.setThreads(2);
+		MasterRevalidator.Result result = revalidator.revalidate(masters);
+		assertEquals(20, result.getCached());
+		assertTrue(result.getChecked() <= 20);
+		assertEquals(0, result.getStale());
+
+		exception.expect(IllegalArgumentException.class);
+		revalidator.setSampleRate(0);
+	}
+}
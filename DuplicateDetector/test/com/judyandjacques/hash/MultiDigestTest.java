@@ -0,0 +1,177 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class MultiDigestTest {
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File("test data\\junit", name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File("test data\\junit", dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	private static Collection<Path> createFiles(String dir) throws IOException {
+		File directory = createTestDataDirectory(dir);
+		createTestDataFile(dir + "\\one", "1");
+		createTestDataFile(dir + "\\two", "2");
+		Collection<Path> toSearch = new LinkedList<>();
+		toSearch.add(directory.toPath());
+		return toSearch;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testSameAsContentHash() throws IOException,
+			NoSuchAlgorithmException {
+		createTestDataDirectory("multiDigest");
+		File file = createTestDataFile("multiDigest\\one", "Some contents");
+
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		MessageDigest sha = MessageDigest.getInstance("SHA-256");
+		ContentHash[] hashes = MultiDigest.hash(file, new MessageDigest[] {
+				md5, sha }, null);
+
+		assertEquals(new ContentHash(file, md5), hashes[0]);
+		assertEquals(new ContentHash(file, sha), hashes[1]);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testLoadPromotesExtraAlgorithm() throws IOException,
+			HashException {
+		Collection<Path> toSearch = createFiles("multiDigestLoad");
+
+		HashCreator creator = new HashCreator();
+		creator.setExtraAlgorithms("SHA-256");
+		creator.create(toSearch);
+		for (FileHash fileHash : creator.getCachedHashes()) {
+			assertNotNull(fileHash.getOtherHash("SHA-256"));
+		}
+
+		HashCreator shaCreator = new HashCreator();
+		shaCreator.setHashAlgorithm("SHA-256");
+		Map<ContentHash, Set<File>> expected = shaCreator.create(toSearch);
+
+		try (ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+				ObjectOutputStream oStream = new ObjectOutputStream(bOut)) {
+
+			creator.writeCache(oStream);
+			HashCreator creatorCache = new HashCreator();
+			creatorCache.setHashAlgorithm("SHA-256");
+
+			try (ByteArrayInputStream bInput = new ByteArrayInputStream(
+					bOut.toByteArray());
+					ObjectInputStream iStream = new ObjectInputStream(bInput)) {
+
+				creatorCache.loadCache(iStream);
+			}
+			assertEquals(expected.keySet(), creatorCache.createFromCache(
+					toSearch).keySet());
+
+			// The old algorithm is kept as an extra
+			for (FileHash fileHash : creatorCache.getCachedHashes()) {
+				assertNotNull(fileHash.getOtherHash("MD5"));
+			}
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testMigrate() throws IOException, HashException {
+		Collection<Path> toSearch = createFiles("multiDigestMigrate");
+
+		HashCreator creator = new HashCreator();
+		creator.create(toSearch);
+		assertEquals(0, creator.getHashesMigrated());
+
+		// Only filled in when migrating
+		creator.setExtraAlgorithms("SHA-256");
+		creator.create(toSearch);
+		assertEquals(0, creator.getHashesMigrated());
+		creator.setMigrating(true);
+		creator.create(toSearch);
+		assertEquals(2, creator.getHashesMigrated());
+		creator.create(toSearch);
+		assertEquals(2, creator.getHashesMigrated());
+
+		HashCreator shaCreator = new HashCreator();
+		shaCreator.setHashAlgorithm("SHA-256");
+		Map<ContentHash, Set<File>> expected = shaCreator.create(toSearch);
+
+		creator.setHashAlgorithm("SHA-256");
+		assertEquals(2, creator.getCacheSize());
+		int cacheHits = creator.getCacheHits();
+		assertEquals(expected.keySet(), creator.create(toSearch).keySet());
+		assertEquals(cacheHits + 2, creator.getCacheHits());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testChangeAlgorithmRemovesOthers() throws IOException,
+			HashException {
+		Collection<Path> toSearch = createFiles("multiDigestChange");
+
+		HashCreator creator = new HashCreator();
+		creator.create(toSearch);
+		assertEquals(2, creator.getCacheSize());
+
+		// Never mixed with hashes from the old algorithm
+		creator.setHashAlgorithm("SHA-256");
+		assertEquals(0, creator.getCacheSize());
+		assertTrue(creator.isCacheModified());
+	}
+}
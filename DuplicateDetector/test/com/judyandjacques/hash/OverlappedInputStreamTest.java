@@ -0,0 +1,106 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class OverlappedInputStreamTest {
+
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private static byte[] createData(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testReadsAllBytes() throws IOException {
+		byte[] data = createData(100000);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = new OverlappedInputStream(
+				new ByteArrayInputStream(data), 4096)) {
+			byte[] buffer = new byte[1000];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			assertEquals(-1, in.read());
+		}
+		assertArrayEquals(data, out.toByteArray());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testEmpty() throws IOException {
+		try (InputStream in = new OverlappedInputStream(
+				new ByteArrayInputStream(new byte[0]), 4096)) {
+			assertEquals(-1, in.read());
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testSmallNotWrapped() throws IOException {
+		InputStream in = new ByteArrayInputStream(new byte[10]);
+		assertTrue(OverlappedInputStream.wrap(in, 10) == in);
+		assertTrue(OverlappedInputStream.wrap(in,
+				OverlappedInputStream.THRESHOLD) instanceof OverlappedInputStream);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testCloseEarly() throws IOException {
+		byte[] data = createData(100000);
+		InputStream in = new OverlappedInputStream(new ByteArrayInputStream(
+				data), 1024);
+		assertEquals(data[0] & 0xff, in.read());
+		in.close();
+	}
+
+	@Test
+	public final void testReadError() throws IOException {
+		InputStream failing = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("Disk failed");
+			}
+		};
+
+		thrown.expect(IOException.class);
+		try (InputStream in = new OverlappedInputStream(failing, 1024)) {
+			in.read();
+		}
+	}
+}
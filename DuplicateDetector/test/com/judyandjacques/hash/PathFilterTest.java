@@ -0,0 +1,122 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PathFilterTest {
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File("test data\\junit", name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File("test data\\junit", dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testExtensions() {
+		PathFilter filter = new PathFilter();
+		assertTrue(filter.acceptFile(Paths.get("a.pg"), 1));
+
+		filter.setExtensions(new String[] { "jpg", "PNG" });
+		assertTrue(filter.acceptFile(Paths.get("a.JPG"), 1));
+		assertTrue(filter.acceptFile(Paths.get("a.png"), 1));
+
+		// Part of an extension is not a match
+		assertFalse(filter.acceptFile(Paths.get("a.pg"), 1));
+		assertFalse(filter.acceptFile(Paths.get("a"), 1));
+		assertEquals(2, filter.getExtensions().length);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testGlobsAndSizes() {
+		PathFilter filter = new PathFilter();
+		filter.addInclude("*.log");
+		filter.addExclude(".git");
+		filter.addExclude("cache/*.log");
+		filter.setMinSize(10);
+		filter.setMaxSize(100);
+
+		Path root = Paths.get("root");
+		assertTrue(filter.isExcluded(root.resolve(".git"), Paths.get(".git")));
+		assertTrue(filter.isExcluded(root.resolve("cache/a.log"),
+				Paths.get("cache/a.log")));
+		assertFalse(filter.isExcluded(root.resolve("a.log"),
+				Paths.get("a.log")));
+
+		assertTrue(filter.acceptFile(Paths.get("a.log"), 10));
+		assertFalse(filter.acceptFile(Paths.get("a.txt"), 10));
+		assertFalse(filter.acceptFile(Paths.get("a.log"), 9));
+		assertFalse(filter.acceptFile(Paths.get("a.log"), 101));
+
+		assertFalse(filter.accept(root, Paths.get(".git/objects/a.log"), 10));
+		assertTrue(filter.accept(root, Paths.get("logs/a.log"), 10));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testExcludedSubtreesAreSkipped() throws HashException,
+			IOException {
+		File root = createTestDataDirectory("filter");
+		createTestDataDirectory("filter\\.git");
+		createTestDataDirectory("filter\\thumbs");
+		createTestDataFile("filter\\a", "A");
+		createTestDataFile("filter\\.git\\b", "B");
+		createTestDataFile("filter\\thumbs\\c", "C");
+
+		PathFilter filter = new PathFilter();
+		filter.addExclude(".git");
+		filter.addExcludedDirectory(new File(root, "thumbs").toPath());
+
+		HashCreator creator = new HashCreator();
+		creator.setFilter(filter);
+		Map<File, ContentHash> hashes = creator.create(root.toPath());
+		assertEquals(1, hashes.size());
+		assertEquals(1, creator.getFilesProcessed());
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class ReverseIndexTest {
+	@Rule
+	public ExpectedException exception = ExpectedException.none();
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File("test data\\junit", name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File("test data\\junit", dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testLookup() throws IOException, HashException {
+		File archive = createTestDataDirectory("reverseArchive");
+		File first = createTestDataFile("reverseArchive\\first", "Archived");
+		File second = createTestDataFile("reverseArchive\\second", "Archived");
+		createTestDataFile("reverseArchive\\other", "Something else");
+		for (int i = 0; i < 20; i++) {
+			createTestDataFile("reverseArchive\\" + i, "File " + i);
+		}
+		HashCreator hashCreator = new HashCreator();
+		Collection<Path> roots = new LinkedList<>();
+		roots.add(archive.toPath());
+		hashCreator.create(roots);
+
+		File indexFile = new File("test data\\junit", "reverse.index");
+		indexFile.deleteOnExit();
+		assertEquals(23, ReverseIndex.write(indexFile,
+				hashCreator.getHashAlgorithm(),
+				hashCreator.getCachedHashes()));
+
+		File copy = createTestDataFile("reverseCopy", "Archived");
+		File sameLength = createTestDataFile("reverseSameLength", "Archives");
+		File newFile = createTestDataFile("reverseNew", "Not in the archive");
+		HashCreator lookupCreator = new HashCreator();
+		try (ReverseIndex index = ReverseIndex.open(indexFile)) {
+			assertEquals(23, index.size());
+			assertEquals(hashCreator.getHashAlgorithm(),
+					index.getHashAlgorithm());
+
+			List<File> copies = index.lookup(copy, lookupCreator);
+			assertEquals(2, copies.size());
+			assertTrue(new HashSet<>(copies).contains(first.getAbsoluteFile()));
+			assertTrue(new HashSet<>(copies).contains(second
+					.getAbsoluteFile()));
+
+			// The same length has to be hashed but the hash isn't there
+			assertTrue(index.hasLength(sameLength.length()));
+			assertTrue(index.lookup(sameLength, lookupCreator).isEmpty());
+
+			// No archived file has the length so it isn't hashed
+			assertFalse(index.hasLength(newFile.length()));
+			assertTrue(index.lookup(newFile, lookupCreator).isEmpty());
+			assertEquals(2, lookupCreator.getCacheSize());
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testEmpty() throws IOException, HashException {
+		File indexFile = new File("test data\\junit", "empty.index");
+		indexFile.deleteOnExit();
+		assertEquals(0, ReverseIndex.write(indexFile, "MD5",
+				new LinkedList<FileHash>()));
+		File file = createTestDataFile("reverseEmpty", "Anything");
+		try (ReverseIndex index = ReverseIndex.open(indexFile)) {
+			assertEquals(0, index.size());
+			assertTrue(index.lookup(file, new HashCreator()).isEmpty());
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testNotAnIndex() throws IOException, HashException {
+		File file = createTestDataFile("notAnIndex", "Not an index");
+		exception.expect(HashException.class);
+		ReverseIndex.open(file);
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SampledDigestTest {
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, byte[] contents)
+			throws IOException {
+
+		File file = new File("test data\\junit", name);
+		try (FileOutputStream fOut = new FileOutputStream(file)) {
+			fOut.write(contents);
+		}
+
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	// A byte that none of the samples read
+	private static int unsampled(long length) {
+		long[] offsets = SampledDigest.offsets(length);
+		for (int position = 0; position < length; position++) {
+			boolean sampled = false;
+			for (long offset : offsets) {
+				if ((position >= offset)
+						&& (position < offset + SampledDigest.SAMPLE_SIZE)) {
+					sampled = true;
+				}
+			}
+			if (!sampled) {
+				return position;
+			}
+		}
+		throw new IllegalStateException("Every byte is sampled");
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testSampledMatchIsOnlyProbable() throws IOException,
+			NoSuchAlgorithmException {
+		byte[] contents = new byte[4 * 1024 * 1024];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = (byte) (i * 31);
+		}
+		File one = createTestDataFile("sampledOne", contents);
+		contents[unsampled(contents.length)]++;
+		File two = createTestDataFile("sampledTwo", contents);
+
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		ContentHash sampledOne = SampledDigest.hash(one, md, null);
+		ContentHash sampledTwo = SampledDigest.hash(two, md, null);
+		assertEquals(ContentHash.Strength.SAMPLED, sampledOne.getStrength());
+		assertEquals(sampledOne, sampledTwo);
+		assertFalse(new ContentHash(one, md).equals(new ContentHash(two, md)));
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testOnlyLargeFilesAreSampled() throws IOException,
+			HashException {
+		File small = createTestDataFile("sampledSmall", new byte[10]);
+		File large = createTestDataFile("sampledLarge", new byte[100]);
+
+		HashCreator creator = new HashCreator();
+		creator.setSampledAbove(100);
+		assertTrue(creator.create(small.toPath()).get(small).isFull());
+		assertFalse(creator.create(large.toPath()).get(large).isFull());
+
+		// A full hash in the cache is kept
+		HashCreator full = new HashCreator();
+		full.create(large.toPath());
+		full.setSampledAbove(100);
+		assertFalse(full.create(large.toPath()).get(large).isFull());
+		assertTrue(full.getCachedHash(large.getAbsolutePath())
+				.getContentHash().isFull());
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testCachedFullMasterMatchesSample() throws IOException,
+			HashException {
+		File masters = new File("test data\\junit", "sampledMasters");
+		if (masters.mkdir()) {
+			masters.deleteOnExit();
+		}
+		File master = createTestDataFile("sampledMasters\\master",
+				new byte[100]);
+		File copy = createTestDataFile("sampledCopy", new byte[100]);
+
+		// The master is cached with only a full hash
+		HashCreator creator = new HashCreator();
+		creator.create(masters.toPath());
+		creator.setSampledAbove(100);
+
+		// Both are grouped by the sampled hash
+		Map<ContentHash, Set<File>> fromCache = creator
+				.createFromCache(Collections.singletonList(masters.toPath()));
+		ContentHash sampled = creator.create(copy.toPath()).get(copy);
+		assertEquals(ContentHash.Strength.SAMPLED, sampled.getStrength());
+		assertEquals(Collections.singleton(master.getAbsoluteFile()),
+				fromCache.get(sampled));
+
+		// The full hash is kept and the sample is now a cache hit
+		assertTrue(creator.getCachedHash(master.getAbsolutePath())
+				.getContentHash().isFull());
+		assertEquals(sampled, creator.create(masters.toPath()).get(master));
+		assertEquals(1, creator.getCacheHits());
+	}
+}
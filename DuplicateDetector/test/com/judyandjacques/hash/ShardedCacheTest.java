@@ -0,0 +1,96 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedList;
+
+import org.junit.Test;
+
+public class ShardedCacheTest {
+
+	// Deletes the created file on jvm exit
+	private static File createTestDataFile(String name, String contents)
+			throws IOException {
+
+		File file = new File("test data\\junit", name);
+		try (PrintWriter pOut = new PrintWriter(file);) {
+			pOut.println(contents);
+		}
+
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	// Deletes the created directory
+	private static File createTestDataDirectory(String dir) {
+		File file = new File("test data\\junit", dir);
+		if (file.mkdir()) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testLoadOnlyOverlappingShards() throws IOException,
+			HashException {
+		File shards = createTestDataDirectory("shards");
+		File one = createTestDataDirectory("shardOne");
+		File two = createTestDataDirectory("shardTwo");
+		createTestDataFile("shardOne\\a", "A");
+		createTestDataFile("shardOne\\b", "B");
+		createTestDataFile("shardTwo\\c", "C");
+
+		Collection<Path> both = new LinkedList<>();
+		both.add(one.toPath());
+		both.add(two.toPath());
+
+		HashCreator creator = new HashCreator();
+		ShardedCache cache = new ShardedCache(shards);
+		assertEquals(0, cache.load(creator, both));
+		creator.create(both);
+		assertEquals(2, cache.save(creator));
+		for (File file : shards.listFiles()) {
+			file.deleteOnExit();
+		}
+
+		// Only the first shard is needed
+		Collection<Path> first = new LinkedList<>();
+		first.add(one.toPath());
+
+		HashCreator loaded = new HashCreator();
+		ShardedCache reload = new ShardedCache(shards);
+		assertEquals(1, reload.load(loaded, first));
+		assertEquals(2, loaded.getCacheSize());
+		assertEquals(2, reload.getShardCount());
+
+		// Nothing changed so nothing is written
+		loaded.create(first);
+		assertEquals(2, loaded.getCacheHits());
+		assertEquals(0, reload.save(loaded));
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2012=4 Jacques Parker mrjacques@gmail.com
+ * 
+ * This file is part of the Caching Duplicate Finder project
+ * 
+ * Caching Duplicate Finder project is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License, 
+ * or (at your option) any later version.
+ * 
+ * Caching Duplicate Finder project is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General 
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * the Single-Script-Photo-Frame. If not, see http://www.gnu.org/licenses/.
+ */
+package com.judyandjacques.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TieredCacheTest {
+
+	private static FileHash createHash(int i, long lastModified) {
+		byte[] digest = new byte[] { (byte) i, (byte) (i >> 8), 1, 2 };
+		return new FileHash("/archive/" + (i % 7) + "/" + i + ".jpg",
+				new ContentHash(digest), i * 1000L, lastModified);
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testEviction() throws IOException {
+		try (TieredCache cache = new TieredCache(null, 4000)) {
+			for (int i = 0; i < 500; i++) {
+				FileHash fileHash = createHash(i, 1389000000000L);
+				assertNull(cache.put(fileHash.getAbsolutePath(), fileHash));
+			}
+			assertEquals(500, cache.size());
+			assertTrue(cache.getHeapSize() < 500);
+			assertTrue(cache.getDiskSize() > 0);
+
+			for (int i = 0; i < 500; i++) {
+				FileHash fileHash = createHash(i, 1389000000000L);
+				assertEquals(fileHash, cache.get(fileHash.getAbsolutePath()));
+			}
+			assertTrue(cache.getDiskHits() > 0);
+			assertNull(cache.get("/archive/missing.jpg"));
+			assertEquals(1, cache.getMisses());
+
+			// Read back hashes keep their records so nothing new is written
+			long written = cache.getRecordsWritten();
+			for (int i = 0; i < 500; i++) {
+				cache.get(createHash(i, 1389000000000L).getAbsolutePath());
+			}
+			assertEquals(written, cache.getRecordsWritten());
+			assertEquals(500, cache.size());
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testReplaceAndRemove() throws IOException {
+		try (TieredCache cache = new TieredCache(null, 4000)) {
+			for (int i = 0; i < 200; i++) {
+				FileHash fileHash = createHash(i, 1389000000000L);
+				cache.put(fileHash.getAbsolutePath(), fileHash);
+			}
+
+			// The first hashes have been evicted
+			FileHash old = createHash(0, 1389000000000L);
+			FileHash newer = createHash(0, 1389000000001L);
+			assertTrue(cache.replace(old.getAbsolutePath(), old, newer));
+			assertFalse(cache.replace(old.getAbsolutePath(), old, newer));
+			assertEquals(newer, cache.putIfAbsent(old.getAbsolutePath(), old));
+
+			FileHash removed = createHash(1, 1389000000000L);
+			assertEquals(removed, cache.remove(removed.getAbsolutePath()));
+			assertNull(cache.get(removed.getAbsolutePath()));
+			assertEquals(199, cache.size());
+
+			// Evict the replaced hash again and read it back
+			for (int i = 200; i < 400; i++) {
+				FileHash fileHash = createHash(i, 1389000000000L);
+				cache.put(fileHash.getAbsolutePath(), fileHash);
+			}
+			assertEquals(newer, cache.get(newer.getAbsolutePath()));
+			assertEquals(399, cache.size());
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testIndexGrows() throws IOException {
+		try (TieredCache cache = new TieredCache(null, 4000)) {
+			for (int i = 0; i < 5000; i++) {
+				FileHash fileHash = createHash(i, 1389000000000L);
+				cache.put(fileHash.getAbsolutePath(), fileHash);
+			}
+			for (int i = 0; i < 5000; i += 2) {
+				cache.remove(createHash(i, 1389000000000L).getAbsolutePath());
+			}
+			assertEquals(2500, cache.size());
+
+			// Rebuilt again without the removed slots
+			for (int i = 5000; i < 6000; i++) {
+				FileHash fileHash = createHash(i, 1389000000000L);
+				cache.put(fileHash.getAbsolutePath(), fileHash);
+			}
+			for (int i = 0; i < 6000; i++) {
+				FileHash fileHash = createHash(i, 1389000000000L);
+				if ((i < 5000) && (i % 2 == 0)) {
+					assertNull(cache.get(fileHash.getAbsolutePath()));
+				} else {
+					assertEquals(fileHash,
+							cache.get(fileHash.getAbsolutePath()));
+				}
+			}
+			assertEquals(3500, cache.size());
+
+			cache.clear();
+			assertEquals(0, cache.size());
+			assertNull(cache.get(createHash(1, 1389000000000L)
+					.getAbsolutePath()));
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testIterator() throws IOException {
+		try (TieredCache cache = new TieredCache(null, 4000)) {
+			Map<String, FileHash> expected = new HashMap<>();
+			for (int i = 0; i < 300; i++) {
+				FileHash fileHash = createHash(i, 1389000000000L);
+				cache.put(fileHash.getAbsolutePath(), fileHash);
+				expected.put(fileHash.getAbsolutePath(), fileHash);
+			}
+
+			// Replaced and read back hashes are only seen once
+			for (int i = 0; i < 300; i += 3) {
+				FileHash fileHash = createHash(i, 1389000000005L);
+				cache.put(fileHash.getAbsolutePath(), fileHash);
+				expected.put(fileHash.getAbsolutePath(), fileHash);
+				cache.get(createHash(i + 1, 0).getAbsolutePath());
+			}
+			assertEquals(expected, new HashMap<>(cache));
+
+			// Removing through the iterator
+			Iterator<FileHash> iterator = cache.values().iterator();
+			while (iterator.hasNext()) {
+				FileHash fileHash = iterator.next();
+				if (fileHash.getLength() % 2000 == 0) {
+					iterator.remove();
+					expected.remove(fileHash.getAbsolutePath());
+				}
+			}
+			assertEquals(expected.size(), cache.size());
+			assertEquals(expected, new HashMap<>(cache));
+		}
+	}
+
+	@SuppressWarnings("static-method")
+	@Test
+	public final void testHashCreator() throws IOException {
+		HashCreator hashCreator = new HashCreator();
+		FileHash fileHash = createHash(1, 1389000000000L);
+		hashCreator.mergeIntoCache(fileHash);
+		hashCreator.setCacheMemoryBudget(4000, null);
+		try (TieredCache cache = hashCreator.getTieredCache()) {
+			assertEquals(1, hashCreator.getCacheSize());
+			assertEquals(1, cache.size());
+			assertEquals(fileHash, cache.get(fileHash.getAbsolutePath()));
+		}
+	}
+}